@@ -0,0 +1,114 @@
+package com.microsoft.sample.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Synthetic, deterministic generator of change feed batches.
+ * Documents carry the system properties the feed delivers (_rid, _self,
+ * _etag, _ts, _lsn) plus a nested payload padded to the requested size.
+ */
+public class ChangeFeedBatchGenerator {
+	
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+	private static final String[] STATUSES = { "created", "pending", "shipped", "delivered", "cancelled" };
+	
+	private final Random random;
+	private final int documentSize;
+	private final int tenants;
+	private long timestamp;
+	private long lsn;
+	
+	public ChangeFeedBatchGenerator(long seed, int documentSize, int tenants, long startEpochSecond) {
+		this.random = new Random(seed);
+		this.documentSize = documentSize;
+		this.tenants = tenants;
+		this.timestamp = startEpochSecond;
+		this.lsn = 1;
+	}
+	
+	public List<JsonNode> nextBatch(int batchSize) {
+		List<JsonNode> batch = new ArrayList<JsonNode>(batchSize);
+		for(int i = 0; i < batchSize; i++) {
+			batch.add(nextDocument());
+		}
+		return batch;
+	}
+	
+	public List<byte[]> nextSerializedBatch(int batchSize) {
+		List<byte[]> batch = new ArrayList<byte[]>(batchSize);
+		for(JsonNode document : nextBatch(batchSize)) {
+			batch.add(toBytes(document));
+		}
+		return batch;
+	}
+	
+	public JsonNode nextDocument() {
+		JsonNodeFactory factory = JsonNodeFactory.instance;
+		ObjectNode document = factory.objectNode();
+		String id = new UUID(random.nextLong(), random.nextLong()).toString();
+		document.put("id", id);
+		document.put("pk", "tenant-" + random.nextInt(tenants));
+		document.put("status", STATUSES[random.nextInt(STATUSES.length)]);
+		document.put("amount", random.nextInt(100000) / 100.0);
+		document.put("quantity", random.nextInt(50));
+		
+		ObjectNode customer = document.putObject("customer");
+		customer.put("name", "customer-" + random.nextInt(1000000));
+		customer.put("email", "user" + random.nextInt(1000000) + "@contoso.com");
+		ObjectNode address = customer.putObject("address");
+		address.put("city", "city-" + random.nextInt(500));
+		address.put("zip", String.valueOf(10000 + random.nextInt(89999)));
+		
+		ArrayNode tags = document.putArray("tags");
+		for(int i = 0; i < 4; i++) {
+			tags.add("tag-" + random.nextInt(64));
+		}
+		
+		ArrayNode lines = document.putArray("lines");
+		int remaining = documentSize - 600;
+		while(remaining > 0) {
+			ObjectNode line = lines.addObject();
+			line.put("sku", "sku-" + random.nextInt(100000));
+			line.put("price", random.nextInt(10000) / 100.0);
+			line.put("description", randomText(Math.min(remaining, 96)));
+			remaining -= 160;
+		}
+		
+		// system properties as returned by the change feed
+		timestamp += random.nextInt(2);
+		document.put("_rid", "AAAAAAAAAAA" + Long.toString(lsn, 36));
+		document.put("_self", "dbs/AAAAAA==/colls/AAAAAAAAAAA=/docs/" + id + "/");
+		document.put("_etag", "\"" + new UUID(random.nextLong(), random.nextLong()) + "\"");
+		document.put("_attachments", "attachments/");
+		document.put("_ts", timestamp);
+		document.put("_lsn", lsn++);
+		return document;
+	}
+	
+	private String randomText(int length) {
+		StringBuilder sb = new StringBuilder(length);
+		for(int i = 0; i < length; i++) {
+			sb.append((char) ('a' + random.nextInt(26)));
+		}
+		return sb.toString();
+	}
+	
+	public static byte[] toBytes(JsonNode document) {
+		try {
+			return MAPPER.writeValueAsBytes(document);
+		}
+		catch(JsonProcessingException exp) {
+			throw new IllegalStateException(exp);
+		}
+	}
+}
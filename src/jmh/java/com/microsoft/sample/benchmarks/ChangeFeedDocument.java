@@ -0,0 +1,43 @@
+package com.microsoft.sample.benchmarks;
+
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+/**
+ * Typed view of the synthetic change feed document
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class ChangeFeedDocument {
+	public String id;
+	public String pk;
+	public String status;
+	public double amount;
+	public int quantity;
+	public Customer customer;
+	public List<String> tags;
+	public List<Line> lines;
+	public String _etag;
+	public long _ts;
+	public long _lsn;
+	
+	@JsonIgnoreProperties(ignoreUnknown = true)
+	public static class Customer {
+		public String name;
+		public String email;
+		public Address address;
+	}
+	
+	@JsonIgnoreProperties(ignoreUnknown = true)
+	public static class Address {
+		public String city;
+		public String zip;
+	}
+	
+	@JsonIgnoreProperties(ignoreUnknown = true)
+	public static class Line {
+		public String sku;
+		public double price;
+		public String description;
+	}
+}
@@ -0,0 +1,113 @@
+package com.microsoft.sample.benchmarks;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.microsoft.sample.cfp.LazyDocument;
+
+/**
+ * Per batch cost of Cfp.changeFeedHandler style processing: reading _ts for
+ * the window check, with and without pretty printing the document, on a
+ * JsonNode tree versus a typed POJO versus a lazy projection of the raw bytes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChangeFeedHandlerBenchmark {
+	
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+	
+	@Param({ "1024", "16384" })
+	public int documentSize;
+	
+	@Param({ "100" })
+	public int batchSize;
+	
+	private List<JsonNode> batch;
+	private List<byte[]> serializedBatch;
+	private long endEpoch;
+	
+	@Setup
+	public void setup() {
+		long start = Instant.parse("2022-02-24T19:00:00.00Z").getEpochSecond();
+		ChangeFeedBatchGenerator generator = new ChangeFeedBatchGenerator(42, documentSize, 100, start);
+		batch = generator.nextBatch(batchSize);
+		serializedBatch = generator.nextSerializedBatch(batchSize);
+		endEpoch = start + batchSize / 2;
+	}
+	
+	@Benchmark
+	public void jsonNodeWindowCheck(Blackhole bh) {
+		for(JsonNode document : batch) {
+			bh.consume(document.get("_ts").asLong() > endEpoch);
+		}
+	}
+	
+	@Benchmark
+	public void jsonNodePrettyPrint(Blackhole bh) {
+		for(JsonNode document : batch) {
+			bh.consume(document.get("_ts").asLong() > endEpoch);
+			bh.consume(document.toPrettyString());
+		}
+	}
+	
+	@Benchmark
+	public void jsonNodeParseWindowCheck(Blackhole bh) throws IOException {
+		for(byte[] raw : serializedBatch) {
+			JsonNode document = MAPPER.readTree(raw);
+			bh.consume(document.get("_ts").asLong() > endEpoch);
+		}
+	}
+	
+	@Benchmark
+	public void pojoParseWindowCheck(Blackhole bh) throws IOException {
+		for(byte[] raw : serializedBatch) {
+			ChangeFeedDocument document = MAPPER.readValue(raw, ChangeFeedDocument.class);
+			bh.consume(document._ts > endEpoch);
+		}
+	}
+	
+	@Benchmark
+	public void pojoTreeConvertWindowCheck(Blackhole bh) {
+		for(JsonNode document : batch) {
+			ChangeFeedDocument typed = MAPPER.convertValue(document, ChangeFeedDocument.class);
+			bh.consume(typed._ts > endEpoch);
+		}
+	}
+	
+	@Benchmark
+	public void pojoParsePrettyPrint(Blackhole bh) throws IOException {
+		for(byte[] raw : serializedBatch) {
+			ChangeFeedDocument document = MAPPER.readValue(raw, ChangeFeedDocument.class);
+			bh.consume(document._ts > endEpoch);
+			bh.consume(MAPPER.writerWithDefaultPrettyPrinter().writeValueAsString(document));
+		}
+	}
+	
+	@Benchmark
+	public void lazyProjectionWindowCheck(Blackhole bh) {
+		for(byte[] raw : serializedBatch) {
+			bh.consume(LazyDocument.of(raw).getTimestamp() > endEpoch);
+		}
+	}
+}
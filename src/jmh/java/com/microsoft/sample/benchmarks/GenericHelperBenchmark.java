@@ -0,0 +1,101 @@
+package com.microsoft.sample.benchmarks;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.Logger;
+import org.slf4j.helpers.NOPLogger;
+
+import com.azure.cosmos.BridgeInternal;
+import com.azure.cosmos.CosmosException;
+import com.azure.cosmos.models.SqlQuerySpec;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.microsoft.sample.api.helpers.GenericHelper;
+import com.microsoft.sample.api.metrics.OperationType;
+
+/**
+ * Filter to SQL translation and the error/diagnostics helpers.
+ * A no-op logger is used so only the cost of building the log arguments
+ * (string concatenation, diagnostics rendering, error json) is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GenericHelperBenchmark {
+	
+	private static final Logger LOGGER = NOPLogger.NOP_LOGGER;
+	
+	private CosmosException throttled;
+	private Exception failure;
+	
+	@State(Scope.Benchmark)
+	public static class Filters {
+		@Param({ "1", "4", "8" })
+		public int filterCount;
+		
+		String json;
+		
+		@Setup
+		public void setup() {
+			StringBuilder sb = new StringBuilder("{");
+			for(int i = 0; i < filterCount; i++) {
+				if(i > 0) {
+					sb.append(',');
+				}
+				if(i % 2 == 0) {
+					sb.append("\"field").append(i).append("\":\"value").append(i).append('"');
+				}
+				else {
+					sb.append("\"field").append(i).append("\":").append(i * 10);
+				}
+			}
+			json = sb.append('}').toString();
+		}
+	}
+	
+	@Setup
+	public void setup() {
+		throttled = BridgeInternal.createCosmosException(429, "Request rate is large. More Request Units may be needed, so no changes were made. \"retry\" later");
+		BridgeInternal.setCosmosDiagnostics(throttled, BridgeInternal.createCosmosDiagnostics(Collections.emptyMap()));
+		failure = new IllegalStateException("Connection reset by peer while reading \"response\"");
+	}
+	
+	@Benchmark
+	public SqlQuerySpec sqlQueryFromQueryString(Filters filters) {
+		return GenericHelper.getSqlQueryFromQueryString(filters.json, LOGGER);
+	}
+	
+	@Benchmark
+	public JsonNode errorJson() {
+		return GenericHelper.getErrorJson(failure, 500);
+	}
+	
+	@Benchmark
+	public JsonNode handleCosmosException() {
+		return GenericHelper.handleException(throttled, LOGGER);
+	}
+	
+	@Benchmark
+	public JsonNode handleThrottledOperation() {
+		return GenericHelper.handleException(OperationType.READ, throttled, LOGGER);
+	}
+	
+	@Benchmark
+	public void logExceptionDiagnostics() {
+		GenericHelper.logDiagnostics(LOGGER, throttled);
+	}
+}
@@ -0,0 +1,64 @@
+package com.microsoft.sample.benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.microsoft.sample.api.metrics.HotKeyTracker;
+
+/**
+ * Per operation cost of recording a partition key, single threaded and
+ * with contended sub-windows. Keys are skewed, a tenth of the records go to
+ * a handful of hot keys and the rest spread over many distinct keys.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HotKeyTrackerBenchmark {
+	
+	@Param({ "1000", "1000000" })
+	public int distinctKeys;
+	
+	private HotKeyTracker tracker;
+	private String[] keys;
+	
+	@Setup
+	public void setup() {
+		tracker = new HotKeyTracker(60000, 6, 64, 1024, 4, 10);
+		keys = new String[distinctKeys];
+		for(int i = 0; i < keys.length; i++) {
+			keys[i] = "tenant-" + i;
+		}
+	}
+	
+	private String nextKey() {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		return keys[random.nextInt(10) == 0 ? random.nextInt(8) : random.nextInt(keys.length)];
+	}
+	
+	@Benchmark
+	public void record() {
+		tracker.record(nextKey(), 5.71, false);
+	}
+	
+	@Benchmark
+	@Threads(4)
+	public void recordContended() {
+		tracker.record(nextKey(), 5.71, false);
+	}
+}
@@ -6,7 +6,9 @@ import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 
 import com.microsoft.sample.api.helpers.ConfigurationHelper;
+import com.microsoft.sample.api.metrics.MetricsEndpoint;
 import com.microsoft.sample.cfp.Cfp;
+import com.microsoft.sample.cfp.ReplayEngine;
 
 @SpringBootApplication
 public class CosmosDemoChangeFeedApplication {
@@ -18,9 +20,19 @@ public class CosmosDemoChangeFeedApplication {
 		Instant startTime = Instant.parse("2022-02-24T19:00:00.00Z");
 		Instant endTime = Instant.parse("2022-02-24T19:30:00.00Z");
 		
-		Cfp cfp = new Cfp(configHelper,startTime, endTime, "test001");
+		MetricsEndpoint.fromConfig(configHelper);
+		// host name from cfp_host_name or the compute identifier, unique per instance
+		Cfp cfp = new Cfp(configHelper, startTime, endTime);
 		if(cfp.init()) {
-			cfp.start();
+			if(args.length > 1 && "replay".equals(args[1])) {
+				ReplayEngine.ReplayResult result = cfp.replay().block();
+				System.out.println("Replayed " + result.getDocuments() + " documents from " + result.getRanges().size() + " feed ranges");
+			}
+			else {
+				cfp.start();
+				// release leases only after in-flight batches are checkpointed
+				Runtime.getRuntime().addShutdownHook(new Thread(cfp::stop, "cfp-drain"));
+			}
 		}
 		else {
 			System.out.println("Cannot start the processor!");
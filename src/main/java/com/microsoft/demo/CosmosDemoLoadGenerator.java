@@ -0,0 +1,60 @@
+package com.microsoft.demo;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.microsoft.sample.api.dal.CosmosAsyncDAL;
+import com.microsoft.sample.api.helpers.ConfigurationHelper;
+import com.microsoft.sample.api.metrics.MetricsEndpoint;
+import com.microsoft.sample.cfp.Cfp;
+import com.microsoft.sample.load.FeedDelayTracker;
+import com.microsoft.sample.load.LoadGenerator;
+
+/**
+ * Drives load_* traffic through the DAL while Cfp consumes the feed of the
+ * same container, then prints the latency and change feed delay report.
+ * Runs against the account in config.properties or, with
+ * container_engine=memory, fully in process.
+ */
+public class CosmosDemoLoadGenerator {
+
+	static ConfigurationHelper configHelper = new ConfigurationHelper();
+	public static void main(String[] args) {
+		MetricsEndpoint.fromConfig(configHelper);
+		CosmosAsyncDAL dal = CosmosAsyncDAL.getInstance(configHelper);
+		LoadGenerator generator = LoadGenerator.fromConfig(configHelper, dal);
+		
+		Cfp cfp = null;
+		FeedDelayTracker tracker = new FeedDelayTracker(generator.getRunId());
+		if(configHelper.getBooleanProperty("load_consume_feed", true)) {
+			cfp = new Cfp(configHelper, Instant.now(), null);
+			cfp.setBatchHandler(tracker);
+			if(!cfp.init()) {
+				System.out.println("Cannot start the processor!");
+				return;
+			}
+			cfp.start();
+		}
+		
+		Duration duration = Duration.ofSeconds(configHelper.getLongProperty("load_duration_s", 60));
+		long idleMillis = configHelper.getLongProperty("load_drain_idle_ms", 5000);
+		ObjectNode report = generator.run(duration, Duration.ofMillis(idleMillis));
+		if(cfp != null) {
+			// wait until the feed has been quiet for load_drain_idle_ms, at most the run duration
+			long deadline = System.nanoTime() + duration.toNanos();
+			long idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+			long last = System.nanoTime();
+			while(System.nanoTime() < deadline && System.nanoTime() - Math.max(last, tracker.getLastNanos()) < idleNanos) {
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+			}
+			cfp.stop();
+			report.set("changeFeed", tracker.toJson());
+		}
+		System.out.println(report.toPrettyString());
+		System.exit(0);
+	}
+
+}
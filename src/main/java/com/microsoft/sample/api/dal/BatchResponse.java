@@ -0,0 +1,107 @@
+package com.microsoft.sample.api.dal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.azure.cosmos.CosmosDiagnostics;
+import com.azure.cosmos.models.CosmosBatchOperationResult;
+import com.azure.cosmos.models.CosmosBatchResponse;
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Outcome of a {@link TransactionalBatch}, one result per operation in
+ * batch order. A failed batch has the status of the failing operation, the
+ * other operations report 424 and nothing was written.
+ */
+public class BatchResponse {
+	private final int statusCode;
+	private final String errorMessage;
+	private final double requestCharge;
+	private final long latencyMicros;
+	private final List<Result> results;
+	private final CosmosDiagnostics diagnostics;
+	
+	public BatchResponse(int statusCode, String errorMessage, double requestCharge, long latencyMicros, List<Result> results,
+						 CosmosDiagnostics diagnostics) {
+		this.statusCode = statusCode;
+		this.errorMessage = errorMessage;
+		this.requestCharge = requestCharge;
+		this.latencyMicros = latencyMicros;
+		this.results = results;
+		this.diagnostics = diagnostics;
+	}
+	
+	/*
+	 * Batch that could not be sent or whose request failed as a whole
+	 */
+	public static BatchResponse ofError(int statusCode, String errorMessage) {
+		return new BatchResponse(statusCode, errorMessage, 0, 0, Collections.<Result>emptyList(), null);
+	}
+	
+	static BatchResponse of(CosmosBatchResponse response) {
+		List<Result> results = new ArrayList<Result>(response.size());
+		for(CosmosBatchOperationResult result : response.getResults()) {
+			JsonNode item = result.isSuccessStatusCode() ? result.getItem(JsonNode.class) : null;
+			results.add(new Result(result.getStatusCode(), item, result.getETag(), result.getRequestCharge()));
+		}
+		long latencyMicros = response.getDuration() != null ? response.getDuration().toNanos() / 1000 : 0;
+		return new BatchResponse(response.getStatusCode(), response.getErrorMessage(), response.getRequestCharge(),
+								 latencyMicros, results, response.getDiagnostics());
+	}
+	
+	public boolean isSuccess() {
+		return statusCode >= 200 && statusCode < 300;
+	}
+	public int getStatusCode() {
+		return statusCode;
+	}
+	public String getErrorMessage() {
+		return errorMessage;
+	}
+	public double getRequestCharge() {
+		return requestCharge;
+	}
+	public long getLatencyMicros() {
+		return latencyMicros;
+	}
+	public List<Result> getResults() {
+		return results;
+	}
+	/*
+	 * Null outside the SDK implementation
+	 */
+	public CosmosDiagnostics getDiagnostics() {
+		return diagnostics;
+	}
+	
+	public static final class Result {
+		private final int statusCode;
+		private final JsonNode item;
+		private final String etag;
+		private final double requestCharge;
+		
+		public Result(int statusCode, JsonNode item, String etag, double requestCharge) {
+			this.statusCode = statusCode;
+			this.item = item;
+			this.etag = etag;
+			this.requestCharge = requestCharge;
+		}
+		
+		public int getStatusCode() {
+			return statusCode;
+		}
+		/*
+		 * Null for deletes and failed operations
+		 */
+		public JsonNode getItem() {
+			return item;
+		}
+		public String getEtag() {
+			return etag;
+		}
+		public double getRequestCharge() {
+			return requestCharge;
+		}
+	}
+}
@@ -0,0 +1,7 @@
+package com.microsoft.sample.api.dal;
+
+public enum BulkOperationType {
+	CREATE,
+	UPSERT,
+	DELETE
+}
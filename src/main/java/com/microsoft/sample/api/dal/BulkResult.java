@@ -0,0 +1,62 @@
+package com.microsoft.sample.api.dal;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Outcome of one item of a bulk execution
+ */
+public class BulkResult {
+	private final BulkOperationType operationType;
+	private final String id;
+	private final String partitionKey;
+	private final int statusCode;
+	private final int subStatusCode;
+	private final double requestCharge;
+	private final JsonNode item;
+	private final String error;
+	private final int attempts;
+	
+	BulkResult(BulkOperationType operationType, String id, String partitionKey, int statusCode, int subStatusCode,
+			   double requestCharge, JsonNode item, String error, int attempts) {
+		this.operationType = operationType;
+		this.id = id;
+		this.partitionKey = partitionKey;
+		this.statusCode = statusCode;
+		this.subStatusCode = subStatusCode;
+		this.requestCharge = requestCharge;
+		this.item = item;
+		this.error = error;
+		this.attempts = attempts;
+	}
+	
+	public boolean isSuccess() {
+		return statusCode >= 200 && statusCode < 300;
+	}
+	public BulkOperationType getOperationType() {
+		return operationType;
+	}
+	public String getId() {
+		return id;
+	}
+	public String getPartitionKey() {
+		return partitionKey;
+	}
+	public int getStatusCode() {
+		return statusCode;
+	}
+	public int getSubStatusCode() {
+		return subStatusCode;
+	}
+	public double getRequestCharge() {
+		return requestCharge;
+	}
+	public JsonNode getItem() {
+		return item;
+	}
+	public String getError() {
+		return error;
+	}
+	public int getAttempts() {
+		return attempts;
+	}
+}
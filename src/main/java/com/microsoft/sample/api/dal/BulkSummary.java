@@ -0,0 +1,45 @@
+package com.microsoft.sample.api.dal;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Totals of a bulk execution
+ */
+public class BulkSummary {
+	private long succeeded;
+	private long failed;
+	private long throttled;
+	private double requestCharge;
+	
+	public static Mono<BulkSummary> from(Flux<BulkResult> results) {
+		return results.reduce(new BulkSummary(), BulkSummary::add);
+	}
+	
+	private BulkSummary add(BulkResult result) {
+		if(result.isSuccess()) {
+			succeeded++;
+		}
+		else {
+			failed++;
+		}
+		if(result.getStatusCode() == 429) {
+			throttled++;
+		}
+		requestCharge += result.getRequestCharge();
+		return this;
+	}
+	
+	public long getSucceeded() {
+		return succeeded;
+	}
+	public long getFailed() {
+		return failed;
+	}
+	public long getThrottled() {
+		return throttled;
+	}
+	public double getRequestCharge() {
+		return requestCharge;
+	}
+}
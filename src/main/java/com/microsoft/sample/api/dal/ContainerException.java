@@ -0,0 +1,52 @@
+package com.microsoft.sample.api.dal;
+
+import java.time.Duration;
+
+/**
+ * Service style failure of a {@link DocumentContainer} that is not backed by
+ * the SDK, e.g. 404, 409, 412 or 429 with its retry after
+ */
+public class ContainerException extends RuntimeException {
+	
+	private static final long serialVersionUID = 1L;
+	
+	private final int statusCode;
+	private final Duration retryAfter;
+	private final double requestCharge;
+	
+	public ContainerException(int statusCode, String message) {
+		this(statusCode, message, Duration.ZERO, 0);
+	}
+	
+	public ContainerException(int statusCode, String message, Duration retryAfter, double requestCharge) {
+		super(message);
+		this.statusCode = statusCode;
+		this.retryAfter = retryAfter;
+		this.requestCharge = requestCharge;
+	}
+	
+	private ContainerException(int statusCode, String message, boolean writable) {
+		super(message, null, writable, writable);
+		this.statusCode = statusCode;
+		this.retryAfter = Duration.ZERO;
+		this.requestCharge = 0;
+	}
+	
+	/*
+	 * Without stack trace and suppressed exceptions, one instance can be
+	 * thrown for many failures without growing
+	 */
+	static ContainerException shared(int statusCode, String message) {
+		return new ContainerException(statusCode, message, false);
+	}
+	
+	public int getStatusCode() {
+		return statusCode;
+	}
+	public Duration getRetryAfter() {
+		return retryAfter;
+	}
+	public double getRequestCharge() {
+		return requestCharge;
+	}
+}
@@ -1,32 +1,51 @@
 package com.microsoft.sample.api.dal;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.azure.cosmos.ConsistencyLevel;
 import com.azure.cosmos.CosmosAsyncClient;
 import com.azure.cosmos.CosmosAsyncContainer;
 import com.azure.cosmos.CosmosAsyncDatabase;
-import com.azure.cosmos.CosmosClientBuilder;
-import com.azure.cosmos.CosmosDiagnostics;
 import com.azure.cosmos.CosmosException;
 import com.azure.cosmos.implementation.ConflictException;
+import com.azure.cosmos.models.CosmosBulkExecutionOptions;
+import com.azure.cosmos.models.CosmosBulkItemResponse;
+import com.azure.cosmos.models.CosmosBulkOperationResponse;
+import com.azure.cosmos.models.CosmosBulkOperations;
 import com.azure.cosmos.models.CosmosContainerResponse;
-import com.azure.cosmos.models.CosmosItemResponse;
-import com.azure.cosmos.models.CosmosQueryRequestOptions;
+import com.azure.cosmos.models.CosmosItemIdentity;
+import com.azure.cosmos.models.CosmosItemOperation;
 import com.azure.cosmos.models.PartitionKey;
-import com.azure.cosmos.models.SqlQuerySpec;
-import com.azure.cosmos.util.CosmosPagedFlux;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.microsoft.sample.api.dal.memory.InMemoryContainer;
 import com.microsoft.sample.api.helpers.ConfigurationHelper;
-import com.microsoft.sample.api.helpers.ConnectionHelper;
+import com.microsoft.sample.api.helpers.CosmosClientRegistry;
 import com.microsoft.sample.api.helpers.GenericHelper;
+import com.microsoft.sample.api.helpers.ThroughputControlHelper;
+import com.microsoft.sample.api.metrics.CosmosMetrics;
+import com.microsoft.sample.api.metrics.HotKeyTracker;
+import com.microsoft.sample.api.metrics.OperationType;
 
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
 
 public class CosmosAsyncDAL {
 	private String host;
@@ -36,19 +55,58 @@ public class CosmosAsyncDAL {
 	private CosmosAsyncClient client;
 	private CosmosAsyncDatabase database;
 	private CosmosAsyncContainer container;
+	private DocumentContainer documents;
+	private volatile CosmosAsyncContainer bulkContainer;
+	private Mono<String> partitionKeyPath;
+	private ItemCache itemCache;
+	private HotKeyTracker hotKeys;
+	private RequestScheduler scheduler;
 	
+	private static ConfigurationHelper CONFIG = new ConfigurationHelper();
+	private static ObjectMapper MAPPER = new ObjectMapper();
 	private static Logger LOGGER = LoggerFactory.getLogger(CosmosAsyncDAL.class);
-	// Singleton 
-	private static CosmosAsyncDAL cosmosDAL = null;
+	private static CosmosMetrics METRICS = CosmosMetrics.getInstance();
+	/* throttled bulk items are resubmitted once this many are collected or the window ends */
+	private static final int BULK_RETRY_WINDOW_SIZE = 100;
+	private static final Duration BULK_RETRY_WINDOW = Duration.ofMillis(100);
+	// One instance per container, clients are shared through CosmosClientRegistry
+	private static ConcurrentHashMap<String, CompletableFuture<CosmosAsyncDAL>> INSTANCES = new ConcurrentHashMap<String, CompletableFuture<CosmosAsyncDAL>>();
 	
 	public static CosmosAsyncDAL getInstance(String host, String key, String databaseName, String containerName) {
-		//if(cosmosDAL == null) {
-			cosmosDAL = new CosmosAsyncDAL(host, key, databaseName, containerName);
-			cosmosDAL.init();
-		//}
+		// built outside the map, init does network I/O and must not hold a bin lock
+		String containerKey = ItemCache.containerKey(host, databaseName, containerName);
+		CompletableFuture<CosmosAsyncDAL> created = new CompletableFuture<CosmosAsyncDAL>();
+		CompletableFuture<CosmosAsyncDAL> existing = INSTANCES.putIfAbsent(containerKey, created);
+		if(existing != null) {
+			try {
+				return existing.join();
+			}
+			catch(CompletionException exp) {
+				throw (IllegalStateException) exp.getCause();
+			}
+		}
+		CosmosAsyncDAL cosmosDAL = new CosmosAsyncDAL(host, key, databaseName, containerName);
+		if(!cosmosDAL.init()) {
+			IllegalStateException failure = new IllegalStateException("Could not initialize " + containerKey);
+			// not kept, the next caller initializes again
+			INSTANCES.remove(containerKey, created);
+			created.completeExceptionally(failure);
+			throw failure;
+		}
+		created.complete(cosmosDAL);
 		return cosmosDAL;
 	}
 	
+	/*
+	 * DAL over a container built by the caller, e.g. an in-memory container
+	 * in tests. Not shared and without item cache.
+	 */
+	public static CosmosAsyncDAL forDocumentContainer(DocumentContainer documents) {
+		CosmosAsyncDAL cosmosDAL = new CosmosAsyncDAL(null, null, null, documents.getId());
+		cosmosDAL.documents = documents;
+		cosmosDAL.partitionKeyPath = documents.getPartitionKeyPath();
+		return cosmosDAL;
+	}
 	
 	private CosmosAsyncDAL(String host, String key, String dbName, String cName) {
 		this.host = host;
@@ -73,30 +131,56 @@ public class CosmosAsyncDAL {
 	
 	private Boolean init() {
 		try {
-			/* Direct Mode Connection Mode Client
-			 * Will also need Gateway Mode config
-			 * Session consistency is used, adjust the same accordingly
-			 * TODO: add all the different initialization options
-			 */
+			DocumentContainer unscheduled = null;
 			LOGGER.info("Compute ID:" + GenericHelper.getCurrentComputeIdentifier());
 			
-			client = new CosmosClientBuilder()
-	        		.endpoint(host)
-	        		.key(key)
-	        		.directMode(ConnectionHelper.getDirectModeConfig())
-	        		//.gatewayMode(ConnectionHelper.getGatewayConfig())
-	        		.consistencyLevel(ConsistencyLevel.SESSION)
-	        		.userAgentSuffix(GenericHelper.getCurrentComputeIdentifier())
-	        		.contentResponseOnWriteEnabled(true)
-	        		.buildAsyncClient();
-			LOGGER.info("Async cosmos client initiated");
+			if(InMemoryContainer.isEnabled()) {
+				documents = InMemoryContainer.forContainer(databaseName, containerName);
+				LOGGER.info("Using in-memory container: " + containerName);
+			}
+			else {
+				client = CosmosClientRegistry.getAsyncClient(host, key);
+				LOGGER.info("Async cosmos client initiated");
+				
+				// assuming database was created using portal or cli
+				database = client.getDatabase(databaseName);
+				LOGGER.info("Obtained Database Context: " + databaseName);
+				// assuming container was created using portal or cli
+				container = database.getContainer(containerName);
+				LOGGER.info("Obtained Container Context: " + containerName);
+				// background workloads tag their requests, untagged OLTP requests are not throttled
+				ThroughputControlHelper.enableGroups(container, null);
+				documents = new CosmosDocumentContainer(container);
+				if(RequestScheduler.isEnabled()) {
+					// the scheduler retries its requests after the shared pause, the SDK must not retry them first
+					CosmosAsyncContainer scheduled = CosmosClientRegistry.getScheduledAsyncClient(host, key).getDatabase(databaseName)
+																		 .getContainer(containerName);
+					ThroughputControlHelper.enableGroups(scheduled, null);
+					unscheduled = documents;
+					documents = new CosmosDocumentContainer(scheduled);
+				}
+			}
+			if(HotKeyTracker.isEnabled()) {
+				// inside the scheduler, only requests that reach the container are counted
+				hotKeys = HotKeyTracker.forContainer(ItemCache.containerKey(host, databaseName, containerName));
+				documents = new HotKeyDocumentContainer(documents, hotKeys);
+			}
+			if(RequestScheduler.isEnabled()) {
+				// shared per container with the other DAL, throttled requests back off together
+				scheduler = RequestScheduler.forContainer(ItemCache.containerKey(host, databaseName, containerName));
+				documents = new ScheduledDocumentContainer(documents, unscheduled != null ? unscheduled : documents, scheduler);
+			}
+			partitionKeyPath = documents.getPartitionKeyPath();
 			
-			// assuming database was created using portal or cli
-			database = client.getDatabase(databaseName);
-			LOGGER.info("Obtained Database Context: " + databaseName);
-			// assuming container was created using portal or cli
-			container = database.getContainer(containerName);
-			LOGGER.info("Obtained Container Context: " + containerName);
+			if(CONFIG.getBooleanProperty("item_cache_enabled", false)) {
+				itemCache = ItemCache.forContainer(ItemCache.containerKey(host, databaseName, containerName));
+				partitionKeyPath.subscribe(itemCache::setPartitionKeyPath, e -> GenericHelper.logError(e, LOGGER));
+				LOGGER.info("Item cache enabled for: " + containerName);
+			}
+			
+			if(container != null && CONFIG.getBooleanProperty("connection_warmup", false)) {
+				warmUp().block();
+			}
 			
 			//Mono<CosmosContainerResponse> containerResponseMono = container.read();
 			//CosmosContainerResponse containerResponse = containerResponseMono.block();
@@ -109,78 +193,473 @@ public class CosmosAsyncDAL {
 		return true;
 	}
 	
+	/*
+	 * Opens connections to the container's replicas and fills the address and
+	 * partition caches so the first requests after a deploy skip that work
+	 */
+	public Mono<Void> warmUp() {
+		if(container == null) {
+			return Mono.empty();
+		}
+		long start = System.currentTimeMillis();
+		return container.openConnectionsAndInitCaches()
+						.doOnSuccess(v -> LOGGER.info("Warmed up " + containerName + " in " + (System.currentTimeMillis() - start) + "ms"))
+						.onErrorResume(e -> {
+							LOGGER.warn("Warm up of " + containerName + " failed: " + e.getMessage());
+							return Mono.empty();
+						});
+	}
+	
+	/*
+	 * Null when the DAL runs on an in-memory container
+	 */
 	public CosmosAsyncContainer getAsyncContainer() {
 		return this.container;
 	}
 	
+	/*
+	 * Null unless hot_keys_enabled is set
+	 */
+	public HotKeyTracker getHotKeyTracker() {
+		return hotKeys;
+	}
+	
+	public DocumentContainer getDocumentContainer() {
+		return this.documents;
+	}
+	
+	public Mono<String> getPartitionKeyPath() {
+		return this.partitionKeyPath;
+	}
+	
+	public ItemCache getItemCache() {
+		return this.itemCache;
+	}
+	
 	public Mono<JsonNode> create(JsonNode data) {
-		Mono<CosmosItemResponse<JsonNode>> itemResponse = container.createItem(data);
-		return itemResponse.flatMap(ir -> {
-			GenericHelper.logDiagnostics(LOGGER, ir);
+		return documents.create(data).flatMap(ir -> {
+			METRICS.record(OperationType.CREATE, ir, LOGGER);
+			if(itemCache != null) {
+				itemCache.putDocument(ir.getItem());
+			}
 			return Mono.just(ir.getItem());
-		}).onErrorResume(e -> {	
-			GenericHelper.logError(e, LOGGER);
-			return Mono.just(GenericHelper.getErrorJson(e, 400));
-		});
+		}).onErrorResume(e -> Mono.just(GenericHelper.handleException(OperationType.CREATE, e, LOGGER)));
 	}
 	
 	/*
 	 * Point Read
 	 */
-	public JsonNode retrieve(String id, String pk) {
-		
-		LOGGER.info("id:" + id + " pk:" + pk);
-		Mono<CosmosItemResponse<JsonNode>> itemResponseMono = container.readItem(id, new PartitionKey(pk), JsonNode.class);
-		
-		CosmosItemResponse<JsonNode> itemResponse = itemResponseMono.block();
-		CosmosDiagnostics diagnostics = itemResponse.getDiagnostics();
-		
-		LOGGER.info(diagnostics.toString());
-		
-		return itemResponse.getItem();
+	public Mono<JsonNode> retrieve(String id, String pk) {
+		if(itemCache != null) {
+			JsonNode cached = itemCache.get(pk, id);
+			if(cached != null) {
+				return Mono.just(cached);
+			}
+		}
+		return documents.read(id, pk).flatMap(ir -> {
+			METRICS.record(OperationType.READ, ir, LOGGER);
+			if(itemCache != null) {
+				itemCache.put(pk, id, ir.getItem());
+			}
+			return Mono.just(ir.getItem());
+		}).onErrorResume(e -> Mono.just(GenericHelper.handleException(OperationType.READ, e, LOGGER)));
+	}
+	
+	/*
+	 * Multi get, cache hits are served locally and the remaining identities are
+	 * fetched through readMany, which groups them per physical partition into
+	 * one query each. Items that do not exist are left out of the result.
+	 */
+	public Mono<List<JsonNode>> retrieveMany(Collection<CosmosItemIdentity> identities) {
+		List<JsonNode> found = new ArrayList<JsonNode>(identities.size());
+		List<CosmosItemIdentity> missing = new ArrayList<CosmosItemIdentity>(identities.size());
+		Set<String> seen = new HashSet<String>();
+		for(CosmosItemIdentity identity : identities) {
+			if(!seen.add(identity.getPartitionKey() + identity.getId())) {
+				continue;
+			}
+			JsonNode cached = itemCache != null ? itemCache.get(partitionKeyValue(identity), identity.getId()) : null;
+			if(cached != null) {
+				found.add(cached);
+			}
+			else {
+				missing.add(identity);
+			}
+		}
+		if(missing.isEmpty()) {
+			return Mono.just(found);
+		}
+		int batchSize = Math.max(1, CONFIG.getIntProperty("read_many_batch_size", 100));
+		int concurrency = Math.max(1, CONFIG.getIntProperty("read_many_concurrency", 4));
+		return Flux.fromIterable(partition(missing, batchSize))
+				   .flatMap(documents::readMany, concurrency)
+				   .doOnNext(fr -> METRICS.record(OperationType.READ_MANY, fr, LOGGER))
+				   .<List<JsonNode>>collect(() -> new ArrayList<JsonNode>(found), (items, fr) -> {
+					   for(JsonNode item : fr.getResults()) {
+						   if(itemCache != null) {
+							   itemCache.putDocument(item);
+						   }
+						   items.add(item);
+					   }
+				   })
+				   .onErrorResume(e -> {
+					   METRICS.recordError(OperationType.READ_MANY, e, LOGGER);
+					   GenericHelper.logError(e, LOGGER);
+					   return Mono.error(e);
+				   });
+	}
+	
+	private static <T> List<List<T>> partition(List<T> items, int size) {
+		List<List<T>> batches = new ArrayList<List<T>>((items.size() + size - 1) / size);
+		for(int from = 0; from < items.size(); from += size) {
+			batches.add(items.subList(from, Math.min(from + size, items.size())));
+		}
+		return batches;
+	}
+	
+	/*
+	 * The cache keys partition keys by their string value, PartitionKey only
+	 * exposes its JSON form, e.g. ["value"]
+	 */
+	private static String partitionKeyValue(CosmosItemIdentity identity) {
+		try {
+			return MAPPER.readTree(identity.getPartitionKey().toString()).path(0).asText();
+		}
+		catch(Exception exp) {
+			return identity.getPartitionKey().toString();
+		}
 	}
 	
 	/*
 	 * Query option
 	 */
 	public Flux<List<JsonNode>> query(String filters) {
-		
-		CosmosQueryRequestOptions queryOptions = new CosmosQueryRequestOptions();
-		
-		queryOptions.setQueryMetricsEnabled(true);
+		return queryPages(filters, new QueryOptions()).map(QueryPage::getResults);
+	}
+	
+	/*
+	 * Streaming query, pages are fetched on demand with at most
+	 * prefetchPages requested ahead of the subscriber. Resume a query by
+	 * passing the continuation token of the last processed page.
+	 */
+	public Flux<QueryPage> queryPages(String filters, QueryOptions options) {
 		try {
-			SqlQuerySpec sqlQuerySpec = GenericHelper.getSqlQueryFromQueryString(filters, LOGGER);
-			//LOGGER.info(sqlQuerySpec.getQueryText());
-			CosmosPagedFlux<JsonNode> itemPages = container.queryItems(sqlQuerySpec, queryOptions, JsonNode.class);
-			
-			return itemPages.byPage().flatMap(ip-> {
-				LOGGER.info(ip.getCosmosDiagnostics().toString());
-				return Flux.just(ip.getResults());
-			});
+			return documents.query(filters, options)
+							.limitRate(Math.max(1, options.getPrefetchPages()))
+							.map(ip -> {
+								METRICS.record(OperationType.QUERY, ip, LOGGER);
+								return new QueryPage(ip);
+							});
 		}
 		catch(Exception exp) {
-			System.out.println(exp.getMessage());
+			LOGGER.error(exp.getMessage());
+			return Flux.error(exp);
 		}
-		return null;
 	}
 	
 	public Mono<JsonNode> update(JsonNode data) {
-		Mono<CosmosItemResponse<JsonNode>> itemResponse = container.upsertItem(data);
-		return itemResponse.flatMap(ir -> {
-			GenericHelper.logDiagnostics(LOGGER, ir);
+		return update(data, null);
+	}
+	
+	/*
+	 * etag may be null, otherwise the upsert fails with 412 when the stored
+	 * document has changed since it was read
+	 */
+	public Mono<JsonNode> update(JsonNode data, String etag) {
+		return documents.upsert(data, etag).flatMap(ir -> {
+			METRICS.record(OperationType.UPSERT, ir, LOGGER);
+			if(itemCache != null) {
+				itemCache.putDocument(ir.getItem());
+			}
+			return Mono.just(ir.getItem());
+		}).onErrorResume(e -> Mono.just(GenericHelper.handleException(OperationType.UPSERT, e, LOGGER)));
+	}
+	
+	public Mono<JsonNode> patch(String id, String pk, PatchOperations operations) {
+		return patch(id, pk, operations, null, null);
+	}
+	
+	/*
+	 * Partial update, see PatchOperations. condition is a filter as for
+	 * query and etag the expected _etag, both may be null. A document that
+	 * does not satisfy them is left unchanged and the patch fails with 412.
+	 */
+	public Mono<JsonNode> patch(String id, String pk, PatchOperations operations, String condition, String etag) {
+		return documents.patch(id, pk, operations, condition, etag).flatMap(ir -> {
+			METRICS.record(OperationType.PATCH, ir, LOGGER);
+			if(itemCache != null) {
+				itemCache.put(pk, id, ir.getItem());
+			}
 			return Mono.just(ir.getItem());
-		}).onErrorResume(e -> {	
-			GenericHelper.logError(e, LOGGER);
-			return Mono.just(GenericHelper.getErrorJson(e, 400));
+		}).onErrorResume(e -> Mono.just(GenericHelper.handleException(OperationType.PATCH, e, LOGGER)));
+	}
+	
+	/*
+	 * One round trip for all operations of the batch, committed all or
+	 * nothing. Check BatchResponse.isSuccess, failures are not errors.
+	 */
+	public Mono<BatchResponse> executeBatch(TransactionalBatch batch) {
+		return documents.executeBatch(batch).map(response -> {
+			METRICS.record(OperationType.BATCH, response, LOGGER);
+			if(itemCache != null && response.isSuccess()) {
+				itemCache.putBatch(batch, response);
+			}
+			return response;
+		}).onErrorResume(e -> Mono.just(toBatchError(e)));
+	}
+	
+	/*
+	 * Optimistic read-modify-write of documents of one partition key. The
+	 * current versions of ids are read, missing ones are left out of the map,
+	 * and build returns the batch to run, usually with the _etag of each
+	 * read document as precondition. When the batch fails with 412 the
+	 * documents are read again and the batch rebuilt, at most
+	 * batch_max_conflict_retries times.
+	 */
+	public Mono<BatchResponse> executeBatch(String partitionKey, Collection<String> ids,
+											Function<Map<String, JsonNode>, TransactionalBatch> build) {
+		List<CosmosItemIdentity> identities = new ArrayList<CosmosItemIdentity>(ids.size());
+		for(String id : ids) {
+			identities.add(new CosmosItemIdentity(new PartitionKey(partitionKey), id));
+		}
+		return executeBatch(identities, build, 0).onErrorResume(e -> Mono.just(toBatchError(e)));
+	}
+	
+	private Mono<BatchResponse> executeBatch(List<CosmosItemIdentity> identities,
+											 Function<Map<String, JsonNode>, TransactionalBatch> build, int retries) {
+		int maxRetries = CONFIG.getIntProperty("batch_max_conflict_retries", 5);
+		return readCurrent(identities).map(build).flatMap(this::executeBatch).flatMap(response -> {
+			if(response.getStatusCode() != 412 || retries >= maxRetries) {
+				return Mono.just(response);
+			}
+			// jittered so competing writers do not collide again
+			long backoffMillis = CONFIG.getLongProperty("batch_conflict_backoff_ms", 10) * (retries + 1);
+			return Mono.delay(Duration.ofMillis(ThreadLocalRandom.current().nextLong(backoffMillis + 1)))
+					   .then(executeBatch(identities, build, retries + 1));
+		});
+	}
+	
+	/*
+	 * Bypasses the item cache, the etags must be current
+	 */
+	private Mono<Map<String, JsonNode>> readCurrent(List<CosmosItemIdentity> identities) {
+		if(identities.isEmpty()) {
+			return Mono.just(new HashMap<String, JsonNode>());
+		}
+		return documents.readMany(identities).map(page -> {
+			METRICS.record(OperationType.READ_MANY, page, LOGGER);
+			Map<String, JsonNode> current = new HashMap<String, JsonNode>();
+			for(JsonNode item : page.getResults()) {
+				current.put(item.path("id").asText(), item);
+			}
+			return current;
 		});
 	}
 	
+	private BatchResponse toBatchError(Throwable e) {
+		JsonNode error = GenericHelper.handleException(OperationType.BATCH, e, LOGGER);
+		return BatchResponse.ofError(error.path("status").asInt(), error.path("message").asText());
+	}
+	
+	/*
+	 * Bulk ingestion through the SDK bulk executor, which groups operations by
+	 * partition key range into micro batches. Items still throttled after the
+	 * SDK retries are resubmitted with exponential backoff up to bulk_max_retries,
+	 * in windows of at most BULK_RETRY_WINDOW_SIZE items.
+	 * Results are streamed per item, see BulkSummary for totals.
+	 * The executor is not admitted by the request scheduler, every item is
+	 * reported to it and to the hot key tracker once its response is in, so
+	 * bulk charges drain the write bucket and its 429s pause all callers.
+	 */
+	public Flux<BulkResult> bulk(Flux<JsonNode> documents, BulkOperationType operationType) {
+		return bulk(documents, operationType, CONFIG.getIntProperty("bulk_max_micro_batch_concurrency", 1));
+	}
+	
+	/*
+	 * maxMicroBatchConcurrency is bounded by the SDK to [1, 5] per partition key range
+	 */
+	public Flux<BulkResult> bulk(Flux<JsonNode> documents, BulkOperationType operationType, int maxMicroBatchConcurrency) {
+		if(container == null) {
+			return emulateBulk(documents, operationType);
+		}
+		CosmosBulkExecutionOptions options = new CosmosBulkExecutionOptions();
+		options.setMaxMicroBatchConcurrency(Math.max(1, Math.min(5, maxMicroBatchConcurrency)));
+		return partitionKeyPath.flatMapMany(path -> 
+					executeBulk(documents.map(d -> toBulkOperation(d, operationType, path)), operationType, options, 1));
+	}
+	
+	/*
+	 * Bulk options cannot carry a throughput control group, a controlled bulk
+	 * workload runs on its own client where the bulk group is the default
+	 */
+	private CosmosAsyncContainer getBulkContainer() {
+		if(bulkContainer == null) {
+			bulkContainer = ThroughputControlHelper.getWorkloadContainer(container, host, key, databaseName, containerName,
+																		 ThroughputControlHelper.BULK);
+		}
+		return bulkContainer;
+	}
+	
+	/*
+	 * Point operations in place of the bulk executor on in-memory containers,
+	 * throttled items are retried like resubmissions of the executor
+	 */
+	private Flux<BulkResult> emulateBulk(Flux<JsonNode> input, BulkOperationType operationType) {
+		int maxRetries = CONFIG.getIntProperty("bulk_max_retries", 5);
+		Duration backoff = Duration.ofMillis(CONFIG.getLongProperty("bulk_retry_backoff_ms", 500));
+		return partitionKeyPath.flatMapMany(path -> input.flatMap(document -> {
+			String id = document.path("id").asText();
+			String partitionKey = String.valueOf(document.at(path).asText());
+			AtomicInteger attempts = new AtomicInteger();
+			Mono<DocumentResponse> operation = Mono.defer(() -> {
+				attempts.incrementAndGet();
+				switch(operationType) {
+					case CREATE:
+						return documents.create(document);
+					case UPSERT:
+						return documents.upsert(document, null);
+					default:
+						return documents.delete(id, partitionKey);
+				}
+			});
+			return operation.retryWhen(Retry.backoff(maxRetries, backoff)
+											.filter(e -> e instanceof ContainerException && ((ContainerException) e).getStatusCode() == 429)
+											.onRetryExhaustedThrow((spec, signal) -> signal.failure()))
+							.map(response -> {
+								METRICS.record(OperationType.BULK, response, LOGGER);
+								return new BulkResult(operationType, id, partitionKey, response.getStatusCode(), 0,
+													  response.getRequestCharge(), response.getItem(), null, attempts.get());
+							})
+							.onErrorResume(e -> {
+								METRICS.recordError(OperationType.BULK, e, LOGGER);
+								int statusCode = e instanceof ContainerException ? ((ContainerException) e).getStatusCode() : 500;
+								return Mono.just(new BulkResult(operationType, id, partitionKey, statusCode, 0, 0, null,
+																e.getMessage(), attempts.get()));
+							});
+		}));
+	}
+	
+	private CosmosItemOperation toBulkOperation(JsonNode document, BulkOperationType operationType, String partitionKeyPath) {
+		PartitionKey partitionKey = GenericHelper.getPartitionKey(document, partitionKeyPath);
+		switch(operationType) {
+			case CREATE:
+				return CosmosBulkOperations.getCreateItemOperation(document, partitionKey, document);
+			case UPSERT:
+				return CosmosBulkOperations.getUpsertItemOperation(document, partitionKey, document);
+			default:
+				return CosmosBulkOperations.getDeleteItemOperation(document.path("id").asText(), partitionKey, document);
+		}
+	}
+	
+	private Flux<BulkResult> executeBulk(Flux<CosmosItemOperation> operations, BulkOperationType operationType,
+										 CosmosBulkExecutionOptions options, int attempt) {
+		int maxRetries = CONFIG.getIntProperty("bulk_max_retries", 5);
+		return getBulkContainer().<Object>executeBulkOperations(operations, options)
+						.doOnNext(this::observeBulk)
+						.groupBy(r -> attempt <= maxRetries && getBulkStatusCode(r) == 429)
+						.flatMap(group -> {
+							if(!group.key()) {
+								return group.map(r -> toBulkResult(r, operationType, attempt));
+							}
+							// resubmitted in bounded windows while the input is still streaming
+							Duration backoff = Duration.ofMillis(CONFIG.getLongProperty("bulk_retry_backoff_ms", 500) << (attempt - 1));
+							return group.map(CosmosBulkOperationResponse::getOperation)
+										.bufferTimeout(BULK_RETRY_WINDOW_SIZE, BULK_RETRY_WINDOW)
+										.flatMap(retry -> Mono.defer(() -> Mono.delay(resubmitDelay(backoff)))
+															  .thenMany(executeBulk(Flux.fromIterable(retry), operationType, options, attempt + 1)));
+						});
+	}
+	
+	/*
+	 * At least the pause the scheduler shares with the other callers
+	 */
+	private Duration resubmitDelay(Duration backoff) {
+		if(scheduler == null) {
+			return backoff;
+		}
+		long pausedNanos = scheduler.getPausedNanos();
+		return pausedNanos > backoff.toNanos() ? Duration.ofNanos(pausedNanos) : backoff;
+	}
+	
+	private void observeBulk(CosmosBulkOperationResponse<Object> response) {
+		if(scheduler == null && hotKeys == null) {
+			return;
+		}
+		CosmosBulkItemResponse itemResponse = response.getResponse();
+		double requestCharge = 0;
+		Duration retryAfter = null;
+		if(itemResponse != null) {
+			requestCharge = itemResponse.getRequestCharge();
+			retryAfter = itemResponse.getRetryAfterDuration();
+		}
+		else if(response.getException() instanceof CosmosException) {
+			requestCharge = ((CosmosException) response.getException()).getRequestCharge();
+			retryAfter = ((CosmosException) response.getException()).getRetryAfterDuration();
+		}
+		int statusCode = getBulkStatusCode(response);
+		if(scheduler != null) {
+			scheduler.record(RequestScheduler.RequestClass.WRITE, requestCharge, statusCode, retryAfter);
+		}
+		if(hotKeys != null) {
+			hotKeys.record(String.valueOf(response.getOperation().getPartitionKeyValue()), requestCharge, statusCode == 429);
+		}
+	}
+	
+	private static int getBulkStatusCode(CosmosBulkOperationResponse<Object> response) {
+		if(response.getResponse() != null) {
+			return response.getResponse().getStatusCode();
+		}
+		if(response.getException() instanceof CosmosException) {
+			return ((CosmosException) response.getException()).getStatusCode();
+		}
+		return 500;
+	}
+	
+	private BulkResult toBulkResult(CosmosBulkOperationResponse<Object> response, BulkOperationType operationType, int attempt) {
+		CosmosItemOperation operation = response.getOperation();
+		CosmosBulkItemResponse itemResponse = response.getResponse();
+		String partitionKey = String.valueOf(operation.getPartitionKeyValue());
+		if(itemResponse != null) {
+			long latencyMicros = itemResponse.getDuration() != null ? itemResponse.getDuration().toNanos() / 1000 : 0;
+			METRICS.record(OperationType.BULK, latencyMicros, itemResponse.getRequestCharge(),
+						   itemResponse.getStatusCode(), itemResponse.getSubStatusCode());
+			JsonNode item = itemResponse.isSuccessStatusCode() && operationType != BulkOperationType.DELETE
+							? itemResponse.getItem(JsonNode.class) : null;
+			if(itemCache != null) {
+				if(item != null) {
+					itemCache.putDocument(item);
+				}
+				else {
+					itemCache.invalidateDocument(operation.getContext());
+				}
+			}
+			return new BulkResult(operationType, operation.getId(), partitionKey, itemResponse.getStatusCode(),
+								  itemResponse.getSubStatusCode(), itemResponse.getRequestCharge(), item, null, attempt);
+		}
+		Exception exp = response.getException();
+		METRICS.recordError(OperationType.BULK, exp, LOGGER);
+		if(exp instanceof CosmosException) {
+			CosmosException cosmosException = (CosmosException) exp;
+			return new BulkResult(operationType, operation.getId(), partitionKey, cosmosException.getStatusCode(),
+								  cosmosException.getSubStatusCode(), cosmosException.getRequestCharge(), null,
+								  cosmosException.getMessage(), attempt);
+		}
+		return new BulkResult(operationType, operation.getId(), partitionKey, 500, 0, 0, null,
+							  exp != null ? exp.getMessage() : null, attempt);
+	}
+	
 	public Mono<Object> delete(String partitionKey, String itemId) {
-		System.out.println(partitionKey);
-		Mono<CosmosItemResponse<Object>> itemResponse = container.deleteItem(itemId, new PartitionKey(partitionKey));
-		return itemResponse.flatMap(ir -> {
-			//GenericHelper.logDiagnosticsRUcharges(LOGGER, ir);
+		if(itemCache != null) {
+			itemCache.invalidate(partitionKey, itemId);
+		}
+		return documents.delete(itemId, partitionKey).flatMap(ir -> {
+			METRICS.record(OperationType.DELETE, ir, LOGGER);
 			return Mono.empty();
+		}).doFinally(signal -> {
+			// a read racing the delete may have cached the document again
+			if(itemCache != null) {
+				itemCache.invalidate(partitionKey, itemId);
+			}
 		});
 	}
 	
@@ -1,49 +1,77 @@
 package com.microsoft.sample.api.dal;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.azure.cosmos.ConsistencyLevel;
-import com.azure.cosmos.CosmosClient;
-import com.azure.cosmos.CosmosClientBuilder;
-import com.azure.cosmos.CosmosContainer;
-import com.azure.cosmos.CosmosDatabase;
-import com.azure.cosmos.CosmosException;
-import com.azure.cosmos.models.CosmosItemRequestOptions;
-import com.azure.cosmos.models.CosmosItemResponse;
-import com.azure.cosmos.models.CosmosQueryRequestOptions;
+import com.azure.cosmos.CosmosAsyncContainer;
+import com.azure.cosmos.models.CosmosItemIdentity;
 import com.azure.cosmos.models.PartitionKey;
-import com.azure.cosmos.models.SqlQuerySpec;
-import com.azure.cosmos.util.CosmosPagedFlux;
-import com.azure.cosmos.util.CosmosPagedIterable;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.microsoft.sample.api.dal.memory.InMemoryContainer;
 import com.microsoft.sample.api.helpers.ConfigurationHelper;
-import com.microsoft.sample.api.helpers.ConnectionHelper;
+import com.microsoft.sample.api.helpers.CosmosClientRegistry;
 import com.microsoft.sample.api.helpers.GenericHelper;
+import com.microsoft.sample.api.metrics.CosmosMetrics;
+import com.microsoft.sample.api.metrics.HotKeyTracker;
+import com.microsoft.sample.api.metrics.OperationType;
 
 import reactor.core.publisher.Flux;
-import reactor.core.publisher.Mono;
 
+/**
+ * Blocking DAL, runs on the same {@link DocumentContainer} as
+ * {@link CosmosAsyncDAL} and waits for each operation
+ */
 public class CosmosDAL {
 	private String host;
 	private String key;
 	private String databaseName;
 	private String containerName;
-	private CosmosClient client;
-	private CosmosDatabase database;
-	private CosmosContainer container;
+	private CosmosAsyncContainer container;
+	private DocumentContainer documents;
+	private ItemCache itemCache;
+	private HotKeyTracker hotKeys;
 	
+	private static ConfigurationHelper CONFIG = new ConfigurationHelper();
 	private static Logger LOGGER = LoggerFactory.getLogger(CosmosDAL.class);
-	// Singleton 
-	private static CosmosDAL cosmosDAL = null;
+	private static CosmosMetrics METRICS = CosmosMetrics.getInstance();
+	// One instance per container, clients are shared through CosmosClientRegistry
+	private static ConcurrentHashMap<String, CompletableFuture<CosmosDAL>> INSTANCES = new ConcurrentHashMap<String, CompletableFuture<CosmosDAL>>();
 	
 	public static CosmosDAL getInstance(String host, String key, String databaseName, String containerName) {
-		if(cosmosDAL == null) {
-			cosmosDAL = new CosmosDAL(host, key, databaseName, containerName);
-			cosmosDAL.init();
+		// built outside the map, init does network I/O and must not hold a bin lock
+		String containerKey = ItemCache.containerKey(host, databaseName, containerName);
+		CompletableFuture<CosmosDAL> created = new CompletableFuture<CosmosDAL>();
+		CompletableFuture<CosmosDAL> existing = INSTANCES.putIfAbsent(containerKey, created);
+		if(existing != null) {
+			try {
+				return existing.join();
+			}
+			catch(CompletionException exp) {
+				throw (IllegalStateException) exp.getCause();
+			}
 		}
+		CosmosDAL cosmosDAL = new CosmosDAL(host, key, databaseName, containerName);
+		if(!cosmosDAL.init()) {
+			IllegalStateException failure = new IllegalStateException("Could not initialize " + containerKey);
+			// not kept, the next caller initializes again
+			INSTANCES.remove(containerKey, created);
+			created.completeExceptionally(failure);
+			throw failure;
+		}
+		created.complete(cosmosDAL);
 		return cosmosDAL;
 	}
 	
@@ -70,27 +98,46 @@ public class CosmosDAL {
 	
 	private Boolean init() {
 		try {
-			/* Direct Mode Connection Mode Client
-			 * Will also need Gateway Mode config
-			 * Session consistency is used, adjust the same accordingly
-			 * TODO: add all the different initialization options
-			 */
+			DocumentContainer unscheduled = null;
 			LOGGER.info("Compute ID:" + GenericHelper.getCurrentComputeIdentifier());
-			client = new CosmosClientBuilder()
-	        		.endpoint(host)
-	        		.key(key)
-	        		.directMode(ConnectionHelper.getDirectModeConfig())
-	        		//.gatewayMode(ConnectionHelper.getGatewayConfig())
-	        		.consistencyLevel(ConsistencyLevel.SESSION)
-	        		.userAgentSuffix(GenericHelper.getCurrentComputeIdentifier())
-	        		.buildClient();
-			LOGGER.info("Cosmos client initiated");
+			if(InMemoryContainer.isEnabled()) {
+				documents = InMemoryContainer.forContainer(databaseName, containerName);
+				LOGGER.info("Using in-memory container: " + containerName);
+			}
+			else {
+				// the blocking calls share the async client, the sync client is a wrapper over it
+				// assuming database and container were created using portal or cli
+				container = CosmosClientRegistry.getAsyncClient(host, key).getDatabase(databaseName).getContainer(containerName);
+				LOGGER.info("Cosmos client initiated");
+				documents = new CosmosDocumentContainer(container);
+				if(RequestScheduler.isEnabled()) {
+					// the scheduler retries its requests after the shared pause, the SDK must not retry them first
+					unscheduled = documents;
+					documents = new CosmosDocumentContainer(CosmosClientRegistry.getScheduledAsyncClient(host, key).getDatabase(databaseName)
+																				.getContainer(containerName));
+				}
+			}
+
+			if(HotKeyTracker.isEnabled()) {
+				// inside the scheduler, only requests that reach the container are counted
+				hotKeys = HotKeyTracker.forContainer(ItemCache.containerKey(host, databaseName, containerName));
+				documents = new HotKeyDocumentContainer(documents, hotKeys);
+			}
+			if(RequestScheduler.isEnabled()) {
+				// shared per container with the other DAL, throttled requests back off together
+				documents = new ScheduledDocumentContainer(documents, unscheduled != null ? unscheduled : documents,
+														   RequestScheduler.forContainer(ItemCache.containerKey(host, databaseName, containerName)));
+			}
 			
-			// assuming database was created using portal or cli
-			database = client.getDatabase(databaseName);
+			if(CONFIG.getBooleanProperty("item_cache_enabled", false)) {
+				itemCache = ItemCache.forContainer(ItemCache.containerKey(host, databaseName, containerName));
+				itemCache.setPartitionKeyPath(documents.getPartitionKeyPath().block());
+				LOGGER.info("Item cache enabled for: " + containerName);
+			}
 			
-			// assuming container was created using portal or cli
-			container = database.getContainer(containerName);
+			if(container != null && CONFIG.getBooleanProperty("connection_warmup", false)) {
+				warmUp();
+			}
 		}
 		catch(Exception exp) {
 			LOGGER.error(exp.getMessage());
@@ -99,14 +146,35 @@ public class CosmosDAL {
 		return true;
 	}
 	
+	/*
+	 * Opens connections to the container's replicas and fills the address and
+	 * partition caches so the first requests after a deploy skip that work
+	 */
+	public void warmUp() {
+		if(container == null) {
+			return;
+		}
+		long start = System.currentTimeMillis();
+		try {
+			container.openConnectionsAndInitCaches().block();
+			LOGGER.info("Warmed up " + containerName + " in " + (System.currentTimeMillis() - start) + "ms");
+		}
+		catch(Exception exp) {
+			LOGGER.warn("Warm up of " + containerName + " failed: " + exp.getMessage());
+		}
+	}
+	
 	public JsonNode create(JsonNode data) {
 		try {
-			CosmosItemResponse<JsonNode> itemResponse = container.createItem(data);
-			GenericHelper.logDiagnostics(LOGGER, itemResponse);
+			DocumentResponse itemResponse = documents.create(data).block();
+			METRICS.record(OperationType.CREATE, itemResponse, LOGGER);
+			if(itemCache != null) {
+				itemCache.putDocument(itemResponse.getItem());
+			}
 			return itemResponse.getItem();
 		}
 		catch(Exception exp) {
-			return GenericHelper.handleException(exp, LOGGER);
+			return GenericHelper.handleException(OperationType.CREATE, exp, LOGGER);
 		}
 	}
 	
@@ -114,14 +182,22 @@ public class CosmosDAL {
 	 * Point Read
 	 */
 	public JsonNode retrieve(String id, String pk) {
+		if(itemCache != null) {
+			JsonNode cached = itemCache.get(pk, id);
+			if(cached != null) {
+				return cached;
+			}
+		}
 		try {
-			CosmosItemResponse<JsonNode> itemResponse = container.readItem(id, new PartitionKey(pk), JsonNode.class);
-			GenericHelper.logDiagnostics(LOGGER, itemResponse);
-			//LOGGER.info(itemResponse.getC);
+			DocumentResponse itemResponse = documents.read(id, pk).block();
+			METRICS.record(OperationType.READ, itemResponse, LOGGER);
+			if(itemCache != null) {
+				itemCache.put(pk, id, itemResponse.getItem());
+			}
 			return itemResponse.getItem();
 		}
 		catch(Exception exp) {
-			return GenericHelper.handleException(exp, LOGGER);
+			return GenericHelper.handleException(OperationType.READ, exp, LOGGER);
 		}
 	}
 	
@@ -129,42 +205,141 @@ public class CosmosDAL {
 	 * Query option
 	 */
 	public Flux<List<JsonNode>> query(String filters) {
-		
-		CosmosQueryRequestOptions queryOptions = new CosmosQueryRequestOptions();
-		queryOptions.setQueryMetricsEnabled(true);
-		
+		return Flux.fromIterable(queryPages(filters, new QueryOptions())).map(QueryPage::getResults);
+	}
+	
+	/*
+	 * Paged query, pages are fetched lazily while iterating. Resume a query
+	 * by passing the continuation token of the last processed page.
+	 */
+	public Iterable<QueryPage> queryPages(String filters, QueryOptions options) {
+		return documents.query(filters, options)
+						.map(feedResponse -> {
+							METRICS.record(OperationType.QUERY, feedResponse, LOGGER);
+							return new QueryPage(feedResponse);
+						})
+						.toIterable(1);
+	}
+	
+	public ItemCache getItemCache() {
+		return itemCache;
+	}
+	
+	/*
+	 * Null unless hot_keys_enabled is set
+	 */
+	public HotKeyTracker getHotKeyTracker() {
+		return hotKeys;
+	}
+	
+	public DocumentContainer getDocumentContainer() {
+		return documents;
+	}
+	
+	public JsonNode update(JsonNode data, String etag) {
 		try {
-			SqlQuerySpec sqlQuerySpec = GenericHelper.getSqlQueryFromQueryString(filters, LOGGER);
-			LOGGER.info(sqlQuerySpec.getQueryText());
-			CosmosPagedIterable<JsonNode> itemPages = container.queryItems(sqlQuerySpec, queryOptions, JsonNode.class);
-			//itemPages.iterableByPage(100);
+			DocumentResponse itemResponse = documents.upsert(data, etag).block();
+			METRICS.record(OperationType.UPSERT, itemResponse, LOGGER);
+			if(itemCache != null) {
+				itemCache.putDocument(itemResponse.getItem());
+			}
+			return itemResponse.getItem();
 		}
 		catch(Exception exp) {
-			System.out.println(exp.getMessage());
+			return GenericHelper.handleException(OperationType.UPSERT, exp, LOGGER);
 		}
-		return null;
 	}
 	
-	public JsonNode update(JsonNode data, String etag) {
+	public JsonNode patch(String id, String pk, PatchOperations operations) {
+		return patch(id, pk, operations, null, null);
+	}
+	
+	/*
+	 * Partial update, see CosmosAsyncDAL.patch
+	 */
+	public JsonNode patch(String id, String pk, PatchOperations operations, String condition, String etag) {
 		try {
-			CosmosItemRequestOptions options = new CosmosItemRequestOptions();
-			options.setIfMatchETag(etag);
-			CosmosItemResponse<JsonNode> itemResponse = container.upsertItem(data, options);
+			DocumentResponse itemResponse = documents.patch(id, pk, operations, condition, etag).block();
+			METRICS.record(OperationType.PATCH, itemResponse, LOGGER);
+			if(itemCache != null) {
+				itemCache.put(pk, id, itemResponse.getItem());
+			}
 			return itemResponse.getItem();
 		}
 		catch(Exception exp) {
-			return GenericHelper.handleException(exp, LOGGER);
+			return GenericHelper.handleException(OperationType.PATCH, exp, LOGGER);
+		}
+	}
+	
+	/*
+	 * See CosmosAsyncDAL.executeBatch, failures are returned, not thrown
+	 */
+	public BatchResponse executeBatch(TransactionalBatch batch) {
+		try {
+			BatchResponse response = documents.executeBatch(batch).block();
+			METRICS.record(OperationType.BATCH, response, LOGGER);
+			if(itemCache != null && response.isSuccess()) {
+				itemCache.putBatch(batch, response);
+			}
+			return response;
+		}
+		catch(Exception exp) {
+			JsonNode error = GenericHelper.handleException(OperationType.BATCH, exp, LOGGER);
+			return BatchResponse.ofError(error.path("status").asInt(), error.path("message").asText());
+		}
+	}
+	
+	/*
+	 * Optimistic read-modify-write retried on 412, see CosmosAsyncDAL.executeBatch
+	 */
+	public BatchResponse executeBatch(String partitionKey, Collection<String> ids,
+									  Function<Map<String, JsonNode>, TransactionalBatch> build) {
+		List<CosmosItemIdentity> identities = new ArrayList<CosmosItemIdentity>(ids.size());
+		for(String id : ids) {
+			identities.add(new CosmosItemIdentity(new PartitionKey(partitionKey), id));
+		}
+		int maxRetries = CONFIG.getIntProperty("batch_max_conflict_retries", 5);
+		long backoffMillis = CONFIG.getLongProperty("batch_conflict_backoff_ms", 10);
+		for(int retries = 0; ; retries++) {
+			Map<String, JsonNode> current = new HashMap<String, JsonNode>();
+			if(!identities.isEmpty()) {
+				try {
+					FeedPage page = documents.readMany(identities).block();
+					METRICS.record(OperationType.READ_MANY, page, LOGGER);
+					for(JsonNode item : page.getResults()) {
+						current.put(item.path("id").asText(), item);
+					}
+				}
+				catch(Exception exp) {
+					JsonNode error = GenericHelper.handleException(OperationType.READ_MANY, exp, LOGGER);
+					return BatchResponse.ofError(error.path("status").asInt(), error.path("message").asText());
+				}
+			}
+			BatchResponse response = executeBatch(build.apply(current));
+			if(response.getStatusCode() != 412 || retries >= maxRetries) {
+				return response;
+			}
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(ThreadLocalRandom.current().nextLong(backoffMillis * (retries + 1) + 1)));
 		}
 	}
 	
 	public Object delete(String partitionKey, String itemId) {
 		try {
-			CosmosItemRequestOptions options = new CosmosItemRequestOptions();
-			CosmosItemResponse<Object> itemResponse = container.deleteItem(itemId, new PartitionKey(partitionKey), options);
+			if(itemCache != null) {
+				itemCache.invalidate(partitionKey, itemId);
+			}
+			DocumentResponse itemResponse = documents.delete(itemId, partitionKey).block();
+			METRICS.record(OperationType.DELETE, itemResponse, LOGGER);
 			return itemResponse.getItem();
 		}
 		catch(Exception exp) {
-			return (Object) GenericHelper.handleException(exp, LOGGER);
+			return (Object) GenericHelper.handleException(OperationType.DELETE, exp, LOGGER);
+		}
+		finally {
+			// a read racing the delete may have cached the document again
+			if(itemCache != null) {
+				itemCache.invalidate(partitionKey, itemId);
+			}
 		}
 	}
 }
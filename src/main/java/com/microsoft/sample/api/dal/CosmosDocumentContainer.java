@@ -0,0 +1,170 @@
+package com.microsoft.sample.api.dal;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.azure.cosmos.CosmosAsyncContainer;
+import com.azure.cosmos.implementation.feedranges.FeedRangeEpkImpl;
+import com.azure.cosmos.implementation.routing.Range;
+import com.azure.cosmos.models.CosmosChangeFeedRequestOptions;
+import com.azure.cosmos.models.CosmosItemIdentity;
+import com.azure.cosmos.models.CosmosItemRequestOptions;
+import com.azure.cosmos.models.CosmosPatchItemRequestOptions;
+import com.azure.cosmos.models.FeedRange;
+import com.azure.cosmos.models.PartitionKey;
+import com.azure.cosmos.models.SqlQuerySpec;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.microsoft.sample.api.helpers.GenericHelper;
+import com.microsoft.sample.api.helpers.QueryBuilder;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * {@link DocumentContainer} over an SDK container, SDK failures are passed
+ * through as CosmosException
+ */
+public class CosmosDocumentContainer implements DocumentContainer {
+	
+	private static Logger LOGGER = LoggerFactory.getLogger(CosmosDocumentContainer.class);
+	
+	private final CosmosAsyncContainer container;
+	private final Mono<String> partitionKeyPath;
+	
+	public CosmosDocumentContainer(CosmosAsyncContainer container) {
+		this.container = container;
+		this.partitionKeyPath = container.read()
+										 .map(cr -> cr.getProperties().getPartitionKeyDefinition().getPaths().get(0))
+										 // failures are not kept, the next subscriber reads again
+										 .cache(path -> Duration.ofMillis(Long.MAX_VALUE), e -> Duration.ZERO, () -> Duration.ZERO);
+	}
+	
+	public CosmosAsyncContainer getContainer() {
+		return container;
+	}
+	
+	@Override
+	public String getId() {
+		return container.getId();
+	}
+	
+	@Override
+	public Mono<String> getPartitionKeyPath() {
+		return partitionKeyPath;
+	}
+	
+	@Override
+	public Mono<DocumentResponse> create(JsonNode document) {
+		return container.createItem(document).map(ir -> DocumentResponse.of(ir, ir.getItem()));
+	}
+	
+	@Override
+	public Mono<DocumentResponse> upsert(JsonNode document, String ifMatchEtag) {
+		CosmosItemRequestOptions options = new CosmosItemRequestOptions();
+		if(ifMatchEtag != null) {
+			options.setIfMatchETag(ifMatchEtag);
+		}
+		return container.upsertItem(document, options).map(ir -> DocumentResponse.of(ir, ir.getItem()));
+	}
+	
+	@Override
+	public Mono<DocumentResponse> read(String id, String partitionKey) {
+		return container.readItem(id, new PartitionKey(partitionKey), JsonNode.class).map(ir -> DocumentResponse.of(ir, ir.getItem()));
+	}
+	
+	@Override
+	public Mono<DocumentResponse> delete(String id, String partitionKey) {
+		return container.deleteItem(id, new PartitionKey(partitionKey)).map(ir -> DocumentResponse.of(ir, null));
+	}
+	
+	@Override
+	public Mono<DocumentResponse> patch(String id, String partitionKey, PatchOperations operations, String condition,
+										String ifMatchEtag) {
+		CosmosPatchItemRequestOptions options = new CosmosPatchItemRequestOptions();
+		if(condition != null) {
+			options.setFilterPredicate(QueryBuilder.getInstance().buildPredicate(condition));
+		}
+		if(ifMatchEtag != null) {
+			options.setIfMatchETag(ifMatchEtag);
+		}
+		return container.patchItem(id, new PartitionKey(partitionKey), operations.toSdk(), options, JsonNode.class)
+						.map(ir -> DocumentResponse.of(ir, ir.getItem()));
+	}
+	
+	@Override
+	public Mono<BatchResponse> executeBatch(TransactionalBatch batch) {
+		return container.executeCosmosBatch(batch.toSdk()).map(BatchResponse::of);
+	}
+	
+	@Override
+	public Mono<FeedPage> readMany(List<CosmosItemIdentity> identities) {
+		return container.readMany(identities, JsonNode.class).map(FeedPage::of);
+	}
+	
+	@Override
+	public Flux<FeedPage> query(String filters, QueryOptions options) {
+		SqlQuerySpec sqlQuerySpec = GenericHelper.getSqlQueryFromQueryString(filters, LOGGER);
+		return container.queryItems(sqlQuerySpec, options.toRequestOptions(), JsonNode.class)
+						.byPage(options.getContinuationToken(), options.getMaxItemCount())
+						.map(FeedPage::of);
+	}
+	
+	@Override
+	public Mono<List<String>> getFeedRanges() {
+		return container.getFeedRanges().map(ranges -> {
+			List<String> ids = new ArrayList<String>(ranges.size());
+			ranges.forEach(range -> ids.add(range.toString()));
+			return ids;
+		});
+	}
+	
+	/*
+	 * Compares effective partition key ranges, hex strings ordered as text
+	 * from "" to "FF"
+	 */
+	@Override
+	public boolean isWithin(String feedRange, String parentFeedRange) {
+		if(feedRange.equals(parentFeedRange)) {
+			return true;
+		}
+		FeedRange child = FeedRange.fromString(feedRange);
+		FeedRange parent = FeedRange.fromString(parentFeedRange);
+		if(!(child instanceof FeedRangeEpkImpl) || !(parent instanceof FeedRangeEpkImpl)) {
+			return false;
+		}
+		Range<String> childRange = ((FeedRangeEpkImpl) child).getRange();
+		Range<String> parentRange = ((FeedRangeEpkImpl) parent).getRange();
+		return childRange.getMin().compareTo(parentRange.getMin()) >= 0
+			   && childRange.getMax().compareTo(parentRange.getMax()) <= 0;
+	}
+	
+	@Override
+	public Mono<FeedPage> readChangeFeed(String feedRange, String continuation, Instant startTime, int maxItemCount,
+										 String throughputControlGroup) {
+		CosmosChangeFeedRequestOptions options;
+		if(continuation != null) {
+			options = CosmosChangeFeedRequestOptions.createForProcessingFromContinuation(continuation);
+		}
+		else if(startTime != null) {
+			options = CosmosChangeFeedRequestOptions.createForProcessingFromPointInTime(startTime, FeedRange.fromString(feedRange));
+		}
+		else {
+			options = CosmosChangeFeedRequestOptions.createForProcessingFromBeginning(FeedRange.fromString(feedRange));
+		}
+		options.setMaxItemCount(maxItemCount);
+		if(throughputControlGroup != null) {
+			options.setThroughputControlGroupName(throughputControlGroup);
+		}
+		return container.queryChangeFeed(options, JsonNode.class)
+						.byPage()
+						.next()
+						.map(FeedPage::of)
+						.defaultIfEmpty(new FeedPage(Collections.<JsonNode>emptyList(), continuation, 0, 0, null));
+	}
+}
@@ -0,0 +1,78 @@
+package com.microsoft.sample.api.dal;
+
+import java.time.Instant;
+import java.util.List;
+
+import com.azure.cosmos.models.CosmosItemIdentity;
+import com.fasterxml.jackson.databind.JsonNode;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Document operations the DALs and the change feed consumers are written
+ * against, implemented over the SDK by {@link CosmosDocumentContainer} and
+ * offline by {@link com.microsoft.sample.api.dal.memory.InMemoryContainer}.
+ * 
+ * Failures are signalled as CosmosException by the SDK implementation and as
+ * {@link ContainerException} otherwise, both carry the service status code.
+ */
+public interface DocumentContainer {
+	
+	String getId();
+	
+	Mono<String> getPartitionKeyPath();
+	
+	Mono<DocumentResponse> create(JsonNode document);
+	
+	/*
+	 * ifMatchEtag may be null, otherwise the write fails with 412 when the
+	 * stored version has another etag
+	 */
+	Mono<DocumentResponse> upsert(JsonNode document, String ifMatchEtag);
+	
+	Mono<DocumentResponse> read(String id, String partitionKey);
+	
+	Mono<DocumentResponse> delete(String id, String partitionKey);
+	
+	/*
+	 * Partial update. condition is a filter as accepted by QueryBuilder and
+	 * ifMatchEtag an etag, both may be null, either failing fails the patch
+	 * with 412.
+	 */
+	Mono<DocumentResponse> patch(String id, String partitionKey, PatchOperations operations, String condition, String ifMatchEtag);
+	
+	/*
+	 * A failed batch is a response with the failing status, not an error
+	 */
+	Mono<BatchResponse> executeBatch(TransactionalBatch batch);
+	
+	Mono<FeedPage> readMany(List<CosmosItemIdentity> identities);
+	
+	/*
+	 * filters as accepted by QueryBuilder, pages are read lazily starting at
+	 * the options' continuation token
+	 */
+	Flux<FeedPage> query(String filters, QueryOptions options);
+	
+	/*
+	 * Opaque feed range identifiers of the current partitions. A split
+	 * replaces a range by its children, a continuation read from the
+	 * parent keeps reading them.
+	 */
+	Mono<List<String>> getFeedRanges();
+	
+	/*
+	 * True when feedRange equals parentFeedRange or lies inside it, e.g. a
+	 * child of a split range
+	 */
+	boolean isWithin(String feedRange, String parentFeedRange);
+	
+	/*
+	 * One change feed page of a feed range. Reads from continuation when set,
+	 * else from startTime when set, else from the beginning. An empty page
+	 * means the range is caught up. throughputControlGroup may be null.
+	 */
+	Mono<FeedPage> readChangeFeed(String feedRange, String continuation, Instant startTime, int maxItemCount,
+								  String throughputControlGroup);
+}
@@ -0,0 +1,49 @@
+package com.microsoft.sample.api.dal;
+
+import com.azure.cosmos.CosmosDiagnostics;
+import com.azure.cosmos.models.CosmosItemResponse;
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Result of a point operation, the item is null for deletes
+ */
+public class DocumentResponse {
+	private final JsonNode item;
+	private final int statusCode;
+	private final double requestCharge;
+	private final long latencyMicros;
+	private final CosmosDiagnostics diagnostics;
+	
+	public DocumentResponse(JsonNode item, int statusCode, double requestCharge, long latencyMicros, CosmosDiagnostics diagnostics) {
+		this.item = item;
+		this.statusCode = statusCode;
+		this.requestCharge = requestCharge;
+		this.latencyMicros = latencyMicros;
+		this.diagnostics = diagnostics;
+	}
+	
+	static DocumentResponse of(CosmosItemResponse<?> itemResponse, JsonNode item) {
+		long latencyMicros = itemResponse.getDuration() != null ? itemResponse.getDuration().toNanos() / 1000 : 0;
+		return new DocumentResponse(item, itemResponse.getStatusCode(), itemResponse.getRequestCharge(),
+									latencyMicros, itemResponse.getDiagnostics());
+	}
+	
+	public JsonNode getItem() {
+		return item;
+	}
+	public int getStatusCode() {
+		return statusCode;
+	}
+	public double getRequestCharge() {
+		return requestCharge;
+	}
+	public long getLatencyMicros() {
+		return latencyMicros;
+	}
+	/*
+	 * Null outside the SDK implementation
+	 */
+	public CosmosDiagnostics getDiagnostics() {
+		return diagnostics;
+	}
+}
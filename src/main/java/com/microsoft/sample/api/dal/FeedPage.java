@@ -0,0 +1,85 @@
+package com.microsoft.sample.api.dal;
+
+import java.util.List;
+
+import com.azure.cosmos.CosmosDiagnostics;
+import com.azure.cosmos.models.FeedResponse;
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * One page of a query, read many or change feed read with the token to
+ * continue after it. Change feed pages also carry the latest LSN of the
+ * range when the service reported it.
+ */
+public class FeedPage {
+	private final List<JsonNode> results;
+	private final String continuationToken;
+	private final double requestCharge;
+	private final long latencyMicros;
+	private final CosmosDiagnostics diagnostics;
+	private final long headLsn;
+	
+	public FeedPage(List<JsonNode> results, String continuationToken, double requestCharge, long latencyMicros,
+					CosmosDiagnostics diagnostics) {
+		this(results, continuationToken, requestCharge, latencyMicros, diagnostics, -1);
+	}
+	
+	public FeedPage(List<JsonNode> results, String continuationToken, double requestCharge, long latencyMicros,
+					CosmosDiagnostics diagnostics, long headLsn) {
+		this.results = results;
+		this.continuationToken = continuationToken;
+		this.requestCharge = requestCharge;
+		this.latencyMicros = latencyMicros;
+		this.diagnostics = diagnostics;
+		this.headLsn = headLsn;
+	}
+	
+	static FeedPage of(FeedResponse<JsonNode> feedResponse) {
+		CosmosDiagnostics diagnostics = feedResponse.getCosmosDiagnostics();
+		long latencyMicros = diagnostics != null && diagnostics.getDuration() != null ? diagnostics.getDuration().toNanos() / 1000 : 0;
+		return new FeedPage(feedResponse.getResults(), feedResponse.getContinuationToken(), feedResponse.getRequestCharge(),
+							latencyMicros, diagnostics, parseSessionLsn(feedResponse.getSessionToken()));
+	}
+	
+	/*
+	 * Global LSN of a single range session token, "0:-1#1234" or
+	 * "0:1#1234#1=1200", -1 for missing or composite tokens
+	 */
+	static long parseSessionLsn(String sessionToken) {
+		if(sessionToken == null || sessionToken.indexOf(',') >= 0) {
+			return -1;
+		}
+		String[] parts = sessionToken.substring(sessionToken.indexOf(':') + 1).split("#");
+		try {
+			return Long.parseLong(parts.length > 1 ? parts[1] : parts[0]);
+		}
+		catch(NumberFormatException exp) {
+			return -1;
+		}
+	}
+	
+	public List<JsonNode> getResults() {
+		return results;
+	}
+	public String getContinuationToken() {
+		return continuationToken;
+	}
+	public double getRequestCharge() {
+		return requestCharge;
+	}
+	public long getLatencyMicros() {
+		return latencyMicros;
+	}
+	/*
+	 * Null outside the SDK implementation
+	 */
+	public CosmosDiagnostics getDiagnostics() {
+		return diagnostics;
+	}
+	/*
+	 * Latest LSN of the change feed range, -1 when unknown
+	 */
+	public long getHeadLsn() {
+		return headLsn;
+	}
+}
@@ -0,0 +1,133 @@
+package com.microsoft.sample.api.dal;
+
+import java.time.Instant;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.azure.cosmos.models.CosmosItemIdentity;
+import com.fasterxml.jackson.core.JsonPointer;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.microsoft.sample.api.helpers.GenericHelper;
+import com.microsoft.sample.api.metrics.HotKeyTracker;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * {@link DocumentContainer} that records the partition key and charge of
+ * every single partition request, failed ones included, in a
+ * {@link HotKeyTracker}. Queries and readMany span partition keys and are
+ * not attributed, the change feed is tracked by Cfp.
+ */
+public class HotKeyDocumentContainer implements DocumentContainer {
+	
+	private static Logger LOGGER = LoggerFactory.getLogger(HotKeyDocumentContainer.class);
+	
+	private final DocumentContainer delegate;
+	private final HotKeyTracker tracker;
+	private volatile JsonPointer partitionKeyPointer;
+	
+	public HotKeyDocumentContainer(DocumentContainer delegate, HotKeyTracker tracker) {
+		this.delegate = delegate;
+		this.tracker = tracker;
+		// writes are attributed once the path is known
+		delegate.getPartitionKeyPath().subscribe(path -> partitionKeyPointer = JsonPointer.compile(path), e -> {
+			LOGGER.warn("Partition key path of " + delegate.getId() + " unknown, creates and upserts are not tracked");
+			GenericHelper.logError(e, LOGGER);
+		});
+	}
+	
+	public HotKeyTracker getTracker() {
+		return tracker;
+	}
+	
+	@Override
+	public String getId() {
+		return delegate.getId();
+	}
+	
+	@Override
+	public Mono<String> getPartitionKeyPath() {
+		return delegate.getPartitionKeyPath();
+	}
+	
+	@Override
+	public Mono<DocumentResponse> create(JsonNode document) {
+		return track(partitionKeyOf(document), delegate.create(document));
+	}
+	
+	@Override
+	public Mono<DocumentResponse> upsert(JsonNode document, String ifMatchEtag) {
+		return track(partitionKeyOf(document), delegate.upsert(document, ifMatchEtag));
+	}
+	
+	@Override
+	public Mono<DocumentResponse> read(String id, String partitionKey) {
+		return track(partitionKey, delegate.read(id, partitionKey));
+	}
+	
+	@Override
+	public Mono<DocumentResponse> delete(String id, String partitionKey) {
+		return track(partitionKey, delegate.delete(id, partitionKey));
+	}
+	
+	@Override
+	public Mono<DocumentResponse> patch(String id, String partitionKey, PatchOperations operations, String condition,
+										String ifMatchEtag) {
+		return track(partitionKey, delegate.patch(id, partitionKey, operations, condition, ifMatchEtag));
+	}
+	
+	@Override
+	public Mono<BatchResponse> executeBatch(TransactionalBatch batch) {
+		String partitionKey = batch.getPartitionKey();
+		return delegate.executeBatch(batch)
+					   .doOnNext(response -> tracker.record(partitionKey, response.getRequestCharge(), response.getStatusCode() == 429))
+					   .doOnError(e -> recordError(partitionKey, e));
+	}
+	
+	@Override
+	public Mono<FeedPage> readMany(List<CosmosItemIdentity> identities) {
+		return delegate.readMany(identities);
+	}
+	
+	@Override
+	public Flux<FeedPage> query(String filters, QueryOptions options) {
+		return delegate.query(filters, options);
+	}
+	
+	@Override
+	public Mono<List<String>> getFeedRanges() {
+		return delegate.getFeedRanges();
+	}
+	
+	@Override
+	public boolean isWithin(String feedRange, String parentFeedRange) {
+		return delegate.isWithin(feedRange, parentFeedRange);
+	}
+	
+	@Override
+	public Mono<FeedPage> readChangeFeed(String feedRange, String continuation, Instant startTime, int maxItemCount,
+										 String throughputControlGroup) {
+		return delegate.readChangeFeed(feedRange, continuation, startTime, maxItemCount, throughputControlGroup);
+	}
+	
+	private Mono<DocumentResponse> track(String partitionKey, Mono<DocumentResponse> request) {
+		return request.doOnNext(response -> tracker.record(partitionKey, response.getRequestCharge(), false))
+					  .doOnError(e -> recordError(partitionKey, e));
+	}
+	
+	private void recordError(String partitionKey, Throwable error) {
+		tracker.record(partitionKey, GenericHelper.getRequestCharge(error), GenericHelper.getStatusCode(error, 0) == 429);
+	}
+	
+	private String partitionKeyOf(JsonNode document) {
+		JsonPointer pointer = partitionKeyPointer;
+		if(pointer == null) {
+			return null;
+		}
+		JsonNode value = document.at(pointer);
+		return value.isMissingNode() ? null : value.asText();
+	}
+}
@@ -0,0 +1,239 @@
+package com.microsoft.sample.api.dal;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.microsoft.sample.api.helpers.ConfigurationHelper;
+
+/**
+ * In-process read-through cache for point reads, keyed by partition key and id.
+ * Both DALs write through, a written item replaces the cached one unless
+ * the cache already holds a more recent {@code _ts}.
+ * 
+ * Entries expire after a TTL and the cache is bounded, eviction is a CLOCK
+ * style second chance over insertion order. Entries are kept coherent by the
+ * change feed: {@link #onChanges(List)} replaces a cached item when the feed
+ * delivers a different {@code _etag} with a {@code _ts} at least as recent.
+ * Keys that are not cached are never populated from the feed. Staleness is
+ * bounded by the feed lag, or by the TTL for deletes which the feed does not carry.
+ * 
+ * One cache is shared per container so every DAL and processor on the same
+ * container sees the same entries, see {@link #forContainer(String)}.
+ */
+public class ItemCache {
+	
+	private static final ConcurrentHashMap<String, ItemCache> CACHES = new ConcurrentHashMap<String, ItemCache>();
+	private static final int MAX_EVICTION_SCAN = 16;
+	
+	private final int maxEntries;
+	private final long ttlNanos;
+	private volatile String partitionKeyPath;
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private final ConcurrentLinkedQueue<Entry> clock = new ConcurrentLinkedQueue<Entry>();
+	private final AtomicInteger clockSize = new AtomicInteger();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder refreshes = new LongAdder();
+	
+	/*
+	 * item_cache_max_entries  bound on cached items (default 10000)
+	 * item_cache_ttl_ms       time to live of a cached item (default 30000)
+	 */
+	public static ItemCache forContainer(String containerKey) {
+		return CACHES.computeIfAbsent(containerKey, k -> {
+			ConfigurationHelper helper = new ConfigurationHelper();
+			return new ItemCache(helper.getIntProperty("item_cache_max_entries", 10000),
+								 helper.getLongProperty("item_cache_ttl_ms", 30000));
+		});
+	}
+	
+	public static String containerKey(String host, String databaseName, String containerName) {
+		return host + "/" + databaseName + "/" + containerName;
+	}
+	
+	public ItemCache(int maxEntries, long ttlMillis) {
+		this.maxEntries = Math.max(1, maxEntries);
+		this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+	}
+	
+	/*
+	 * Needed to key change feed documents, e.g. "/pk"
+	 */
+	public void setPartitionKeyPath(String partitionKeyPath) {
+		this.partitionKeyPath = partitionKeyPath;
+	}
+	
+	/*
+	 * Returns a copy of the cached item, or null on a miss
+	 */
+	public JsonNode get(String pk, String id) {
+		String key = key(pk, id);
+		Entry entry = entries.get(key);
+		if(entry == null) {
+			misses.increment();
+			return null;
+		}
+		if(System.nanoTime() - entry.expiresAtNanos > 0) {
+			entries.remove(key, entry);
+			misses.increment();
+			return null;
+		}
+		entry.referenced = true;
+		hits.increment();
+		return entry.item.deepCopy();
+	}
+	
+	public void put(String pk, String id, JsonNode item) {
+		if(item == null) {
+			invalidate(pk, id);
+			return;
+		}
+		String key = key(pk, id);
+		Entry entry = new Entry(key, item.deepCopy(), System.nanoTime() + ttlNanos);
+		Entry previous = entries.put(key, entry);
+		if(previous != null && previous.timestamp > entry.timestamp && entries.replace(key, entry, previous)) {
+			// lost a race against a newer version
+			return;
+		}
+		track(entry);
+	}
+	
+	public void invalidate(String pk, String id) {
+		entries.remove(key(pk, id));
+	}
+	
+	/*
+	 * Write path helpers, keyed through the partition key path
+	 */
+	public void putDocument(JsonNode document) {
+		String path = partitionKeyPath;
+		if(path != null && document != null) {
+			put(document.at(path).asText(), document.path("id").asText(), document);
+		}
+	}
+	
+	/*
+	 * Caches the written versions of a successful batch, operations without
+	 * an item, deletes or writes without content, are invalidated
+	 */
+	public void putBatch(TransactionalBatch batch, BatchResponse response) {
+		List<TransactionalBatch.BatchOperation> operations = batch.getOperations();
+		for(int i = 0; i < operations.size(); i++) {
+			JsonNode item = i < response.getResults().size() ? response.getResults().get(i).getItem() : null;
+			if(item != null) {
+				putDocument(item);
+			}
+			else {
+				invalidate(batch.getPartitionKey(), operations.get(i).getId());
+			}
+		}
+	}
+	
+	public void invalidateDocument(JsonNode document) {
+		String path = partitionKeyPath;
+		if(path != null && document != null) {
+			invalidate(document.at(path).asText(), document.path("id").asText());
+		}
+	}
+	
+	/*
+	 * Applies a change feed batch, only keys already cached are touched
+	 */
+	public void onChanges(List<JsonNode> docs) {
+		String path = partitionKeyPath;
+		if(path == null || entries.isEmpty()) {
+			return;
+		}
+		for(JsonNode document : docs) {
+			String key = key(document.at(path).asText(), document.path("id").asText());
+			Entry current = entries.get(key);
+			if(current == null) {
+				continue;
+			}
+			String etag = document.path("_etag").asText(null);
+			long timestamp = document.path("_ts").asLong();
+			if(etag != null && etag.equals(current.etag)) {
+				continue;
+			}
+			if(timestamp >= current.timestamp) {
+				Entry refreshed = new Entry(key, document.deepCopy(), System.nanoTime() + ttlNanos);
+				if(entries.replace(key, current, refreshed)) {
+					track(refreshed);
+					refreshes.increment();
+				}
+			}
+		}
+	}
+	
+	private void track(Entry entry) {
+		clock.offer(entry);
+		clockSize.incrementAndGet();
+		evictIfFull();
+	}
+	
+	/*
+	 * Every cached entry owns one clock slot, slots of replaced or
+	 * invalidated entries are dropped when they come around
+	 */
+	private void evictIfFull() {
+		int scanned = 0;
+		while((entries.size() > maxEntries || clockSize.get() > 2 * maxEntries)
+				&& scanned++ < 2 * maxEntries + MAX_EVICTION_SCAN) {
+			Entry entry = clock.poll();
+			if(entry == null) {
+				return;
+			}
+			clockSize.decrementAndGet();
+			if(entries.get(entry.key) != entry) {
+				continue;
+			}
+			if(entries.size() <= maxEntries || (entry.referenced && scanned < MAX_EVICTION_SCAN)) {
+				entry.referenced = false;
+				clock.offer(entry);
+				clockSize.incrementAndGet();
+			}
+			else {
+				entries.remove(entry.key, entry);
+			}
+		}
+	}
+	
+	private static String key(String pk, String id) {
+		return pk + '\u0000' + id;
+	}
+	
+	public int size() {
+		return entries.size();
+	}
+	public long getHits() {
+		return hits.sum();
+	}
+	public long getMisses() {
+		return misses.sum();
+	}
+	public long getRefreshes() {
+		return refreshes.sum();
+	}
+	
+	private static class Entry {
+		private final String key;
+		private final JsonNode item;
+		private final String etag;
+		private final long timestamp;
+		private final long expiresAtNanos;
+		private volatile boolean referenced;
+		
+		Entry(String key, JsonNode item, long expiresAtNanos) {
+			this.key = key;
+			this.item = item;
+			this.etag = item.path("_etag").asText(null);
+			this.timestamp = item.path("_ts").asLong();
+			this.expiresAtNanos = expiresAtNanos;
+		}
+	}
+}
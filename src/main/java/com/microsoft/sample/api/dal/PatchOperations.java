@@ -0,0 +1,252 @@
+package com.microsoft.sample.api.dal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.azure.cosmos.models.CosmosPatchOperations;
+import com.fasterxml.jackson.core.JsonPointer;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Partial update of a document, paths are JSON pointers such as
+ * {@code /status} or {@code /tags/-}.
+ * 
+ * add sets a property or inserts into an array ("-" appends), set sets a
+ * property or an array element, replace and remove need an existing
+ * target, increment adds to a number and creates missing properties. The
+ * parent of the target must exist. Operations are applied in order and all
+ * or nothing.
+ */
+public class PatchOperations {
+	
+	public enum Type {
+		ADD,
+		SET,
+		REPLACE,
+		REMOVE,
+		INCREMENT
+	}
+	
+	private static ObjectMapper MAPPER = new ObjectMapper();
+	
+	private final List<PatchOperation> operations = new ArrayList<PatchOperation>();
+	
+	public static PatchOperations create() {
+		return new PatchOperations();
+	}
+	
+	public PatchOperations add(String path, Object value) {
+		return append(Type.ADD, path, MAPPER.valueToTree(value));
+	}
+	
+	public PatchOperations set(String path, Object value) {
+		return append(Type.SET, path, MAPPER.valueToTree(value));
+	}
+	
+	public PatchOperations replace(String path, Object value) {
+		return append(Type.REPLACE, path, MAPPER.valueToTree(value));
+	}
+	
+	public PatchOperations remove(String path) {
+		return append(Type.REMOVE, path, null);
+	}
+	
+	public PatchOperations increment(String path, long value) {
+		return append(Type.INCREMENT, path, MAPPER.getNodeFactory().numberNode(value));
+	}
+	
+	public PatchOperations increment(String path, double value) {
+		return append(Type.INCREMENT, path, MAPPER.getNodeFactory().numberNode(value));
+	}
+	
+	public List<PatchOperation> getOperations() {
+		return Collections.unmodifiableList(operations);
+	}
+	
+	private PatchOperations append(Type type, String path, JsonNode value) {
+		if(path == null || !path.startsWith("/") || path.length() == 1) {
+			throw new IllegalArgumentException("Patch path must be a JSON pointer below the root: " + path);
+		}
+		operations.add(new PatchOperation(type, path, value));
+		return this;
+	}
+	
+	CosmosPatchOperations toSdk() {
+		CosmosPatchOperations patch = CosmosPatchOperations.create();
+		for(PatchOperation operation : operations) {
+			switch(operation.type) {
+				case ADD:
+					patch.add(operation.path, operation.value);
+					break;
+				case SET:
+					patch.set(operation.path, operation.value);
+					break;
+				case REPLACE:
+					patch.replace(operation.path, operation.value);
+					break;
+				case REMOVE:
+					patch.remove(operation.path);
+					break;
+				default:
+					if(operation.value.isIntegralNumber()) {
+						patch.increment(operation.path, operation.value.longValue());
+					}
+					else {
+						patch.increment(operation.path, operation.value.doubleValue());
+					}
+			}
+		}
+		return patch;
+	}
+	
+	/*
+	 * Applies the operations to the document in place, fails with 400 like
+	 * the service when a path cannot be applied. Apply to a copy when the
+	 * document must stay unchanged on failure.
+	 */
+	public void applyTo(ObjectNode document) {
+		for(PatchOperation operation : operations) {
+			operation.applyTo(document);
+		}
+	}
+	
+	public static final class PatchOperation {
+		private final Type type;
+		private final String path;
+		private final JsonNode value;
+		
+		PatchOperation(Type type, String path, JsonNode value) {
+			this.type = type;
+			this.path = path;
+			this.value = value;
+		}
+		
+		public Type getType() {
+			return type;
+		}
+		public String getPath() {
+			return path;
+		}
+		/*
+		 * Null for remove
+		 */
+		public JsonNode getValue() {
+			return value;
+		}
+		
+		void applyTo(ObjectNode document) {
+			JsonPointer pointer = JsonPointer.compile(path);
+			JsonNode parent = document.at(pointer.head());
+			String name = pointer.last().getMatchingProperty();
+			if(parent.isObject()) {
+				applyTo((ObjectNode) parent, name);
+			}
+			else if(parent.isArray()) {
+				applyTo((ArrayNode) parent, name);
+			}
+			else {
+				throw invalid("parent of the target does not exist");
+			}
+		}
+		
+		private void applyTo(ObjectNode parent, String name) {
+			JsonNode current = parent.get(name);
+			switch(type) {
+				case ADD:
+				case SET:
+					parent.set(name, value.deepCopy());
+					break;
+				case REPLACE:
+					if(current == null) {
+						throw invalid("target does not exist");
+					}
+					parent.set(name, value.deepCopy());
+					break;
+				case REMOVE:
+					if(current == null) {
+						throw invalid("target does not exist");
+					}
+					parent.remove(name);
+					break;
+				default:
+					parent.set(name, increment(current));
+			}
+		}
+		
+		private void applyTo(ArrayNode parent, String name) {
+			int size = parent.size();
+			int index = "-".equals(name) ? size : parseIndex(name);
+			switch(type) {
+				case ADD:
+					if(index > size) {
+						throw invalid("index out of range");
+					}
+					parent.insert(index, value.deepCopy());
+					break;
+				case SET:
+					if(index > size) {
+						throw invalid("index out of range");
+					}
+					if(index == size) {
+						parent.add(value.deepCopy());
+					}
+					else {
+						parent.set(index, value.deepCopy());
+					}
+					break;
+				case REPLACE:
+					if(index >= size) {
+						throw invalid("target does not exist");
+					}
+					parent.set(index, value.deepCopy());
+					break;
+				case REMOVE:
+					if(index >= size) {
+						throw invalid("target does not exist");
+					}
+					parent.remove(index);
+					break;
+				default:
+					if(index >= size) {
+						throw invalid("target does not exist");
+					}
+					parent.set(index, increment(parent.get(index)));
+			}
+		}
+		
+		private JsonNode increment(JsonNode current) {
+			if(current == null) {
+				return value;
+			}
+			if(!current.isNumber()) {
+				throw invalid("target is not a number");
+			}
+			if(current.isIntegralNumber() && value.isIntegralNumber()) {
+				return MAPPER.getNodeFactory().numberNode(current.longValue() + value.longValue());
+			}
+			return MAPPER.getNodeFactory().numberNode(current.doubleValue() + value.doubleValue());
+		}
+		
+		private int parseIndex(String name) {
+			int index = -1;
+			try {
+				index = Integer.parseInt(name);
+			}
+			catch(NumberFormatException exp) {
+				// reported below
+			}
+			if(index < 0) {
+				throw invalid("array index expected");
+			}
+			return index;
+		}
+		
+		private ContainerException invalid(String reason) {
+			return new ContainerException(400, "Cannot " + type.name().toLowerCase() + " " + path + ": " + reason);
+		}
+	}
+}
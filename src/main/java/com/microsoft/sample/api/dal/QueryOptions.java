@@ -0,0 +1,93 @@
+package com.microsoft.sample.api.dal;
+
+import com.azure.cosmos.models.CosmosQueryRequestOptions;
+
+/**
+ * Paging options shared by the sync and async DAL query APIs.
+ * A page's continuation token can be passed back through
+ * {@link #setContinuationToken(String)} to resume a query where it stopped.
+ */
+public class QueryOptions {
+	private int maxItemCount = 100;
+	private int maxDegreeOfParallelism = 0;
+	private int maxBufferedItemCount = 0;
+	private int prefetchPages = 2;
+	private int continuationTokenLimitInKb = 0;
+	private boolean queryMetricsEnabled = false;
+	private String continuationToken;
+	
+	public int getMaxItemCount() {
+		return maxItemCount;
+	}
+	/*
+	 * Preferred number of items per page
+	 */
+	public QueryOptions setMaxItemCount(int maxItemCount) {
+		this.maxItemCount = maxItemCount;
+		return this;
+	}
+	public int getMaxDegreeOfParallelism() {
+		return maxDegreeOfParallelism;
+	}
+	/*
+	 * Partitions queried concurrently for cross partition queries, -1 lets the SDK decide
+	 */
+	public QueryOptions setMaxDegreeOfParallelism(int maxDegreeOfParallelism) {
+		this.maxDegreeOfParallelism = maxDegreeOfParallelism;
+		return this;
+	}
+	public int getMaxBufferedItemCount() {
+		return maxBufferedItemCount;
+	}
+	/*
+	 * Items the SDK may buffer client side during parallel execution, 0 for the SDK default
+	 */
+	public QueryOptions setMaxBufferedItemCount(int maxBufferedItemCount) {
+		this.maxBufferedItemCount = maxBufferedItemCount;
+		return this;
+	}
+	public int getPrefetchPages() {
+		return prefetchPages;
+	}
+	/*
+	 * Pages requested ahead of the consumer on the async DAL
+	 */
+	public QueryOptions setPrefetchPages(int prefetchPages) {
+		this.prefetchPages = prefetchPages;
+		return this;
+	}
+	public int getContinuationTokenLimitInKb() {
+		return continuationTokenLimitInKb;
+	}
+	public QueryOptions setContinuationTokenLimitInKb(int continuationTokenLimitInKb) {
+		this.continuationTokenLimitInKb = continuationTokenLimitInKb;
+		return this;
+	}
+	public boolean isQueryMetricsEnabled() {
+		return queryMetricsEnabled;
+	}
+	public QueryOptions setQueryMetricsEnabled(boolean queryMetricsEnabled) {
+		this.queryMetricsEnabled = queryMetricsEnabled;
+		return this;
+	}
+	public String getContinuationToken() {
+		return continuationToken;
+	}
+	public QueryOptions setContinuationToken(String continuationToken) {
+		this.continuationToken = continuationToken;
+		return this;
+	}
+	
+	CosmosQueryRequestOptions toRequestOptions() {
+		CosmosQueryRequestOptions options = new CosmosQueryRequestOptions();
+		options.setMaxDegreeOfParallelism(maxDegreeOfParallelism);
+		if(maxBufferedItemCount > 0) {
+			options.setMaxBufferedItemCount(maxBufferedItemCount);
+		}
+		if(continuationTokenLimitInKb > 0) {
+			options.setResponseContinuationTokenLimitInKb(continuationTokenLimitInKb);
+		}
+		options.setQueryMetricsEnabled(queryMetricsEnabled);
+		return options;
+	}
+}
@@ -0,0 +1,31 @@
+package com.microsoft.sample.api.dal;
+
+import java.util.List;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * One page of query results with the token to resume after it,
+ * the token is null once the query is drained
+ */
+public class QueryPage {
+	private final List<JsonNode> results;
+	private final String continuationToken;
+	private final double requestCharge;
+	
+	QueryPage(FeedPage feedResponse) {
+		this.results = feedResponse.getResults();
+		this.continuationToken = feedResponse.getContinuationToken();
+		this.requestCharge = feedResponse.getRequestCharge();
+	}
+	
+	public List<JsonNode> getResults() {
+		return results;
+	}
+	public String getContinuationToken() {
+		return continuationToken;
+	}
+	public double getRequestCharge() {
+		return requestCharge;
+	}
+}
@@ -0,0 +1,301 @@
+package com.microsoft.sample.api.dal;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
+
+import com.azure.cosmos.CosmosException;
+import com.microsoft.sample.api.helpers.ConfigurationHelper;
+import com.microsoft.sample.api.helpers.GenericHelper;
+import com.microsoft.sample.api.metrics.CosmosMetrics;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
+
+/**
+ * Client side admission of the requests of one container.
+ * 
+ * Each request class draws from its own RU token bucket, the cost of a
+ * request is estimated from the charges recently observed for its class and
+ * corrected once the actual charge is known, so the buckets track the RU
+ * budget rather than a request count. A 429 pauses every class until its
+ * retry after has elapsed and the throttled request is retried when the
+ * pause is over, up to maxRetries times, callers share one backoff instead
+ * of each retrying on its own. Requests that would wait longer than the
+ * maximum fail immediately with a shared 429.
+ * 
+ * With no RU budget the buckets admit everything and only the shared
+ * backoff applies.
+ */
+public class RequestScheduler {
+	
+	public enum RequestClass {
+		READ,
+		WRITE,
+		QUERY
+	}
+	
+	private static final ConcurrentHashMap<String, RequestScheduler> SCHEDULERS = new ConcurrentHashMap<String, RequestScheduler>();
+	private static final RequestClass[] CLASSES = RequestClass.values();
+	private static final String GAUGE_PREFIX = "scheduler.";
+	// returned instead of building an exception per rejected request, block() adds suppressed exceptions to what it rethrows
+	private static final ContainerException REJECTED = ContainerException.shared(429, "Request rate is large, rejected by the client scheduler");
+	private static final long DEFAULT_RETRY_AFTER_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+	
+	private final TokenBucket[] buckets = new TokenBucket[CLASSES.length];
+	private final long maxWaitNanos;
+	private final int maxRetries;
+	private final AtomicLong pausedUntilNanos = new AtomicLong(System.nanoTime());
+	private final LongAdder throttled = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder delayed = new LongAdder();
+	
+	public static boolean isEnabled() {
+		return new ConfigurationHelper().getBooleanProperty("scheduler_enabled", false);
+	}
+	
+	/*
+	 * scheduler_ru_per_second    RU budget of the container for this process, 0 for no buckets (default 0)
+	 * scheduler_read_share       share of the budget for point reads and readMany (default 0.5)
+	 * scheduler_write_share      share for creates, upserts and deletes (default 0.3)
+	 * scheduler_query_share      share for queries (default 0.2)
+	 * scheduler_burst_ms         bucket capacity in time at the bucket rate (default 1000)
+	 * scheduler_initial_charge   RU estimate per request before charges are observed (default 5)
+	 * scheduler_max_wait_ms      longer waits are rejected with 429 (default 5000)
+	 * scheduler_max_retries      retries of a throttled request after the shared pause (default 5)
+	 */
+	public static RequestScheduler forContainer(String containerKey) {
+		return SCHEDULERS.computeIfAbsent(containerKey, k -> {
+			ConfigurationHelper helper = new ConfigurationHelper();
+			double ruPerSecond = helper.getDoubleProperty("scheduler_ru_per_second", 0);
+			RequestScheduler scheduler = new RequestScheduler(new double[] { ruPerSecond * helper.getDoubleProperty("scheduler_read_share", 0.5),
+																			 ruPerSecond * helper.getDoubleProperty("scheduler_write_share", 0.3),
+																			 ruPerSecond * helper.getDoubleProperty("scheduler_query_share", 0.2) },
+															  Duration.ofMillis(helper.getLongProperty("scheduler_burst_ms", 1000)),
+															  helper.getDoubleProperty("scheduler_initial_charge", 5),
+															  Duration.ofMillis(helper.getLongProperty("scheduler_max_wait_ms", 5000)),
+															  helper.getIntProperty("scheduler_max_retries", 5));
+			scheduler.registerGauges(CosmosMetrics.getInstance(), GAUGE_PREFIX + k.replace('/', '.').replaceAll("[^A-Za-z0-9._-]", "") + ".");
+			return scheduler;
+		});
+	}
+	
+	/*
+	 * ruPerSecond per RequestClass ordinal, 0 admits the class without limit
+	 */
+	public RequestScheduler(double[] ruPerSecond, Duration burst, double initialCharge, Duration maxWait, int maxRetries) {
+		for(RequestClass requestClass : CLASSES) {
+			buckets[requestClass.ordinal()] = new TokenBucket(ruPerSecond[requestClass.ordinal()], burst, initialCharge);
+		}
+		this.maxWaitNanos = maxWait.toNanos();
+		this.maxRetries = maxRetries;
+	}
+	
+	/*
+	 * Admits the request once its bucket and the shared pause allow it,
+	 * charge extracts the RU charge of a successful response
+	 */
+	public <T> Mono<T> schedule(RequestClass requestClass, Supplier<Mono<T>> request, ToDoubleFunction<T> charge) {
+		TokenBucket bucket = buckets[requestClass.ordinal()];
+		return Mono.defer(() -> {
+			double estimate = bucket.getEstimate();
+			long waitNanos = admit(bucket, estimate);
+			if(waitNanos < 0) {
+				return Mono.<T>error(REJECTED);
+			}
+			Mono<T> call = Mono.defer(request);
+			if(waitNanos > 0) {
+				call = Mono.delay(Duration.ofNanos(waitNanos)).then(call);
+			}
+			return call.doOnNext(response -> bucket.settle(charge.applyAsDouble(response), estimate, true))
+					   .doOnError(e -> onError(bucket, estimate, e));
+		}).retryWhen(throttledRetry());
+	}
+	
+	/*
+	 * Admission of a paged request is decided for the first page, the charge
+	 * of every page is settled against the bucket. Pages are not retried since
+	 * earlier pages have already been delivered.
+	 */
+	public <T> Flux<T> scheduleMany(RequestClass requestClass, Supplier<Flux<T>> request, ToDoubleFunction<T> charge) {
+		TokenBucket bucket = buckets[requestClass.ordinal()];
+		return Flux.defer(() -> {
+			double estimate = bucket.getEstimate();
+			long waitNanos = admit(bucket, estimate);
+			if(waitNanos < 0) {
+				return Flux.<T>error(REJECTED);
+			}
+			Flux<T> call = Flux.defer(request);
+			if(waitNanos > 0) {
+				call = Mono.delay(Duration.ofNanos(waitNanos)).thenMany(call);
+			}
+			boolean[] first = { true };
+			return call.doOnNext(page -> {
+							if(first[0]) {
+								first[0] = false;
+								bucket.settle(charge.applyAsDouble(page), estimate, true);
+							}
+							else {
+								bucket.settle(charge.applyAsDouble(page), 0, false);
+							}
+						})
+					   .doOnError(e -> onError(bucket, first[0] ? estimate : 0, e));
+		});
+	}
+	
+	/*
+	 * Accounts for a request that was not admitted here, e.g. an item of the
+	 * SDK bulk executor. Its charge is drawn from the bucket of its class and
+	 * a 429 pauses every class like a scheduled one.
+	 */
+	public void record(RequestClass requestClass, double requestCharge, int statusCode, Duration retryAfter) {
+		buckets[requestClass.ordinal()].settle(requestCharge, 0, false);
+		if(statusCode == 429) {
+			throttled.increment();
+			pause(retryAfter == null || retryAfter.isZero() ? DEFAULT_RETRY_AFTER_NANOS : retryAfter.toNanos());
+		}
+	}
+	
+	/*
+	 * Nanos to wait, -1 when the wait exceeds the maximum
+	 */
+	private long admit(TokenBucket bucket, double estimate) {
+		long now = System.nanoTime();
+		long waitNanos = Math.max(pausedUntilNanos.get() - now, bucket.reserve(now, estimate));
+		if(waitNanos > maxWaitNanos) {
+			bucket.settle(0, estimate, false);
+			rejected.increment();
+			return -1;
+		}
+		if(waitNanos > 0) {
+			delayed.increment();
+		}
+		return Math.max(0, waitNanos);
+	}
+	
+	private void onError(TokenBucket bucket, double estimate, Throwable error) {
+		if(isThrottled(error)) {
+			throttled.increment();
+			pause(retryAfterNanos(error));
+		}
+		bucket.settle(GenericHelper.getRequestCharge(error), estimate, false);
+	}
+	
+	/*
+	 * The next attempt waits for the shared pause in admit
+	 */
+	private Retry throttledRetry() {
+		return Retry.from(signals -> signals.concatMap(signal -> {
+			if(signal.failure() != REJECTED && isThrottled(signal.failure()) && signal.totalRetries() < maxRetries) {
+				return Mono.just(signal.totalRetries());
+			}
+			return Mono.error(signal.failure());
+		}));
+	}
+	
+	void pause(long nanos) {
+		long until = System.nanoTime() + nanos;
+		pausedUntilNanos.accumulateAndGet(until, (current, next) -> next - current > 0 ? next : current);
+	}
+	
+	public long getPausedNanos() {
+		return Math.max(0, pausedUntilNanos.get() - System.nanoTime());
+	}
+	
+	public double getEstimatedCharge(RequestClass requestClass) {
+		return buckets[requestClass.ordinal()].getEstimate();
+	}
+	
+	public long getThrottledCount() {
+		return throttled.sum();
+	}
+	
+	public long getRejectedCount() {
+		return rejected.sum();
+	}
+	
+	public long getDelayedCount() {
+		return delayed.sum();
+	}
+	
+	private void registerGauges(CosmosMetrics metrics, String prefix) {
+		metrics.registerGauge(prefix + "throttled", () -> throttled.sum());
+		metrics.registerGauge(prefix + "rejected", () -> rejected.sum());
+		metrics.registerGauge(prefix + "delayed", () -> delayed.sum());
+		metrics.registerGauge(prefix + "paused_ms", () -> TimeUnit.NANOSECONDS.toMillis(getPausedNanos()));
+		for(RequestClass requestClass : CLASSES) {
+			String name = prefix + requestClass.name().toLowerCase() + ".estimated_ru";
+			metrics.registerGauge(name, () -> getEstimatedCharge(requestClass));
+		}
+	}
+	
+	static boolean isThrottled(Throwable error) {
+		return GenericHelper.getStatusCode(error, 0) == 429;
+	}
+	
+	private static long retryAfterNanos(Throwable error) {
+		Duration retryAfter = null;
+		if(error instanceof CosmosException) {
+			retryAfter = ((CosmosException) error).getRetryAfterDuration();
+		}
+		else if(error instanceof ContainerException) {
+			retryAfter = ((ContainerException) error).getRetryAfter();
+		}
+		return retryAfter == null || retryAfter.isZero() ? DEFAULT_RETRY_AFTER_NANOS : retryAfter.toNanos();
+	}
+	
+	/*
+	 * RU bucket refilled continuously at the class rate. Reservations may
+	 * take it below zero, the deficit is the wait of the reserving request,
+	 * so callers are spaced out instead of polling.
+	 */
+	static final class TokenBucket {
+		private static final double EWMA_WEIGHT = 0.1;
+		
+		private final double ruPerNano;
+		private final double capacity;
+		private double tokens;
+		private long refilledNanos;
+		private volatile double estimate;
+		
+		TokenBucket(double ruPerSecond, Duration burst, double initialCharge) {
+			this.ruPerNano = ruPerSecond / 1e9;
+			this.capacity = ruPerNano * Math.max(1, burst.toNanos());
+			this.tokens = capacity;
+			this.refilledNanos = System.nanoTime();
+			this.estimate = initialCharge;
+		}
+		
+		double getEstimate() {
+			return estimate;
+		}
+		
+		synchronized long reserve(long now, double charge) {
+			if(ruPerNano <= 0) {
+				return 0;
+			}
+			tokens = Math.min(capacity, tokens + (now - refilledNanos) * ruPerNano);
+			refilledNanos = now;
+			tokens -= charge;
+			return tokens >= 0 ? 0 : (long) (-tokens / ruPerNano);
+		}
+		
+		/*
+		 * Replaces the reserved estimate by the actual charge, successful
+		 * charges also move the estimate of the class
+		 */
+		synchronized void settle(double actual, double reserved, boolean learn) {
+			if(ruPerNano > 0) {
+				tokens = Math.min(capacity, tokens - (actual - reserved));
+			}
+			if(learn && actual > 0) {
+				estimate += EWMA_WEIGHT * (actual - estimate);
+			}
+		}
+	}
+}
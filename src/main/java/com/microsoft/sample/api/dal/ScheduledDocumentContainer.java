@@ -0,0 +1,107 @@
+package com.microsoft.sample.api.dal;
+
+import java.time.Instant;
+import java.util.List;
+
+import com.azure.cosmos.models.CosmosItemIdentity;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.microsoft.sample.api.dal.RequestScheduler.RequestClass;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * {@link DocumentContainer} whose requests are admitted by a
+ * {@link RequestScheduler}. Point operations, batches and readMany go to
+ * the delegate, which should not retry 429s itself as the scheduler does.
+ * Query pages are admitted but not retried by the scheduler, they and the
+ * change feed go to the unscheduled container, which keeps the SDK retries.
+ */
+public class ScheduledDocumentContainer implements DocumentContainer {
+	
+	private final DocumentContainer delegate;
+	private final DocumentContainer unscheduled;
+	private final RequestScheduler scheduler;
+	
+	public ScheduledDocumentContainer(DocumentContainer delegate, RequestScheduler scheduler) {
+		this(delegate, delegate, scheduler);
+	}
+	
+	public ScheduledDocumentContainer(DocumentContainer delegate, DocumentContainer unscheduled, RequestScheduler scheduler) {
+		this.delegate = delegate;
+		this.unscheduled = unscheduled;
+		this.scheduler = scheduler;
+	}
+	
+	public RequestScheduler getScheduler() {
+		return scheduler;
+	}
+	
+	@Override
+	public String getId() {
+		return delegate.getId();
+	}
+	
+	@Override
+	public Mono<String> getPartitionKeyPath() {
+		return delegate.getPartitionKeyPath();
+	}
+	
+	@Override
+	public Mono<DocumentResponse> create(JsonNode document) {
+		return scheduler.schedule(RequestClass.WRITE, () -> delegate.create(document), DocumentResponse::getRequestCharge);
+	}
+	
+	@Override
+	public Mono<DocumentResponse> upsert(JsonNode document, String ifMatchEtag) {
+		return scheduler.schedule(RequestClass.WRITE, () -> delegate.upsert(document, ifMatchEtag), DocumentResponse::getRequestCharge);
+	}
+	
+	@Override
+	public Mono<DocumentResponse> read(String id, String partitionKey) {
+		return scheduler.schedule(RequestClass.READ, () -> delegate.read(id, partitionKey), DocumentResponse::getRequestCharge);
+	}
+	
+	@Override
+	public Mono<DocumentResponse> delete(String id, String partitionKey) {
+		return scheduler.schedule(RequestClass.WRITE, () -> delegate.delete(id, partitionKey), DocumentResponse::getRequestCharge);
+	}
+	
+	@Override
+	public Mono<DocumentResponse> patch(String id, String partitionKey, PatchOperations operations, String condition,
+										String ifMatchEtag) {
+		return scheduler.schedule(RequestClass.WRITE, () -> delegate.patch(id, partitionKey, operations, condition, ifMatchEtag),
+								  DocumentResponse::getRequestCharge);
+	}
+	
+	@Override
+	public Mono<BatchResponse> executeBatch(TransactionalBatch batch) {
+		return scheduler.schedule(RequestClass.WRITE, () -> delegate.executeBatch(batch), BatchResponse::getRequestCharge);
+	}
+	
+	@Override
+	public Mono<FeedPage> readMany(List<CosmosItemIdentity> identities) {
+		return scheduler.schedule(RequestClass.READ, () -> delegate.readMany(identities), FeedPage::getRequestCharge);
+	}
+	
+	@Override
+	public Flux<FeedPage> query(String filters, QueryOptions options) {
+		return scheduler.scheduleMany(RequestClass.QUERY, () -> unscheduled.query(filters, options), FeedPage::getRequestCharge);
+	}
+	
+	@Override
+	public Mono<List<String>> getFeedRanges() {
+		return delegate.getFeedRanges();
+	}
+	
+	@Override
+	public boolean isWithin(String feedRange, String parentFeedRange) {
+		return delegate.isWithin(feedRange, parentFeedRange);
+	}
+	
+	@Override
+	public Mono<FeedPage> readChangeFeed(String feedRange, String continuation, Instant startTime, int maxItemCount,
+										 String throughputControlGroup) {
+		return unscheduled.readChangeFeed(feedRange, continuation, startTime, maxItemCount, throughputControlGroup);
+	}
+}
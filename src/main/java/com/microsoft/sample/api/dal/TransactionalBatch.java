@@ -0,0 +1,144 @@
+package com.microsoft.sample.api.dal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.azure.cosmos.models.CosmosBatch;
+import com.azure.cosmos.models.CosmosBatchItemRequestOptions;
+import com.azure.cosmos.models.CosmosBatchPatchItemRequestOptions;
+import com.azure.cosmos.models.PartitionKey;
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Operations on documents of one partition key, executed in one round trip
+ * and committed all or nothing. Writes may carry an etag precondition, a
+ * failing operation fails the batch and the others report 424.
+ */
+public class TransactionalBatch {
+	
+	// service limit per batch
+	public static final int MAX_OPERATIONS = 100;
+	
+	public enum Type {
+		CREATE,
+		UPSERT,
+		REPLACE,
+		READ,
+		DELETE,
+		PATCH
+	}
+	
+	private final String partitionKey;
+	private final List<BatchOperation> operations = new ArrayList<BatchOperation>();
+	
+	public TransactionalBatch(String partitionKey) {
+		this.partitionKey = partitionKey;
+	}
+	
+	public String getPartitionKey() {
+		return partitionKey;
+	}
+	
+	public List<BatchOperation> getOperations() {
+		return Collections.unmodifiableList(operations);
+	}
+	
+	public TransactionalBatch create(JsonNode document) {
+		return append(new BatchOperation(Type.CREATE, document.path("id").asText(), document, null, null));
+	}
+	
+	public TransactionalBatch upsert(JsonNode document, String ifMatchEtag) {
+		return append(new BatchOperation(Type.UPSERT, document.path("id").asText(), document, null, ifMatchEtag));
+	}
+	
+	public TransactionalBatch replace(JsonNode document, String ifMatchEtag) {
+		return append(new BatchOperation(Type.REPLACE, document.path("id").asText(), document, null, ifMatchEtag));
+	}
+	
+	public TransactionalBatch read(String id) {
+		return append(new BatchOperation(Type.READ, id, null, null, null));
+	}
+	
+	public TransactionalBatch delete(String id, String ifMatchEtag) {
+		return append(new BatchOperation(Type.DELETE, id, null, null, ifMatchEtag));
+	}
+	
+	public TransactionalBatch patch(String id, PatchOperations patch, String ifMatchEtag) {
+		return append(new BatchOperation(Type.PATCH, id, null, patch, ifMatchEtag));
+	}
+	
+	private TransactionalBatch append(BatchOperation operation) {
+		if(operations.size() == MAX_OPERATIONS) {
+			throw new IllegalStateException("A batch holds at most " + MAX_OPERATIONS + " operations");
+		}
+		operations.add(operation);
+		return this;
+	}
+	
+	CosmosBatch toSdk() {
+		CosmosBatch batch = CosmosBatch.createCosmosBatch(new PartitionKey(partitionKey));
+		for(BatchOperation operation : operations) {
+			CosmosBatchItemRequestOptions options = new CosmosBatchItemRequestOptions().setIfMatchETag(operation.ifMatchEtag);
+			switch(operation.type) {
+				case CREATE:
+					batch.createItemOperation(operation.document);
+					break;
+				case UPSERT:
+					batch.upsertItemOperation(operation.document, options);
+					break;
+				case REPLACE:
+					batch.replaceItemOperation(operation.id, operation.document, options);
+					break;
+				case READ:
+					batch.readItemOperation(operation.id);
+					break;
+				case DELETE:
+					batch.deleteItemOperation(operation.id, options);
+					break;
+				default:
+					batch.patchItemOperation(operation.id, operation.patch.toSdk(),
+											 new CosmosBatchPatchItemRequestOptions().setIfMatchETag(operation.ifMatchEtag));
+			}
+		}
+		return batch;
+	}
+	
+	public static final class BatchOperation {
+		private final Type type;
+		private final String id;
+		private final JsonNode document;
+		private final PatchOperations patch;
+		private final String ifMatchEtag;
+		
+		BatchOperation(Type type, String id, JsonNode document, PatchOperations patch, String ifMatchEtag) {
+			this.type = type;
+			this.id = id;
+			this.document = document;
+			this.patch = patch;
+			this.ifMatchEtag = ifMatchEtag;
+		}
+		
+		public Type getType() {
+			return type;
+		}
+		public String getId() {
+			return id;
+		}
+		/*
+		 * Null for reads, deletes and patches
+		 */
+		public JsonNode getDocument() {
+			return document;
+		}
+		/*
+		 * Null unless a patch
+		 */
+		public PatchOperations getPatch() {
+			return patch;
+		}
+		public String getIfMatchEtag() {
+			return ifMatchEtag;
+		}
+	}
+}
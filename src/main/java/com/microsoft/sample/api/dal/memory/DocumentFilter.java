@@ -0,0 +1,141 @@
+package com.microsoft.sample.api.dal.memory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Evaluates the JSON filters accepted by QueryBuilder against documents, with
+ * the same operators: $eq, $ne, $gt, $gte, $lt, $lte, $in and $startsWith.
+ * As in the service, a clause on a missing field never matches.
+ */
+final class DocumentFilter {
+	
+	static final DocumentFilter ALL = new DocumentFilter(new ArrayList<Clause>());
+	
+	private final List<Clause> clauses;
+	
+	private DocumentFilter(List<Clause> clauses) {
+		this.clauses = clauses;
+	}
+	
+	static DocumentFilter of(JsonNode filter) {
+		if(filter == null || filter.isNull() || filter.size() == 0) {
+			return ALL;
+		}
+		if(!filter.isObject()) {
+			throw new IllegalArgumentException("Filter must be a JSON object");
+		}
+		List<Clause> clauses = new ArrayList<Clause>(filter.size());
+		for(Iterator<Map.Entry<String, JsonNode>> fields = filter.fields(); fields.hasNext();) {
+			Map.Entry<String, JsonNode> field = fields.next();
+			String[] path = field.getKey().split("\\.");
+			JsonNode condition = field.getValue();
+			if(condition.isObject() && condition.size() > 0 && condition.fieldNames().next().startsWith("$")) {
+				for(Iterator<Map.Entry<String, JsonNode>> operators = condition.fields(); operators.hasNext();) {
+					Map.Entry<String, JsonNode> operator = operators.next();
+					clauses.add(new Clause(path, operator.getKey(), operator.getValue()));
+				}
+			}
+			else {
+				clauses.add(new Clause(path, "$eq", condition));
+			}
+		}
+		return new DocumentFilter(clauses);
+	}
+	
+	boolean matches(JsonNode document) {
+		for(int i = 0; i < clauses.size(); i++) {
+			if(!clauses.get(i).matches(document)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private static final class Clause {
+		private final String[] path;
+		private final String operator;
+		private final JsonNode value;
+		
+		Clause(String[] path, String operator, JsonNode value) {
+			switch(operator) {
+				case "$eq": case "$ne": case "$gt": case "$gte": case "$lt": case "$lte": case "$startsWith":
+					break;
+				case "$in":
+					if(!value.isArray() || value.size() == 0) {
+						throw new IllegalArgumentException("$in needs a non empty array");
+					}
+					break;
+				default:
+					throw new IllegalArgumentException("Unsupported operator " + operator);
+			}
+			this.path = path;
+			this.operator = operator;
+			this.value = value;
+		}
+		
+		boolean matches(JsonNode document) {
+			JsonNode field = document;
+			for(String part : path) {
+				field = field.path(part);
+			}
+			if(field.isMissingNode()) {
+				return false;
+			}
+			switch(operator) {
+				case "$eq":
+					return equal(field, value);
+				case "$ne":
+					return !equal(field, value);
+				case "$in":
+					for(JsonNode candidate : value) {
+						if(equal(field, candidate)) {
+							return true;
+						}
+					}
+					return false;
+				case "$startsWith":
+					return field.isTextual() && field.asText().startsWith(value.asText());
+				default:
+					Integer order = compare(field, value);
+					if(order == null) {
+						return false;
+					}
+					switch(operator) {
+						case "$gt":
+							return order > 0;
+						case "$gte":
+							return order >= 0;
+						case "$lt":
+							return order < 0;
+						default:
+							return order <= 0;
+					}
+			}
+		}
+		
+		private static boolean equal(JsonNode field, JsonNode value) {
+			if(field.isNumber() && value.isNumber()) {
+				return field.decimalValue().compareTo(value.decimalValue()) == 0;
+			}
+			return field.equals(value);
+		}
+		
+		/*
+		 * Null when the types cannot be ordered
+		 */
+		private static Integer compare(JsonNode field, JsonNode value) {
+			if(field.isNumber() && value.isNumber()) {
+				return field.decimalValue().compareTo(value.decimalValue());
+			}
+			if(field.isTextual() && value.isTextual()) {
+				return field.asText().compareTo(value.asText());
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,540 @@
+package com.microsoft.sample.api.dal.memory;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongFunction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.azure.cosmos.models.CosmosItemIdentity;
+import com.fasterxml.jackson.core.JsonPointer;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.microsoft.sample.api.dal.BatchResponse;
+import com.microsoft.sample.api.dal.ContainerException;
+import com.microsoft.sample.api.dal.DocumentContainer;
+import com.microsoft.sample.api.dal.DocumentResponse;
+import com.microsoft.sample.api.dal.FeedPage;
+import com.microsoft.sample.api.dal.PatchOperations;
+import com.microsoft.sample.api.dal.QueryOptions;
+import com.microsoft.sample.api.dal.TransactionalBatch;
+import com.microsoft.sample.api.helpers.ConfigurationHelper;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * In process stand-in for a container, for load tests and profiling without
+ * an account.
+ * 
+ * Documents are hashed by partition key over a fixed number of
+ * {@link InMemoryPartition}s, each with its own lsn sequence and change log
+ * that backs the change feed of its feed range and the queries. Writes are
+ * stamped with {@code _etag}, {@code _ts} and {@code _lsn} like the service.
+ * 
+ * Every request can be delayed by a fixed latency plus uniform jitter, and
+ * throttled with 429 either at random or once the per second RU budget is
+ * spent. Charges follow a flat model, readCharge per point read or page plus
+ * a tenth of it per returned document, writeCharge per write.
+ * 
+ * Documents are copied on the way in and out, like the service a caller
+ * only ever holds its own copy and cannot change what is stored.
+ */
+public class InMemoryContainer implements DocumentContainer {
+	
+	private static Logger LOGGER = LoggerFactory.getLogger(InMemoryContainer.class);
+	private static ConfigurationHelper CONFIG = new ConfigurationHelper();
+	private static ObjectMapper MAPPER = new ObjectMapper();
+	// shared per database/container so DALs and change feed consumers see the same data
+	private static ConcurrentHashMap<String, InMemoryContainer> CONTAINERS = new ConcurrentHashMap<String, InMemoryContainer>();
+	
+	private final String id;
+	private final String partitionKeyPath;
+	private final JsonPointer partitionKeyPointer;
+	private final InMemoryPartition[] partitions;
+	private final long latencyMicros;
+	private final long jitterMicros;
+	private final double throttleRate;
+	private final long milliRuPerSecond;
+	private final Duration retryAfter;
+	private final double readCharge;
+	private final double writeCharge;
+	
+	private final AtomicLong budgetSecond = new AtomicLong();
+	private final AtomicLong budgetUsed = new AtomicLong();
+	private final LongAdder throttled = new LongAdder();
+	
+	public InMemoryContainer(String id, String partitionKeyPath, int partitions, long latencyMicros, long jitterMicros,
+							 double throttleRate, double ruPerSecond, Duration retryAfter, double readCharge, double writeCharge) {
+		this.id = id;
+		this.partitionKeyPath = partitionKeyPath;
+		this.partitionKeyPointer = JsonPointer.compile(partitionKeyPath);
+		this.partitions = new InMemoryPartition[Math.max(1, partitions)];
+		for(int i = 0; i < this.partitions.length; i++) {
+			this.partitions[i] = new InMemoryPartition(i);
+		}
+		this.latencyMicros = Math.max(0, latencyMicros);
+		this.jitterMicros = Math.max(0, jitterMicros);
+		this.throttleRate = throttleRate;
+		this.milliRuPerSecond = (long) (ruPerSecond * 1000);
+		this.retryAfter = retryAfter;
+		this.readCharge = readCharge;
+		this.writeCharge = writeCharge;
+	}
+	
+	/*
+	 * container_engine=memory routes the DALs to in-memory containers
+	 */
+	public static boolean isEnabled() {
+		return "memory".equals(CONFIG.getProperty("container_engine", "cosmos"));
+	}
+	
+	public static InMemoryContainer forContainer(String databaseName, String containerName) {
+		return CONTAINERS.computeIfAbsent(databaseName + "/" + containerName, k -> {
+			LOGGER.info("Creating in-memory container " + k);
+			return fromConfig(CONFIG, containerName);
+		});
+	}
+	
+	/*
+	 * inmemory_partitions                   physical partitions / feed ranges (default 4)
+	 * inmemory_partition_key_path           default /id, inmemory_<container>_partition_key_path per container
+	 * inmemory_latency_micros               added to every request (default 0)
+	 * inmemory_latency_jitter_micros        uniform extra latency (default 0)
+	 * inmemory_throttle_rate                fraction of requests failed with 429 (default 0)
+	 * inmemory_ru_per_second                RU budget per second, 0 for unlimited
+	 * inmemory_retry_after_ms               retry after of random 429s (default 100)
+	 * inmemory_read_ru / inmemory_write_ru  charge model (default 1 / 5.5)
+	 */
+	public static InMemoryContainer fromConfig(ConfigurationHelper helper, String id) {
+		return new InMemoryContainer(id,
+									 helper.getProperty("inmemory_" + id + "_partition_key_path",
+											 			helper.getProperty("inmemory_partition_key_path", "/id")),
+									 helper.getIntProperty("inmemory_partitions", 4),
+									 helper.getLongProperty("inmemory_latency_micros", 0),
+									 helper.getLongProperty("inmemory_latency_jitter_micros", 0),
+									 helper.getDoubleProperty("inmemory_throttle_rate", 0),
+									 helper.getDoubleProperty("inmemory_ru_per_second", 0),
+									 Duration.ofMillis(helper.getLongProperty("inmemory_retry_after_ms", 100)),
+									 helper.getDoubleProperty("inmemory_read_ru", 1),
+									 helper.getDoubleProperty("inmemory_write_ru", 5.5));
+	}
+	
+	@Override
+	public String getId() {
+		return id;
+	}
+	
+	@Override
+	public Mono<String> getPartitionKeyPath() {
+		return Mono.just(partitionKeyPath);
+	}
+	
+	public long getDocumentCount() {
+		long count = 0;
+		for(InMemoryPartition partition : partitions) {
+			count += partition.getDocumentCount();
+		}
+		return count;
+	}
+	
+	/*
+	 * Change log entries kept, superseded entries are dropped in batches
+	 */
+	public long getChangeLogSize() {
+		long size = 0;
+		for(InMemoryPartition partition : partitions) {
+			size += partition.getLogSize();
+		}
+		return size;
+	}
+	
+	public long getThrottledCount() {
+		return throttled.sum();
+	}
+	
+	@Override
+	public Mono<DocumentResponse> create(JsonNode document) {
+		return write(document, true, null, 201);
+	}
+	
+	@Override
+	public Mono<DocumentResponse> upsert(JsonNode document, String ifMatchEtag) {
+		return write(document, false, ifMatchEtag, 200);
+	}
+	
+	private Mono<DocumentResponse> write(JsonNode document, boolean create, String ifMatchEtag, int statusCode) {
+		return execute(writeCharge, startNanos -> {
+			if(!document.isObject() || !document.path("id").isTextual()) {
+				throw new ContainerException(400, "Document needs a string id");
+			}
+			String partitionKey = partitionKeyOf(document);
+			ObjectNode copy = ((ObjectNode) document).deepCopy();
+			return response(partitionFor(partitionKey).write(key(partitionKey, document.path("id").asText()), copy, create, ifMatchEtag),
+							statusCode, writeCharge, startNanos);
+		});
+	}
+	
+	@Override
+	public Mono<DocumentResponse> read(String id, String partitionKey) {
+		return execute(readCharge, startNanos -> {
+			ObjectNode document = partitionFor(partitionKey).get(key(partitionKey, id));
+			if(document == null) {
+				throw new ContainerException(404, "Entity with the specified id does not exist in the system");
+			}
+			return response(document, 200, readCharge, startNanos);
+		});
+	}
+	
+	@Override
+	public Mono<DocumentResponse> delete(String id, String partitionKey) {
+		return execute(writeCharge, startNanos -> {
+			partitionFor(partitionKey).remove(key(partitionKey, id), null);
+			return response(null, 204, writeCharge, startNanos);
+		});
+	}
+	
+	/*
+	 * Patched on a copy, the stored version is only replaced when every
+	 * operation applies
+	 */
+	@Override
+	public Mono<DocumentResponse> patch(String id, String partitionKey, PatchOperations operations, String condition,
+										String ifMatchEtag) {
+		DocumentFilter filter;
+		try {
+			filter = condition == null ? null : DocumentFilter.of(MAPPER.readTree(condition));
+		}
+		catch(JsonProcessingException exp) {
+			return Mono.error(new IllegalArgumentException("Invalid condition: " + exp.getOriginalMessage(), exp));
+		}
+		return execute(writeCharge, startNanos -> {
+			InMemoryPartition partition = partitionFor(partitionKey);
+			String key = key(partitionKey, id);
+			return partition.atomically(() -> {
+				ObjectNode current = partition.get(key);
+				if(current == null) {
+					throw new ContainerException(404, "Entity with the specified id does not exist in the system");
+				}
+				InMemoryPartition.checkEtag(current, ifMatchEtag);
+				if(filter != null && !filter.matches(current)) {
+					throw new ContainerException(412, "One of the specified pre-condition is not met");
+				}
+				ObjectNode patched = current.deepCopy();
+				operations.applyTo(patched);
+				checkIdentity(patched, id, partitionKey);
+				return response(partition.write(key, patched, false, null), 200, writeCharge, startNanos);
+			});
+		});
+	}
+	
+	/*
+	 * Operations are validated against a staged view of the partition and
+	 * written only when all of them succeed, each write gets its own lsn
+	 */
+	@Override
+	public Mono<BatchResponse> executeBatch(TransactionalBatch batch) {
+		List<TransactionalBatch.BatchOperation> operations = batch.getOperations();
+		double charge = 0;
+		for(TransactionalBatch.BatchOperation operation : operations) {
+			charge += operation.getType() == TransactionalBatch.Type.READ ? readCharge : writeCharge;
+		}
+		double requestCharge = charge;
+		String partitionKey = batch.getPartitionKey();
+		return execute(requestCharge, startNanos -> {
+			InMemoryPartition partition = partitionFor(partitionKey);
+			return partition.atomically(() -> {
+				Map<String, ObjectNode> staged = new LinkedHashMap<String, ObjectNode>();
+				List<BatchResponse.Result> results = new ArrayList<BatchResponse.Result>(operations.size());
+				for(int i = 0; i < operations.size(); i++) {
+					try {
+						results.add(stage(partition, staged, partitionKey, operations.get(i)));
+					}
+					catch(ContainerException exp) {
+						List<BatchResponse.Result> failed = new ArrayList<BatchResponse.Result>(operations.size());
+						for(int j = 0; j < operations.size(); j++) {
+							failed.add(new BatchResponse.Result(j == i ? exp.getStatusCode() : 424, null, null, 0));
+						}
+						return new BatchResponse(exp.getStatusCode(), exp.getMessage(), requestCharge,
+												 (System.nanoTime() - startNanos) / 1000, failed, null);
+					}
+				}
+				for(Map.Entry<String, ObjectNode> write : staged.entrySet()) {
+					if(write.getValue() == null) {
+						partition.remove(write.getKey(), null);
+					}
+					else {
+						partition.write(write.getKey(), write.getValue(), false, null);
+					}
+				}
+				// staged documents were stamped in place by the writes
+				List<BatchResponse.Result> committed = new ArrayList<BatchResponse.Result>(results.size());
+				for(BatchResponse.Result result : results) {
+					JsonNode item = result.getItem();
+					committed.add(new BatchResponse.Result(result.getStatusCode(), item != null ? item.deepCopy() : null,
+														   item != null ? item.path("_etag").asText() : null,
+														   result.getRequestCharge()));
+				}
+				return new BatchResponse(200, null, requestCharge, (System.nanoTime() - startNanos) / 1000, committed, null);
+			});
+		});
+	}
+	
+	private BatchResponse.Result stage(InMemoryPartition partition, Map<String, ObjectNode> staged, String partitionKey,
+									   TransactionalBatch.BatchOperation operation) {
+		String key = key(partitionKey, operation.getId());
+		ObjectNode current = staged.containsKey(key) ? staged.get(key) : partition.get(key);
+		TransactionalBatch.Type type = operation.getType();
+		if(current == null && type != TransactionalBatch.Type.CREATE && type != TransactionalBatch.Type.UPSERT) {
+			throw new ContainerException(404, "Entity with the specified id does not exist in the system");
+		}
+		if(current != null && type == TransactionalBatch.Type.CREATE) {
+			throw new ContainerException(409, "Entity with the specified id already exists in the system");
+		}
+		InMemoryPartition.checkEtag(current, operation.getIfMatchEtag());
+		ObjectNode document;
+		switch(type) {
+			case READ:
+				return new BatchResponse.Result(200, current, current.path("_etag").asText(), readCharge);
+			case DELETE:
+				staged.put(key, null);
+				return new BatchResponse.Result(204, null, null, writeCharge);
+			case PATCH:
+				document = current.deepCopy();
+				operation.getPatch().applyTo(document);
+				break;
+			default:
+				if(!operation.getDocument().isObject() || !operation.getDocument().path("id").isTextual()) {
+					throw new ContainerException(400, "Document needs a string id");
+				}
+				document = ((ObjectNode) operation.getDocument()).deepCopy();
+		}
+		checkIdentity(document, operation.getId(), partitionKey);
+		staged.put(key, document);
+		return new BatchResponse.Result(current == null ? 201 : 200, document, null, writeCharge);
+	}
+	
+	/*
+	 * Writes cannot move a document to another id or partition key
+	 */
+	private void checkIdentity(ObjectNode document, String id, String partitionKey) {
+		if(!id.equals(document.path("id").asText()) || !partitionKey.equals(partitionKeyOf(document))) {
+			throw new ContainerException(400, "The id and partition key of the document cannot change");
+		}
+	}
+	
+	@Override
+	public Mono<FeedPage> readMany(List<CosmosItemIdentity> identities) {
+		return execute(readCharge, startNanos -> {
+			List<JsonNode> results = new ArrayList<JsonNode>(identities.size());
+			for(CosmosItemIdentity identity : identities) {
+				String partitionKey = partitionKeyOf(identity);
+				ObjectNode document = partitionFor(partitionKey).get(key(partitionKey, identity.getId()));
+				if(document != null) {
+					results.add(document);
+				}
+			}
+			return page(results, null, startNanos);
+		});
+	}
+	
+	/*
+	 * Scans the change logs partition by partition, the continuation is
+	 * <partition>:<lsn>. Pages may hold fewer documents than requested
+	 * before the query is drained.
+	 */
+	@Override
+	public Flux<FeedPage> query(String filters, QueryOptions options) {
+		DocumentFilter filter;
+		try {
+			filter = filters == null || filters.trim().isEmpty() ? DocumentFilter.ALL : DocumentFilter.of(MAPPER.readTree(filters));
+		}
+		catch(JsonProcessingException exp) {
+			return Flux.error(new IllegalArgumentException("Invalid filter: " + exp.getOriginalMessage(), exp));
+		}
+		int maxItemCount = options.getMaxItemCount() > 0 ? options.getMaxItemCount() : 1000;
+		return Flux.defer(() -> {
+			String[] continuation = { options.getContinuationToken() };
+			return Mono.defer(() -> queryPage(filter, continuation[0], maxItemCount))
+					   .doOnNext(page -> continuation[0] = page.getContinuationToken())
+					   .repeat(() -> continuation[0] != null);
+		});
+	}
+	
+	private Mono<FeedPage> queryPage(DocumentFilter filter, String continuation, int maxItemCount) {
+		return execute(readCharge, startNanos -> {
+			int partition = 0;
+			long lsn = 1;
+			if(continuation != null) {
+				int separator = continuation.indexOf(':');
+				partition = Integer.parseInt(continuation.substring(0, separator));
+				lsn = Long.parseLong(continuation.substring(separator + 1));
+			}
+			List<JsonNode> results = new ArrayList<JsonNode>();
+			while(partition < partitions.length) {
+				InMemoryPartition.Changes changes = partitions[partition].scan(lsn, maxItemCount - results.size(), filter);
+				results.addAll(changes.documents);
+				lsn = changes.nextLsn;
+				if(!changes.caughtUp) {
+					break;
+				}
+				partition++;
+				lsn = 1;
+			}
+			return page(results, partition < partitions.length ? partition + ":" + lsn : null, startNanos);
+		});
+	}
+	
+	/*
+	 * One feed range per partition, identified by its index
+	 */
+	@Override
+	public Mono<List<String>> getFeedRanges() {
+		List<String> ranges = new ArrayList<String>(partitions.length);
+		for(int i = 0; i < partitions.length; i++) {
+			ranges.add(String.valueOf(i));
+		}
+		return Mono.just(Collections.unmodifiableList(ranges));
+	}
+	
+	/*
+	 * Partitions are fixed, ranges never split
+	 */
+	@Override
+	public boolean isWithin(String feedRange, String parentFeedRange) {
+		return feedRange.equals(parentFeedRange);
+	}
+	
+	/*
+	 * The continuation is the next lsn of the range
+	 */
+	@Override
+	public Mono<FeedPage> readChangeFeed(String feedRange, String continuation, Instant startTime, int maxItemCount,
+										 String throughputControlGroup) {
+		return execute(readCharge, startNanos -> {
+			InMemoryPartition partition = partitions[Integer.parseInt(feedRange)];
+			long fromLsn;
+			if(continuation != null) {
+				fromLsn = Long.parseLong(continuation);
+			}
+			else if(startTime != null) {
+				fromLsn = partition.firstLsnAt(startTime.getEpochSecond());
+			}
+			else {
+				fromLsn = 1;
+			}
+			// an empty page means caught up, scans of superseded entries only are continued
+			InMemoryPartition.Changes changes = partition.scan(fromLsn, Math.max(1, maxItemCount), DocumentFilter.ALL);
+			while(changes.documents.isEmpty() && !changes.caughtUp) {
+				changes = partition.scan(changes.nextLsn, Math.max(1, maxItemCount), DocumentFilter.ALL);
+			}
+			return new FeedPage(copies(changes.documents), String.valueOf(changes.nextLsn), readCharge + changes.documents.size() * readCharge / 10,
+								(System.nanoTime() - startNanos) / 1000, null, changes.headLsn);
+		});
+	}
+	
+	/*
+	 * The operation gets the start time of the request to report its latency
+	 */
+	private <T> Mono<T> execute(double requestCharge, LongFunction<T> operation) {
+		return Mono.defer(() -> {
+			long startNanos = System.nanoTime();
+			Mono<T> result = Mono.fromSupplier(() -> {
+				admit(requestCharge);
+				return operation.apply(startNanos);
+			});
+			long delayMicros = latencyMicros + (jitterMicros > 0 ? ThreadLocalRandom.current().nextLong(jitterMicros + 1) : 0);
+			return delayMicros > 0 ? Mono.delay(Duration.ofNanos(delayMicros * 1000)).then(result) : result;
+		});
+	}
+	
+	/*
+	 * Injected 429s, random first, then the per second budget
+	 */
+	private void admit(double requestCharge) {
+		if(throttleRate > 0 && ThreadLocalRandom.current().nextDouble() < throttleRate) {
+			throttled.increment();
+			throw new ContainerException(429, "Request rate is large", retryAfter, 0);
+		}
+		if(milliRuPerSecond <= 0) {
+			return;
+		}
+		long nowMillis = System.currentTimeMillis();
+		long second = nowMillis / 1000;
+		long current = budgetSecond.get();
+		if(current != second && budgetSecond.compareAndSet(current, second)) {
+			budgetUsed.set(0);
+		}
+		long charge = (long) (requestCharge * 1000);
+		if(budgetUsed.addAndGet(charge) > milliRuPerSecond) {
+			budgetUsed.addAndGet(-charge);
+			throttled.increment();
+			throw new ContainerException(429, "Request rate is large", Duration.ofMillis(1000 - nowMillis % 1000), 0);
+		}
+	}
+	
+	private static DocumentResponse response(JsonNode item, int statusCode, double requestCharge, long startNanos) {
+		return new DocumentResponse(item != null ? item.deepCopy() : null, statusCode, requestCharge,
+									(System.nanoTime() - startNanos) / 1000, null);
+	}
+	
+	private FeedPage page(List<JsonNode> results, String continuation, long startNanos) {
+		return new FeedPage(copies(results), continuation, readCharge + results.size() * readCharge / 10,
+							(System.nanoTime() - startNanos) / 1000, null);
+	}
+	
+	private static List<JsonNode> copies(List<JsonNode> documents) {
+		List<JsonNode> copies = new ArrayList<JsonNode>(documents.size());
+		for(JsonNode document : documents) {
+			copies.add(document.deepCopy());
+		}
+		return copies;
+	}
+	
+	private String partitionKeyOf(JsonNode document) {
+		return partitionKeyValue(document.at(partitionKeyPointer));
+	}
+	
+	/*
+	 * PartitionKey only exposes its JSON form, e.g. ["value"]
+	 */
+	private static String partitionKeyOf(CosmosItemIdentity identity) {
+		try {
+			return partitionKeyValue(MAPPER.readTree(identity.getPartitionKey().toString()).path(0));
+		}
+		catch(JsonProcessingException exp) {
+			throw new ContainerException(400, "Invalid partition key " + identity.getPartitionKey());
+		}
+	}
+	
+	/*
+	 * Numbers are keyed by their double value as in PartitionKey
+	 */
+	private static String partitionKeyValue(JsonNode value) {
+		if(value.isMissingNode() || value.isNull()) {
+			return "";
+		}
+		return value.isNumber() ? String.valueOf(value.doubleValue()) : value.asText();
+	}
+	
+	private InMemoryPartition partitionFor(String partitionKey) {
+		int hash = partitionKey.hashCode() * 0x9E3779B9;
+		return partitions[((hash ^ (hash >>> 16)) & 0x7fffffff) % partitions.length];
+	}
+	
+	private static String key(String partitionKey, String id) {
+		return partitionKey + '\u0000' + id;
+	}
+}
@@ -0,0 +1,198 @@
+package com.microsoft.sample.api.dal.memory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.microsoft.sample.api.dal.ContainerException;
+
+/**
+ * One physical partition of an {@link InMemoryContainer}.
+ * 
+ * Writes are serialized per partition and stamped with the next log sequence
+ * number, the change log holds the lsn, key and timestamp of every write in
+ * lsn order. Readers skip entries whose document was since rewritten or
+ * deleted, which gives the latest version change feed of the service. Once
+ * such superseded entries make up half of the log they are dropped, so the
+ * log stays proportional to the live documents under long running writes.
+ * Point reads go to the document map without taking the lock.
+ */
+final class InMemoryPartition {
+	
+	// entries examined per scan, bounds the time a sparse filter holds the lock
+	static final int MAX_SCAN = 10000;
+	
+	// log entries not compacted below this size
+	static final int MIN_COMPACT_SIZE = 1024;
+	
+	private final int index;
+	private final ConcurrentHashMap<String, ObjectNode> documents = new ConcurrentHashMap<String, ObjectNode>();
+	private long[] lsns = new long[1024];
+	private String[] keys = new String[1024];
+	private long[] timestamps = new long[1024];
+	private int size;
+	private long lastLsn;
+	private int superseded;
+	
+	InMemoryPartition(int index) {
+		this.index = index;
+	}
+	
+	ObjectNode get(String key) {
+		return documents.get(key);
+	}
+	
+	int getDocumentCount() {
+		return documents.size();
+	}
+	
+	synchronized int getLogSize() {
+		return size;
+	}
+	
+	/*
+	 * Stamps and stores the document, create fails with 409 on an existing
+	 * key, ifMatchEtag (may be null) with 412 on another version
+	 */
+	synchronized ObjectNode write(String key, ObjectNode document, boolean create, String ifMatchEtag) {
+		ObjectNode current = documents.get(key);
+		if(create && current != null) {
+			throw new ContainerException(409, "Entity with the specified id already exists in the system");
+		}
+		checkEtag(current, ifMatchEtag);
+		long lsn = ++lastLsn;
+		long timestamp = System.currentTimeMillis() / 1000;
+		if(size > 0 && timestamps[size - 1] > timestamp) {
+			timestamp = timestamps[size - 1];
+		}
+		document.put("_etag", "\"" + Integer.toHexString(index) + "-" + Long.toHexString(lsn) + "\"");
+		document.put("_ts", timestamp);
+		document.put("_lsn", lsn);
+		append(lsn, key, timestamp);
+		documents.put(key, document);
+		if(current != null) {
+			supersede();
+		}
+		return document;
+	}
+	
+	synchronized ObjectNode remove(String key, String ifMatchEtag) {
+		ObjectNode current = documents.get(key);
+		if(current == null) {
+			throw new ContainerException(404, "Entity with the specified id does not exist in the system");
+		}
+		checkEtag(current, ifMatchEtag);
+		documents.remove(key);
+		supersede();
+		return current;
+	}
+	
+	/*
+	 * First lsn written at or after the epoch second
+	 */
+	synchronized long firstLsnAt(long epochSecond) {
+		int low = 0;
+		int high = size;
+		while(low < high) {
+			int mid = (low + high) >>> 1;
+			if(timestamps[mid] < epochSecond) {
+				low = mid + 1;
+			}
+			else {
+				high = mid;
+			}
+		}
+		return low < size ? lsns[low] : lastLsn + 1;
+	}
+	
+	/*
+	 * Current documents last written in [fromLsn, ...) in lsn order, at most
+	 * MAX_SCAN entries are examined
+	 */
+	synchronized Changes scan(long fromLsn, int maxItems, DocumentFilter filter) {
+		List<JsonNode> results = new ArrayList<JsonNode>(Math.min(maxItems, 256));
+		int entry = Arrays.binarySearch(lsns, 0, size, Math.max(1, fromLsn));
+		entry = entry < 0 ? -entry - 1 : entry;
+		int scanEnd = (int) Math.min(size, (long) entry + MAX_SCAN);
+		while(entry < scanEnd && results.size() < maxItems) {
+			ObjectNode document = documents.get(keys[entry]);
+			if(document != null && document.path("_lsn").asLong() == lsns[entry] && filter.matches(document)) {
+				results.add(document);
+			}
+			entry++;
+		}
+		long nextLsn = entry < size ? lsns[entry] : lastLsn + 1;
+		return new Changes(results, nextLsn, entry == size, lastLsn);
+	}
+	
+	/*
+	 * Runs several reads and writes as one unit, other writers and scans
+	 * wait for it while point reads may see the writes as they are applied
+	 */
+	synchronized <T> T atomically(Supplier<T> operation) {
+		return operation.get();
+	}
+	
+	static void checkEtag(ObjectNode current, String ifMatchEtag) {
+		if(ifMatchEtag != null && (current == null || !ifMatchEtag.equals(current.path("_etag").asText()))) {
+			throw new ContainerException(412, "One of the specified pre-condition is not met");
+		}
+	}
+	
+	private void append(long lsn, String key, long timestamp) {
+		if(size == keys.length) {
+			lsns = Arrays.copyOf(lsns, size * 2);
+			keys = Arrays.copyOf(keys, size * 2);
+			timestamps = Arrays.copyOf(timestamps, size * 2);
+		}
+		lsns[size] = lsn;
+		keys[size] = key;
+		timestamps[size] = timestamp;
+		size++;
+	}
+	
+	private void supersede() {
+		if(++superseded > size / 2 && size >= MIN_COMPACT_SIZE) {
+			compact();
+		}
+	}
+	
+	/*
+	 * Drops the entries whose document was rewritten or deleted since, the
+	 * lsns of the remaining entries and the continuations pointing at them
+	 * are unchanged
+	 */
+	private void compact() {
+		int kept = 0;
+		for(int entry = 0; entry < size; entry++) {
+			ObjectNode document = documents.get(keys[entry]);
+			if(document != null && document.path("_lsn").asLong() == lsns[entry]) {
+				lsns[kept] = lsns[entry];
+				keys[kept] = keys[entry];
+				timestamps[kept] = timestamps[entry];
+				kept++;
+			}
+		}
+		Arrays.fill(keys, kept, size, null);
+		size = kept;
+		superseded = 0;
+	}
+	
+	static final class Changes {
+		final List<JsonNode> documents;
+		final long nextLsn;
+		final boolean caughtUp;
+		final long headLsn;
+		
+		Changes(List<JsonNode> documents, long nextLsn, boolean caughtUp, long headLsn) {
+			this.documents = documents;
+			this.nextLsn = nextLsn;
+			this.caughtUp = caughtUp;
+			this.headLsn = headLsn;
+		}
+	}
+}
@@ -33,4 +33,55 @@ public class ConfigurationHelper {
         return prop.getProperty(propertyName);
 
     }
+
+    /*
+     * Typed accessors for optional settings, the default is used when
+     * the property is missing or cannot be parsed
+     */
+    public String getProperty(String propertyName, String defaultValue) {
+        try {
+            String value = getProperty(propertyName);
+            if (value != null && !value.trim().isEmpty()) {
+                return value.trim();
+            }
+        } catch (Exception exp) {
+            LOGGER.warn("Unable to read {}: {}", propertyName, exp.getMessage());
+        }
+        return defaultValue;
+    }
+
+    public int getIntProperty(String propertyName, int defaultValue) {
+        String value = getProperty(propertyName, null);
+        try {
+            return value == null ? defaultValue : Integer.parseInt(value);
+        } catch (NumberFormatException exp) {
+            LOGGER.warn("Invalid value for {}: {}", propertyName, value);
+            return defaultValue;
+        }
+    }
+
+    public long getLongProperty(String propertyName, long defaultValue) {
+        String value = getProperty(propertyName, null);
+        try {
+            return value == null ? defaultValue : Long.parseLong(value);
+        } catch (NumberFormatException exp) {
+            LOGGER.warn("Invalid value for {}: {}", propertyName, value);
+            return defaultValue;
+        }
+    }
+
+    public double getDoubleProperty(String propertyName, double defaultValue) {
+        String value = getProperty(propertyName, null);
+        try {
+            return value == null ? defaultValue : Double.parseDouble(value);
+        } catch (NumberFormatException exp) {
+            LOGGER.warn("Invalid value for {}: {}", propertyName, value);
+            return defaultValue;
+        }
+    }
+
+    public boolean getBooleanProperty(String propertyName, boolean defaultValue) {
+        String value = getProperty(propertyName, null);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
 }
\ No newline at end of file
@@ -1,7 +1,10 @@
 package com.microsoft.sample.api.helpers;
 
+import com.azure.cosmos.ConsistencyLevel;
+import com.azure.cosmos.CosmosClientBuilder;
 import com.azure.cosmos.DirectConnectionConfig;
 import com.azure.cosmos.GatewayConnectionConfig;
+import com.azure.cosmos.ThrottlingRetryOptions;
 
 import ch.qos.logback.core.util.Duration;
 
@@ -29,5 +32,54 @@ public class ConnectionHelper {
 		GatewayConnectionConfig config = GatewayConnectionConfig.getDefaultConfig();
 		return config;
 	}
+	
+	/*
+	 * Direct Mode Connection Mode Client unless connection_mode=gateway
+	 * Session consistency is used, adjust the same accordingly
+	 */
+	public static CosmosClientBuilder getClientBuilder(String host, String key) {
+		return getClientBuilder(host, key, getMaxThrottleRetries());
+	}
+	
+	/*
+	 * maxThrottleRetries -1 keeps the SDK default
+	 */
+	public static CosmosClientBuilder getClientBuilder(String host, String key, int maxThrottleRetries) {
+		CosmosClientBuilder builder = new CosmosClientBuilder()
+				.endpoint(host)
+				.key(key)
+				.consistencyLevel(ConsistencyLevel.SESSION)
+				.userAgentSuffix(GenericHelper.getCurrentComputeIdentifier());
+		if(isGatewayMode()) {
+			builder.gatewayMode(getGatewayConfig());
+		}
+		else {
+			builder.directMode(getDirectModeConfig());
+		}
+		if(maxThrottleRetries >= 0) {
+			builder.throttlingRetryOptions(new ThrottlingRetryOptions().setMaxRetryAttemptsOnThrottledRequests(maxThrottleRetries));
+		}
+		return builder;
+	}
+	
+	/*
+	 * Settings that make two clients for the same account incompatible
+	 */
+	static String getConnectionSettingsKey() {
+		return (isGatewayMode() ? "gateway" : "direct") + "/" + ConsistencyLevel.SESSION + "/" + getMaxThrottleRetries();
+	}
+	
+	/*
+	 * SDK retries of 429s on the shared clients, -1 keeps the SDK default.
+	 * Requests admitted by the scheduler run on a client of their own without
+	 * SDK retries, see CosmosClientRegistry.getScheduledAsyncClient.
+	 */
+	private static int getMaxThrottleRetries() {
+		return new ConfigurationHelper().getIntProperty("sdk_max_throttle_retries", -1);
+	}
+	
+	private static boolean isGatewayMode() {
+		return "gateway".equalsIgnoreCase(new ConfigurationHelper().getProperty("connection_mode", "direct"));
+	}
 
 }
@@ -0,0 +1,86 @@
+package com.microsoft.sample.api.helpers;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.azure.cosmos.CosmosAsyncClient;
+
+/**
+ * Shares Cosmos clients between DALs and change feed processors.
+ * 
+ * Clients are keyed by endpoint, a hash of the credential and the connection
+ * settings, so containers on the same account reuse one client with its
+ * connection pools and address/partition caches. Workloads under throughput
+ * control can ask for a client of their own, requests admitted by the
+ * request scheduler run on one without SDK throttle retries.
+ */
+public class CosmosClientRegistry {
+	
+	private static final Logger LOGGER = LoggerFactory.getLogger(CosmosClientRegistry.class);
+	
+	private static final ConcurrentHashMap<String, CosmosAsyncClient> ASYNC_CLIENTS = new ConcurrentHashMap<String, CosmosAsyncClient>();
+	
+	public static CosmosAsyncClient getAsyncClient(String host, String key) {
+		return getAsyncClient(host, key, null);
+	}
+	
+	/*
+	 * Separate client per workload, null for the shared client
+	 */
+	public static CosmosAsyncClient getAsyncClient(String host, String key, String workload) {
+		String registryKey = registryKey(host, key) + (workload == null ? "" : "|" + workload);
+		return ASYNC_CLIENTS.computeIfAbsent(registryKey, k -> {
+			LOGGER.info("Creating async cosmos client for " + host + (workload == null ? "" : " workload " + workload));
+			return ConnectionHelper.getClientBuilder(host, key)
+								   .contentResponseOnWriteEnabled(true)
+								   .buildAsyncClient();
+		});
+	}
+	
+	/*
+	 * Client whose 429s surface at once, the scheduler retries them after
+	 * the pause it shares between callers. Everything the scheduler does not
+	 * retry, queries, the change feed, leases and checkpoints, stays on the
+	 * shared client with its SDK retries.
+	 */
+	public static CosmosAsyncClient getScheduledAsyncClient(String host, String key) {
+		return ASYNC_CLIENTS.computeIfAbsent(registryKey(host, key) + "|scheduled", k -> {
+			LOGGER.info("Creating async cosmos client without throttle retries for " + host);
+			return ConnectionHelper.getClientBuilder(host, key, 0)
+								   .contentResponseOnWriteEnabled(true)
+								   .buildAsyncClient();
+		});
+	}
+	
+	public static int size() {
+		return ASYNC_CLIENTS.size();
+	}
+	
+	public static void closeAll() {
+		ASYNC_CLIENTS.values().forEach(CosmosAsyncClient::close);
+		ASYNC_CLIENTS.clear();
+	}
+	
+	private static String registryKey(String host, String key) {
+		return host + "|" + sha256(key) + "|" + ConnectionHelper.getConnectionSettingsKey();
+	}
+	
+	private static String sha256(String value) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(String.valueOf(value).getBytes(StandardCharsets.UTF_8));
+			StringBuilder sb = new StringBuilder(digest.length * 2);
+			for(byte b : digest) {
+				sb.append(String.format("%02x", b));
+			}
+			return sb.toString();
+		}
+		catch(NoSuchAlgorithmException exp) {
+			throw new IllegalStateException(exp);
+		}
+	}
+}
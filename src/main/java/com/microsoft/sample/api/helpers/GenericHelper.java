@@ -1,27 +1,28 @@
 package com.microsoft.sample.api.helpers;
 
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
 
-import org.apache.commons.text.StringEscapeUtils;
 import org.slf4j.Logger;
 
 import com.azure.cosmos.CosmosException;
 import com.azure.cosmos.models.CosmosItemResponse;
 import com.azure.cosmos.models.FeedResponse;
-import com.azure.cosmos.models.SqlParameter;
+import com.azure.cosmos.models.PartitionKey;
 import com.azure.cosmos.models.SqlQuerySpec;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.microsoft.sample.api.dal.ContainerException;
+import com.microsoft.sample.api.metrics.CosmosMetrics;
+import com.microsoft.sample.api.metrics.OperationType;
 
 
 public class GenericHelper {
 	
+	private static final Map<Integer, JsonNode> ERROR_NODES = preallocateErrorNodes();
+	
 	private static String currentComputeIdentifier;
 	public static String getCurrentComputeIdentifier() {
 		if(currentComputeIdentifier == null) {
@@ -54,70 +55,96 @@ public class GenericHelper {
 		logger.info("Sub Status Code: " + exceptionResponse.getSubStatusCode());
 		logger.info("Retry After: " + exceptionResponse.getRetryAfterDuration());
 	}
+	/*
+	 * Partition key value of a document for a container partition key path
+	 * such as "/pk", documents without the property map to PartitionKey.NONE
+	 */
+	public static PartitionKey getPartitionKey(JsonNode document, String partitionKeyPath) {
+		return toPartitionKey(document.at(partitionKeyPath));
+	}
+	
+	/*
+	 * Partition key of a value already resolved from its document
+	 */
+	public static PartitionKey toPartitionKey(JsonNode value) {
+		if(value.isMissingNode()) {
+			return PartitionKey.NONE;
+		}
+		if(value.isNull()) {
+			return new PartitionKey(null);
+		}
+		if(value.isBoolean()) {
+			return new PartitionKey(value.booleanValue());
+		}
+		if(value.isNumber()) {
+			return new PartitionKey(value.doubleValue());
+		}
+		return new PartitionKey(value.asText());
+	}
+	/*
+	 * Errors that arrive in storms map to shared nodes, callers must not
+	 * modify the returned node
+	 */
 	public static JsonNode getErrorJson(Object error, int statusCode) {
-		String strError = "";
-		ObjectMapper objectMapper = new ObjectMapper();
-		JsonNode node = null;
-		try {
-			if(error instanceof Throwable) {
-				Throwable t = (Throwable)error;
-				strError = StringEscapeUtils.escapeJava(t.getMessage());
-			}
-			else {
-				Exception e = (Exception)error;
-				strError = StringEscapeUtils.escapeJava(e.getMessage());
-			}
-			String errorJson = "{\"status\":" + statusCode + ", \"message\":\"" + strError + "\"}";
-			node = objectMapper.readTree(errorJson);
+		JsonNode preallocated = ERROR_NODES.get(statusCode);
+		if(preallocated != null) {
+			return preallocated;
+		}
+		ObjectNode node = JsonNodeFactory.instance.objectNode();
+		node.put("status", statusCode);
+		node.put("message", error instanceof Throwable ? ((Throwable) error).getMessage() : String.valueOf(error));
+		return node;
+	}
+	
+	/*
+	 * Service status code of a failure, defaultStatusCode when it has none
+	 */
+	public static int getStatusCode(Throwable error, int defaultStatusCode) {
+		if(error instanceof CosmosException) {
+			return ((CosmosException) error).getStatusCode();
+		}
+		if(error instanceof ContainerException) {
+			return ((ContainerException) error).getStatusCode();
+		}
+		return defaultStatusCode;
+	}
 	
-		} catch (JsonMappingException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (JsonProcessingException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+	/*
+	 * RU charged for a failed request, 0 when unknown
+	 */
+	public static double getRequestCharge(Throwable error) {
+		if(error instanceof CosmosException) {
+			return ((CosmosException) error).getRequestCharge();
 		}
+		if(error instanceof ContainerException) {
+			return ((ContainerException) error).getRequestCharge();
+		}
+		return 0;
+	}
+	
+	private static Map<Integer, JsonNode> preallocateErrorNodes() {
+		Map<Integer, JsonNode> nodes = new HashMap<Integer, JsonNode>();
+		nodes.put(408, errorNode(408, "Request timeout"));
+		nodes.put(429, errorNode(429, "Request rate is large"));
+		nodes.put(503, errorNode(503, "Service unavailable"));
+		return nodes;
+	}
+	
+	private static JsonNode errorNode(int statusCode, String message) {
+		ObjectNode node = JsonNodeFactory.instance.objectNode();
+		node.put("status", statusCode);
+		node.put("message", message);
 		return node;
 	}
 	
+	/*
+	 * Filters are normalized and compiled once per shape, see QueryBuilder
+	 */
 	public static SqlQuerySpec getSqlQueryFromQueryString(String filters, Logger logger) {
-		
-		SqlQuerySpec sqlQuerySpec = new SqlQuerySpec();
-		ObjectMapper mapper = new ObjectMapper();
-		String queryText = "SELECT * FROM c";
-		
-		List<SqlParameter> sqlParameters = new ArrayList<SqlParameter>();
-		try {
-			JsonNode node = new ObjectMapper().readValue(filters, JsonNode.class);
-			Map<String, Object> allFilters = mapper.convertValue(node, Map.class);
-			if(allFilters.size() > 0) {
-				queryText += " WHERE ";
-				Iterator<Map.Entry<String, Object>> iterator = allFilters.entrySet().iterator();
-				
-				while(iterator.hasNext()) {
-					Map.Entry<String, Object> entry = iterator.next();
-					queryText += "c." + entry.getKey() + " = @" + entry.getKey();
-					SqlParameter sqlParameter = new SqlParameter("@" + entry.getKey(), entry.getValue());
-					sqlParameters.add(sqlParameter);
-					if(iterator.hasNext()) {
-						queryText += " AND ";
-					}
-				}
-			}
-			
-		} catch (JsonMappingException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (JsonProcessingException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-		catch(Exception exp) {
-			exp.printStackTrace();
+		SqlQuerySpec sqlQuerySpec = QueryBuilder.getInstance().build(filters);
+		if(logger.isDebugEnabled()) {
+			logger.debug(sqlQuerySpec.getQueryText());
 		}
-		logger.info(queryText);
-		sqlQuerySpec.setQueryText(queryText);
-		sqlQuerySpec.setParameters(sqlParameters);
 		return sqlQuerySpec;
 	}
 	public static JsonNode handleException(Exception exp, Logger logger) {
@@ -129,4 +156,22 @@ public class GenericHelper {
 		logError(exp, logger);
 		return getErrorJson(exp, 500);
 	}
+	/*
+	 * Records the failure against the operation instead of logging the full
+	 * diagnostics of every exception, see CosmosMetrics
+	 */
+	public static JsonNode handleException(OperationType type, Throwable exp, Logger logger) {
+		if(exp instanceof CosmosException) {
+			CosmosException cosmosException = (CosmosException) exp;
+			CosmosMetrics.getInstance().record(type, cosmosException, logger);
+			return GenericHelper.getErrorJson(cosmosException, cosmosException.getStatusCode());
+		}
+		if(exp instanceof ContainerException) {
+			CosmosMetrics.getInstance().recordError(type, exp, logger);
+			return getErrorJson(exp, ((ContainerException) exp).getStatusCode());
+		}
+		CosmosMetrics.getInstance().recordError(type, exp, logger);
+		logError(exp, logger);
+		return getErrorJson(exp, 500);
+	}
 }
@@ -0,0 +1,281 @@
+package com.microsoft.sample.api.helpers;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntFunction;
+
+import com.azure.cosmos.models.SqlParameter;
+import com.azure.cosmos.models.SqlQuerySpec;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Translates a JSON filter into a parameterized SqlQuerySpec.
+ * 
+ * A filter maps field paths to either a value (equality) or an operator
+ * object, e.g. {"status":"open","amount":{"$gte":10,"$lt":20},"tag":{"$in":["a","b"]}}.
+ * Supported operators are $eq, $ne, $gt, $gte, $lt, $lte, $in and $startsWith.
+ * 
+ * Fields and operators are sorted so the same filter shape always produces the
+ * same query text, which keeps server side plan reuse effective. The query
+ * text of each shape is compiled once and kept in a bounded cache, later calls
+ * only bind parameter values.
+ */
+public class QueryBuilder {
+	
+	public static final String SELECT_ALL = "SELECT * FROM c";
+	
+	// ObjectMapper is thread safe once configured
+	static final ObjectMapper MAPPER = new ObjectMapper();
+	
+	// Singleton
+	private static QueryBuilder queryBuilder = null;
+	
+	private final int maxShapes;
+	private final ConcurrentHashMap<String, String> templates = new ConcurrentHashMap<String, String>();
+	
+	public static synchronized QueryBuilder getInstance() {
+		if(queryBuilder == null) {
+			queryBuilder = new QueryBuilder(new ConfigurationHelper().getIntProperty("query_shape_cache_size", 1024));
+		}
+		return queryBuilder;
+	}
+	
+	public QueryBuilder(int maxShapes) {
+		this.maxShapes = Math.max(1, maxShapes);
+	}
+	
+	public SqlQuerySpec build(String filters) {
+		if(filters == null || filters.trim().isEmpty()) {
+			return new SqlQuerySpec(SELECT_ALL);
+		}
+		try {
+			return build(MAPPER.readTree(filters));
+		}
+		catch(JsonProcessingException exp) {
+			throw new IllegalArgumentException("Invalid filter: " + exp.getOriginalMessage(), exp);
+		}
+	}
+	
+	public SqlQuerySpec build(JsonNode filter) {
+		if(filter == null || filter.isNull() || filter.size() == 0) {
+			return new SqlQuerySpec(SELECT_ALL);
+		}
+		if(!filter.isObject()) {
+			throw new IllegalArgumentException("Filter must be a JSON object");
+		}
+		
+		List<Clause> clauses = new ArrayList<Clause>(filter.size());
+		List<Object> values = new ArrayList<Object>(filter.size());
+		StringBuilder shape = new StringBuilder();
+		parse(filter, clauses, values, shape);
+		
+		String shapeKey = shape.toString();
+		String queryText = templates.get(shapeKey);
+		if(queryText == null) {
+			queryText = compile(clauses, parameter -> "@p" + parameter);
+			if(templates.size() >= maxShapes) {
+				evictOne();
+			}
+			templates.put(shapeKey, queryText);
+		}
+		
+		List<SqlParameter> parameters = new ArrayList<SqlParameter>(values.size());
+		for(int i = 0; i < values.size(); i++) {
+			parameters.add(new SqlParameter("@p" + i, values.get(i)));
+		}
+		return new SqlQuerySpec(queryText, parameters);
+	}
+	
+	/*
+	 * Filter as a patch condition, "FROM c WHERE ..." with the values
+	 * written as JSON literals since conditions take no parameters
+	 */
+	public String buildPredicate(String filters) {
+		JsonNode filter;
+		try {
+			filter = filters == null || filters.trim().isEmpty() ? null : MAPPER.readTree(filters);
+		}
+		catch(JsonProcessingException exp) {
+			throw new IllegalArgumentException("Invalid filter: " + exp.getOriginalMessage(), exp);
+		}
+		if(filter == null || filter.isNull() || filter.size() == 0) {
+			return SELECT_ALL.substring("SELECT * ".length());
+		}
+		if(!filter.isObject()) {
+			throw new IllegalArgumentException("Filter must be a JSON object");
+		}
+		List<Clause> clauses = new ArrayList<Clause>(filter.size());
+		List<Object> values = new ArrayList<Object>(filter.size());
+		parse(filter, clauses, values, new StringBuilder());
+		// not cached, conditions are rare next to queries and differ by value
+		return compile(clauses, parameter -> {
+			try {
+				return MAPPER.writeValueAsString(values.get(parameter));
+			}
+			catch(JsonProcessingException exp) {
+				throw new IllegalArgumentException("Invalid condition value: " + exp.getOriginalMessage(), exp);
+			}
+		}).substring("SELECT * ".length());
+	}
+	
+	public int getCachedShapes() {
+		return templates.size();
+	}
+	
+	private void parse(JsonNode filter, List<Clause> clauses, List<Object> values, StringBuilder shape) {
+		for(Map.Entry<String, JsonNode> field : sorted(filter)) {
+			JsonNode condition = field.getValue();
+			if(condition.isObject() && condition.size() > 0 && condition.fieldNames().next().startsWith("$")) {
+				for(Map.Entry<String, JsonNode> operator : sorted(condition)) {
+					addClause(field.getKey(), Operator.of(operator.getKey()), operator.getValue(), clauses, values, shape);
+				}
+			}
+			else {
+				addClause(field.getKey(), Operator.EQ, condition, clauses, values, shape);
+			}
+		}
+	}
+	
+	private void addClause(String field, Operator operator, JsonNode value, List<Clause> clauses,
+						   List<Object> values, StringBuilder shape) {
+		int arity = 1;
+		if(operator == Operator.IN) {
+			if(!value.isArray() || value.size() == 0) {
+				throw new IllegalArgumentException("$in on " + field + " needs a non empty array");
+			}
+			arity = value.size();
+			for(JsonNode element : value) {
+				values.add(toParameterValue(element));
+			}
+		}
+		else {
+			values.add(toParameterValue(value));
+		}
+		clauses.add(new Clause(field, operator, arity));
+		shape.append(field).append('\u0000').append(operator.name()).append('\u0000').append(arity).append('\u0001');
+	}
+	
+	/*
+	 * value renders the n-th value of the filter, a parameter name or a literal
+	 */
+	private static String compile(List<Clause> clauses, IntFunction<String> value) {
+		StringBuilder query = new StringBuilder(SELECT_ALL).append(" WHERE ");
+		int parameter = 0;
+		for(int i = 0; i < clauses.size(); i++) {
+			Clause clause = clauses.get(i);
+			if(i > 0) {
+				query.append(" AND ");
+			}
+			String path = toPath(clause.field);
+			switch(clause.operator) {
+				case IN:
+					query.append(path).append(" IN (");
+					for(int j = 0; j < clause.arity; j++) {
+						query.append(j > 0 ? ", " : "").append(value.apply(parameter++));
+					}
+					query.append(')');
+					break;
+				case STARTS_WITH:
+					query.append("STARTSWITH(").append(path).append(", ").append(value.apply(parameter++)).append(')');
+					break;
+				default:
+					query.append(path).append(' ').append(clause.operator.sql).append(' ').append(value.apply(parameter++));
+			}
+		}
+		return query.toString();
+	}
+	
+	/*
+	 * a.b -> c["a"]["b"], brackets keep reserved words and odd names valid
+	 */
+	private static String toPath(String field) {
+		StringBuilder path = new StringBuilder("c");
+		for(String part : field.split("\\.")) {
+			path.append("[\"").append(part.replace("\\", "\\\\").replace("\"", "\\\"")).append("\"]");
+		}
+		return path.toString();
+	}
+	
+	private static Object toParameterValue(JsonNode value) {
+		if(value.isTextual()) {
+			return value.textValue();
+		}
+		if(value.isIntegralNumber()) {
+			return value.longValue();
+		}
+		if(value.isNumber()) {
+			return value.doubleValue();
+		}
+		if(value.isBoolean()) {
+			return value.booleanValue();
+		}
+		if(value.isNull()) {
+			return null;
+		}
+		return value;
+	}
+	
+	private static Iterable<Map.Entry<String, JsonNode>> sorted(JsonNode node) {
+		TreeMap<String, JsonNode> fields = new TreeMap<String, JsonNode>();
+		Iterator<Map.Entry<String, JsonNode>> iterator = node.fields();
+		while(iterator.hasNext()) {
+			Map.Entry<String, JsonNode> entry = iterator.next();
+			fields.put(entry.getKey(), entry.getValue());
+		}
+		return fields.entrySet();
+	}
+	
+	private void evictOne() {
+		Iterator<String> keys = templates.keySet().iterator();
+		if(keys.hasNext()) {
+			keys.next();
+			keys.remove();
+		}
+	}
+	
+	private enum Operator {
+		EQ("$eq", "="),
+		NE("$ne", "!="),
+		GT("$gt", ">"),
+		GTE("$gte", ">="),
+		LT("$lt", "<"),
+		LTE("$lte", "<="),
+		IN("$in", "IN"),
+		STARTS_WITH("$startsWith", "STARTSWITH");
+		
+		private final String token;
+		private final String sql;
+		
+		Operator(String token, String sql) {
+			this.token = token;
+			this.sql = sql;
+		}
+		
+		static Operator of(String token) {
+			for(Operator operator : values()) {
+				if(operator.token.equals(token)) {
+					return operator;
+				}
+			}
+			throw new IllegalArgumentException("Unsupported operator " + token);
+		}
+	}
+	
+	private static class Clause {
+		private final String field;
+		private final Operator operator;
+		private final int arity;
+		
+		Clause(String field, Operator operator, int arity) {
+			this.field = field;
+			this.operator = operator;
+			this.arity = arity;
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package com.microsoft.sample.api.helpers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.azure.cosmos.CosmosAsyncContainer;
+import com.azure.cosmos.ThroughputControlGroupConfig;
+import com.azure.cosmos.ThroughputControlGroupConfigBuilder;
+
+/**
+ * Local throughput control groups that cap background workloads to a share
+ * of the provisioned RU so user facing requests keep priority.
+ * 
+ * Groups are named after workloads, {@link #CHANGE_FEED} and {@link #BULK}
+ * by default. Requests that can carry a group name are tagged with
+ * {@link #getGroupName}. The lease based change feed processor and the bulk
+ * executor cannot be tagged in this SDK version, they run on a workload
+ * client of their own on which their group is the default group. Untagged
+ * requests on the shared client, the OLTP path, are not throttled.
+ */
+public class ThroughputControlHelper {
+	
+	public static final String CHANGE_FEED = "changefeed";
+	public static final String BULK = "bulk";
+	
+	private static Logger LOGGER = LoggerFactory.getLogger(ThroughputControlHelper.class);
+	private static ConfigurationHelper CONFIG = new ConfigurationHelper();
+	// container instances the groups were enabled on
+	private static Set<CosmosAsyncContainer> ENABLED = Collections.newSetFromMap(new ConcurrentHashMap<CosmosAsyncContainer, Boolean>());
+	
+	/*
+	 * throughput_control_enabled                 default false
+	 * throughput_control_groups                  default changefeed,bulk
+	 * throughput_control_<group>_threshold       fraction of provisioned RU (default 0.2)
+	 * throughput_control_<group>_target_ru       absolute RU/s, used instead of the threshold
+	 */
+	public static boolean isEnabled() {
+		return CONFIG.getBooleanProperty("throughput_control_enabled", false);
+	}
+	
+	public static List<String> getGroups() {
+		List<String> groups = new ArrayList<String>();
+		for(String group : CONFIG.getProperty("throughput_control_groups", CHANGE_FEED + "," + BULK).split(",")) {
+			if(!group.trim().isEmpty()) {
+				groups.add(group.trim());
+			}
+		}
+		return groups;
+	}
+	
+	/*
+	 * Group to tag the workload's requests with, null when not controlled
+	 */
+	public static String getGroupName(String workload) {
+		return isEnabled() && getGroups().contains(workload) ? workload : null;
+	}
+	
+	/*
+	 * Enables every configured group on the container, defaultGroup (may be
+	 * null) also applies to its untagged requests
+	 */
+	public static void enableGroups(CosmosAsyncContainer container, String defaultGroup) {
+		if(!isEnabled() || !ENABLED.add(container)) {
+			return;
+		}
+		for(String group : getGroups()) {
+			ThroughputControlGroupConfigBuilder builder = new ThroughputControlGroupConfigBuilder()
+																.setGroupName(group)
+																.setDefault(group.equals(defaultGroup));
+			int targetRu = CONFIG.getIntProperty("throughput_control_" + group + "_target_ru", 0);
+			if(targetRu > 0) {
+				builder.setTargetThroughput(targetRu);
+			}
+			else {
+				builder.setTargetThroughputThreshold(CONFIG.getDoubleProperty("throughput_control_" + group + "_threshold", 0.2));
+			}
+			ThroughputControlGroupConfig config = builder.build();
+			container.enableLocalThroughputControlGroup(config);
+			LOGGER.info("Throughput control group " + group + " enabled on " + container.getId()
+						+ (config.isDefault() ? " as default" : "")
+						+ (targetRu > 0 ? " target " + targetRu + " RU/s" : " threshold " + config.getTargetThroughputThreshold()));
+		}
+	}
+	
+	/*
+	 * Container on a client dedicated to the workload with its group as
+	 * default, or the given container when the workload is not controlled
+	 */
+	public static CosmosAsyncContainer getWorkloadContainer(CosmosAsyncContainer shared, String host, String key,
+															String databaseName, String containerName, String workload) {
+		if(getGroupName(workload) == null) {
+			return shared;
+		}
+		CosmosAsyncContainer container = CosmosClientRegistry.getAsyncClient(host, key, workload)
+															 .getDatabase(databaseName)
+															 .getContainer(containerName);
+		enableGroups(container, workload);
+		return container;
+	}
+}
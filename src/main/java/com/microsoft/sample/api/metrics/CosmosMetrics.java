@@ -0,0 +1,259 @@
+package com.microsoft.sample.api.metrics;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.azure.cosmos.CosmosDiagnostics;
+import com.azure.cosmos.CosmosException;
+import com.azure.cosmos.models.CosmosItemResponse;
+import com.azure.cosmos.models.FeedResponse;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.microsoft.sample.api.dal.BatchResponse;
+import com.microsoft.sample.api.dal.ContainerException;
+import com.microsoft.sample.api.dal.DocumentResponse;
+import com.microsoft.sample.api.dal.FeedPage;
+import com.microsoft.sample.api.helpers.ConfigurationHelper;
+
+/**
+ * Metrics registry the DALs and the change feed processor report into.
+ * 
+ * Every operation updates the latency/RU histograms and status counters of
+ * its {@link OperationType}, nothing is logged on the happy path. The full
+ * CosmosDiagnostics are only rendered when the {@link DiagnosticsSampler}
+ * samples the operation, when it crosses a latency/RU threshold, or for
+ * server errors.
+ * 
+ * Components with tunable or queue like state register gauges, which are
+ * sampled when the metrics are rendered and forwarded to the registries
+ * plugged in through addRegistry or the metrics_registries property.
+ * Components with structured state register a section of the JSON snapshot.
+ */
+public class CosmosMetrics implements MetricsRegistry {
+	
+	// Singleton
+	private static CosmosMetrics cosmosMetrics = null;
+	
+	private final OperationMetrics[] operations;
+	private final DiagnosticsSampler sampler;
+	private final ConcurrentSkipListMap<String, DoubleSupplier> gauges = new ConcurrentSkipListMap<String, DoubleSupplier>();
+	private final ConcurrentSkipListMap<String, Supplier<? extends JsonNode>> sections = new ConcurrentSkipListMap<String, Supplier<? extends JsonNode>>();
+	private final List<MetricsRegistry> registries = new CopyOnWriteArrayList<MetricsRegistry>();
+	
+	public static synchronized CosmosMetrics getInstance() {
+		if(cosmosMetrics == null) {
+			ConfigurationHelper helper = new ConfigurationHelper();
+			cosmosMetrics = new CosmosMetrics(DiagnosticsSampler.fromConfig(helper));
+			cosmosMetrics.loadRegistries(helper.getProperty("metrics_registries", ""));
+		}
+		return cosmosMetrics;
+	}
+	
+	public CosmosMetrics(DiagnosticsSampler sampler) {
+		this.sampler = sampler;
+		OperationType[] types = OperationType.values();
+		this.operations = new OperationMetrics[types.length];
+		for(OperationType type : types) {
+			operations[type.ordinal()] = new OperationMetrics(type);
+		}
+	}
+	
+	public OperationMetrics get(OperationType type) {
+		return operations[type.ordinal()];
+	}
+	
+	/*
+	 * Comma separated class names with a public no-arg constructor
+	 */
+	private void loadRegistries(String classNames) {
+		for(String className : classNames.split(",")) {
+			if(className.trim().isEmpty()) {
+				continue;
+			}
+			try {
+				addRegistry((MetricsRegistry) Class.forName(className.trim()).getDeclaredConstructor().newInstance());
+			}
+			catch(ReflectiveOperationException | ClassCastException exp) {
+				LoggerFactory.getLogger(CosmosMetrics.class).error("Unable to load metrics registry " + className + ": " + exp);
+			}
+		}
+	}
+	
+	/*
+	 * Gauges registered before the registry was added are replayed into it
+	 */
+	public void addRegistry(MetricsRegistry registry) {
+		registries.add(registry);
+		gauges.forEach(registry::registerGauge);
+	}
+	
+	@Override
+	public void registerGauge(String name, DoubleSupplier gauge) {
+		gauges.put(name, gauge);
+		for(MetricsRegistry registry : registries) {
+			registry.registerGauge(name, gauge);
+		}
+	}
+	
+	@Override
+	public void unregisterGauges(String prefix) {
+		gauges.subMap(prefix, prefix + Character.MAX_VALUE).clear();
+		for(MetricsRegistry registry : registries) {
+			registry.unregisterGauges(prefix);
+		}
+	}
+	
+	public void registerSection(String name, Supplier<? extends JsonNode> section) {
+		sections.put(name, section);
+	}
+	
+	public void unregisterSection(String name) {
+		sections.remove(name);
+	}
+	
+	public double getGauge(String name) {
+		DoubleSupplier gauge = gauges.get(name);
+		return gauge == null ? Double.NaN : gauge.getAsDouble();
+	}
+	
+	public void record(OperationType type, long latencyMicros, double requestCharge, int statusCode, int subStatusCode) {
+		operations[type.ordinal()].record(latencyMicros, requestCharge, statusCode, subStatusCode);
+	}
+	
+	public void record(OperationType type, CosmosItemResponse<?> itemResponse, Logger logger) {
+		long latencyMicros = toMicros(itemResponse.getDuration());
+		double requestCharge = itemResponse.getRequestCharge();
+		record(type, latencyMicros, requestCharge, itemResponse.getStatusCode(), 0);
+		captureDiagnostics(type, latencyMicros, requestCharge, itemResponse.getDiagnostics(), logger);
+	}
+	
+	public void record(OperationType type, FeedResponse<?> feedResponse, Logger logger) {
+		CosmosDiagnostics diagnostics = feedResponse.getCosmosDiagnostics();
+		long latencyMicros = diagnostics != null ? toMicros(diagnostics.getDuration()) : 0;
+		double requestCharge = feedResponse.getRequestCharge();
+		record(type, latencyMicros, requestCharge, 200, 0);
+		get(type).addItems(feedResponse.getResults().size());
+		captureDiagnostics(type, latencyMicros, requestCharge, diagnostics, logger);
+	}
+	
+	public void record(OperationType type, DocumentResponse response, Logger logger) {
+		record(type, response.getLatencyMicros(), response.getRequestCharge(), response.getStatusCode(), 0);
+		captureDiagnostics(type, response.getLatencyMicros(), response.getRequestCharge(), response.getDiagnostics(), logger);
+	}
+	
+	public void record(OperationType type, FeedPage page, Logger logger) {
+		record(type, page.getLatencyMicros(), page.getRequestCharge(), 200, 0);
+		get(type).addItems(page.getResults().size());
+		captureDiagnostics(type, page.getLatencyMicros(), page.getRequestCharge(), page.getDiagnostics(), logger);
+	}
+	
+	/*
+	 * One sample per batch, items counts its operations
+	 */
+	public void record(OperationType type, BatchResponse response, Logger logger) {
+		record(type, response.getLatencyMicros(), response.getRequestCharge(), response.getStatusCode(), 0);
+		get(type).addItems(response.getResults().size());
+		captureDiagnostics(type, response.getLatencyMicros(), response.getRequestCharge(), response.getDiagnostics(), logger);
+	}
+	
+	public void record(OperationType type, CosmosException exception, Logger logger) {
+		CosmosDiagnostics diagnostics = exception.getDiagnostics();
+		long latencyMicros = diagnostics != null ? toMicros(diagnostics.getDuration()) : 0;
+		int statusCode = exception.getStatusCode();
+		record(type, latencyMicros, exception.getRequestCharge(), statusCode, exception.getSubStatusCode());
+		if(statusCode >= 500 || sampler.isSampled()) {
+			logger.warn(type + " failed status=" + statusCode + "/" + exception.getSubStatusCode()
+						+ " activityId=" + exception.getActivityId()
+						+ " retryAfter=" + exception.getRetryAfterDuration()
+						+ " diagnostics=" + diagnostics);
+		}
+	}
+	
+	/*
+	 * Non Cosmos failures are counted as status 0
+	 */
+	public void recordError(OperationType type, Throwable error, Logger logger) {
+		if(error instanceof CosmosException) {
+			record(type, (CosmosException) error, logger);
+		}
+		else if(error instanceof ContainerException) {
+			ContainerException exception = (ContainerException) error;
+			record(type, 0, exception.getRequestCharge(), exception.getStatusCode(), 0);
+		}
+		else {
+			record(type, 0, 0, 0, 0);
+		}
+	}
+	
+	private void captureDiagnostics(OperationType type, long latencyMicros, double requestCharge,
+									CosmosDiagnostics diagnostics, Logger logger) {
+		if(diagnostics == null) {
+			return;
+		}
+		if(sampler.isOverThreshold(latencyMicros, requestCharge)) {
+			logger.warn(type + " over threshold latencyMicros=" + latencyMicros + " RU=" + requestCharge
+						+ " diagnostics=" + diagnostics);
+		}
+		else if(sampler.isSampled()) {
+			logger.info(type + " sampled latencyMicros=" + latencyMicros + " RU=" + requestCharge
+						+ " diagnostics=" + diagnostics);
+		}
+	}
+	
+	private static long toMicros(Duration duration) {
+		return duration == null ? 0 : TimeUnit.NANOSECONDS.toMicros(duration.toNanos());
+	}
+	
+	public ObjectNode toJson() {
+		ObjectNode node = JsonNodeFactory.instance.objectNode();
+		for(OperationMetrics operation : operations) {
+			if(operation.getLatencyMicros().getCount() > 0) {
+				node.set(operation.getType().name(), operation.toJson());
+			}
+		}
+		ObjectNode workloads = workloadsToJson();
+		if(workloads.size() > 0) {
+			node.set("workloads", workloads);
+		}
+		if(!gauges.isEmpty()) {
+			ObjectNode gaugeNode = node.putObject("gauges");
+			for(Map.Entry<String, DoubleSupplier> gauge : gauges.entrySet()) {
+				gaugeNode.put(gauge.getKey(), gauge.getValue().getAsDouble());
+			}
+		}
+		for(Map.Entry<String, Supplier<? extends JsonNode>> section : sections.entrySet()) {
+			node.set(section.getKey(), section.getValue().get());
+		}
+		return node;
+	}
+	
+	/*
+	 * RU and throttling per throughput control group
+	 */
+	public ObjectNode workloadsToJson() {
+		ObjectNode node = JsonNodeFactory.instance.objectNode();
+		for(OperationMetrics operation : operations) {
+			long count = operation.getLatencyMicros().getCount();
+			if(count == 0) {
+				continue;
+			}
+			ObjectNode workload = node.has(operation.getType().getWorkload())
+									? (ObjectNode) node.get(operation.getType().getWorkload())
+									: node.putObject(operation.getType().getWorkload());
+			workload.put("count", workload.path("count").asLong() + count);
+			workload.put("totalRU", workload.path("totalRU").asDouble() + operation.getTotalRequestCharge());
+			workload.put("throttled", workload.path("throttled").asLong() + operation.getThrottled());
+		}
+		return node;
+	}
+}
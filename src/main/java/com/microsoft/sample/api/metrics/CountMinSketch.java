@@ -0,0 +1,65 @@
+package com.microsoft.sample.api.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Count-min sketch over 64 bit key hashes, depth rows of width counters.
+ * Estimates never undercount and overcount by at most a fraction of the
+ * total of about e / width with probability 1 - e^-depth. Updates are
+ * lock free, a concurrent clear may drop updates in flight.
+ */
+final class CountMinSketch {
+	
+	private final int depth;
+	private final int mask;
+	private final AtomicLongArray counters;
+	
+	/*
+	 * width is rounded up to a power of two
+	 */
+	CountMinSketch(int depth, int width) {
+		this.depth = Math.max(1, depth);
+		int rowWidth = Integer.highestOneBit(Math.max(2, width) - 1) << 1;
+		this.mask = rowWidth - 1;
+		this.counters = new AtomicLongArray(this.depth * rowWidth);
+	}
+	
+	/*
+	 * Returns the estimate including the added value
+	 */
+	long add(long hash, long value) {
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32) | 1;
+		long min = Long.MAX_VALUE;
+		for(int i = 0; i < depth; i++) {
+			min = Math.min(min, counters.addAndGet(i * (mask + 1) + ((h1 + i * h2) & mask), value));
+		}
+		return min;
+	}
+	
+	long estimate(long hash) {
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32) | 1;
+		long min = Long.MAX_VALUE;
+		for(int i = 0; i < depth; i++) {
+			min = Math.min(min, counters.get(i * (mask + 1) + ((h1 + i * h2) & mask)));
+		}
+		return min;
+	}
+	
+	void clear() {
+		for(int i = 0; i < counters.length(); i++) {
+			counters.set(i, 0);
+		}
+	}
+	
+	/*
+	 * 64 bit mix of the cached String hash, rows are derived from its halves
+	 */
+	static long hash(String key) {
+		long h = key.hashCode() * 0x9E3779B97F4A7C15L;
+		h ^= h >>> 29;
+		h *= 0xBF58476D1CE4E5B9L;
+		return h ^ (h >>> 32);
+	}
+}
@@ -0,0 +1,42 @@
+package com.microsoft.sample.api.metrics;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.microsoft.sample.api.helpers.ConfigurationHelper;
+
+/**
+ * Decides when the full (expensive) CosmosDiagnostics of an operation are
+ * rendered: for a random sample of operations, or whenever latency or request
+ * charge crosses the configured thresholds.
+ */
+public class DiagnosticsSampler {
+	
+	private final double sampleRate;
+	private final long latencyThresholdMicros;
+	private final double requestChargeThreshold;
+	
+	public DiagnosticsSampler(double sampleRate, long latencyThresholdMillis, double requestChargeThreshold) {
+		this.sampleRate = sampleRate;
+		this.latencyThresholdMicros = latencyThresholdMillis * 1000L;
+		this.requestChargeThreshold = requestChargeThreshold;
+	}
+	
+	/*
+	 * metrics_diagnostics_sample_rate          fraction of operations captured (default 0.001)
+	 * metrics_diagnostics_latency_threshold_ms always capture above this latency (default 1000)
+	 * metrics_diagnostics_ru_threshold         always capture above this charge (default 100)
+	 */
+	public static DiagnosticsSampler fromConfig(ConfigurationHelper helper) {
+		return new DiagnosticsSampler(helper.getDoubleProperty("metrics_diagnostics_sample_rate", 0.001),
+									  helper.getLongProperty("metrics_diagnostics_latency_threshold_ms", 1000),
+									  helper.getDoubleProperty("metrics_diagnostics_ru_threshold", 100));
+	}
+	
+	public boolean isOverThreshold(long latencyMicros, double requestCharge) {
+		return latencyMicros >= latencyThresholdMicros || requestCharge >= requestChargeThreshold;
+	}
+	
+	public boolean isSampled() {
+		return sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate;
+	}
+}
@@ -0,0 +1,142 @@
+package com.microsoft.sample.api.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free log-linear histogram in the style of HdrHistogram.
+ * 
+ * Values are grouped in power of two magnitudes, each split into
+ * 2^(significantBits - 1) linear sub buckets, so the relative error of a
+ * reported value is bounded by 2^-(significantBits - 1) whatever the range.
+ * Recording is a couple of shifts and one atomic increment. Values above the
+ * highest trackable value are clamped.
+ */
+public class Histogram {
+	
+	private final int subBucketBits;
+	private final int subBucketCount;
+	private final int subBucketHalf;
+	private final long highestTrackableValue;
+	private final AtomicLongArray counts;
+	private final AtomicLong totalCount = new AtomicLong();
+	private final AtomicLong totalSum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+	
+	public Histogram(long highestTrackableValue, int significantBits) {
+		if(significantBits < 2 || significantBits > 16) {
+			throw new IllegalArgumentException("significantBits must be between 2 and 16");
+		}
+		this.subBucketBits = significantBits;
+		this.subBucketCount = 1 << significantBits;
+		this.subBucketHalf = subBucketCount >> 1;
+		this.highestTrackableValue = Math.max(highestTrackableValue, subBucketCount);
+		this.counts = new AtomicLongArray(indexOf(this.highestTrackableValue) + 1);
+	}
+	
+	public void record(long value) {
+		if(value < 0) {
+			value = 0;
+		}
+		else if(value > highestTrackableValue) {
+			value = highestTrackableValue;
+		}
+		counts.incrementAndGet(indexOf(value));
+		totalCount.incrementAndGet();
+		totalSum.addAndGet(value);
+		long currentMax = max.get();
+		while(value > currentMax && !max.compareAndSet(currentMax, value)) {
+			currentMax = max.get();
+		}
+	}
+	
+	int indexOf(long value) {
+		int magnitude = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - subBucketBits);
+		return (magnitude * subBucketHalf) + (int) (value >>> magnitude);
+	}
+	
+	long lowestValueAt(int index) {
+		if(index < subBucketCount) {
+			return index;
+		}
+		int magnitude = (index / subBucketHalf) - 1;
+		long subBucket = index - ((long) magnitude * subBucketHalf);
+		return subBucket << magnitude;
+	}
+	
+	long highestValueAt(int index) {
+		return lowestValueAt(index + 1) - 1;
+	}
+	
+	public long getCount() {
+		return totalCount.get();
+	}
+	
+	public Snapshot snapshot() {
+		long[] copy = new long[counts.length()];
+		for(int i = 0; i < copy.length; i++) {
+			copy[i] = counts.get(i);
+		}
+		return new Snapshot(copy, totalSum.get(), max.get());
+	}
+	
+	/*
+	 * Interval snapshot, counts recorded concurrently land in either interval
+	 */
+	public Snapshot snapshotAndReset() {
+		long[] copy = new long[counts.length()];
+		for(int i = 0; i < copy.length; i++) {
+			copy[i] = counts.getAndSet(i, 0);
+		}
+		long sum = totalSum.getAndSet(0);
+		long currentMax = max.getAndSet(0);
+		totalCount.set(0);
+		return new Snapshot(copy, sum, currentMax);
+	}
+	
+	public class Snapshot {
+		private final long[] snapshotCounts;
+		private final long count;
+		private final long sum;
+		private final long maxValue;
+		
+		Snapshot(long[] snapshotCounts, long sum, long maxValue) {
+			long total = 0;
+			for(long c : snapshotCounts) {
+				total += c;
+			}
+			this.snapshotCounts = snapshotCounts;
+			this.count = total;
+			this.sum = sum;
+			this.maxValue = maxValue;
+		}
+		
+		public long getCount() {
+			return count;
+		}
+		public long getMax() {
+			return maxValue;
+		}
+		public double getMean() {
+			return count == 0 ? 0 : (double) sum / count;
+		}
+		
+		/*
+		 * Highest value equivalent of the bucket holding the given percentile
+		 */
+		public long getValueAtPercentile(double percentile) {
+			if(count == 0) {
+				return 0;
+			}
+			long target = Math.max(1, (long) Math.ceil((percentile / 100.0) * count));
+			long seen = 0;
+			for(int i = 0; i < snapshotCounts.length; i++) {
+				seen += snapshotCounts[i];
+				if(seen >= target) {
+					return Math.min(highestValueAt(i), maxValue);
+				}
+			}
+			return maxValue;
+		}
+	}
+}
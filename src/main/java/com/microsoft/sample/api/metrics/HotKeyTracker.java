@@ -0,0 +1,315 @@
+package com.microsoft.sample.api.metrics;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.microsoft.sample.api.helpers.ConfigurationHelper;
+
+/**
+ * Hottest partition keys of a container over a sliding window, by request
+ * count and by request charge, in memory that does not depend on the number
+ * of distinct keys.
+ * 
+ * The window is a ring of sub-windows, each with count-min sketches of
+ * requests, RU and 429s per key and space-saving summaries that nominate
+ * the candidate keys. The top lists rank the candidates of all live
+ * sub-windows by their summed sketch estimates, so counts may be slightly
+ * high but a key carrying more than 1/capacity of a sub-window is never
+ * missed. A record is a few atomic adds. Only keys whose estimate exceeds
+ * the smallest monitored weight are offered to the summaries, and the offer
+ * is skipped when another thread holds them, which under contention samples
+ * the candidates rather than serializing the callers.
+ */
+public class HotKeyTracker {
+	
+	private static final ConcurrentHashMap<String, HotKeyTracker> TRACKERS = new ConcurrentHashMap<String, HotKeyTracker>();
+	private static final String GAUGE_PREFIX = "hotkeys.";
+	
+	private final Window[] windows;
+	private final long subWindowNanos;
+	private final int reportSize;
+	private final LongAdder skipped = new LongAdder();
+	
+	public static boolean isEnabled() {
+		return new ConfigurationHelper().getBooleanProperty("hot_keys_enabled", false);
+	}
+	
+	/*
+	 * hot_keys_window_s        sliding window (default 60)
+	 * hot_keys_subwindows      window granularity (default 6)
+	 * hot_keys_candidates      keys monitored per sub-window and ranking (default 64)
+	 * hot_keys_sketch_width    counters per sketch row (default 1024)
+	 * hot_keys_sketch_depth    sketch rows (default 4)
+	 * hot_keys_report_size     keys per list in the metrics snapshot (default 10)
+	 */
+	public static HotKeyTracker forContainer(String containerKey) {
+		return TRACKERS.computeIfAbsent(containerKey, k -> {
+			ConfigurationHelper helper = new ConfigurationHelper();
+			HotKeyTracker tracker = new HotKeyTracker(helper.getLongProperty("hot_keys_window_s", 60) * 1000,
+													  helper.getIntProperty("hot_keys_subwindows", 6),
+													  helper.getIntProperty("hot_keys_candidates", 64),
+													  helper.getIntProperty("hot_keys_sketch_width", 1024),
+													  helper.getIntProperty("hot_keys_sketch_depth", 4),
+													  helper.getIntProperty("hot_keys_report_size", 10));
+			CosmosMetrics metrics = CosmosMetrics.getInstance();
+			String prefix = GAUGE_PREFIX + k.replace('/', '.').replaceAll("[^A-Za-z0-9._-]", "") + ".";
+			metrics.registerGauge(prefix + "top_request_share", () -> tracker.getTopShare(false));
+			metrics.registerGauge(prefix + "top_ru_share", () -> tracker.getTopShare(true));
+			metrics.registerGauge(prefix + "skipped", () -> tracker.skipped.sum());
+			metrics.registerSection("hotPartitionKeys", HotKeyTracker::allToJson);
+			return tracker;
+		});
+	}
+	
+	public HotKeyTracker(long windowMillis, int subWindows, int candidates, int sketchWidth, int sketchDepth, int reportSize) {
+		this.windows = new Window[Math.max(1, subWindows)];
+		this.subWindowNanos = Math.max(1, TimeUnit.MILLISECONDS.toNanos(windowMillis) / windows.length);
+		for(int i = 0; i < windows.length; i++) {
+			windows[i] = new Window(candidates, sketchWidth, sketchDepth);
+		}
+		this.reportSize = reportSize;
+	}
+	
+	public void record(String partitionKey, double requestCharge, boolean throttled) {
+		record(partitionKey, requestCharge, throttled, System.nanoTime());
+	}
+	
+	void record(String partitionKey, double requestCharge, boolean throttled, long nowNanos) {
+		if(partitionKey == null) {
+			return;
+		}
+		long epoch = Math.floorDiv(nowNanos, subWindowNanos);
+		Window window = windows[(int) Math.floorMod(epoch, (long) windows.length)];
+		window.roll(epoch);
+		long hash = CountMinSketch.hash(partitionKey);
+		long milliRu = (long) (requestCharge * 1000);
+		long requests = window.requests.add(hash, 1);
+		long charge = window.milliRu.add(hash, milliRu);
+		window.totalRequests.increment();
+		window.totalMilliRu.add(milliRu);
+		if(throttled) {
+			window.throttles.add(hash, 1);
+		}
+		// cold keys cannot enter the summaries and skip the lock
+		boolean offerRequests = requests > window.byRequests.getMinWeight();
+		boolean offerCharge = milliRu > 0 && charge > window.byCharge.getMinWeight();
+		if(!offerRequests && !offerCharge) {
+			return;
+		}
+		if(window.lock.tryLock()) {
+			try {
+				if(offerRequests) {
+					window.byRequests.offer(partitionKey, 1);
+				}
+				if(offerCharge) {
+					window.byCharge.offer(partitionKey, milliRu);
+				}
+			}
+			finally {
+				window.lock.unlock();
+			}
+		}
+		else {
+			skipped.increment();
+		}
+	}
+	
+	public List<HotKey> getTopByRequests(int n) {
+		return top(n, false, System.nanoTime());
+	}
+	
+	public List<HotKey> getTopByRequestCharge(int n) {
+		return top(n, true, System.nanoTime());
+	}
+	
+	/*
+	 * Estimate for any key, candidate or not
+	 */
+	public HotKey estimate(String partitionKey) {
+		return estimate(partitionKey, liveWindows(System.nanoTime()));
+	}
+	
+	List<HotKey> top(int n, boolean byCharge, long nowNanos) {
+		List<Window> live = liveWindows(nowNanos);
+		Set<String> candidates = new HashSet<String>();
+		for(Window window : live) {
+			window.lock.lock();
+			try {
+				candidates.addAll((byCharge ? window.byCharge : window.byRequests).getKeys());
+			}
+			finally {
+				window.lock.unlock();
+			}
+		}
+		List<HotKey> keys = new ArrayList<HotKey>(candidates.size());
+		for(String candidate : candidates) {
+			keys.add(estimate(candidate, live));
+		}
+		keys.sort(byCharge ? Comparator.comparingDouble(HotKey::getRequestCharge).reversed()
+						   : Comparator.comparingLong(HotKey::getRequests).reversed());
+		return keys.size() > n ? new ArrayList<HotKey>(keys.subList(0, n)) : keys;
+	}
+	
+	private HotKey estimate(String partitionKey, List<Window> live) {
+		long hash = CountMinSketch.hash(partitionKey);
+		long requests = 0;
+		long milliRu = 0;
+		long throttles = 0;
+		for(Window window : live) {
+			requests += window.requests.estimate(hash);
+			milliRu += window.milliRu.estimate(hash);
+			throttles += window.throttles.estimate(hash);
+		}
+		return new HotKey(partitionKey, requests, milliRu / 1000.0, throttles);
+	}
+	
+	private List<Window> liveWindows(long nowNanos) {
+		long epoch = Math.floorDiv(nowNanos, subWindowNanos);
+		List<Window> live = new ArrayList<Window>(windows.length);
+		for(Window window : windows) {
+			if(window.epoch > epoch - windows.length && window.epoch <= epoch) {
+				live.add(window);
+			}
+		}
+		return live;
+	}
+	
+	/*
+	 * Share of the hottest key in the window, 0 without traffic
+	 */
+	double getTopShare(boolean byCharge) {
+		long now = System.nanoTime();
+		List<HotKey> top = top(1, byCharge, now);
+		double total = 0;
+		for(Window window : liveWindows(now)) {
+			total += byCharge ? window.totalMilliRu.sum() / 1000.0 : window.totalRequests.sum();
+		}
+		if(top.isEmpty() || total <= 0) {
+			return 0;
+		}
+		return Math.min(1, (byCharge ? top.get(0).getRequestCharge() : top.get(0).getRequests()) / total);
+	}
+	
+	public ObjectNode toJson() {
+		long now = System.nanoTime();
+		ObjectNode node = JsonNodeFactory.instance.objectNode();
+		node.put("windowSeconds", TimeUnit.NANOSECONDS.toSeconds(subWindowNanos * windows.length));
+		long requests = 0;
+		double requestCharge = 0;
+		for(Window window : liveWindows(now)) {
+			requests += window.totalRequests.sum();
+			requestCharge += window.totalMilliRu.sum() / 1000.0;
+		}
+		node.put("requests", requests);
+		node.put("requestCharge", requestCharge);
+		toJson(node.putArray("byRequests"), top(reportSize, false, now));
+		toJson(node.putArray("byRequestCharge"), top(reportSize, true, now));
+		return node;
+	}
+	
+	private static void toJson(ArrayNode array, List<HotKey> keys) {
+		for(HotKey key : keys) {
+			array.addObject()
+				 .put("key", key.getKey())
+				 .put("requests", key.getRequests())
+				 .put("requestCharge", key.getRequestCharge())
+				 .put("throttled", key.getThrottled());
+		}
+	}
+	
+	private static JsonNode allToJson() {
+		ObjectNode node = JsonNodeFactory.instance.objectNode();
+		for(Map.Entry<String, HotKeyTracker> tracker : TRACKERS.entrySet()) {
+			node.set(tracker.getKey(), tracker.getValue().toJson());
+		}
+		return node;
+	}
+	
+	private static final class Window {
+		private final CountMinSketch requests;
+		private final CountMinSketch milliRu;
+		private final CountMinSketch throttles;
+		private final SpaceSaving byRequests;
+		private final SpaceSaving byCharge;
+		private final LongAdder totalRequests = new LongAdder();
+		private final LongAdder totalMilliRu = new LongAdder();
+		private final ReentrantLock lock = new ReentrantLock();
+		private volatile long epoch = Long.MIN_VALUE;
+		
+		Window(int candidates, int sketchWidth, int sketchDepth) {
+			this.requests = new CountMinSketch(sketchDepth, sketchWidth);
+			this.milliRu = new CountMinSketch(sketchDepth, sketchWidth);
+			this.throttles = new CountMinSketch(sketchDepth, sketchWidth);
+			this.byRequests = new SpaceSaving(candidates);
+			this.byCharge = new SpaceSaving(candidates);
+		}
+		
+		/*
+		 * The first record of a new epoch clears what the slot held a
+		 * window ago
+		 */
+		void roll(long currentEpoch) {
+			if(epoch == currentEpoch) {
+				return;
+			}
+			lock.lock();
+			try {
+				if(epoch != currentEpoch) {
+					requests.clear();
+					milliRu.clear();
+					throttles.clear();
+					byRequests.clear();
+					byCharge.clear();
+					totalRequests.reset();
+					totalMilliRu.reset();
+					epoch = currentEpoch;
+				}
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+	}
+	
+	public static final class HotKey {
+		private final String key;
+		private final long requests;
+		private final double requestCharge;
+		private final long throttled;
+		
+		HotKey(String key, long requests, double requestCharge, long throttled) {
+			this.key = key;
+			this.requests = requests;
+			this.requestCharge = requestCharge;
+			this.throttled = throttled;
+		}
+		
+		public String getKey() {
+			return key;
+		}
+		public long getRequests() {
+			return requests;
+		}
+		public double getRequestCharge() {
+			return requestCharge;
+		}
+		/*
+		 * Requests answered with 429
+		 */
+		public long getThrottled() {
+			return throttled;
+		}
+	}
+}
@@ -0,0 +1,52 @@
+package com.microsoft.sample.api.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.microsoft.sample.api.helpers.ConfigurationHelper;
+
+import reactor.core.publisher.Mono;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+
+/**
+ * Pull endpoint serving the {@link CosmosMetrics} snapshot as JSON on
+ * GET /metrics, for scrapers and autoscalers.
+ */
+public class MetricsEndpoint {
+	
+	private static Logger LOGGER = LoggerFactory.getLogger(MetricsEndpoint.class);
+	
+	private final DisposableServer server;
+	
+	private MetricsEndpoint(DisposableServer server) {
+		this.server = server;
+	}
+	
+	public static MetricsEndpoint start(int port, CosmosMetrics metrics) {
+		DisposableServer server = HttpServer.create()
+											.port(port)
+											.route(routes -> routes.get("/metrics", (request, response) ->
+												response.header("Content-Type", "application/json")
+														.sendString(Mono.fromSupplier(() -> metrics.toJson().toString()))))
+											.bindNow();
+		LOGGER.info("Metrics endpoint listening on port " + server.port());
+		return new MetricsEndpoint(server);
+	}
+	
+	/*
+	 * metrics_endpoint_port, the endpoint is disabled when empty, returns null
+	 */
+	public static MetricsEndpoint fromConfig(ConfigurationHelper helper) {
+		int port = helper.getIntProperty("metrics_endpoint_port", -1);
+		return port < 0 ? null : start(port, CosmosMetrics.getInstance());
+	}
+	
+	public int getPort() {
+		return server.port();
+	}
+	
+	public void stop() {
+		server.disposeNow();
+	}
+}
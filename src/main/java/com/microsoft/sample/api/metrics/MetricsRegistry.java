@@ -0,0 +1,21 @@
+package com.microsoft.sample.api.metrics;
+
+import java.util.function.DoubleSupplier;
+
+/**
+ * Destination for gauges published by the DALs and the change feed
+ * components. {@link CosmosMetrics} is the default registry and forwards every
+ * gauge to the registries plugged into it, e.g. an adapter to an external
+ * monitoring system.
+ * 
+ * Names are dot separated, e.g. cfp.lease.0.estimated_lag.
+ */
+public interface MetricsRegistry {
+	
+	void registerGauge(String name, DoubleSupplier gauge);
+	
+	/*
+	 * Removes every gauge whose name starts with the prefix
+	 */
+	void unregisterGauges(String prefix);
+}
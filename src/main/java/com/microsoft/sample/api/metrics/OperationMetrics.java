@@ -0,0 +1,108 @@
+package com.microsoft.sample.api.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Latency and request charge histograms plus status counters for one
+ * {@link OperationType}. Request charges are recorded in hundredths of a RU.
+ */
+public class OperationMetrics {
+	
+	private static final int STATUS_CODES = 600;
+	
+	private final OperationType type;
+	private final Histogram latencyMicros = new Histogram(TimeUnit.MINUTES.toMicros(10), 7);
+	private final Histogram requestChargeCentis = new Histogram(100_000L * 100, 7);
+	private final DoubleAdder totalRequestCharge = new DoubleAdder();
+	private final LongAdder items = new LongAdder();
+	private final LongAdder throttled = new LongAdder();
+	// status codes without sub status, anything else goes to the map
+	private final AtomicLongArray statusCounts = new AtomicLongArray(STATUS_CODES);
+	private final ConcurrentHashMap<String, LongAdder> subStatusCounts = new ConcurrentHashMap<String, LongAdder>();
+	
+	OperationMetrics(OperationType type) {
+		this.type = type;
+	}
+	
+	public void record(long latencyMicros, double requestCharge, int statusCode, int subStatusCode) {
+		this.latencyMicros.record(latencyMicros);
+		this.requestChargeCentis.record(Math.round(requestCharge * 100));
+		this.totalRequestCharge.add(requestCharge);
+		if(statusCode == 429) {
+			throttled.increment();
+		}
+		if(subStatusCode == 0 && statusCode >= 0 && statusCode < STATUS_CODES) {
+			statusCounts.incrementAndGet(statusCode);
+		}
+		else {
+			subStatusCounts.computeIfAbsent(statusCode + "/" + subStatusCode, k -> new LongAdder()).increment();
+		}
+	}
+	
+	public void addItems(long count) {
+		items.add(count);
+	}
+	
+	public OperationType getType() {
+		return type;
+	}
+	public Histogram getLatencyMicros() {
+		return latencyMicros;
+	}
+	public Histogram getRequestChargeCentis() {
+		return requestChargeCentis;
+	}
+	public double getTotalRequestCharge() {
+		return totalRequestCharge.sum();
+	}
+	public long getItems() {
+		return items.sum();
+	}
+	public long getThrottled() {
+		return throttled.sum();
+	}
+	
+	public ObjectNode toJson() {
+		ObjectNode node = JsonNodeFactory.instance.objectNode();
+		Histogram.Snapshot latency = latencyMicros.snapshot();
+		Histogram.Snapshot charge = requestChargeCentis.snapshot();
+		node.put("count", latency.getCount());
+		node.put("items", getItems());
+		node.put("throttled", getThrottled());
+		node.put("totalRU", getTotalRequestCharge());
+		
+		ObjectNode latencyNode = node.putObject("latencyMicros");
+		latencyNode.put("mean", latency.getMean());
+		latencyNode.put("p50", latency.getValueAtPercentile(50));
+		latencyNode.put("p90", latency.getValueAtPercentile(90));
+		latencyNode.put("p99", latency.getValueAtPercentile(99));
+		latencyNode.put("p999", latency.getValueAtPercentile(99.9));
+		latencyNode.put("max", latency.getMax());
+		
+		ObjectNode chargeNode = node.putObject("requestCharge");
+		chargeNode.put("mean", charge.getMean() / 100.0);
+		chargeNode.put("p50", charge.getValueAtPercentile(50) / 100.0);
+		chargeNode.put("p99", charge.getValueAtPercentile(99) / 100.0);
+		chargeNode.put("max", charge.getMax() / 100.0);
+		
+		ObjectNode statusNode = node.putObject("status");
+		for(int i = 0; i < STATUS_CODES; i++) {
+			long count = statusCounts.get(i);
+			if(count > 0) {
+				statusNode.put(String.valueOf(i), count);
+			}
+		}
+		for(Map.Entry<String, LongAdder> entry : subStatusCounts.entrySet()) {
+			statusNode.put(entry.getKey(), entry.getValue().sum());
+		}
+		return node;
+	}
+}
@@ -0,0 +1,29 @@
+package com.microsoft.sample.api.metrics;
+
+/**
+ * Operation classes tracked by {@link CosmosMetrics}, grouped by the
+ * workload (throughput control group) they are charged to
+ */
+public enum OperationType {
+	CREATE("oltp"),
+	READ("oltp"),
+	READ_MANY("oltp"),
+	QUERY("oltp"),
+	UPSERT("oltp"),
+	DELETE("oltp"),
+	PATCH("oltp"),
+	BATCH("oltp"),
+	BULK("bulk"),
+	CHANGE_FEED_READ("changefeed"),
+	CHANGE_FEED_BATCH("changefeed");
+	
+	private final String workload;
+	
+	private OperationType(String workload) {
+		this.workload = workload;
+	}
+	
+	public String getWorkload() {
+		return workload;
+	}
+}
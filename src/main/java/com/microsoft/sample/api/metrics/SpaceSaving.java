@@ -0,0 +1,104 @@
+package com.microsoft.sample.api.metrics;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Weighted space-saving summary: at most capacity monitored keys, a new key
+ * replaces the key with the smallest weight and inherits it. Every key whose
+ * weight exceeds total / capacity is guaranteed to be monitored. Entries are
+ * kept in an indexed min-heap so an offer is O(log capacity). Not thread
+ * safe, see HotKeyTracker.
+ */
+final class SpaceSaving {
+	
+	private final Entry[] heap;
+	private final Map<String, Entry> entries;
+	private int size;
+	private volatile long minWeight;
+	
+	SpaceSaving(int capacity) {
+		this.heap = new Entry[Math.max(1, capacity)];
+		this.entries = new HashMap<String, Entry>(heap.length * 2);
+	}
+	
+	void offer(String key, long weight) {
+		Entry entry = entries.get(key);
+		if(entry == null) {
+			if(size < heap.length) {
+				entry = new Entry(key, size);
+				heap[size++] = entry;
+			}
+			else {
+				entry = heap[0];
+				entries.remove(entry.key);
+				entry.key = key;
+			}
+			entries.put(key, entry);
+		}
+		entry.weight += weight;
+		siftDown(entry.index);
+		if(size == heap.length) {
+			minWeight = heap[0].weight;
+		}
+	}
+	
+	/*
+	 * Smallest monitored weight once full, 0 before. Readable without the
+	 * lock of the caller, a key estimated at or below it cannot displace
+	 * anything that matters.
+	 */
+	long getMinWeight() {
+		return minWeight;
+	}
+	
+	List<String> getKeys() {
+		return new ArrayList<String>(entries.keySet());
+	}
+	
+	void clear() {
+		entries.clear();
+		for(int i = 0; i < size; i++) {
+			heap[i] = null;
+		}
+		size = 0;
+		minWeight = 0;
+	}
+	
+	/*
+	 * Weights only grow, an updated entry can only move towards the leaves
+	 */
+	private void siftDown(int index) {
+		Entry entry = heap[index];
+		while(true) {
+			int child = 2 * index + 1;
+			if(child >= size) {
+				break;
+			}
+			if(child + 1 < size && heap[child + 1].weight < heap[child].weight) {
+				child++;
+			}
+			if(heap[child].weight >= entry.weight) {
+				break;
+			}
+			heap[index] = heap[child];
+			heap[index].index = index;
+			index = child;
+		}
+		heap[index] = entry;
+		entry.index = index;
+	}
+	
+	private static final class Entry {
+		private String key;
+		private long weight;
+		private int index;
+		
+		Entry(String key, int index) {
+			this.key = key;
+			this.index = index;
+		}
+	}
+}
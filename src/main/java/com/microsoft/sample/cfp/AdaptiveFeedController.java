@@ -0,0 +1,101 @@
+package com.microsoft.sample.cfp;
+
+import java.time.Duration;
+
+import com.microsoft.sample.api.helpers.ConfigurationHelper;
+
+/**
+ * Tunes the poll delay and page size of one feed range from what the last
+ * read observed.
+ * 
+ * A range with estimated lag is behind, the next page is read right away and
+ * the page size doubles up to its ceiling while more than a page is left, so
+ * bursts drain at full size. When the lag is unknown a full page counts as
+ * behind. An
+ * empty page doubles the poll delay up to its ceiling so idle ranges cost
+ * almost nothing, any documents reset it to the floor. A handler slower than
+ * the latency target or a throttled read halves the page size, throttling
+ * also backs off the poll delay.
+ */
+public class AdaptiveFeedController {
+	
+	private static final double FULL_PAGE = 0.9;
+	
+	private final long minPollDelayMillis;
+	private final long maxPollDelayMillis;
+	private final int minItemCount;
+	private final int maxItemCount;
+	private final long handlerTargetMillis;
+	
+	private volatile long pollDelayMillis;
+	private volatile int itemCount;
+	private volatile long throttles;
+	
+	public AdaptiveFeedController(long minPollDelayMillis, long maxPollDelayMillis, int minItemCount, int maxItemCount,
+								  int initialItemCount, long handlerTargetMillis) {
+		this.minPollDelayMillis = Math.max(0, minPollDelayMillis);
+		this.maxPollDelayMillis = Math.max(this.minPollDelayMillis, maxPollDelayMillis);
+		this.minItemCount = Math.max(1, minItemCount);
+		this.maxItemCount = Math.max(this.minItemCount, maxItemCount);
+		this.handlerTargetMillis = handlerTargetMillis;
+		this.pollDelayMillis = this.minPollDelayMillis;
+		this.itemCount = Math.max(this.minItemCount, Math.min(this.maxItemCount, initialItemCount));
+	}
+	
+	/*
+	 * cfp_poll_delay_min_ms          floor, also the processor mode poll delay (default 100)
+	 * cfp_poll_delay_max_ms          ceiling for idle ranges (default 5000)
+	 * cfp_max_item_count_min         page size floor (default 10)
+	 * cfp_max_item_count_max         page size ceiling (default 5000)
+	 * cfp_max_item_count             initial page size, fixed in processor mode (default 1000)
+	 * cfp_handler_latency_target_ms  shrink pages when the handler is slower (default 1000)
+	 */
+	public static AdaptiveFeedController fromConfig(ConfigurationHelper helper) {
+		return new AdaptiveFeedController(helper.getLongProperty("cfp_poll_delay_min_ms", 100),
+										  helper.getLongProperty("cfp_poll_delay_max_ms", 5000),
+										  helper.getIntProperty("cfp_max_item_count_min", 10),
+										  helper.getIntProperty("cfp_max_item_count_max", 5000),
+										  helper.getIntProperty("cfp_max_item_count", 1000),
+										  helper.getLongProperty("cfp_handler_latency_target_ms", 1000));
+	}
+	
+	/*
+	 * Records a page read with the current page size and the estimated lag of
+	 * the range after it, -1 when unknown, and returns the delay before the
+	 * next read
+	 */
+	public synchronized Duration onPage(int items, long handlerMillis, long estimatedLag) {
+		if(items == 0) {
+			pollDelayMillis = Math.min(maxPollDelayMillis, Math.max(minPollDelayMillis, pollDelayMillis * 2));
+			return Duration.ofMillis(pollDelayMillis);
+		}
+		pollDelayMillis = minPollDelayMillis;
+		boolean full = items >= itemCount * FULL_PAGE;
+		boolean behind = estimatedLag < 0 ? full : estimatedLag > 0;
+		if(handlerMillis > handlerTargetMillis) {
+			itemCount = Math.max(minItemCount, itemCount / 2);
+		}
+		else if(estimatedLag < 0 ? full : estimatedLag > itemCount) {
+			itemCount = Math.min(maxItemCount, itemCount * 2);
+		}
+		return behind ? Duration.ZERO : Duration.ofMillis(pollDelayMillis);
+	}
+	
+	public synchronized void onThrottle() {
+		throttles++;
+		itemCount = Math.max(minItemCount, itemCount / 2);
+		pollDelayMillis = Math.min(maxPollDelayMillis, Math.max(minPollDelayMillis, pollDelayMillis * 2));
+	}
+	
+	public long getPollDelayMillis() {
+		return pollDelayMillis;
+	}
+	
+	public int getMaxItemCount() {
+		return itemCount;
+	}
+	
+	public long getThrottleCount() {
+		return throttles;
+	}
+}
@@ -0,0 +1,148 @@
+package com.microsoft.sample.cfp;
+
+import java.util.Arrays;
+
+/**
+ * Count, sum, min and max per group key kept in parallel primitive arrays.
+ * Keys are interned into slots through an open addressing index, values are
+ * never boxed. Slots touched since the last drain are tracked in a dirty list
+ * so a flush visits only what changed, draining a slot resets it so it holds
+ * the changes since the last drain. Not thread safe, the owner locks.
+ */
+class AggregateTable {
+	
+	interface SlotVisitor {
+		void visit(String key, long count, double sum, double min, double max);
+	}
+	
+	private String[] keys;
+	private long[] counts;
+	private double[] sums;
+	private double[] mins;
+	private double[] maxs;
+	private boolean[] dirty;
+	private int[] dirtySlots;
+	private int dirtyCount;
+	private int size;
+	
+	// slot + 1 per bucket, 0 marks an empty bucket
+	private int[] index;
+	
+	AggregateTable(int initialCapacity) {
+		int capacity = Math.max(16, initialCapacity);
+		keys = new String[capacity];
+		counts = new long[capacity];
+		sums = new double[capacity];
+		mins = new double[capacity];
+		maxs = new double[capacity];
+		dirty = new boolean[capacity];
+		dirtySlots = new int[capacity];
+		index = new int[Integer.highestOneBit(capacity - 1) << 2];
+	}
+	
+	/*
+	 * Applies one change, a NaN value only counts
+	 */
+	void add(String key, double value) {
+		int slot = slotOf(key);
+		counts[slot]++;
+		if(!Double.isNaN(value)) {
+			sums[slot] += value;
+			mins[slot] = Math.min(mins[slot], value);
+			maxs[slot] = Math.max(maxs[slot], value);
+		}
+		markDirty(slot);
+	}
+	
+	/*
+	 * Merges changes drained earlier back in, e.g. when they could not be written
+	 */
+	void add(String key, long count, double sum, double min, double max) {
+		int slot = slotOf(key);
+		counts[slot] += count;
+		sums[slot] += sum;
+		mins[slot] = Math.min(mins[slot], min);
+		maxs[slot] = Math.max(maxs[slot], max);
+		markDirty(slot);
+	}
+	
+	/*
+	 * Visits the dirty slots and resets them
+	 */
+	int drainDirty(SlotVisitor visitor) {
+		int drained = dirtyCount;
+		for(int i = 0; i < dirtyCount; i++) {
+			int slot = dirtySlots[i];
+			dirty[slot] = false;
+			visitor.visit(keys[slot], counts[slot], sums[slot], mins[slot], maxs[slot]);
+			counts[slot] = 0;
+			sums[slot] = 0;
+			mins[slot] = Double.POSITIVE_INFINITY;
+			maxs[slot] = Double.NEGATIVE_INFINITY;
+		}
+		dirtyCount = 0;
+		return drained;
+	}
+	
+	int size() {
+		return size;
+	}
+	
+	int dirtyCount() {
+		return dirtyCount;
+	}
+	
+	private void markDirty(int slot) {
+		if(!dirty[slot]) {
+			dirty[slot] = true;
+			dirtySlots[dirtyCount++] = slot;
+		}
+	}
+	
+	private int slotOf(String key) {
+		int mask = index.length - 1;
+		int bucket = spread(key.hashCode()) & mask;
+		while(index[bucket] != 0) {
+			int slot = index[bucket] - 1;
+			if(keys[slot].equals(key)) {
+				return slot;
+			}
+			bucket = (bucket + 1) & mask;
+		}
+		if(size == keys.length) {
+			grow();
+			return slotOf(key);
+		}
+		int slot = size++;
+		keys[slot] = key;
+		mins[slot] = Double.POSITIVE_INFINITY;
+		maxs[slot] = Double.NEGATIVE_INFINITY;
+		index[bucket] = slot + 1;
+		return slot;
+	}
+	
+	private void grow() {
+		int capacity = keys.length * 2;
+		keys = Arrays.copyOf(keys, capacity);
+		counts = Arrays.copyOf(counts, capacity);
+		sums = Arrays.copyOf(sums, capacity);
+		mins = Arrays.copyOf(mins, capacity);
+		maxs = Arrays.copyOf(maxs, capacity);
+		dirty = Arrays.copyOf(dirty, capacity);
+		dirtySlots = Arrays.copyOf(dirtySlots, capacity);
+		index = new int[index.length * 2];
+		int mask = index.length - 1;
+		for(int slot = 0; slot < size; slot++) {
+			int bucket = spread(keys[slot].hashCode()) & mask;
+			while(index[bucket] != 0) {
+				bucket = (bucket + 1) & mask;
+			}
+			index[bucket] = slot + 1;
+		}
+	}
+	
+	private static int spread(int hash) {
+		hash *= 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+}
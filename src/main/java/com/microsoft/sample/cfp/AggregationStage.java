@@ -0,0 +1,321 @@
+package com.microsoft.sample.cfp;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonPointer;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.microsoft.sample.api.dal.BatchResponse;
+import com.microsoft.sample.api.dal.CosmosAsyncDAL;
+import com.microsoft.sample.api.dal.PatchOperations;
+import com.microsoft.sample.api.dal.TransactionalBatch;
+import com.microsoft.sample.api.helpers.ConfigurationHelper;
+import com.microsoft.sample.api.helpers.GenericHelper;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * Running count, sum, min and max of a numeric field per group key, applied
+ * incrementally per change feed batch and written to a target container.
+ * 
+ * Batches are folded into an in-memory table of the changes per group since
+ * the last flush. Every flush interval each changed group is merged into its
+ * document in the target, the group key is id and partition key, so a group
+ * costs one write per interval however many batches touched it. A merge goes
+ * through {@link CosmosAsyncDAL#executeBatch(String, java.util.Collection, java.util.function.Function)},
+ * which reads the stored aggregate and patches count and sum as increments
+ * with the new min and max under the etag that was read, retried when another
+ * consumer merged in between. Consumers sharing a target, or a lease that
+ * moved, add to each other's totals. Groups that fail to merge are kept for
+ * the next flush.
+ * 
+ * A batch completes once the flush holding its changes is written, so neither
+ * the lease nor the pull checkpoints pass changes that are only in memory.
+ * Batches wait up to one flush interval, keep it short. Aggregates count
+ * change events, an update of a document is counted again, and a batch
+ * re-delivered after a failure downstream is counted twice unless the
+ * deduplicator runs in front of this stage.
+ */
+public class AggregationStage {
+	
+	private static Logger LOGGER = LoggerFactory.getLogger(AggregationStage.class);
+	/* groups merged in parallel during a flush */
+	private static final int FLUSH_CONCURRENCY = 16;
+	/* flushes tried on stop before the remaining changes are given up */
+	private static final int FINAL_FLUSH_ATTEMPTS = 3;
+	
+	private final CosmosAsyncDAL target;
+	private final JsonPointer groupPath;
+	private final JsonPointer valuePath;
+	private final Duration flushInterval;
+	private final AggregateTable table = new AggregateTable(1024);
+	// completed once the changes added since the last flush are written, guarded by table
+	private CompletableFuture<Void> nextFlush = new CompletableFuture<Void>();
+	private final LongAdder mergedGroups = new LongAdder();
+	private final LongAdder failedMerges = new LongAdder();
+	private volatile boolean running;
+	private Scheduler timer;
+	private Mono<Void> flushes;
+	
+	public AggregationStage(CosmosAsyncDAL target, String groupPath, String valuePath, Duration flushInterval) {
+		this.target = target;
+		this.groupPath = JsonPointer.compile(groupPath);
+		this.valuePath = valuePath == null || valuePath.isEmpty() ? null : JsonPointer.compile(valuePath);
+		this.flushInterval = flushInterval;
+	}
+	
+	/*
+	 * cfp_aggregate_group_path         JSON pointer of the group key, e.g. /tenantId
+	 * cfp_aggregate_value_path         numeric field to sum, count only when empty
+	 * aggregation_flush_interval_ms    default 1000, batches wait for the next flush
+	 * batch_max_conflict_retries       merges retried when another consumer got there first
+	 * aggregate_host, aggregate_key, aggregate_db, aggregate_col target container,
+	 * defaults to the feed account and database and a container named aggregates
+	 */
+	public static AggregationStage fromConfig(ConfigurationHelper helper) {
+		CosmosAsyncDAL target = CosmosAsyncDAL.getInstance(helper.getProperty("aggregate_host", helper.getProperty("host", null)),
+														   helper.getProperty("aggregate_key", helper.getProperty("key", null)),
+														   helper.getProperty("aggregate_db", helper.getProperty("db", null)),
+														   helper.getProperty("aggregate_col", "aggregates"));
+		return new AggregationStage(target,
+									helper.getProperty("cfp_aggregate_group_path", "/id"),
+									helper.getProperty("cfp_aggregate_value_path", ""),
+									Duration.ofMillis(helper.getLongProperty("aggregation_flush_interval_ms", 1000)));
+	}
+	
+	/*
+	 * Aggregates each batch once the downstream handler accepted it and
+	 * returns once the flush holding its changes is written
+	 */
+	public ChangeFeedBatchHandler wrap(ChangeFeedBatchHandler handler) {
+		return docs -> {
+			handler.handle(docs);
+			apply(docs).join();
+		};
+	}
+	
+	/*
+	 * Adds the batch to the table, the future completes with the flush that writes it
+	 */
+	public CompletableFuture<Void> apply(List<JsonNode> docs) {
+		synchronized(table) {
+			int groups = 0;
+			for(JsonNode document : docs) {
+				JsonNode group = document.at(groupPath);
+				if(group.isMissingNode() || group.isNull()) {
+					continue;
+				}
+				double value = Double.NaN;
+				if(valuePath != null) {
+					JsonNode node = document.at(valuePath);
+					if(node.isNumber()) {
+						value = node.asDouble();
+					}
+				}
+				table.add(group.asText(), value);
+				groups++;
+			}
+			return groups == 0 ? CompletableFuture.completedFuture(null) : nextFlush;
+		}
+	}
+	
+	public synchronized void start() {
+		if(flushes != null) {
+			return;
+		}
+		running = true;
+		// own thread, the handlers waiting for the flush may hold every boundedElastic worker
+		timer = Schedulers.newSingle("aggregation-flush", true);
+		// ends on the first tick after stop, a flush being written is not cancelled
+		flushes = Flux.interval(flushInterval, flushInterval, timer)
+					  .onBackpressureDrop()
+					  .takeWhile(tick -> running)
+					  .concatMap(tick -> flush().onErrorResume(e -> {
+						  GenericHelper.logError(e, LOGGER);
+						  return Mono.empty();
+					  }), 1)
+					  .then()
+					  .cache();
+		flushes.subscribe();
+	}
+	
+	/*
+	 * Stops the timer and flushes what is left. Batches still waiting when the
+	 * last changes cannot be written fail and are re-delivered.
+	 */
+	public synchronized Mono<Void> stop() {
+		Mono<Void> stopped = Mono.empty();
+		if(flushes != null) {
+			running = false;
+			stopped = flushes.doFinally(signal -> timer.dispose());
+			flushes = null;
+		}
+		return stopped.thenMany(flush().repeat(FINAL_FLUSH_ATTEMPTS - 1, () -> getDirtyCount() > 0))
+					  .then(Mono.fromRunnable(() -> {
+						  synchronized(table) {
+							  if(table.dirtyCount() > 0) {
+								  LOGGER.error(table.dirtyCount() + " aggregates not written on stop");
+							  }
+							  nextFlush.completeExceptionally(new IllegalStateException("Aggregation stage stopped"));
+							  nextFlush = new CompletableFuture<Void>();
+						  }
+					  }));
+	}
+	
+	/*
+	 * Merges the groups changed since the last flush
+	 */
+	public Mono<Void> flush() {
+		// the target is expected to be partitioned by a top level path, set to the group key
+		return target.getPartitionKeyPath().flatMap(path -> write(path.substring(1)));
+	}
+	
+	private Mono<Void> write(String pkField) {
+		List<Delta> deltas = new ArrayList<Delta>();
+		CompletableFuture<Void> flushed;
+		synchronized(table) {
+			table.drainDirty((key, count, sum, min, max) -> deltas.add(new Delta(key, count, sum, min, max)));
+			flushed = nextFlush;
+			nextFlush = new CompletableFuture<Void>();
+		}
+		if(deltas.isEmpty()) {
+			flushed.complete(null);
+			return Mono.empty();
+		}
+		AtomicInteger failed = new AtomicInteger();
+		return Flux.fromIterable(deltas)
+				   .flatMap(delta -> merge(pkField, delta).doOnNext(merged -> {
+					   if(!merged) {
+						   failed.incrementAndGet();
+						   synchronized(table) {
+							   table.add(delta.key, delta.count, delta.sum, delta.min, delta.max);
+						   }
+					   }
+				   }), FLUSH_CONCURRENCY)
+				   .then(Mono.fromRunnable(() -> {
+					   if(failed.get() == 0) {
+						   flushed.complete(null);
+						   return;
+					   }
+					   LOGGER.warn(failed.get() + " of " + deltas.size() + " aggregates not written, retrying next flush");
+					   // the batches waiting on this flush now wait for the one retrying their groups
+					   CompletableFuture<Void> retry;
+					   synchronized(table) {
+						   retry = nextFlush;
+					   }
+					   retry.whenComplete((v, e) -> {
+						   if(e != null) {
+							   flushed.completeExceptionally(e);
+						   }
+						   else {
+							   flushed.complete(null);
+						   }
+					   });
+				   }));
+	}
+	
+	private Mono<Boolean> merge(String pkField, Delta delta) {
+		return target.executeBatch(delta.key, Collections.singletonList(delta.key), current -> {
+			JsonNode stored = current.get(delta.key);
+			TransactionalBatch batch = new TransactionalBatch(delta.key);
+			if(stored == null) {
+				// a 409 when another consumer created it first, merged again next flush
+				return batch.create(delta.toDocument(pkField));
+			}
+			return batch.patch(delta.key, delta.toPatch(stored), stored.path("_etag").asText(null));
+		}).map(response -> {
+			if(response.isSuccess()) {
+				mergedGroups.increment();
+				return true;
+			}
+			failedMerges.increment();
+			logFailure(delta.key, response);
+			return false;
+		});
+	}
+	
+	private static void logFailure(String key, BatchResponse response) {
+		LOGGER.warn("Aggregate " + key + " not merged: " + response.getStatusCode()
+					+ (response.getErrorMessage() != null ? " " + response.getErrorMessage() : ""));
+	}
+	
+	public int getGroupCount() {
+		synchronized(table) {
+			return table.size();
+		}
+	}
+	
+	public int getDirtyCount() {
+		synchronized(table) {
+			return table.dirtyCount();
+		}
+	}
+	
+	public long getMergedGroups() {
+		return mergedGroups.sum();
+	}
+	
+	public long getFailedMerges() {
+		return failedMerges.sum();
+	}
+	
+	private static final class Delta {
+		private final String key;
+		private final long count;
+		private final double sum;
+		private final double min;
+		private final double max;
+		
+		Delta(String key, long count, double sum, double min, double max) {
+			this.key = key;
+			this.count = count;
+			this.sum = sum;
+			this.min = min;
+			this.max = max;
+		}
+		
+		boolean hasValues() {
+			return !Double.isInfinite(min);
+		}
+		
+		JsonNode toDocument(String pkField) {
+			ObjectNode document = JsonNodeFactory.instance.objectNode();
+			document.put("id", key);
+			document.put(pkField, key);
+			document.put("count", count);
+			if(hasValues()) {
+				document.put("sum", sum);
+				document.put("min", min);
+				document.put("max", max);
+			}
+			document.put("updatedAt", Instant.now().getEpochSecond());
+			return document;
+		}
+		
+		PatchOperations toPatch(JsonNode stored) {
+			PatchOperations operations = PatchOperations.create()
+														.increment("/count", count)
+														.set("/updatedAt", Instant.now().getEpochSecond());
+			if(hasValues()) {
+				operations.increment("/sum", sum)
+						  .set("/min", stored.has("min") ? Math.min(stored.path("min").asDouble(), min) : min)
+						  .set("/max", stored.has("max") ? Math.max(stored.path("max").asDouble(), max) : max);
+			}
+			return operations;
+		}
+	}
+}
@@ -1,16 +1,36 @@
 package com.microsoft.sample.cfp;
 
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.azure.cosmos.ChangeFeedProcessor;
 import com.azure.cosmos.ChangeFeedProcessorBuilder;
 import com.azure.cosmos.CosmosAsyncContainer;
 import com.azure.cosmos.models.ChangeFeedProcessorOptions;
+import com.azure.cosmos.models.ChangeFeedProcessorState;
+import com.fasterxml.jackson.core.JsonPointer;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.microsoft.sample.api.dal.CosmosAsyncDAL;
+import com.microsoft.sample.api.dal.DocumentContainer;
+import com.microsoft.sample.api.dal.ItemCache;
+import com.microsoft.sample.api.dal.memory.InMemoryContainer;
 import com.microsoft.sample.api.helpers.ConfigurationHelper;
+import com.microsoft.sample.api.helpers.GenericHelper;
+import com.microsoft.sample.api.helpers.ThroughputControlHelper;
+import com.microsoft.sample.api.metrics.HotKeyTracker;
+import com.microsoft.sample.sink.SegmentSink;
+
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
 public class Cfp {
 	
@@ -19,15 +39,105 @@ public class Cfp {
 	private Instant startTime;
 	private Instant endTime;
 	private CosmosAsyncContainer primaryContainer;
+	private DocumentContainer primaryDocuments;
 	private CosmosAsyncContainer leaseContainer;
 	private ChangeFeedProcessor changeFeedProcessor;
-	private int runCount;
+	private PullChangeFeedProcessor pullProcessor;
+	private CheckpointStore checkpointStore;
+	private ChangeFeedBatchHandler batchHandler;
+	private ChangeFeedPipeline pipeline;
+	private ItemCache itemCache;
+	private HotKeyTracker hotKeys;
+	private ChangeFeedDeduplicator deduplicator;
+	private AggregationStage aggregationStage;
+	private ChangeFeedMonitor monitor;
+	private SegmentSink sink;
+	private AtomicLong runCount = new AtomicLong();
+	
+	private static Logger LOGGER = LoggerFactory.getLogger(Cfp.class);
+	
+	/*
+	 * Host name from cfp_host_name, or the compute identifier of this process
+	 */
+	public Cfp(ConfigurationHelper helper, Instant sTime, Instant eTime) {
+		this(helper, sTime, eTime, resolveHostName(helper));
+	}
 	
 	public Cfp(ConfigurationHelper helper, Instant sTime, Instant eTime, String hostName) {
 		this.startTime = sTime;
 		this.endTime = eTime;
 		this.helper = helper;
 		this.hostName = hostName;
+		this.batchHandler = this::defaultBatchHandler;
+	}
+	
+	/*
+	 * Replaces the default handler, must be called before init()
+	 */
+	public void setBatchHandler(ChangeFeedBatchHandler batchHandler) {
+		this.batchHandler = batchHandler;
+	}
+	
+	/*
+	 * Handler reading documents through field projections, must be called
+	 * before init()
+	 */
+	public void setLazyBatchHandler(LazyChangeFeedBatchHandler batchHandler) {
+		this.batchHandler = LazyChangeFeedBatchHandler.adapt(batchHandler);
+	}
+	
+	/*
+	 * Available after init(), exposes capacity and stripe queue depths
+	 */
+	public ChangeFeedPipeline getPipeline() {
+		return pipeline;
+	}
+	
+	/*
+	 * Per lease lag and throughput, available after init()
+	 */
+	public ChangeFeedMonitor getMonitor() {
+		return monitor;
+	}
+	
+	/*
+	 * Lease token to estimated lag in documents, in pull mode the token is the
+	 * feed range index and the lag is 0 when caught up or -1 while behind
+	 */
+	public Mono<Map<String, Integer>> getEstimatedLag() {
+		if(pullProcessor == null) {
+			return changeFeedProcessor.getEstimatedLag();
+		}
+		return pullProcessor.getCurrentState().map(states -> {
+			Map<String, Integer> lag = new TreeMap<String, Integer>();
+			states.forEach(state -> lag.put(state.getLeaseToken(), state.getEstimatedLag()));
+			return lag;
+		});
+	}
+	
+	public Mono<List<ChangeFeedProcessorState>> getCurrentState() {
+		return pullProcessor != null ? pullProcessor.getCurrentState() : changeFeedProcessor.getCurrentState();
+	}
+	
+	/*
+	 * Changed documents per partition key, null unless hot_keys_enabled is set
+	 */
+	public HotKeyTracker getHotKeyTracker() {
+		return hotKeys;
+	}
+	
+	/*
+	 * Null unless cfp_aggregate_enabled is set
+	 */
+	public AggregationStage getAggregationStage() {
+		return aggregationStage;
+	}
+	
+	/*
+	 * Null unless cfp_dedupe_enabled is set
+	 */
+	public ChangeFeedDeduplicator getDeduplicator() {
+		return deduplicator;
 	}
 	
 	public Boolean init() {
@@ -37,13 +147,60 @@ public class Cfp {
 																				helper.getProperty("db"),
 																				helper.getProperty("col"));
 			primaryContainer = cosmosAsyncDALPrimary.getAsyncContainer();
+			primaryDocuments = cosmosAsyncDALPrimary.getDocumentContainer();
 			
-			CosmosAsyncDAL cosmosAsyncDALLease = CosmosAsyncDAL.getInstance(helper.getProperty("lease_host"), 
-																			helper.getProperty("lease_key"),
-																			helper.getProperty("lease_db"),
-																			helper.getProperty("lease_col"));
-			leaseContainer = cosmosAsyncDALLease.getAsyncContainer();
-			initChangeFeedProcessor();
+			// a single node pull consumer only needs the lease container for cosmos checkpoints
+			boolean pullMode = isPullMode();
+			String storeType = helper.getProperty("cfp_checkpoint_store", "file");
+			CosmosAsyncDAL cosmosAsyncDALLease = null;
+			if(!pullMode || "cosmos".equals(storeType)) {
+				cosmosAsyncDALLease = CosmosAsyncDAL.getInstance(helper.getProperty("lease_host"), 
+																 helper.getProperty("lease_key"),
+																 helper.getProperty("lease_db"),
+																 helper.getProperty("lease_col"));
+				leaseContainer = cosmosAsyncDALLease.getAsyncContainer();
+			}
+			
+			// keep the read-through cache of the feed container coherent
+			itemCache = cosmosAsyncDALPrimary.getItemCache();
+			if(itemCache != null) {
+				itemCache.setPartitionKeyPath(cosmosAsyncDALPrimary.getPartitionKeyPath().block());
+			}
+			ChangeFeedBatchHandler handler = cacheAwareHandler();
+			if(HotKeyTracker.isEnabled()) {
+				// writes of every client as they reach the feed, the feed has no per document charge
+				hotKeys = HotKeyTracker.forContainer(ItemCache.containerKey(helper.getProperty("host"), helper.getProperty("db"),
+																			helper.getProperty("col")) + "/changefeed");
+				handler = hotKeyHandler(handler, JsonPointer.compile(cosmosAsyncDALPrimary.getPartitionKeyPath().block()));
+			}
+			if(helper.getBooleanProperty("cfp_sink_enabled", false)) {
+				sink = SegmentSink.fromConfig(helper);
+				handler = sink.wrap(handler);
+			}
+			if(helper.getBooleanProperty("cfp_aggregate_enabled", false)) {
+				aggregationStage = AggregationStage.fromConfig(helper);
+				handler = aggregationStage.wrap(handler);
+			}
+			if(helper.getBooleanProperty("cfp_dedupe_enabled", false)) {
+				deduplicator = ChangeFeedDeduplicator.fromConfig(helper);
+				handler = deduplicator.wrap(handler);
+			}
+			pipeline = ChangeFeedPipeline.fromConfig(helper, handler);
+			monitor = ChangeFeedMonitor.fromConfig(helper);
+			if(pullMode) {
+				checkpointStore = createCheckpointStore(storeType, cosmosAsyncDALLease);
+				if(sink != null) {
+					// the store closes the sink after the last checkpoint
+					checkpointStore = sink.syncBefore(checkpointStore);
+				}
+				pullProcessor = PullChangeFeedProcessor.fromConfig(helper, hostName, primaryDocuments, checkpointStore,
+																   pipeline, startTime, monitor);
+				monitor.setStateSource(pullProcessor::getCurrentState);
+			}
+			else {
+				initChangeFeedProcessor();
+				monitor.setStateSource(changeFeedProcessor::getCurrentState);
+			}
 		}
 		catch(Exception exp) {
 			System.out.println(exp.getMessage());
@@ -52,43 +209,244 @@ public class Cfp {
 		return true;
 	}
 	
+	/*
+	 * Bounded backfill of [startTime, endTime] over all feed ranges,
+	 * runs independently of the lease based processor
+	 */
+	public Mono<ReplayEngine.ReplayResult> replay() {
+		return ReplayEngine.fromConfig(helper, primaryDocuments, batchHandler).replay(startTime, endTime);
+	}
+	
 	public void start() {
-		runCount = 0;
-		this.changeFeedProcessor.start().subscribe();
+		runCount.set(0);
+		if(aggregationStage != null) {
+			aggregationStage.start();
+		}
+		if(helper.getBooleanProperty("cfp_monitor_enabled", true)) {
+			monitor.start();
+		}
+		if(pullProcessor != null) {
+			this.pullProcessor.start().subscribe();
+		}
+		else {
+			this.changeFeedProcessor.start().subscribe();
+		}
 	}
+	
+	/*
+	 * Graceful drain, blocks until the leases are released and every handled
+	 * batch is checkpointed, see stopAsync()
+	 */
 	public void stop() {
-		this.changeFeedProcessor.stop().subscribe();
+		stopAsync().block();
+	}
+	
+	/*
+	 * cfp_drain_timeout_ms                 wait for in-flight batches (default 30000)
+	 * cfp_drain_checkpoint_grace_ms        lease mode, time left to the processor to
+	 *                                      checkpoint the drained batches (default 1000)
+	 * 
+	 * Pull mode finishes the page being read on every range and flushes the
+	 * checkpoints. Lease mode rejects new batches, which are not checkpointed
+	 * and go to the next owner, and waits for the in-flight ones before the
+	 * processor releases its leases.
+	 */
+	public Mono<Void> stopAsync() {
+		Duration drainTimeout = Duration.ofMillis(helper.getLongProperty("cfp_drain_timeout_ms", 30000));
+		monitor.stop();
+		Mono<Void> stopped;
+		if(pullProcessor != null) {
+			stopped = this.pullProcessor.stop(drainTimeout)
+										.doFinally(signal -> closeCheckpointStore());
+		}
+		else {
+			Duration grace = Duration.ofMillis(helper.getLongProperty("cfp_drain_checkpoint_grace_ms", 1000));
+			stopped = Mono.fromCallable(() -> pipeline.drain(drainTimeout))
+						  .subscribeOn(Schedulers.boundedElastic())
+						  .doOnNext(drained -> LOGGER.info("Host " + hostName + (drained ? " drained" : " drain timed out") + ", releasing leases"))
+						  .then(Mono.delay(grace))
+						  .then(this.changeFeedProcessor.stop());
+			if(sink != null) {
+				stopped = stopped.doFinally(signal -> closeSink());
+			}
+		}
+		// drained batches wait for their aggregates, the last ones are flushed once no more arrive
+		if(aggregationStage != null) {
+			stopped = stopped.then(aggregationStage.stop());
+		}
+		return stopped.then(Mono.fromRunnable(() -> pipeline.shutdown(drainTimeout)));
+	}
+	
+	public String getHostName() {
+		return hostName;
+	}
+	
+	static String resolveHostName(ConfigurationHelper helper) {
+		String hostName = helper.getProperty("cfp_host_name", "");
+		return hostName.isEmpty() ? GenericHelper.getCurrentComputeIdentifier() : hostName;
+	}
+	
+	/*
+	 * Checkpoints must be found again by the next process, the host name may
+	 * be a random id per process and only identifies the lease owner
+	 */
+	static String checkpointPrefix(ConfigurationHelper helper) {
+		String leasePrefix = helper.getProperty("cfp_lease_prefix", "");
+		return leasePrefix.isEmpty() ? helper.getProperty("db", "") + "." + helper.getProperty("col", "") : leasePrefix;
+	}
+	
+	/*
+	 * The lease based processor needs an SDK container, in-memory containers
+	 * are always consumed in pull mode
+	 */
+	private boolean isPullMode() {
+		if(InMemoryContainer.isEnabled()) {
+			return true;
+		}
+		return "pull".equals(helper.getProperty("cfp_mode", "processor"));
+	}
+	
+	/*
+	 * memory | file | cosmos, cosmos checkpoints live in the lease container
+	 */
+	private CheckpointStore createCheckpointStore(String storeType, CosmosAsyncDAL leaseDAL) throws IOException {
+		switch(storeType) {
+			case "memory":
+				return new InMemoryCheckpointStore();
+			case "cosmos":
+				if(leaseDAL.getAsyncContainer() == null) {
+					throw new IllegalArgumentException("The cosmos checkpoint store needs an SDK lease container");
+				}
+				return new CosmosCheckpointStore(leaseDAL.getAsyncContainer(),
+												 leaseDAL.getPartitionKeyPath().block(),
+												 checkpointPrefix(helper));
+			case "file":
+				return new FileCheckpointStore(Paths.get(helper.getProperty("cfp_checkpoint_file", "cfp-checkpoints.log")),
+											   helper.getLongProperty("cfp_checkpoint_compact_bytes", 1024 * 1024));
+			default:
+				throw new IllegalArgumentException("Unknown checkpoint store " + storeType);
+		}
+	}
+	
+	private void closeCheckpointStore() {
+		try {
+			checkpointStore.close();
+		}
+		catch(IOException exp) {
+			LOGGER.error("Unable to close checkpoint store: " + exp.getMessage());
+		}
+	}
+	
+	private void closeSink() {
+		try {
+			sink.close();
+		}
+		catch(IOException exp) {
+			LOGGER.error("Unable to close change feed sink: " + exp.getMessage());
+		}
+	}
+	
+	private ChangeFeedBatchHandler hotKeyHandler(ChangeFeedBatchHandler handler, JsonPointer partitionKeyPointer) {
+		HotKeyTracker tracker = hotKeys;
+		return docs -> {
+			for(JsonNode document : docs) {
+				JsonNode partitionKey = document.at(partitionKeyPointer);
+				if(!partitionKey.isMissingNode()) {
+					tracker.record(partitionKey.asText(), 0, false);
+				}
+			}
+			handler.handle(docs);
+		};
+	}
+	
+	private ChangeFeedBatchHandler cacheAwareHandler() {
+		if(itemCache == null) {
+			return batchHandler;
+		}
+		ItemCache cache = itemCache;
+		ChangeFeedBatchHandler handler = batchHandler;
+		return docs -> {
+			cache.onChanges(docs);
+			handler.handle(docs);
+		};
 	}
 	
+	/*
+	 * Lease balancing between hosts sharing the lease container
+	 * cfp_lease_acquire_interval_ms      scan for unowned or expired leases (SDK default 13s)
+	 * cfp_lease_renew_interval_ms        ownership renewal (SDK default 17s)
+	 * cfp_lease_expiration_interval_ms   leases not renewed within this are taken over (SDK default 60s)
+	 * cfp_max_leases_per_host            0 for no limit
+	 * cfp_lease_prefix                   separates processors sharing a lease container
+	 */
 	private void initChangeFeedProcessor() {	
+		// lease processor options are fixed once built, only the pull mode adapts per range
+		AdaptiveFeedController feedSettings = AdaptiveFeedController.fromConfig(helper);
 		ChangeFeedProcessorOptions cfpOptions = new ChangeFeedProcessorOptions();
-		cfpOptions.setFeedPollDelay(Duration.ofMillis(100));
+		cfpOptions.setFeedPollDelay(Duration.ofMillis(feedSettings.getPollDelayMillis()));
+		cfpOptions.setMaxItemCount(feedSettings.getMaxItemCount());
 		cfpOptions.setStartTime(startTime);
+		long acquireInterval = helper.getLongProperty("cfp_lease_acquire_interval_ms", 0);
+		if(acquireInterval > 0) {
+			cfpOptions.setLeaseAcquireInterval(Duration.ofMillis(acquireInterval));
+		}
+		long renewInterval = helper.getLongProperty("cfp_lease_renew_interval_ms", 0);
+		if(renewInterval > 0) {
+			cfpOptions.setLeaseRenewInterval(Duration.ofMillis(renewInterval));
+		}
+		long expirationInterval = helper.getLongProperty("cfp_lease_expiration_interval_ms", 0);
+		if(expirationInterval > 0) {
+			cfpOptions.setLeaseExpirationInterval(Duration.ofMillis(expirationInterval));
+		}
+		int maxLeases = helper.getIntProperty("cfp_max_leases_per_host", 0);
+		if(maxLeases > 0) {
+			cfpOptions.setMaxScaleCount(maxLeases);
+		}
+		String leasePrefix = helper.getProperty("cfp_lease_prefix", "");
+		if(!leasePrefix.isEmpty()) {
+			cfpOptions.setLeasePrefix(leasePrefix);
+		}
+		LOGGER.info("Lease processor host " + hostName);
 		
 		changeFeedProcessor = new ChangeFeedProcessorBuilder()
 										.options(cfpOptions)
 										.hostName(hostName)
-										.feedContainer(primaryContainer)
+										.feedContainer(getFeedContainer())
 										.leaseContainer(leaseContainer)
-										.handleChanges((List<JsonNode> docs) -> {
-								            for (JsonNode document : docs) {
-								            	changeFeedHandler(document);
-								            }
-
-								        })
+										.handleChanges(pipeline::accept)
 								        .buildChangeFeedProcessor();
 	}
 	
+	/*
+	 * Processor options cannot carry a throughput control group, a controlled
+	 * feed is read through its own client where the change feed group is the
+	 * default. Lease reads and writes stay on the shared client.
+	 */
+	private CosmosAsyncContainer getFeedContainer() {
+		return ThroughputControlHelper.getWorkloadContainer(primaryContainer, helper.getProperty("host", null), helper.getProperty("key", null),
+															helper.getProperty("db", null), helper.getProperty("col", null),
+															ThroughputControlHelper.CHANGE_FEED);
+	}
+	
+	/*
+	 * The window is applied per batch, documents past endTime are skipped
+	 * without stopping the processor since other leases may still be
+	 * inside the window. Use replay() for a bounded run that completes.
+	 */
+	private void defaultBatchHandler(List<JsonNode> docs) {
+		long endEpoch = endTime.getEpochSecond();
+		for (JsonNode document : docs) {
+			if(document.path("_ts").asLong() <= endEpoch) {
+				changeFeedHandler(document);
+			}
+		}
+	}
+	
 	private void changeFeedHandler(JsonNode document) {
-		long _ts = document.get("_ts").asLong();
-		System.out.println(runCount);
-		runCount++;
-		
-		if(Instant.ofEpochSecond(_ts).isAfter(endTime)) {
-			System.out.println(_ts + "<--------------->" + endTime.getEpochSecond());
-			stop();
+		long count = runCount.incrementAndGet();
+		if(LOGGER.isDebugEnabled()) {
+			LOGGER.debug(count + ": " + document.toPrettyString());
 		}
-		System.out.println(document.toPrettyString());
 	}
 
 }
\ No newline at end of file
@@ -0,0 +1,17 @@
+package com.microsoft.sample.cfp;
+
+import java.util.List;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Batch level callback for change feed documents.
+ * A batch handed to the handler may be a slice of the batch delivered
+ * for a lease when the pipeline runs with parallelism greater than one.
+ */
+@FunctionalInterface
+public interface ChangeFeedBatchHandler {
+	
+	void handle(List<JsonNode> docs) throws Exception;
+	
+}
@@ -0,0 +1,223 @@
+package com.microsoft.sample.cfp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.microsoft.sample.api.helpers.ConfigurationHelper;
+
+/**
+ * Drops change feed documents that were already handled, as happens when a
+ * lease is re-delivered after a rebalance or restart.
+ * 
+ * A document version is identified by a 64-bit hash of its id, _lsn and
+ * _etag. Hashes live in a primitive open addressing table (linear probing)
+ * next to a ring of insertion times, allocated once at up to 48 bytes per
+ * tracked version. Versions expire after {@code ttlMillis}, the oldest version is
+ * evicted once the table is full. A hash collision drops a document, at a
+ * million tracked versions the odds are around 1 in 10^7.
+ * 
+ * Versions are only recorded after the wrapped handler succeeded, so a
+ * failed batch is handled again on retry.
+ */
+public class ChangeFeedDeduplicator {
+	
+	private static final int BYTES_PER_ENTRY = 48;
+	
+	private final int capacity;
+	private final long ttlMillis;
+	private final LongSupplier clock;
+	
+	// hash set, 0 marks an empty slot
+	private final long[] table;
+	private final int mask;
+	// insertion order, head is the oldest version
+	private final long[] ringKeys;
+	private final long[] ringTimes;
+	private int head;
+	private int size;
+	
+	private final AtomicLong duplicates = new AtomicLong();
+	
+	public ChangeFeedDeduplicator(long maxMemoryBytes, long ttlMillis) {
+		this(maxMemoryBytes, ttlMillis, System::currentTimeMillis);
+	}
+	
+	ChangeFeedDeduplicator(long maxMemoryBytes, long ttlMillis, LongSupplier clock) {
+		this.capacity = (int) Math.max(16, Math.min(1 << 29, maxMemoryBytes / BYTES_PER_ENTRY));
+		this.ttlMillis = ttlMillis;
+		this.clock = clock;
+		this.table = new long[Integer.highestOneBit(capacity - 1) << 2];
+		this.mask = table.length - 1;
+		this.ringKeys = new long[capacity];
+		this.ringTimes = new long[capacity];
+	}
+	
+	/*
+	 * cfp_dedupe_max_memory_mb   memory for tracked versions (default 64)
+	 * cfp_dedupe_ttl_ms          how long a version is remembered (default 1 hour)
+	 */
+	public static ChangeFeedDeduplicator fromConfig(ConfigurationHelper helper) {
+		return new ChangeFeedDeduplicator(helper.getLongProperty("cfp_dedupe_max_memory_mb", 64) * 1024 * 1024,
+										  helper.getLongProperty("cfp_dedupe_ttl_ms", 3600000));
+	}
+	
+	public ChangeFeedBatchHandler wrap(ChangeFeedBatchHandler handler) {
+		return docs -> {
+			long[] hashes = new long[docs.size()];
+			List<JsonNode> fresh = filter(docs, hashes);
+			if(fresh.isEmpty()) {
+				return;
+			}
+			handler.handle(fresh);
+			record(hashes);
+		};
+	}
+	
+	/*
+	 * Returns the documents not seen before, hashes of those are written to
+	 * the front of the hashes array and the remainder is zeroed
+	 */
+	synchronized List<JsonNode> filter(List<JsonNode> docs, long[] hashes) {
+		expire(clock.getAsLong());
+		List<JsonNode> fresh = new ArrayList<JsonNode>(docs.size());
+		int count = 0;
+		for(JsonNode document : docs) {
+			long hash = hash(document);
+			if(contains(hash) || containsFirst(hashes, count, hash)) {
+				duplicates.incrementAndGet();
+				continue;
+			}
+			hashes[count++] = hash;
+			fresh.add(document);
+		}
+		for(int i = count; i < hashes.length; i++) {
+			hashes[i] = 0;
+		}
+		return fresh;
+	}
+	
+	synchronized void record(long[] hashes) {
+		long now = clock.getAsLong();
+		for(long hash : hashes) {
+			if(hash == 0) {
+				break;
+			}
+			if(contains(hash)) {
+				continue;
+			}
+			if(size == capacity) {
+				evictOldest();
+			}
+			insert(hash);
+			int tail = (head + size) % capacity;
+			ringKeys[tail] = hash;
+			ringTimes[tail] = now;
+			size++;
+		}
+	}
+	
+	public long getDuplicateCount() {
+		return duplicates.get();
+	}
+	
+	public synchronized int size() {
+		return size;
+	}
+	
+	public int capacity() {
+		return capacity;
+	}
+	
+	private static boolean containsFirst(long[] hashes, int count, long hash) {
+		for(int i = 0; i < count; i++) {
+			if(hashes[i] == hash) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private void expire(long now) {
+		while(size > 0 && now - ringTimes[head] >= ttlMillis) {
+			evictOldest();
+		}
+	}
+	
+	private void evictOldest() {
+		remove(ringKeys[head]);
+		head = (head + 1) % capacity;
+		size--;
+	}
+	
+	private boolean contains(long hash) {
+		for(int slot = slot(hash); table[slot] != 0; slot = (slot + 1) & mask) {
+			if(table[slot] == hash) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private void insert(long hash) {
+		int slot = slot(hash);
+		while(table[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		table[slot] = hash;
+	}
+	
+	/*
+	 * Backward shift deletion keeps probe chains intact without tombstones
+	 */
+	private void remove(long hash) {
+		int slot = slot(hash);
+		while(table[slot] != hash) {
+			if(table[slot] == 0) {
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+		int gap = slot;
+		for(int next = (gap + 1) & mask; table[next] != 0; next = (next + 1) & mask) {
+			int home = slot(table[next]);
+			// move the entry back unless its home lies cyclically in (gap, next]
+			if(((next - home) & mask) >= ((next - gap) & mask)) {
+				table[gap] = table[next];
+				gap = next;
+			}
+		}
+		table[gap] = 0;
+	}
+	
+	private int slot(long hash) {
+		return (int) (hash ^ (hash >>> 32)) & mask;
+	}
+	
+	static long hash(JsonNode document) {
+		long hash = 0xcbf29ce484222325L;
+		hash = mix(hash, document.path("id").asText());
+		hash = mix(hash, document.path("_lsn").asText());
+		hash = mix(hash, document.path("_etag").asText());
+		// murmur3 finalizer spreads the FNV bits over the whole word
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash == 0 ? 1 : hash;
+	}
+	
+	private static long mix(long hash, String value) {
+		for(int i = 0; i < value.length(); i++) {
+			hash ^= value.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		// separator so ("ab","c") and ("a","bc") differ
+		hash ^= 0xff;
+		hash *= 0x100000001b3L;
+		return hash;
+	}
+}
@@ -0,0 +1,192 @@
+package com.microsoft.sample.cfp;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.azure.cosmos.models.ChangeFeedProcessorState;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.microsoft.sample.api.helpers.ConfigurationHelper;
+import com.microsoft.sample.api.helpers.GenericHelper;
+import com.microsoft.sample.api.metrics.CosmosMetrics;
+import com.microsoft.sample.api.metrics.Histogram;
+import com.microsoft.sample.api.metrics.MetricsRegistry;
+import com.microsoft.sample.api.metrics.OperationType;
+
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Per lease lag and throughput of the change feed consumer.
+ * 
+ * Every interval the current state of the processor (lease owner, estimated
+ * lag, continuation) is sampled and the per lease rates are rolled. Each lease
+ * is published as cfp.lease.&lt;token&gt;.* gauges to the metrics registry and
+ * as the changeFeed section of {@link CosmosMetrics#toJson()}, which the
+ * {@link com.microsoft.sample.api.metrics.MetricsEndpoint} serves.
+ */
+public class ChangeFeedMonitor {
+	
+	private static Logger LOGGER = LoggerFactory.getLogger(ChangeFeedMonitor.class);
+	private static CosmosMetrics METRICS = CosmosMetrics.getInstance();
+	private static final String GAUGE_PREFIX = "cfp.lease.";
+	
+	private final Duration interval;
+	private final MetricsRegistry registry;
+	private final ConcurrentHashMap<String, LeaseStats> leases = new ConcurrentHashMap<String, LeaseStats>();
+	private Supplier<Mono<List<ChangeFeedProcessorState>>> stateSource;
+	private Disposable sampler;
+	private long lastRollNanos;
+	
+	public ChangeFeedMonitor(Duration interval, MetricsRegistry registry) {
+		this.interval = interval;
+		this.registry = registry;
+	}
+	
+	/*
+	 * cfp_monitor_interval_ms   state sampling and rate interval (default 10000)
+	 */
+	public static ChangeFeedMonitor fromConfig(ConfigurationHelper helper) {
+		return new ChangeFeedMonitor(Duration.ofMillis(helper.getLongProperty("cfp_monitor_interval_ms", 10000)), METRICS);
+	}
+	
+	/*
+	 * Source of the per lease state, the processor or pull getCurrentState
+	 */
+	public void setStateSource(Supplier<Mono<List<ChangeFeedProcessorState>>> stateSource) {
+		this.stateSource = stateSource;
+	}
+	
+	public void recordBatch(String leaseToken, int docs, long handlerMicros, long lastDocumentTimestamp) {
+		lease(leaseToken).recordBatch(docs, handlerMicros, lastDocumentTimestamp);
+	}
+	
+	public void recordCaughtUp(String leaseToken) {
+		lease(leaseToken).recordCaughtUp();
+	}
+	
+	public synchronized void start() {
+		if(sampler != null) {
+			return;
+		}
+		lastRollNanos = System.nanoTime();
+		METRICS.registerSection("changeFeed", this::toJson);
+		// stop unregistered the gauges of the leases already known
+		leases.values().forEach(this::registerGauges);
+		sampler = Flux.interval(interval)
+					  .onBackpressureDrop()
+					  .concatMap(tick -> sample(), 1)
+					  .subscribe();
+	}
+	
+	public synchronized void stop() {
+		if(sampler != null) {
+			sampler.dispose();
+			sampler = null;
+		}
+		METRICS.unregisterSection("changeFeed");
+		registry.unregisterGauges(GAUGE_PREFIX);
+	}
+	
+	/*
+	 * Pulls the current state and rolls the rates, errors are logged so a
+	 * failed sample does not stop sampling
+	 */
+	public Mono<Void> sample() {
+		Mono<Void> states = stateSource == null ? Mono.empty() :
+			stateSource.get()
+					   .doOnNext(list -> list.forEach(state -> lease(state.getLeaseToken())
+							   .recordState(state.getHostName(), state.getEstimatedLag(), state.getContinuationToken())))
+					   .then();
+		return states.onErrorResume(e -> {
+						 LOGGER.warn("Unable to read change feed processor state");
+						 GenericHelper.logError(e, LOGGER);
+						 return Mono.empty();
+					 })
+					 .doOnTerminate(this::roll);
+	}
+	
+	private synchronized void roll() {
+		long now = System.nanoTime();
+		long elapsed = now - lastRollNanos;
+		lastRollNanos = now;
+		for(LeaseStats stats : leases.values()) {
+			stats.roll(elapsed);
+		}
+	}
+	
+	public LeaseStats getLease(String leaseToken) {
+		return leases.get(leaseToken);
+	}
+	
+	/*
+	 * Lease token to estimated lag in documents as of the last sample
+	 */
+	public Map<String, Long> getEstimatedLag() {
+		Map<String, Long> lag = new TreeMap<String, Long>();
+		leases.forEach((token, stats) -> lag.put(token, stats.getEstimatedLag()));
+		return lag;
+	}
+	
+	/*
+	 * Sum over the leases, -1 when the lag of any lease is unknown
+	 */
+	public long getTotalEstimatedLag() {
+		long total = 0;
+		for(LeaseStats stats : leases.values()) {
+			long lag = stats.getEstimatedLag();
+			if(lag < 0) {
+				return -1;
+			}
+			total += lag;
+		}
+		return total;
+	}
+	
+	private LeaseStats lease(String leaseToken) {
+		LeaseStats stats = leases.get(leaseToken);
+		if(stats != null) {
+			return stats;
+		}
+		return leases.computeIfAbsent(leaseToken, token -> {
+			LeaseStats created = new LeaseStats(token);
+			registerGauges(created);
+			return created;
+		});
+	}
+	
+	private void registerGauges(LeaseStats stats) {
+		String prefix = GAUGE_PREFIX + stats.getLeaseToken() + ".";
+		registry.registerGauge(prefix + "estimated_lag", stats::getEstimatedLag);
+		registry.registerGauge(prefix + "lag_seconds", stats::getLagSeconds);
+		registry.registerGauge(prefix + "documents_per_second", stats::getDocumentsPerSecond);
+		registry.registerGauge(prefix + "batches_per_second", stats::getBatchesPerSecond);
+		registry.registerGauge(prefix + "ownership_changes", stats::getOwnershipChanges);
+		registry.registerGauge(prefix + "handler_p99_micros",
+							   () -> stats.getHandlerMicros().snapshot().getValueAtPercentile(99));
+	}
+	
+	public ObjectNode toJson() {
+		ObjectNode node = JsonNodeFactory.instance.objectNode();
+		node.put("totalEstimatedLag", getTotalEstimatedLag());
+		// the pipeline sees every batch, also those not attributed to a lease
+		Histogram.Snapshot handler = METRICS.get(OperationType.CHANGE_FEED_BATCH).getLatencyMicros().snapshot();
+		ObjectNode handlerNode = node.putObject("handlerLatencyMicros");
+		handlerNode.put("count", handler.getCount());
+		handlerNode.put("p50", handler.getValueAtPercentile(50));
+		handlerNode.put("p90", handler.getValueAtPercentile(90));
+		handlerNode.put("p99", handler.getValueAtPercentile(99));
+		handlerNode.put("max", handler.getMax());
+		ObjectNode leaseNode = node.putObject("leases");
+		new TreeMap<String, LeaseStats>(leases).forEach((token, stats) -> leaseNode.set(token, stats.toJson()));
+		return node;
+	}
+}
@@ -0,0 +1,253 @@
+package com.microsoft.sample.cfp;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.microsoft.sample.api.helpers.ConfigurationHelper;
+import com.microsoft.sample.api.helpers.GenericHelper;
+import com.microsoft.sample.api.metrics.CosmosMetrics;
+import com.microsoft.sample.api.metrics.OperationType;
+
+/**
+ * Bounded asynchronous stage between the change feed processor callback and
+ * the user supplied {@link ChangeFeedBatchHandler}.
+ * 
+ * Every batch delivered for a lease is split into at most {@code parallelism}
+ * slices which run on a shared worker pool. At most {@code maxInFlightBatches}
+ * batches are outstanding at any time, once the limit is reached the lease
+ * thread blocks until a batch completes (backpressure towards the feed).
+ * 
+ * When {@code awaitCompletion} is set the callback returns only after all
+ * slices of the batch are done, so a lease is checkpointed only after its
+ * documents were handled. Otherwise the callback returns as soon as the batch
+ * is queued and failures are only logged.
+ * 
+ * With a {@link PartitionKeyDispatcher} the batch is split by partition key
+ * over its stripes instead, keeping per key order.
+ * 
+ * {@link #drain} rejects new batches and waits for the outstanding ones, so a
+ * consumer can give up its leases without losing or replaying handled work.
+ */
+public class ChangeFeedPipeline {
+	
+	private static Logger LOGGER = LoggerFactory.getLogger(ChangeFeedPipeline.class);
+	private static CosmosMetrics METRICS = CosmosMetrics.getInstance();
+	
+	private final ChangeFeedBatchHandler handler;
+	private final int parallelism;
+	private final boolean awaitCompletion;
+	private final Semaphore inFlight;
+	private final int maxInFlightBatches;
+	private volatile boolean draining;
+	private final ExecutorService workers;
+	private final PartitionKeyDispatcher stripes;
+	
+	public ChangeFeedPipeline(ChangeFeedBatchHandler handler, int parallelism, int workerThreads,
+							  int maxInFlightBatches, boolean awaitCompletion) {
+		this(handler, parallelism, workerThreads, maxInFlightBatches, awaitCompletion, null);
+	}
+	
+	public ChangeFeedPipeline(ChangeFeedBatchHandler handler, int parallelism, int workerThreads,
+							  int maxInFlightBatches, boolean awaitCompletion, PartitionKeyDispatcher stripes) {
+		this.handler = handler;
+		this.stripes = stripes;
+		this.parallelism = Math.max(1, parallelism);
+		this.awaitCompletion = awaitCompletion;
+		this.maxInFlightBatches = Math.max(1, maxInFlightBatches);
+		this.inFlight = new Semaphore(this.maxInFlightBatches);
+		// striped batches run on the threads of the dispatcher
+		this.workers = stripes != null ? null : new ThreadPoolExecutor(Math.max(1, workerThreads), Math.max(1, workerThreads),
+																	   60L, TimeUnit.SECONDS,
+																	   new LinkedBlockingQueue<Runnable>(),
+																	   new WorkerThreadFactory());
+	}
+	
+	/*
+	 * cfp_parallelism            slices per lease batch (default 1)
+	 * cfp_worker_threads         shared worker pool size (default available processors)
+	 * cfp_max_inflight_batches   outstanding batches before the lease thread blocks
+	 * cfp_await_batch_completion block the callback until the batch is handled (default true)
+	 * cfp_partition_key_path     stripe documents by this path instead of slicing (default off)
+	 * cfp_stripes                stripes when partitioned (default cfp_worker_threads)
+	 */
+	public static ChangeFeedPipeline fromConfig(ConfigurationHelper helper, ChangeFeedBatchHandler handler) {
+		int cores = Runtime.getRuntime().availableProcessors();
+		int workerThreads = helper.getIntProperty("cfp_worker_threads", cores);
+		String partitionKeyPath = helper.getProperty("cfp_partition_key_path", "");
+		PartitionKeyDispatcher stripes = null;
+		if(!partitionKeyPath.isEmpty()) {
+			stripes = new PartitionKeyDispatcher(handler, partitionKeyPath, helper.getIntProperty("cfp_stripes", workerThreads));
+		}
+		return new ChangeFeedPipeline(handler,
+									  helper.getIntProperty("cfp_parallelism", 1),
+									  workerThreads,
+									  helper.getIntProperty("cfp_max_inflight_batches", cores * 2),
+									  helper.getBooleanProperty("cfp_await_batch_completion", true),
+									  stripes);
+	}
+	
+	/*
+	 * Entry point for the change feed processor handleChanges callback
+	 */
+	public void accept(List<JsonNode> docs) {
+		submit(docs);
+	}
+	
+	/*
+	 * As accept, returns the batch which is already done when awaiting
+	 * completion and completes with the handler otherwise
+	 */
+	public CompletableFuture<Void> submit(List<JsonNode> docs) {
+		if(docs == null || docs.isEmpty()) {
+			return CompletableFuture.completedFuture(null);
+		}
+		if(draining) {
+			// not checkpointed, the next owner of the lease reads the batch again
+			throw new IllegalStateException("Pipeline is draining, batch of " + docs.size() + " rejected");
+		}
+		try {
+			inFlight.acquire();
+		}
+		catch(InterruptedException exp) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for pipeline capacity", exp);
+		}
+		
+		long startNanos = System.nanoTime();
+		CompletableFuture<Void> batch;
+		try {
+			batch = dispatch(docs);
+		}
+		catch(RuntimeException exp) {
+			inFlight.release();
+			throw exp;
+		}
+		batch.whenComplete((r, e) -> {
+			inFlight.release();
+			METRICS.record(OperationType.CHANGE_FEED_BATCH, (System.nanoTime() - startNanos) / 1000, 0, e == null ? 200 : 500, 0);
+			METRICS.get(OperationType.CHANGE_FEED_BATCH).addItems(docs.size());
+			if(e != null && !awaitCompletion) {
+				GenericHelper.logError(e, LOGGER);
+			}
+		});
+		
+		if(awaitCompletion) {
+			try {
+				batch.join();
+			}
+			catch(CompletionException exp) {
+				// rethrow so the processor does not checkpoint the batch
+				Throwable cause = exp.getCause() != null ? exp.getCause() : exp;
+				GenericHelper.logError(cause, LOGGER);
+				throw cause instanceof RuntimeException ? (RuntimeException) cause : new IllegalStateException(cause);
+			}
+		}
+		return batch;
+	}
+	
+	private CompletableFuture<Void> dispatch(List<JsonNode> docs) {
+		if(stripes != null) {
+			return stripes.dispatch(docs);
+		}
+		int slices = Math.min(parallelism, docs.size());
+		if(slices == 1) {
+			return CompletableFuture.runAsync(() -> invoke(docs), workers);
+		}
+		int sliceSize = (docs.size() + slices - 1) / slices;
+		List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>(slices);
+		for(int from = 0; from < docs.size(); from += sliceSize) {
+			List<JsonNode> slice = docs.subList(from, Math.min(from + sliceSize, docs.size()));
+			futures.add(CompletableFuture.runAsync(() -> invoke(slice), workers));
+		}
+		return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+	}
+	
+	private void invoke(List<JsonNode> docs) {
+		try {
+			handler.handle(docs);
+		}
+		catch(RuntimeException exp) {
+			throw exp;
+		}
+		catch(Exception exp) {
+			throw new CompletionException(exp);
+		}
+	}
+	
+	public int getAvailableCapacity() {
+		return inFlight.availablePermits();
+	}
+	
+	/*
+	 * Documents queued per stripe, empty unless partitioned
+	 */
+	public int[] getStripeQueueDepths() {
+		return stripes == null ? new int[0] : stripes.getQueueDepths();
+	}
+	
+	/*
+	 * Rejects new batches and waits until the outstanding ones are done,
+	 * returns false on timeout
+	 */
+	public boolean drain(Duration timeout) {
+		draining = true;
+		try {
+			if(!inFlight.tryAcquire(maxInFlightBatches, timeout.toMillis(), TimeUnit.MILLISECONDS)) {
+				LOGGER.warn((maxInFlightBatches - inFlight.availablePermits()) + " batches still in flight after " + timeout);
+				return false;
+			}
+			inFlight.release(maxInFlightBatches);
+			return true;
+		}
+		catch(InterruptedException exp) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+	
+	public boolean isDraining() {
+		return draining;
+	}
+	
+	/*
+	 * Waits for the queued batches and stops the workers
+	 */
+	public boolean shutdown(Duration timeout) {
+		if(stripes != null) {
+			return stripes.shutdown(timeout);
+		}
+		workers.shutdown();
+		try {
+			return workers.awaitTermination(timeout.toMillis(), TimeUnit.MILLISECONDS);
+		}
+		catch(InterruptedException exp) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+	
+	private static class WorkerThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+		
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "cfp-worker-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
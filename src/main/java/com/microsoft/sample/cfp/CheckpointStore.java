@@ -0,0 +1,20 @@
+package com.microsoft.sample.cfp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Continuation tokens per feed range for the pull model processor.
+ * {@link #save(String, String)} is called for every batch and must be cheap,
+ * it only needs to be durable once {@link #flush()} returns.
+ */
+public interface CheckpointStore extends Closeable {
+	
+	Map<String, String> load() throws IOException;
+	
+	void save(String feedRange, String continuationToken);
+	
+	void flush() throws IOException;
+	
+}
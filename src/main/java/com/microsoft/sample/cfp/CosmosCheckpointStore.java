@@ -0,0 +1,92 @@
+package com.microsoft.sample.cfp;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.azure.cosmos.CosmosAsyncContainer;
+import com.azure.cosmos.models.SqlParameter;
+import com.azure.cosmos.models.SqlQuerySpec;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import reactor.core.publisher.Flux;
+
+/**
+ * Checkpoints stored as one document per feed range in a Cosmos container,
+ * typically the lease container. Only ranges that moved since the last flush
+ * are upserted.
+ */
+public class CosmosCheckpointStore implements CheckpointStore {
+	
+	private final CosmosAsyncContainer container;
+	private final String partitionKeyPath;
+	private final String prefix;
+	private final ConcurrentHashMap<String, String> pending = new ConcurrentHashMap<String, String>();
+	
+	/*
+	 * partitionKeyPath must be a top level path, it is set to the document id
+	 */
+	public CosmosCheckpointStore(CosmosAsyncContainer container, String partitionKeyPath, String prefix) {
+		this.container = container;
+		this.partitionKeyPath = partitionKeyPath.substring(1);
+		this.prefix = prefix;
+	}
+	
+	@Override
+	public Map<String, String> load() throws IOException {
+		SqlQuerySpec query = new SqlQuerySpec("SELECT * FROM c WHERE STARTSWITH(c.id, @prefix)",
+											  new SqlParameter("@prefix", prefix + ".checkpoint."));
+		Map<String, String> checkpoints = new HashMap<String, String>();
+		try {
+			container.queryItems(query, JsonNode.class)
+					 .toIterable()
+					 .forEach(doc -> checkpoints.put(doc.path("feedRange").asText(), doc.path("continuation").asText()));
+		}
+		catch(RuntimeException exp) {
+			throw new IOException("Unable to load checkpoints", exp);
+		}
+		return checkpoints;
+	}
+	
+	@Override
+	public void save(String feedRange, String continuationToken) {
+		pending.put(feedRange, continuationToken);
+	}
+	
+	@Override
+	public void flush() throws IOException {
+		if(pending.isEmpty()) {
+			return;
+		}
+		Map<String, String> batch = new HashMap<String, String>(pending);
+		try {
+			Flux.fromIterable(batch.entrySet())
+				.flatMap(entry -> container.upsertItem(toDocument(entry.getKey(), entry.getValue())), 8)
+				.blockLast();
+		}
+		catch(RuntimeException exp) {
+			throw new IOException("Unable to flush checkpoints", exp);
+		}
+		batch.forEach(pending::remove);
+	}
+	
+	private JsonNode toDocument(String feedRange, String continuation) {
+		String id = prefix + ".checkpoint." + UUID.nameUUIDFromBytes(feedRange.getBytes(StandardCharsets.UTF_8));
+		ObjectNode document = JsonNodeFactory.instance.objectNode();
+		document.put("id", id);
+		document.put(partitionKeyPath, id);
+		document.put("feedRange", feedRange);
+		document.put("continuation", continuation);
+		return document;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		flush();
+	}
+}
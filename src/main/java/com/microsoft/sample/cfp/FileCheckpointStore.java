@@ -0,0 +1,150 @@
+package com.microsoft.sample.cfp;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Append-only local checkpoint log, one JSON line per checkpoint, last one
+ * per feed range wins. Saves are buffered in memory and written with a single
+ * write and fsync per flush. The log is compacted to the latest checkpoint
+ * per range once it grows past the compaction threshold.
+ */
+public class FileCheckpointStore implements CheckpointStore {
+	
+	private static Logger LOGGER = LoggerFactory.getLogger(FileCheckpointStore.class);
+	private static ObjectMapper MAPPER = new ObjectMapper();
+	
+	private final Path path;
+	private final long compactThresholdBytes;
+	private final ConcurrentHashMap<String, String> pending = new ConcurrentHashMap<String, String>();
+	private final Map<String, String> latest = new HashMap<String, String>();
+	private FileChannel channel;
+	
+	public FileCheckpointStore(Path path, long compactThresholdBytes) {
+		this.path = path;
+		this.compactThresholdBytes = compactThresholdBytes;
+	}
+	
+	@Override
+	public synchronized Map<String, String> load() throws IOException {
+		latest.clear();
+		if(Files.exists(path)) {
+			try(BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+				String line;
+				while((line = reader.readLine()) != null) {
+					try {
+						JsonNode entry = MAPPER.readTree(line);
+						latest.put(entry.path("range").asText(), entry.path("continuation").asText());
+					}
+					catch(IOException exp) {
+						// torn last line after a crash
+						LOGGER.warn("Skipping unreadable checkpoint line in " + path);
+					}
+				}
+			}
+		}
+		compact();
+		return new HashMap<String, String>(latest);
+	}
+	
+	@Override
+	public void save(String feedRange, String continuationToken) {
+		pending.put(feedRange, continuationToken);
+	}
+	
+	@Override
+	public synchronized void flush() throws IOException {
+		if(pending.isEmpty()) {
+			return;
+		}
+		if(channel == null) {
+			open();
+		}
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		Iterator<Map.Entry<String, String>> iterator = pending.entrySet().iterator();
+		while(iterator.hasNext()) {
+			Map.Entry<String, String> entry = iterator.next();
+			String range = entry.getKey();
+			String continuation = entry.getValue();
+			pending.remove(range, continuation);
+			ObjectNode line = MAPPER.createObjectNode();
+			line.put("range", range);
+			line.put("continuation", continuation);
+			buffer.write(MAPPER.writeValueAsBytes(line));
+			buffer.write('\n');
+			latest.put(range, continuation);
+		}
+		ByteBuffer bytes = ByteBuffer.wrap(buffer.toByteArray());
+		while(bytes.hasRemaining()) {
+			channel.write(bytes);
+		}
+		channel.force(false);
+		if(channel.size() > compactThresholdBytes) {
+			compact();
+		}
+	}
+	
+	/*
+	 * Rewrites the log with the latest checkpoint per range, the temp file is
+	 * synced before it atomically replaces the log
+	 */
+	private void compact() throws IOException {
+		if(channel != null) {
+			channel.close();
+			channel = null;
+		}
+		if(path.getParent() != null) {
+			Files.createDirectories(path.getParent());
+		}
+		Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+		try(FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+											   StandardOpenOption.TRUNCATE_EXISTING)) {
+			StringBuilder sb = new StringBuilder();
+			for(Map.Entry<String, String> entry : latest.entrySet()) {
+				ObjectNode line = MAPPER.createObjectNode();
+				line.put("range", entry.getKey());
+				line.put("continuation", entry.getValue());
+				sb.append(MAPPER.writeValueAsString(line)).append('\n');
+			}
+			ByteBuffer bytes = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+			while(bytes.hasRemaining()) {
+				out.write(bytes);
+			}
+			out.force(true);
+		}
+		Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		open();
+	}
+	
+	private void open() throws IOException {
+		channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	}
+	
+	@Override
+	public synchronized void close() throws IOException {
+		flush();
+		if(channel != null) {
+			channel.close();
+			channel = null;
+		}
+	}
+}
@@ -0,0 +1,31 @@
+package com.microsoft.sample.cfp;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Checkpoints kept for the life of the process only
+ */
+public class InMemoryCheckpointStore implements CheckpointStore {
+	
+	private final ConcurrentHashMap<String, String> checkpoints = new ConcurrentHashMap<String, String>();
+	
+	@Override
+	public Map<String, String> load() {
+		return new HashMap<String, String>(checkpoints);
+	}
+	
+	@Override
+	public void save(String feedRange, String continuationToken) {
+		checkpoints.put(feedRange, continuationToken);
+	}
+	
+	@Override
+	public void flush() {
+	}
+	
+	@Override
+	public void close() {
+	}
+}
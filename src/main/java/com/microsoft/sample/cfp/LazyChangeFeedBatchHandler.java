@@ -0,0 +1,30 @@
+package com.microsoft.sample.cfp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Handler that reads documents through {@link LazyDocument} projections
+ * instead of full trees. Sources that hold raw bytes, e.g. segment files,
+ * never build a tree unless the handler asks for one.
+ */
+@FunctionalInterface
+public interface LazyChangeFeedBatchHandler {
+	
+	void handle(List<LazyDocument> docs) throws Exception;
+	
+	/*
+	 * Adapter for sources that deliver trees, the projections read the tree
+	 */
+	static ChangeFeedBatchHandler adapt(LazyChangeFeedBatchHandler handler) {
+		return docs -> {
+			List<LazyDocument> lazy = new ArrayList<LazyDocument>(docs.size());
+			for(JsonNode document : docs) {
+				lazy.add(LazyDocument.of(document));
+			}
+			handler.handle(lazy);
+		};
+	}
+}
@@ -0,0 +1,195 @@
+package com.microsoft.sample.cfp;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+import com.azure.cosmos.models.PartitionKey;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonPointer;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.MissingNode;
+import com.microsoft.sample.api.helpers.GenericHelper;
+
+/**
+ * Change feed document that is only parsed as far as it is read.
+ * 
+ * Backed by raw UTF-8 bytes, {@link #project} pulls the requested fields
+ * in a single streaming pass and skips everything else without building
+ * nodes. The full tree is built by {@link #getTree()} only when asked for.
+ * A document backed by an existing tree answers from the tree and
+ * serializes on {@link #getBytes()} only when asked for.
+ */
+public class LazyDocument {
+	
+	private static ObjectMapper MAPPER = new ObjectMapper();
+	private static final JsonPointer TS = JsonPointer.compile("/_ts");
+	private static final JsonPointer ID = JsonPointer.compile("/id");
+	private static final JsonPointer LSN = JsonPointer.compile("/_lsn");
+	
+	private final byte[] bytes;
+	private final int offset;
+	private final int length;
+	private JsonNode tree;
+	
+	// last projection, reused while the same paths are asked for
+	private JsonPointer[] projectedPaths;
+	private JsonNode[] projectedValues;
+	
+	private LazyDocument(byte[] bytes, int offset, int length, JsonNode tree) {
+		this.bytes = bytes;
+		this.offset = offset;
+		this.length = length;
+		this.tree = tree;
+	}
+	
+	public static LazyDocument of(byte[] bytes) {
+		return new LazyDocument(bytes, 0, bytes.length, null);
+	}
+	
+	public static LazyDocument of(byte[] bytes, int offset, int length) {
+		return new LazyDocument(bytes, offset, length, null);
+	}
+	
+	public static LazyDocument of(JsonNode tree) {
+		return new LazyDocument(null, 0, 0, tree);
+	}
+	
+	/*
+	 * Values at the given JSON pointers in one pass, MissingNode for absent
+	 * paths. Values are trees of their own, scalars for the usual fields.
+	 * Paths are followed through objects only, not into arrays.
+	 */
+	public JsonNode[] project(JsonPointer... paths) {
+		if(tree != null) {
+			JsonNode[] values = new JsonNode[paths.length];
+			for(int i = 0; i < paths.length; i++) {
+				values[i] = tree.at(paths[i]);
+			}
+			return values;
+		}
+		if(projectedValues != null && Arrays.equals(projectedPaths, paths)) {
+			return projectedValues;
+		}
+		JsonNode[] values = new JsonNode[paths.length];
+		Arrays.fill(values, MissingNode.getInstance());
+		try(JsonParser parser = MAPPER.getFactory().createParser(bytes, offset, length)) {
+			if(parser.nextToken() == JsonToken.START_OBJECT) {
+				boolean[] candidates = new boolean[paths.length];
+				JsonPointer[] remaining = paths.clone();
+				Arrays.fill(candidates, true);
+				readObject(parser, remaining, candidates, values);
+			}
+		}
+		catch(IOException exp) {
+			throw new UncheckedIOException(exp);
+		}
+		projectedPaths = paths;
+		projectedValues = values;
+		return values;
+	}
+	
+	public JsonNode get(JsonPointer path) {
+		return project(path)[0];
+	}
+	
+	public long getTimestamp() {
+		return get(TS).asLong();
+	}
+	
+	public String getId() {
+		return get(ID).asText();
+	}
+	
+	public long getLsn() {
+		return get(LSN).asLong();
+	}
+	
+	public PartitionKey getPartitionKey(String partitionKeyPath) {
+		return GenericHelper.toPartitionKey(get(JsonPointer.compile(partitionKeyPath)));
+	}
+	
+	/*
+	 * Parses the whole document once, later reads use the tree
+	 */
+	public JsonNode getTree() {
+		if(tree == null) {
+			try {
+				tree = MAPPER.readTree(bytes, offset, length);
+			}
+			catch(IOException exp) {
+				throw new UncheckedIOException(exp);
+			}
+		}
+		return tree;
+	}
+	
+	public boolean isMaterialized() {
+		return tree != null;
+	}
+	
+	public byte[] getBytes() {
+		if(bytes == null) {
+			try {
+				return MAPPER.writeValueAsBytes(tree);
+			}
+			catch(IOException exp) {
+				throw new UncheckedIOException(exp);
+			}
+		}
+		if(offset == 0 && length == bytes.length) {
+			return bytes;
+		}
+		return Arrays.copyOfRange(bytes, offset, offset + length);
+	}
+	
+	/*
+	 * Walks the fields of the current object, candidates marks the paths
+	 * still matching at this depth and remaining holds their unmatched tail
+	 */
+	private static void readObject(JsonParser parser, JsonPointer[] remaining, boolean[] candidates, JsonNode[] values) throws IOException {
+		while(parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			JsonToken value = parser.nextToken();
+			JsonNode read = null;
+			boolean[] next = null;
+			JsonPointer[] nextRemaining = null;
+			for(int i = 0; i < remaining.length; i++) {
+				if(!candidates[i] || !field.equals(remaining[i].getMatchingProperty())) {
+					continue;
+				}
+				JsonPointer tail = remaining[i].tail();
+				if(tail.matches()) {
+					if(read == null) {
+						read = MAPPER.readTree(parser);
+					}
+					values[i] = read;
+				}
+				else if(value == JsonToken.START_OBJECT) {
+					if(next == null) {
+						next = new boolean[remaining.length];
+						nextRemaining = new JsonPointer[remaining.length];
+					}
+					next[i] = true;
+					nextRemaining[i] = tail;
+				}
+			}
+			if(read != null) {
+				// a path ending here and one going deeper share the subtree
+				for(int i = 0; next != null && i < next.length; i++) {
+					if(next[i]) {
+						values[i] = read.at(nextRemaining[i]);
+					}
+				}
+			}
+			else if(next != null) {
+				readObject(parser, nextRemaining, next, values);
+			}
+			else if(value == JsonToken.START_OBJECT || value == JsonToken.START_ARRAY) {
+				parser.skipChildren();
+			}
+		}
+	}
+}
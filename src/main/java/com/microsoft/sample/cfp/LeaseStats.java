@@ -0,0 +1,173 @@
+package com.microsoft.sample.cfp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.microsoft.sample.api.metrics.Histogram;
+
+/**
+ * Counters, rates and lag of one lease (or pull model feed range). Rates are
+ * computed by {@link #roll(long)} over the interval since the previous roll.
+ * 
+ * Documents and batches are only attributed to a lease in pull mode. With the
+ * lease based processor the documents rate is derived from the progress of
+ * the lease continuation (LSN), which also counts writes that were
+ * superseded before they were read.
+ */
+public class LeaseStats {
+	
+	private final String leaseToken;
+	private final LongAdder documents = new LongAdder();
+	private final LongAdder batches = new LongAdder();
+	private final Histogram handlerMicros = new Histogram(TimeUnit.MINUTES.toMicros(10), 7);
+	private final AtomicLong ownershipChanges = new AtomicLong();
+	
+	private volatile String owner;
+	private volatile long estimatedLag = -1;
+	private volatile long lastTimestamp;
+	private volatile boolean caughtUp;
+	private volatile long lsn = -1;
+	
+	// previous roll
+	private long rolledDocuments;
+	private long rolledBatches;
+	private long rolledLsn = -1;
+	private volatile double documentsPerSecond;
+	private volatile double batchesPerSecond;
+	
+	LeaseStats(String leaseToken) {
+		this.leaseToken = leaseToken;
+	}
+	
+	void recordBatch(int docs, long latencyMicros, long lastDocumentTimestamp) {
+		documents.add(docs);
+		batches.increment();
+		handlerMicros.record(latencyMicros);
+		lastTimestamp = Math.max(lastTimestamp, lastDocumentTimestamp);
+		caughtUp = false;
+	}
+	
+	void recordCaughtUp() {
+		caughtUp = true;
+	}
+	
+	/*
+	 * Applies one state sample of the processor
+	 */
+	void recordState(String hostName, long lag, String continuationToken) {
+		if(hostName != null) {
+			if(owner != null && !owner.equals(hostName)) {
+				ownershipChanges.incrementAndGet();
+			}
+			owner = hostName;
+		}
+		estimatedLag = lag;
+		long parsed = parseLsn(continuationToken);
+		if(parsed >= 0) {
+			lsn = parsed;
+		}
+	}
+	
+	synchronized void roll(long elapsedNanos) {
+		if(elapsedNanos <= 0) {
+			return;
+		}
+		double seconds = elapsedNanos / 1e9;
+		long docs = documents.sum();
+		long batchCount = batches.sum();
+		long currentLsn = lsn;
+		double docsDelta = docs - rolledDocuments;
+		if(docsDelta == 0 && rolledLsn >= 0 && currentLsn > rolledLsn) {
+			docsDelta = currentLsn - rolledLsn;
+		}
+		documentsPerSecond = docsDelta / seconds;
+		batchesPerSecond = (batchCount - rolledBatches) / seconds;
+		rolledDocuments = docs;
+		rolledBatches = batchCount;
+		rolledLsn = currentLsn;
+	}
+	
+	/*
+	 * Lease continuations are the quoted LSN of the last read, null or
+	 * composite tokens are ignored
+	 */
+	static long parseLsn(String continuationToken) {
+		if(continuationToken == null) {
+			return -1;
+		}
+		String token = continuationToken.replace("\"", "").trim();
+		try {
+			return Long.parseLong(token);
+		}
+		catch(NumberFormatException exp) {
+			return -1;
+		}
+	}
+	
+	public String getLeaseToken() {
+		return leaseToken;
+	}
+	
+	public String getOwner() {
+		return owner;
+	}
+	
+	/*
+	 * Documents behind as estimated by the processor, -1 when unknown
+	 */
+	public long getEstimatedLag() {
+		return estimatedLag;
+	}
+	
+	/*
+	 * Seconds between now and the _ts of the last handled document, 0 once
+	 * caught up, -1 when no document was attributed to this lease
+	 */
+	public long getLagSeconds() {
+		if(caughtUp) {
+			return 0;
+		}
+		long ts = lastTimestamp;
+		return ts == 0 ? -1 : Math.max(0, System.currentTimeMillis() / 1000 - ts);
+	}
+	
+	public double getDocumentsPerSecond() {
+		return documentsPerSecond;
+	}
+	
+	public double getBatchesPerSecond() {
+		return batchesPerSecond;
+	}
+	
+	public long getOwnershipChanges() {
+		return ownershipChanges.get();
+	}
+	
+	public Histogram getHandlerMicros() {
+		return handlerMicros;
+	}
+	
+	public ObjectNode toJson() {
+		ObjectNode node = JsonNodeFactory.instance.objectNode();
+		node.put("owner", owner);
+		node.put("estimatedLag", estimatedLag);
+		node.put("lagSeconds", getLagSeconds());
+		node.put("documents", documents.sum());
+		node.put("batches", batches.sum());
+		node.put("documentsPerSecond", documentsPerSecond);
+		node.put("batchesPerSecond", batchesPerSecond);
+		node.put("ownershipChanges", ownershipChanges.get());
+		Histogram.Snapshot latency = handlerMicros.snapshot();
+		if(latency.getCount() > 0) {
+			ObjectNode latencyNode = node.putObject("handlerLatencyMicros");
+			latencyNode.put("p50", latency.getValueAtPercentile(50));
+			latencyNode.put("p90", latency.getValueAtPercentile(90));
+			latencyNode.put("p99", latency.getValueAtPercentile(99));
+			latencyNode.put("max", latency.getMax());
+		}
+		return node;
+	}
+}
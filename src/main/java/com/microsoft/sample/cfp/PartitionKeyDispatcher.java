@@ -0,0 +1,122 @@
+package com.microsoft.sample.cfp;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import com.fasterxml.jackson.core.JsonPointer;
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Spreads the documents of a batch over a fixed set of stripes, each backed
+ * by its own single thread, by a hash of the value at the partition key path.
+ * 
+ * All documents sharing a key land on the same stripe and are handled in feed
+ * order, also across batches, while different keys run in parallel. The
+ * returned future completes once every stripe finished its part of the batch.
+ */
+public class PartitionKeyDispatcher {
+	
+	private final ChangeFeedBatchHandler handler;
+	private final JsonPointer partitionKeyPath;
+	private final ExecutorService[] stripes;
+	private final AtomicIntegerArray queuedDocs;
+	
+	public PartitionKeyDispatcher(ChangeFeedBatchHandler handler, String partitionKeyPath, int stripeCount) {
+		this.handler = handler;
+		this.partitionKeyPath = JsonPointer.compile(partitionKeyPath);
+		this.stripes = new ExecutorService[Math.max(1, stripeCount)];
+		this.queuedDocs = new AtomicIntegerArray(stripes.length);
+		for(int i = 0; i < stripes.length; i++) {
+			String name = "cfp-stripe-" + i;
+			stripes[i] = Executors.newSingleThreadExecutor(r -> {
+				Thread thread = new Thread(r, name);
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+	
+	public CompletableFuture<Void> dispatch(List<JsonNode> docs) {
+		List<List<JsonNode>> groups = new ArrayList<List<JsonNode>>(stripes.length);
+		for(int i = 0; i < stripes.length; i++) {
+			groups.add(null);
+		}
+		for(JsonNode document : docs) {
+			int stripe = stripeOf(document);
+			List<JsonNode> group = groups.get(stripe);
+			if(group == null) {
+				group = new ArrayList<JsonNode>();
+				groups.set(stripe, group);
+			}
+			group.add(document);
+		}
+		
+		List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>(stripes.length);
+		for(int i = 0; i < stripes.length; i++) {
+			List<JsonNode> group = groups.get(i);
+			if(group == null) {
+				continue;
+			}
+			int stripe = i;
+			queuedDocs.addAndGet(stripe, group.size());
+			futures.add(CompletableFuture.runAsync(() -> {
+				try {
+					handler.handle(group);
+				}
+				catch(RuntimeException exp) {
+					throw exp;
+				}
+				catch(Exception exp) {
+					throw new CompletionException(exp);
+				}
+				finally {
+					queuedDocs.addAndGet(stripe, -group.size());
+				}
+			}, stripes[stripe]));
+		}
+		return futures.size() == 1 ? futures.get(0) : CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+	}
+	
+	int stripeOf(JsonNode document) {
+		int hash = document.at(partitionKeyPath).hashCode();
+		hash ^= hash >>> 16;
+		return Math.floorMod(hash * 0x9E3779B9, stripes.length);
+	}
+	
+	/*
+	 * Documents queued or running per stripe
+	 */
+	public int[] getQueueDepths() {
+		int[] depths = new int[stripes.length];
+		for(int i = 0; i < depths.length; i++) {
+			depths[i] = queuedDocs.get(i);
+		}
+		return depths;
+	}
+	
+	public boolean shutdown(Duration timeout) {
+		for(ExecutorService stripe : stripes) {
+			stripe.shutdown();
+		}
+		long deadline = System.nanoTime() + timeout.toNanos();
+		try {
+			for(ExecutorService stripe : stripes) {
+				if(!stripe.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+					return false;
+				}
+			}
+		}
+		catch(InterruptedException exp) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,356 @@
+package com.microsoft.sample.cfp;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.azure.cosmos.CosmosException;
+import com.azure.cosmos.models.ChangeFeedProcessorState;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.microsoft.sample.api.dal.ContainerException;
+import com.microsoft.sample.api.dal.DocumentContainer;
+import com.microsoft.sample.api.dal.FeedPage;
+import com.microsoft.sample.api.helpers.ConfigurationHelper;
+import com.microsoft.sample.api.helpers.GenericHelper;
+import com.microsoft.sample.api.helpers.ThroughputControlHelper;
+import com.microsoft.sample.api.metrics.CosmosMetrics;
+import com.microsoft.sample.api.metrics.OperationType;
+
+import reactor.core.Disposable;
+import reactor.core.Disposables;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.retry.Retry;
+
+/**
+ * Change feed consumer built on the pull model, an alternative to the lease
+ * based ChangeFeedProcessor for single node consumers.
+ * 
+ * Every feed range of the container is drained with its own continuation
+ * token, one page per read. Page size and the delay before the next read are
+ * tuned per range by an {@link AdaptiveFeedController}. Tokens are handed to the
+ * {@link CheckpointStore} after each handled batch and flushed off the feed
+ * threads every {@code checkpointEveryBatches} batches or every
+ * {@code checkpointInterval}, whichever comes first. On restart each stored
+ * token is resumed under the key it was saved with, so delivery is
+ * at-least-once. Tokens carry their range and continue into its children
+ * after a split, only listed ranges outside every stored one start afresh.
+ * 
+ * Ranges are reported through {@link #getCurrentState()} with their index as
+ * lease token. The estimated lag is the session LSN of the range less the
+ * _lsn of the last handled document, 0 once a read returns nothing, and -1
+ * when the service did not report the session LSN.
+ * 
+ * Tokens are saved only once the batch read before them and all earlier
+ * batches of the range are done, also when the pipeline does not await
+ * completion. {@link #stop(Duration)} lets the page being handled on every
+ * range finish and flushes its token before returning.
+ */
+public class PullChangeFeedProcessor {
+	
+	private static Logger LOGGER = LoggerFactory.getLogger(PullChangeFeedProcessor.class);
+	private static CosmosMetrics METRICS = CosmosMetrics.getInstance();
+	private static final String GAUGE_PREFIX = "cfp.range.";
+	
+	private final String hostName;
+	private final DocumentContainer container;
+	private final CheckpointStore checkpointStore;
+	private final ChangeFeedPipeline pipeline;
+	private final Instant startTime;
+	private final Supplier<AdaptiveFeedController> controllers;
+	private final int checkpointEveryBatches;
+	private final Duration checkpointInterval;
+	private final ChangeFeedMonitor monitor;
+	private final String throughputControlGroup = ThroughputControlHelper.getGroupName(ThroughputControlHelper.CHANGE_FEED);
+	
+	private final List<RangeState> ranges = new CopyOnWriteArrayList<RangeState>();
+	private final AtomicInteger batchesSinceFlush = new AtomicInteger();
+	private final AtomicBoolean flushScheduled = new AtomicBoolean();
+	private ScheduledExecutorService checkpointer;
+	private Disposable.Composite subscriptions;
+	private final List<Mono<Void>> consumers = new CopyOnWriteArrayList<Mono<Void>>();
+	private volatile Sinks.Empty<Void> stopSignal;
+	private volatile boolean draining;
+	
+	public PullChangeFeedProcessor(String hostName, DocumentContainer container, CheckpointStore checkpointStore, ChangeFeedPipeline pipeline,
+								   Instant startTime, Supplier<AdaptiveFeedController> controllers,
+								   int checkpointEveryBatches, Duration checkpointInterval, ChangeFeedMonitor monitor) {
+		this.hostName = hostName;
+		this.container = container;
+		this.checkpointStore = checkpointStore;
+		this.pipeline = pipeline;
+		this.startTime = startTime;
+		this.controllers = controllers;
+		this.checkpointEveryBatches = Math.max(1, checkpointEveryBatches);
+		this.checkpointInterval = checkpointInterval;
+		this.monitor = monitor;
+	}
+	
+	/*
+	 * see AdaptiveFeedController for page size and poll delay bounds
+	 * cfp_checkpoint_every_batches     flush after this many batches (default 10)
+	 * cfp_checkpoint_interval_ms       flush at least this often (default 5000)
+	 */
+	public static PullChangeFeedProcessor fromConfig(ConfigurationHelper helper, String hostName, DocumentContainer container,
+													 CheckpointStore checkpointStore, ChangeFeedPipeline pipeline, Instant startTime,
+													 ChangeFeedMonitor monitor) {
+		return new PullChangeFeedProcessor(hostName, container, checkpointStore, pipeline, startTime,
+										   () -> AdaptiveFeedController.fromConfig(helper),
+										   helper.getIntProperty("cfp_checkpoint_every_batches", 10),
+										   Duration.ofMillis(helper.getLongProperty("cfp_checkpoint_interval_ms", 5000)),
+										   monitor);
+	}
+	
+	public synchronized Mono<Void> start() {
+		if(subscriptions != null) {
+			return Mono.empty();
+		}
+		subscriptions = Disposables.composite();
+		stopSignal = Sinks.empty();
+		draining = false;
+		consumers.clear();
+		checkpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "cfp-checkpointer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		checkpointer.scheduleWithFixedDelay(this::flush, checkpointInterval.toMillis(), checkpointInterval.toMillis(), TimeUnit.MILLISECONDS);
+		
+		return Mono.fromCallable(checkpointStore::load)
+				   .subscribeOn(Schedulers.boundedElastic())
+				   .zipWith(container.getFeedRanges())
+				   .doOnNext(t -> {
+					   Map<String, String> checkpoints = t.getT1();
+					   List<String> feedRanges = t.getT2();
+					   LOGGER.info("Starting pull processor on " + feedRanges.size() + " feed ranges, "
+								   + checkpoints.size() + " checkpoints loaded");
+					   // stored continuations are resumed as saved, they follow splits into the
+					   // child ranges, listed ranges outside all of them start from startTime
+					   Set<String> keys = new LinkedHashSet<String>();
+					   for(String range : feedRanges) {
+						   keys.add(checkpointedParent(range, checkpoints.keySet()));
+					   }
+					   keys.addAll(checkpoints.keySet());
+					   ranges.clear();
+					   for(String key : keys) {
+						   int i = ranges.size();
+						   RangeState state = new RangeState(i, key, checkpoints.get(key), controllers.get());
+						   METRICS.registerGauge(GAUGE_PREFIX + i + ".poll_delay_ms", state.controller::getPollDelayMillis);
+						   METRICS.registerGauge(GAUGE_PREFIX + i + ".max_item_count", state.controller::getMaxItemCount);
+						   METRICS.registerGauge(GAUGE_PREFIX + i + ".throttles", state.controller::getThrottleCount);
+						   ranges.add(state);
+						   Mono<Void> consumer = consume(state).cache();
+						   consumers.add(consumer);
+						   subscriptions.add(consumer.subscribe());
+					   }
+				   })
+				   .then();
+	}
+	
+	/*
+	 * The checkpointed range containing range, range itself when there is none
+	 */
+	private String checkpointedParent(String range, Set<String> checkpointed) {
+		if(checkpointed.contains(range)) {
+			return range;
+		}
+		for(String parent : checkpointed) {
+			if(container.isWithin(range, parent)) {
+				LOGGER.info("Feed range " + range + " is read from the continuation of " + parent);
+				return parent;
+			}
+		}
+		return range;
+	}
+	
+	/*
+	 * Stops at once, pages being handled are cancelled and only the
+	 * checkpoints of handled batches are flushed
+	 */
+	public Mono<Void> stop() {
+		return stop(Duration.ZERO);
+	}
+	
+	/*
+	 * Stops reading new pages, waits up to drainTimeout for the pages being
+	 * handled and flushes the checkpoints, a zero timeout does not wait
+	 */
+	public synchronized Mono<Void> stop(Duration drainTimeout) {
+		if(subscriptions == null) {
+			return Mono.empty();
+		}
+		Disposable.Composite running = subscriptions;
+		subscriptions = null;
+		draining = true;
+		stopSignal.tryEmitEmpty();
+		METRICS.unregisterGauges(GAUGE_PREFIX);
+		Mono<Void> drained = Mono.empty();
+		if(!drainTimeout.isZero()) {
+			// the pages being read and the batches still running on the pipeline
+			drained = Mono.when(consumers)
+						  .then(Mono.defer(() -> Mono.fromFuture(CompletableFuture.allOf(ranges.stream()
+																						   .map(range -> range.pending)
+																						   .toArray(CompletableFuture<?>[]::new)))))
+						  .timeout(drainTimeout)
+						  .onErrorResume(e -> {
+							  LOGGER.warn("Feed ranges not drained within " + drainTimeout + ", cancelling");
+							  return Mono.empty();
+						  });
+		}
+		return drained.doFinally(signal -> running.dispose())
+				   .then(Mono.fromRunnable(() -> {
+					   checkpointer.shutdown();
+					   flush();
+				   }).subscribeOn(Schedulers.boundedElastic()))
+				   .then();
+	}
+	
+	/*
+	 * One state per feed range, the lease token is the range index
+	 */
+	public Mono<List<ChangeFeedProcessorState>> getCurrentState() {
+		return Mono.fromSupplier(() -> {
+			List<ChangeFeedProcessorState> states = new ArrayList<ChangeFeedProcessorState>(ranges.size());
+			for(RangeState range : ranges) {
+				states.add(new ChangeFeedProcessorState()
+								.setLeaseToken(String.valueOf(range.index))
+								.setHostName(hostName)
+								.setContinuationToken(range.token.get())
+								.setEstimatedLag((int) Math.min(Integer.MAX_VALUE, range.estimatedLag)));
+			}
+			return states;
+		});
+	}
+	
+	private Mono<Void> consume(RangeState state) {
+		AdaptiveFeedController controller = state.controller;
+		String key = state.key;
+		Mono<Void> stopping = stopSignal.asMono();
+		return Mono.defer(() -> readPage(state))
+				   .flatMap(delay -> delay.isZero() ? Mono.empty() : Mono.delay(delay).then().or(stopping))
+				   .repeat(() -> !draining)
+				   .retryWhen(Retry.backoff(Long.MAX_VALUE, Duration.ofSeconds(1))
+								   .maxBackoff(Duration.ofMinutes(1))
+								   .filter(e -> !draining)
+								   .doBeforeRetry(signal -> {
+									   if(isThrottled(signal.failure())) {
+										   controller.onThrottle();
+									   }
+									   LOGGER.warn("Feed range " + key + " failed, resuming from its last continuation");
+									   GenericHelper.logError(signal.failure(), LOGGER);
+								   }))
+				   .then();
+	}
+	
+	/*
+	 * Reads and handles one page, returns the delay before the next read
+	 */
+	private Mono<Duration> readPage(RangeState state) {
+		int maxItemCount = state.controller.getMaxItemCount();
+		return container.readChangeFeed(state.range, state.token.get(), startTime, maxItemCount, throughputControlGroup)
+						.publishOn(Schedulers.boundedElastic())
+						.map(page -> handlePage(page, state));
+	}
+	
+	private static boolean isThrottled(Throwable failure) {
+		return (failure instanceof CosmosException && ((CosmosException) failure).getStatusCode() == 429)
+			   || (failure instanceof ContainerException && ((ContainerException) failure).getStatusCode() == 429);
+	}
+	
+	private Duration handlePage(FeedPage page, RangeState state) {
+		METRICS.record(OperationType.CHANGE_FEED_READ, page, LOGGER);
+		List<JsonNode> results = page.getResults();
+		long handlerMicros = 0;
+		CompletableFuture<Void> batch = CompletableFuture.completedFuture(null);
+		if(!results.isEmpty()) {
+			long startNanos = System.nanoTime();
+			batch = pipeline.submit(results);
+			handlerMicros = (System.nanoTime() - startNanos) / 1000;
+		}
+		state.estimatedLag = estimateLag(page);
+		if(monitor != null) {
+			String lease = String.valueOf(state.index);
+			if(results.isEmpty()) {
+				monitor.recordCaughtUp(lease);
+			}
+			else {
+				monitor.recordBatch(lease, results.size(), handlerMicros, results.get(results.size() - 1).path("_ts").asLong());
+			}
+		}
+		String continuation = page.getContinuationToken();
+		if(continuation != null && !continuation.equals(state.token.get())) {
+			state.token.set(continuation);
+			// saved once this and every earlier batch of the range is done, failed
+			// batches of a pipeline that does not await completion are only logged
+			state.pending = CompletableFuture.allOf(state.pending, batch.exceptionally(e -> null))
+											 .thenRun(() -> checkpoint(state.key, continuation));
+		}
+		return state.controller.onPage(results.size(), handlerMicros / 1000, state.estimatedLag);
+	}
+	
+	private void checkpoint(String key, String continuation) {
+		checkpointStore.save(key, continuation);
+		if(batchesSinceFlush.incrementAndGet() >= checkpointEveryBatches && flushScheduled.compareAndSet(false, true)) {
+			checkpointer.execute(this::flush);
+		}
+	}
+	
+	/*
+	 * Like the lease estimator, a short page may still be behind when the
+	 * service cut it by response size, only an empty one is caught up
+	 */
+	private static long estimateLag(FeedPage page) {
+		if(page.getResults().isEmpty()) {
+			return 0;
+		}
+		long lastLsn = page.getResults().get(page.getResults().size() - 1).path("_lsn").asLong(-1);
+		return page.getHeadLsn() < 0 || lastLsn < 0 ? -1 : Math.max(0, page.getHeadLsn() - lastLsn);
+	}
+	
+	private void flush() {
+		flushScheduled.set(false);
+		batchesSinceFlush.set(0);
+		try {
+			checkpointStore.flush();
+		}
+		catch(Exception exp) {
+			LOGGER.error("Checkpoint flush failed");
+			GenericHelper.logError(exp, LOGGER);
+		}
+	}
+	
+	private static class RangeState {
+		private final int index;
+		private final String range;
+		private final String key;
+		private final AtomicReference<String> token;
+		private final AdaptiveFeedController controller;
+		private volatile long estimatedLag = -1;
+		private volatile CompletableFuture<Void> pending = CompletableFuture.completedFuture(null);
+		
+		RangeState(int index, String range, String continuation, AdaptiveFeedController controller) {
+			this.index = index;
+			this.range = range;
+			this.key = range;
+			this.token = new AtomicReference<String>(continuation);
+			this.controller = controller;
+		}
+	}
+}
@@ -0,0 +1,187 @@
+package com.microsoft.sample.cfp;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.microsoft.sample.api.dal.DocumentContainer;
+import com.microsoft.sample.api.dal.FeedPage;
+import com.microsoft.sample.api.helpers.ConfigurationHelper;
+import com.microsoft.sample.api.helpers.GenericHelper;
+import com.microsoft.sample.api.helpers.ThroughputControlHelper;
+import com.microsoft.sample.api.metrics.CosmosMetrics;
+import com.microsoft.sample.api.metrics.OperationType;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * Replays a bounded time window of the change feed using the pull model.
+ * 
+ * The container is split into its feed ranges and every range is read in
+ * parallel starting at the window start. Documents are filtered by {@code _ts}
+ * per page, a range stops on its own once it returns a document past the
+ * window end or when it is caught up, so a fast range never ends a slow one.
+ * The returned {@link Mono} completes once every range is done.
+ */
+public class ReplayEngine {
+	
+	private static Logger LOGGER = LoggerFactory.getLogger(ReplayEngine.class);
+	private static CosmosMetrics METRICS = CosmosMetrics.getInstance();
+	
+	private final DocumentContainer container;
+	private final ChangeFeedBatchHandler handler;
+	private final int concurrency;
+	private final int maxItemCount;
+	private final ConcurrentHashMap<String, RangeProgress> progress = new ConcurrentHashMap<String, RangeProgress>();
+	
+	public ReplayEngine(DocumentContainer container, ChangeFeedBatchHandler handler, int concurrency, int maxItemCount) {
+		this.container = container;
+		this.handler = handler;
+		this.concurrency = Math.max(1, concurrency);
+		this.maxItemCount = Math.max(1, maxItemCount);
+	}
+	
+	/*
+	 * cfp_replay_concurrency     feed ranges read in parallel (default available processors)
+	 * cfp_replay_max_item_count  documents per change feed page (default 1000)
+	 */
+	public static ReplayEngine fromConfig(ConfigurationHelper helper, DocumentContainer container, ChangeFeedBatchHandler handler) {
+		return new ReplayEngine(container, handler,
+								helper.getIntProperty("cfp_replay_concurrency", Runtime.getRuntime().availableProcessors()),
+								helper.getIntProperty("cfp_replay_max_item_count", 1000));
+	}
+	
+	public Mono<ReplayResult> replay(Instant startTime, Instant endTime) {
+		long endEpoch = endTime.getEpochSecond();
+		progress.clear();
+		return container.getFeedRanges()
+						.flatMapMany(Flux::fromIterable)
+						.flatMap(range -> replayRange(range, startTime, endEpoch), concurrency)
+						.collectList()
+						.map(ReplayResult::new);
+	}
+	
+	/*
+	 * Snapshot of the ranges seen so far, usable while a replay is running
+	 */
+	public List<RangeProgress> getProgress() {
+		return Collections.unmodifiableList(new ArrayList<RangeProgress>(progress.values()));
+	}
+	
+	private Mono<RangeProgress> replayRange(String range, Instant startTime, long endEpoch) {
+		RangeProgress rangeProgress = new RangeProgress(range);
+		progress.put(rangeProgress.getFeedRange(), rangeProgress);
+		String throughputControlGroup = ThroughputControlHelper.getGroupName(ThroughputControlHelper.CHANGE_FEED);
+		
+		// pages are read one at a time, an empty page means the range is caught up
+		AtomicReference<String> continuation = new AtomicReference<String>();
+		return Mono.defer(() -> container.readChangeFeed(range, continuation.get(), startTime, maxItemCount, throughputControlGroup))
+						.publishOn(Schedulers.boundedElastic())
+						.flatMap(page -> Mono.fromCallable(() -> {
+							continuation.set(page.getContinuationToken());
+							return handlePage(page, rangeProgress, endEpoch) || page.getResults().isEmpty();
+						}))
+						.repeat()
+						.takeUntil(done -> done)
+						.then(Mono.fromCallable(() -> rangeProgress.complete()))
+						.doOnError(e -> {
+							LOGGER.error("Replay of range " + rangeProgress.getFeedRange() + " failed");
+							GenericHelper.logError(e, LOGGER);
+						});
+	}
+	
+	/*
+	 * Returns true once the page contained a document past the window end
+	 */
+	private boolean handlePage(FeedPage page, RangeProgress rangeProgress, long endEpoch) throws Exception {
+		METRICS.record(OperationType.CHANGE_FEED_READ, page, LOGGER);
+		List<JsonNode> results = page.getResults();
+		List<JsonNode> inWindow = new ArrayList<JsonNode>(results.size());
+		boolean passedEnd = false;
+		for(JsonNode document : results) {
+			if(document.path("_ts").asLong() > endEpoch) {
+				passedEnd = true;
+			}
+			else {
+				inWindow.add(document);
+			}
+		}
+		if(!inWindow.isEmpty()) {
+			handler.handle(inWindow);
+		}
+		rangeProgress.record(inWindow.size(), results.size() - inWindow.size(), page.getContinuationToken());
+		return passedEnd;
+	}
+	
+	public static class RangeProgress {
+		private final String feedRange;
+		private final AtomicLong documents = new AtomicLong();
+		private final AtomicLong skipped = new AtomicLong();
+		private final AtomicLong pages = new AtomicLong();
+		private volatile String continuationToken;
+		private volatile boolean done;
+		
+		RangeProgress(String feedRange) {
+			this.feedRange = feedRange;
+		}
+		
+		void record(int handled, int outsideWindow, String continuation) {
+			documents.addAndGet(handled);
+			skipped.addAndGet(outsideWindow);
+			pages.incrementAndGet();
+			continuationToken = continuation;
+		}
+		
+		RangeProgress complete() {
+			done = true;
+			return this;
+		}
+		
+		public String getFeedRange() {
+			return feedRange;
+		}
+		public long getDocuments() {
+			return documents.get();
+		}
+		public long getSkipped() {
+			return skipped.get();
+		}
+		public long getPages() {
+			return pages.get();
+		}
+		public String getContinuationToken() {
+			return continuationToken;
+		}
+		public boolean isDone() {
+			return done;
+		}
+	}
+	
+	public static class ReplayResult {
+		private final List<RangeProgress> ranges;
+		
+		ReplayResult(List<RangeProgress> ranges) {
+			this.ranges = Collections.unmodifiableList(ranges);
+		}
+		
+		public List<RangeProgress> getRanges() {
+			return ranges;
+		}
+		public long getDocuments() {
+			return ranges.stream().mapToLong(RangeProgress::getDocuments).sum();
+		}
+		public boolean isComplete() {
+			return ranges.stream().allMatch(RangeProgress::isDone);
+		}
+	}
+}
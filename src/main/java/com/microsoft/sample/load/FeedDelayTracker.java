@@ -0,0 +1,76 @@
+package com.microsoft.sample.load;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.microsoft.sample.api.metrics.Histogram;
+import com.microsoft.sample.cfp.ChangeFeedBatchHandler;
+
+/**
+ * Change feed handler measuring the write to change feed delay of the
+ * documents written by one load run, from the {@code loadTs} the generator
+ * stamps right before the write to the moment the batch is handled.
+ * Documents of other runs are ignored.
+ */
+public class FeedDelayTracker implements ChangeFeedBatchHandler {
+	
+	private final String runId;
+	private final Histogram delayMillis = new Histogram(TimeUnit.HOURS.toMillis(1), 7);
+	private final LongAdder documents = new LongAdder();
+	private final AtomicLong firstNanos = new AtomicLong();
+	private final AtomicLong lastNanos = new AtomicLong();
+	
+	public FeedDelayTracker(String runId) {
+		this.runId = runId;
+	}
+	
+	@Override
+	public void handle(List<JsonNode> docs) {
+		long nowMillis = System.currentTimeMillis();
+		int handled = 0;
+		for(JsonNode document : docs) {
+			if(!runId.equals(document.path(LoadGenerator.RUN_FIELD).asText())) {
+				continue;
+			}
+			delayMillis.record(nowMillis - document.path(LoadGenerator.TIMESTAMP_FIELD).asLong(nowMillis));
+			handled++;
+		}
+		if(handled > 0) {
+			long nowNanos = System.nanoTime();
+			firstNanos.compareAndSet(0, nowNanos);
+			lastNanos.set(nowNanos);
+			documents.add(handled);
+		}
+	}
+	
+	public long getDocuments() {
+		return documents.sum();
+	}
+	
+	/*
+	 * System.nanoTime() of the last handled document of the run, 0 before
+	 */
+	public long getLastNanos() {
+		return lastNanos.get();
+	}
+	
+	public ObjectNode toJson() {
+		ObjectNode node = JsonNodeFactory.instance.objectNode();
+		long count = documents.sum();
+		double seconds = (lastNanos.get() - firstNanos.get()) / 1e9;
+		node.put("documents", count);
+		node.put("documentsPerSecond", seconds > 0 ? count / seconds : 0);
+		Histogram.Snapshot snapshot = delayMillis.snapshot();
+		ObjectNode delay = node.putObject("writeToFeedDelayMs");
+		delay.put("p50", snapshot.getValueAtPercentile(50));
+		delay.put("p90", snapshot.getValueAtPercentile(90));
+		delay.put("p99", snapshot.getValueAtPercentile(99));
+		delay.put("max", snapshot.getMax());
+		return node;
+	}
+}
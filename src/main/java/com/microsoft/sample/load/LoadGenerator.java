@@ -0,0 +1,312 @@
+package com.microsoft.sample.load;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonPointer;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.microsoft.sample.api.dal.CosmosAsyncDAL;
+import com.microsoft.sample.api.helpers.ConfigurationHelper;
+import com.microsoft.sample.api.metrics.CosmosMetrics;
+import com.microsoft.sample.api.metrics.Histogram;
+import com.microsoft.sample.api.metrics.OperationType;
+import com.microsoft.sample.load.LoadMix.Operation;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * Open loop load against a {@link CosmosAsyncDAL}.
+ * 
+ * Operations are issued on a fixed schedule whatever the response times, the
+ * latency of an operation is measured from the time it was due, not from
+ * when it was sent, so a stalled system shows up in the percentiles instead
+ * of slowing the load down (no coordinated omission). With a RU target the
+ * schedule follows the average charge per operation seen so far.
+ * 
+ * Written documents carry the run id and the write time in epoch millis, see
+ * {@link FeedDelayTracker}. Reads and upserts pick documents written earlier
+ * in the run, queries select one partition key.
+ */
+public class LoadGenerator {
+	
+	static final String RUN_FIELD = "loadRun";
+	static final String TIMESTAMP_FIELD = "loadTs";
+	
+	private static Logger LOGGER = LoggerFactory.getLogger(LoadGenerator.class);
+	private static CosmosMetrics METRICS = CosmosMetrics.getInstance();
+	private static final Operation[] OPERATIONS = Operation.values();
+	private static final OperationType[] METERED = { OperationType.CREATE, OperationType.UPSERT, OperationType.READ, OperationType.QUERY };
+	// written documents remembered for reads and upserts
+	private static final int WRITTEN_RING = 1 << 16;
+	
+	private final CosmosAsyncDAL dal;
+	private final LoadMix mix;
+	private final double opsPerSecond;
+	private final double ruPerSecond;
+	private final int partitionKeys;
+	private final int maxInFlight;
+	private final Duration reportInterval;
+	private final String runId = UUID.randomUUID().toString().substring(0, 8);
+	private final String payload;
+	private final String partitionKeyPath;
+	private final JsonPointer partitionKeyPointer;
+	private final String partitionKeyFilterField;
+	
+	private final Histogram[] latencyMicros = new Histogram[OPERATIONS.length];
+	private final LongAdder[] errors = new LongAdder[OPERATIONS.length];
+	private final Histogram scheduleLagMicros = new Histogram(TimeUnit.MINUTES.toMicros(10), 7);
+	private final LongAdder dropped = new LongAdder();
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicLong sequence = new AtomicLong();
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLongArray writtenRing = new AtomicLongArray(WRITTEN_RING);
+	
+	public LoadGenerator(CosmosAsyncDAL dal, LoadMix mix, double opsPerSecond, double ruPerSecond, int partitionKeys,
+						 int documentBytes, int maxInFlight, Duration reportInterval) {
+		this.dal = dal;
+		this.mix = mix;
+		this.opsPerSecond = opsPerSecond;
+		this.ruPerSecond = ruPerSecond;
+		this.partitionKeys = Math.max(1, partitionKeys);
+		this.maxInFlight = Math.max(1, maxInFlight);
+		this.reportInterval = reportInterval;
+		char[] filler = new char[Math.max(0, documentBytes)];
+		Arrays.fill(filler, 'x');
+		this.payload = new String(filler);
+		this.partitionKeyPath = dal.getPartitionKeyPath().block();
+		this.partitionKeyPointer = JsonPointer.compile(partitionKeyPath);
+		this.partitionKeyFilterField = partitionKeyPath.substring(1).replace('/', '.');
+		for(int i = 0; i < OPERATIONS.length; i++) {
+			latencyMicros[i] = new Histogram(TimeUnit.MINUTES.toMicros(10), 7);
+			errors[i] = new LongAdder();
+		}
+	}
+	
+	/*
+	 * load_mix                 weights, default create=20,upsert=20,read=50,query=10
+	 * load_ops_per_second      target rate (default 100)
+	 * load_ru_per_second       target RU rate, replaces the ops rate when set (default 0)
+	 * load_partition_keys      distinct partition key values (default 1000)
+	 * load_document_bytes      payload size of written documents (default 512)
+	 * load_max_in_flight       outstanding operations, later ones are dropped and counted (default 10000)
+	 * load_report_interval_s   progress log interval (default 10)
+	 */
+	public static LoadGenerator fromConfig(ConfigurationHelper helper, CosmosAsyncDAL dal) {
+		return new LoadGenerator(dal,
+								 LoadMix.parse(helper.getProperty("load_mix", "create=20,upsert=20,read=50,query=10")),
+								 helper.getDoubleProperty("load_ops_per_second", 100),
+								 helper.getDoubleProperty("load_ru_per_second", 0),
+								 helper.getIntProperty("load_partition_keys", 1000),
+								 helper.getIntProperty("load_document_bytes", 512),
+								 helper.getIntProperty("load_max_in_flight", 10000),
+								 Duration.ofSeconds(helper.getLongProperty("load_report_interval_s", 10)));
+	}
+	
+	public String getRunId() {
+		return runId;
+	}
+	
+	/*
+	 * Issues the load for the duration on the calling thread, then waits up
+	 * to drainTimeout for outstanding operations and returns the report
+	 */
+	public ObjectNode run(Duration duration, Duration drainTimeout) {
+		LOGGER.info("Load run " + runId + " for " + duration + " at "
+					+ (ruPerSecond > 0 ? ruPerSecond + " RU/s" : opsPerSecond + " ops/s") + " mix " + mix);
+		double chargeAtStart = totalRequestCharge();
+		long operationsAtStart = totalOperations();
+		double intervalNanos = 1e9 / (ruPerSecond > 0 ? ruPerSecond / 5 : opsPerSecond);
+		
+		long start = System.nanoTime();
+		long end = start + duration.toNanos();
+		long nextReport = start + reportInterval.toNanos();
+		long nextAdjust = start + TimeUnit.MILLISECONDS.toNanos(200);
+		double due = start;
+		long issued = 0;
+		while((long) due < end) {
+			long dueNanos = (long) due;
+			long now = System.nanoTime();
+			while(now < dueNanos) {
+				LockSupport.parkNanos(dueNanos - now);
+				now = System.nanoTime();
+			}
+			scheduleLagMicros.record((now - dueNanos) / 1000);
+			issue(mix.pick(ThreadLocalRandom.current().nextDouble()), dueNanos);
+			issued++;
+			due += intervalNanos;
+			
+			if(ruPerSecond > 0 && now >= nextAdjust) {
+				long operations = totalOperations() - operationsAtStart;
+				if(operations > 0) {
+					double chargePerOperation = Math.max(0.1, (totalRequestCharge() - chargeAtStart) / operations);
+					intervalNanos = 1e9 / (ruPerSecond / chargePerOperation);
+				}
+				nextAdjust = now + TimeUnit.MILLISECONDS.toNanos(200);
+			}
+			if(now >= nextReport) {
+				LOGGER.info("Load run " + runId + " issued=" + issued + " inFlight=" + inFlight.get() + " dropped=" + dropped.sum());
+				nextReport = now + reportInterval.toNanos();
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		long drainDeadline = System.nanoTime() + drainTimeout.toNanos();
+		while(inFlight.get() > 0 && System.nanoTime() < drainDeadline) {
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+		}
+		return report(issued, elapsed, totalRequestCharge() - chargeAtStart);
+	}
+	
+	private void issue(Operation operation, long dueNanos) {
+		if(inFlight.incrementAndGet() > maxInFlight) {
+			inFlight.decrementAndGet();
+			dropped.increment();
+			return;
+		}
+		long seq = operation == Operation.CREATE ? -1 : pickWritten();
+		if(seq < 0 && operation != Operation.QUERY) {
+			// nothing written yet to read or update
+			operation = Operation.CREATE;
+		}
+		Operation issuedOperation = operation;
+		Mono<Boolean> call;
+		switch(operation) {
+			case CREATE:
+				long created = sequence.getAndIncrement();
+				call = dal.create(document(created)).map(result -> {
+					boolean ok = !isError(result);
+					if(ok) {
+						writtenRing.set((int) (written.getAndIncrement() & (WRITTEN_RING - 1)), created + 1);
+					}
+					return ok;
+				});
+				break;
+			case UPSERT:
+				call = dal.update(document(seq)).map(result -> !isError(result));
+				break;
+			case READ:
+				call = dal.retrieve(id(seq), partitionKey(seq)).map(result -> !isError(result));
+				break;
+			default:
+				String partitionKey = partitionKey(seq >= 0 ? seq : ThreadLocalRandom.current().nextLong(partitionKeys));
+				call = dal.query("{\"" + partitionKeyFilterField + "\":\"" + partitionKey + "\"}").then(Mono.just(true));
+		}
+		call.subscribe(ok -> complete(issuedOperation, dueNanos, ok),
+					   e -> complete(issuedOperation, dueNanos, false));
+	}
+	
+	private void complete(Operation operation, long dueNanos, boolean ok) {
+		latencyMicros[operation.ordinal()].record((System.nanoTime() - dueNanos) / 1000);
+		if(!ok) {
+			errors[operation.ordinal()].increment();
+		}
+		inFlight.decrementAndGet();
+	}
+	
+	private long pickWritten() {
+		long count = Math.min(written.get(), WRITTEN_RING);
+		if(count == 0) {
+			return -1;
+		}
+		return writtenRing.get(ThreadLocalRandom.current().nextInt((int) count)) - 1;
+	}
+	
+	private String id(long seq) {
+		return runId + "-" + seq;
+	}
+	
+	/*
+	 * Containers partitioned by id use the id itself
+	 */
+	private String partitionKey(long seq) {
+		return "/id".equals(partitionKeyPath) ? id(seq) : "p" + (seq % partitionKeys);
+	}
+	
+	private ObjectNode document(long seq) {
+		ObjectNode document = JsonNodeFactory.instance.objectNode();
+		document.put("id", id(seq));
+		if(!"/id".equals(partitionKeyPath)) {
+			ObjectNode parent = document;
+			JsonPointer pointer = partitionKeyPointer;
+			while(!pointer.tail().matches()) {
+				parent = parent.with(pointer.getMatchingProperty());
+				pointer = pointer.tail();
+			}
+			parent.put(pointer.getMatchingProperty(), partitionKey(seq));
+		}
+		document.put(RUN_FIELD, runId);
+		document.put(TIMESTAMP_FIELD, System.currentTimeMillis());
+		document.put("payload", payload);
+		return document;
+	}
+	
+	/*
+	 * The DAL maps failures to {"status":...,"message":...}
+	 */
+	private static boolean isError(JsonNode result) {
+		return result == null || (result.has("status") && result.has("message") && !result.has("id"));
+	}
+	
+	private static double totalRequestCharge() {
+		double charge = 0;
+		for(OperationType type : METERED) {
+			charge += METRICS.get(type).getTotalRequestCharge();
+		}
+		return charge;
+	}
+	
+	private static long totalOperations() {
+		long count = 0;
+		for(OperationType type : METERED) {
+			count += METRICS.get(type).getLatencyMicros().getCount();
+		}
+		return count;
+	}
+	
+	private ObjectNode report(long issued, long elapsedNanos, double requestCharge) {
+		double seconds = elapsedNanos / 1e9;
+		ObjectNode node = JsonNodeFactory.instance.objectNode();
+		node.put("runId", runId);
+		node.put("durationSeconds", seconds);
+		node.put("targetOpsPerSecond", ruPerSecond > 0 ? 0 : opsPerSecond);
+		node.put("targetRuPerSecond", ruPerSecond);
+		node.put("issued", issued);
+		node.put("dropped", dropped.sum());
+		node.put("pending", inFlight.get());
+		node.put("achievedOpsPerSecond", (issued - dropped.sum()) / seconds);
+		node.put("ruPerSecond", requestCharge / seconds);
+		Histogram.Snapshot lag = scheduleLagMicros.snapshot();
+		node.putObject("scheduleLagMicros").put("p99", lag.getValueAtPercentile(99)).put("max", lag.getMax());
+		ObjectNode operations = node.putObject("operations");
+		for(Operation operation : OPERATIONS) {
+			Histogram.Snapshot snapshot = latencyMicros[operation.ordinal()].snapshot();
+			if(snapshot.getCount() == 0) {
+				continue;
+			}
+			ObjectNode op = operations.putObject(operation.name());
+			op.put("count", snapshot.getCount());
+			op.put("errors", errors[operation.ordinal()].sum());
+			op.put("opsPerSecond", snapshot.getCount() / seconds);
+			ObjectNode latency = op.putObject("latencyMicros");
+			latency.put("p50", snapshot.getValueAtPercentile(50));
+			latency.put("p90", snapshot.getValueAtPercentile(90));
+			latency.put("p99", snapshot.getValueAtPercentile(99));
+			latency.put("p999", snapshot.getValueAtPercentile(99.9));
+			latency.put("max", snapshot.getMax());
+			latency.put("mean", snapshot.getMean());
+		}
+		return node;
+	}
+}
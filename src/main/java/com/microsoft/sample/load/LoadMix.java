@@ -0,0 +1,70 @@
+package com.microsoft.sample.load;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Weighted operation mix, parsed from e.g. "create=20,upsert=20,read=50,query=10"
+ */
+public class LoadMix {
+	
+	public enum Operation {
+		CREATE,
+		UPSERT,
+		READ,
+		QUERY
+	}
+	
+	private static final Operation[] OPERATIONS = Operation.values();
+	
+	private final double[] cumulative = new double[OPERATIONS.length];
+	private final Map<Operation, Double> weights;
+	
+	public LoadMix(Map<Operation, Double> weights) {
+		double total = 0;
+		for(Operation operation : OPERATIONS) {
+			total += Math.max(0, weights.getOrDefault(operation, 0.0));
+		}
+		if(total <= 0) {
+			throw new IllegalArgumentException("Load mix needs a positive weight");
+		}
+		double running = 0;
+		for(Operation operation : OPERATIONS) {
+			running += Math.max(0, weights.getOrDefault(operation, 0.0));
+			cumulative[operation.ordinal()] = running / total;
+		}
+		this.weights = new EnumMap<Operation, Double>(weights);
+	}
+	
+	public static LoadMix parse(String mix) {
+		Map<Operation, Double> weights = new EnumMap<Operation, Double>(Operation.class);
+		for(String entry : mix.split(",")) {
+			if(entry.trim().isEmpty()) {
+				continue;
+			}
+			String[] parts = entry.split("=");
+			if(parts.length != 2) {
+				throw new IllegalArgumentException("Invalid load mix entry " + entry);
+			}
+			weights.put(Operation.valueOf(parts[0].trim().toUpperCase()), Double.parseDouble(parts[1].trim()));
+		}
+		return new LoadMix(weights);
+	}
+	
+	/*
+	 * random in [0, 1)
+	 */
+	public Operation pick(double random) {
+		for(int i = 0; i < cumulative.length; i++) {
+			if(random < cumulative[i]) {
+				return OPERATIONS[i];
+			}
+		}
+		return OPERATIONS[OPERATIONS.length - 1];
+	}
+	
+	@Override
+	public String toString() {
+		return weights.toString();
+	}
+}
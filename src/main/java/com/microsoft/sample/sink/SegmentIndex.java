@@ -0,0 +1,118 @@
+package com.microsoft.sample.sink;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sidecar index of a segment, one fixed size entry per block. A block is a
+ * run of documents that can be read on its own from its offset, for gzip
+ * segments it is a complete gzip member. Entries are appended on every sync.
+ */
+public class SegmentIndex {
+	
+	static final int ENTRY_BYTES = 5 * Long.BYTES + Integer.BYTES;
+	
+	public static class Entry {
+		private final long offset;
+		private final long minTimestamp;
+		private final long maxTimestamp;
+		private final long minLsn;
+		private final long maxLsn;
+		private final int count;
+		
+		Entry(long offset, long minTimestamp, long maxTimestamp, long minLsn, long maxLsn, int count) {
+			this.offset = offset;
+			this.minTimestamp = minTimestamp;
+			this.maxTimestamp = maxTimestamp;
+			this.minLsn = minLsn;
+			this.maxLsn = maxLsn;
+			this.count = count;
+		}
+		
+		void writeTo(ByteBuffer buffer) {
+			buffer.putLong(offset).putLong(minTimestamp).putLong(maxTimestamp)
+				  .putLong(minLsn).putLong(maxLsn).putInt(count);
+		}
+		
+		public long getOffset() {
+			return offset;
+		}
+		public long getMinTimestamp() {
+			return minTimestamp;
+		}
+		public long getMaxTimestamp() {
+			return maxTimestamp;
+		}
+		public long getMinLsn() {
+			return minLsn;
+		}
+		public long getMaxLsn() {
+			return maxLsn;
+		}
+		public int getCount() {
+			return count;
+		}
+	}
+	
+	private final List<Entry> entries;
+	
+	private SegmentIndex(List<Entry> entries) {
+		this.entries = entries;
+	}
+	
+	/*
+	 * A torn trailing entry is ignored
+	 */
+	public static SegmentIndex read(Path indexFile) throws IOException {
+		try(FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+			ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+			while(buffer.hasRemaining() && channel.read(buffer) >= 0) {
+			}
+			buffer.flip();
+			List<Entry> entries = new ArrayList<Entry>(buffer.remaining() / ENTRY_BYTES);
+			while(buffer.remaining() >= ENTRY_BYTES) {
+				entries.add(new Entry(buffer.getLong(), buffer.getLong(), buffer.getLong(),
+									  buffer.getLong(), buffer.getLong(), buffer.getInt()));
+			}
+			return new SegmentIndex(entries);
+		}
+	}
+	
+	public List<Entry> getEntries() {
+		return entries;
+	}
+	
+	/*
+	 * Offset of the first block that may hold documents with _ts >= timestamp,
+	 * -1 when the whole segment is older
+	 */
+	public long seek(long timestamp) {
+		for(Entry entry : entries) {
+			if(entry.maxTimestamp >= timestamp) {
+				return entry.offset;
+			}
+		}
+		return -1;
+	}
+	
+	public long getMinTimestamp() {
+		long min = Long.MAX_VALUE;
+		for(Entry entry : entries) {
+			min = Math.min(min, entry.minTimestamp);
+		}
+		return min;
+	}
+	
+	public long getMaxTimestamp() {
+		long max = Long.MIN_VALUE;
+		for(Entry entry : entries) {
+			max = Math.max(max, entry.maxTimestamp);
+		}
+		return max;
+	}
+}
@@ -0,0 +1,101 @@
+package com.microsoft.sample.sink;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import com.microsoft.sample.cfp.LazyDocument;
+import com.microsoft.sample.cfp.LazyChangeFeedBatchHandler;
+
+/**
+ * Reads a segment written by {@link SegmentSink} as raw document bytes,
+ * optionally from a block offset found through {@link SegmentIndex#seek}.
+ * Documents are handed out as {@link LazyDocument}s, nothing is parsed
+ * unless the consumer reads a field.
+ */
+public class SegmentReader implements Closeable {
+	
+	private final InputStream in;
+	private final ByteArrayOutputStream line = new ByteArrayOutputStream(4096);
+	private final byte[] buffer = new byte[256 * 1024];
+	private int position;
+	private int limit;
+	
+	public SegmentReader(Path segment, long offset) throws IOException {
+		FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ);
+		channel.position(Math.max(0, offset));
+		InputStream raw = Channels.newInputStream(channel);
+		this.in = segment.toString().endsWith(".gz") ? new GZIPInputStream(new BufferedInputStream(raw, 1024 * 1024), 64 * 1024) : raw;
+	}
+	
+	/*
+	 * Next document, null at the end of the segment
+	 */
+	public LazyDocument next() throws IOException {
+		line.reset();
+		while(true) {
+			if(position == limit) {
+				limit = in.read(buffer);
+				position = 0;
+				if(limit <= 0) {
+					limit = 0;
+					return line.size() > 0 ? LazyDocument.of(line.toByteArray()) : null;
+				}
+			}
+			int start = position;
+			while(position < limit && buffer[position] != '\n') {
+				position++;
+			}
+			if(position < limit) {
+				// whole line inside the buffer, copy it once
+				int end = position++;
+				if(line.size() == 0) {
+					if(end > start) {
+						return LazyDocument.of(Arrays.copyOfRange(buffer, start, end));
+					}
+					continue;
+				}
+				line.write(buffer, start, end - start);
+				return LazyDocument.of(line.toByteArray());
+			}
+			line.write(buffer, start, position - start);
+		}
+	}
+	
+	/*
+	 * Hands the rest of the segment to the handler in batches
+	 */
+	public long replay(LazyChangeFeedBatchHandler handler, int batchSize) throws Exception {
+		long count = 0;
+		List<LazyDocument> batch = new ArrayList<LazyDocument>(batchSize);
+		LazyDocument document;
+		while((document = next()) != null) {
+			batch.add(document);
+			if(batch.size() == batchSize) {
+				handler.handle(batch);
+				count += batch.size();
+				batch = new ArrayList<LazyDocument>(batchSize);
+			}
+		}
+		if(!batch.isEmpty()) {
+			handler.handle(batch);
+			count += batch.size();
+		}
+		return count;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+}
@@ -0,0 +1,206 @@
+package com.microsoft.sample.sink;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.microsoft.sample.api.helpers.ConfigurationHelper;
+import com.microsoft.sample.cfp.ChangeFeedBatchHandler;
+import com.microsoft.sample.cfp.CheckpointStore;
+
+/**
+ * Writes change feed batches to rolling, append-only segment files in a
+ * directory: segment-&lt;sequence&gt;.jsonl (or .jsonl.gz) with JSON lines and a
+ * segment-&lt;sequence&gt;.idx {@link SegmentIndex} with the _ts/_lsn range of
+ * every block. A new segment is started once the current one reaches the
+ * size or age limit and on every restart, existing segments are never
+ * appended to.
+ * 
+ * Data reaches the disk on sync. With syncEveryBatch the sink syncs before
+ * the handler returns, so the lease processor checkpoints only synced data.
+ * In pull mode wrap the checkpoint store with {@link #syncBefore} instead,
+ * which syncs once per checkpoint flush.
+ */
+public class SegmentSink implements Closeable {
+	
+	private static Logger LOGGER = LoggerFactory.getLogger(SegmentSink.class);
+	private static ObjectMapper MAPPER = new ObjectMapper();
+	private static final String PREFIX = "segment-";
+	
+	private final Path directory;
+	private final int bufferBytes;
+	private final long blockBytes;
+	private final boolean compress;
+	private final long maxSegmentBytes;
+	private final long maxSegmentMillis;
+	private final boolean syncEveryBatch;
+	private long sequence;
+	private SegmentWriter current;
+	
+	public SegmentSink(Path directory, int bufferBytes, long blockBytes, boolean compress,
+					   long maxSegmentBytes, long maxSegmentMillis, boolean syncEveryBatch) throws IOException {
+		this.directory = directory;
+		this.bufferBytes = bufferBytes;
+		this.blockBytes = blockBytes;
+		this.compress = compress;
+		this.maxSegmentBytes = maxSegmentBytes;
+		this.maxSegmentMillis = maxSegmentMillis;
+		this.syncEveryBatch = syncEveryBatch;
+		Files.createDirectories(directory);
+		this.sequence = lastSequence(directory) + 1;
+	}
+	
+	/*
+	 * cfp_sink_dir                directory of the segments (default cfp-sink)
+	 * cfp_sink_buffer_kb          write buffer (default 4096)
+	 * cfp_sink_block_kb           uncompressed bytes per indexed block (default 1024)
+	 * cfp_sink_compression        none | gzip (default none)
+	 * cfp_sink_segment_mb         roll over at this size (default 256)
+	 * cfp_sink_segment_minutes    roll over at this age (default 60)
+	 * cfp_sink_sync_every_batch   sync before each batch is acknowledged (default true)
+	 */
+	public static SegmentSink fromConfig(ConfigurationHelper helper) throws IOException {
+		return new SegmentSink(Paths.get(helper.getProperty("cfp_sink_dir", "cfp-sink")),
+							   helper.getIntProperty("cfp_sink_buffer_kb", 4096) * 1024,
+							   helper.getLongProperty("cfp_sink_block_kb", 1024) * 1024,
+							   "gzip".equals(helper.getProperty("cfp_sink_compression", "none")),
+							   helper.getLongProperty("cfp_sink_segment_mb", 256) * 1024 * 1024,
+							   helper.getLongProperty("cfp_sink_segment_minutes", 60) * 60 * 1000,
+							   helper.getBooleanProperty("cfp_sink_sync_every_batch", true));
+	}
+	
+	/*
+	 * Writes each batch to the sink before handing it on
+	 */
+	public ChangeFeedBatchHandler wrap(ChangeFeedBatchHandler handler) {
+		return docs -> {
+			write(docs);
+			handler.handle(docs);
+		};
+	}
+	
+	public synchronized void write(List<JsonNode> docs) throws IOException {
+		if(current != null && isFull(current)) {
+			roll();
+		}
+		if(current == null) {
+			current = open();
+		}
+		for(JsonNode document : docs) {
+			current.append(document);
+		}
+		if(syncEveryBatch) {
+			current.sync();
+		}
+	}
+	
+	/*
+	 * Forces everything written so far to disk, closes the segment if it is
+	 * past its age limit
+	 */
+	public synchronized void sync() throws IOException {
+		if(current == null) {
+			return;
+		}
+		if(isFull(current)) {
+			roll();
+		}
+		else {
+			current.sync();
+		}
+	}
+	
+	@Override
+	public synchronized void close() throws IOException {
+		if(current != null) {
+			roll();
+		}
+	}
+	
+	/*
+	 * Checkpoint store that syncs the sink before every flush, so no
+	 * checkpoint covers data that is not on disk
+	 */
+	public CheckpointStore syncBefore(CheckpointStore store) {
+		return new CheckpointStore() {
+			@Override
+			public Map<String, String> load() throws IOException {
+				return store.load();
+			}
+			@Override
+			public void save(String feedRange, String continuationToken) {
+				store.save(feedRange, continuationToken);
+			}
+			@Override
+			public void flush() throws IOException {
+				sync();
+				store.flush();
+			}
+			@Override
+			public void close() throws IOException {
+				try {
+					SegmentSink.this.close();
+				}
+				finally {
+					store.close();
+				}
+			}
+		};
+	}
+	
+	private boolean isFull(SegmentWriter writer) {
+		return writer.size() >= maxSegmentBytes
+			   || System.currentTimeMillis() - writer.getCreatedMillis() >= maxSegmentMillis;
+	}
+	
+	private void roll() throws IOException {
+		SegmentWriter closing = current;
+		current = null;
+		closing.close();
+		LOGGER.info("Closed segment " + closing.getDataFile() + " at " + closing.size() + " bytes");
+	}
+	
+	private SegmentWriter open() throws IOException {
+		String name = String.format("%s%020d", PREFIX, sequence++);
+		return new SegmentWriter(directory.resolve(name + (compress ? ".jsonl.gz" : ".jsonl")),
+								 directory.resolve(name + ".idx"),
+								 MAPPER, bufferBytes, blockBytes, compress);
+	}
+	
+	/*
+	 * Highest sequence of any segment file, a crash between creating the data
+	 * and the index file leaves a data file without index whose name must not
+	 * be reused
+	 */
+	private static long lastSequence(Path directory) throws IOException {
+		long last = 0;
+		try(DirectoryStream<Path> segments = Files.newDirectoryStream(directory, PREFIX + "*")) {
+			for(Path segment : segments) {
+				String name = segment.getFileName().toString();
+				int end = name.indexOf('.', PREFIX.length());
+				String base = end < 0 ? name : name.substring(0, end);
+				try {
+					long sequence = Long.parseLong(base.substring(PREFIX.length()));
+					if(!name.endsWith(".idx") && !Files.exists(directory.resolve(base + ".idx"))) {
+						LOGGER.warn("Segment " + segment + " has no index, skipped");
+					}
+					last = Math.max(last, sequence);
+				}
+				catch(NumberFormatException exp) {
+					// not one of ours
+				}
+			}
+		}
+		return last;
+	}
+}
@@ -0,0 +1,227 @@
+package com.microsoft.sample.sink;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPOutputStream;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * One open segment. Documents are serialized as JSON lines straight into a
+ * large direct buffer that is written to the channel only when full or on
+ * sync, so the syscall rate is independent of the document rate.
+ * 
+ * Documents are grouped into blocks of about blockBytes uncompressed, each
+ * block is a separate gzip member when compressed so it can be decoded from
+ * its offset. Not thread safe, the sink serializes access.
+ */
+class SegmentWriter {
+	
+	private final Path dataFile;
+	private final FileChannel data;
+	private final FileChannel index;
+	private final ChannelOutput output;
+	private final ByteBuffer pendingIndex = ByteBuffer.allocate(SegmentIndex.ENTRY_BYTES * 1024);
+	private final JsonFactory factory;
+	private final boolean compress;
+	private final long blockBytes;
+	private final long createdMillis;
+	
+	// current block
+	private OutputStream blockStream;
+	private JsonGenerator generator;
+	private long blockOffset;
+	private long blockStart;
+	private long minTimestamp;
+	private long maxTimestamp;
+	private long minLsn;
+	private long maxLsn;
+	private int count;
+	private long written;
+	
+	SegmentWriter(Path dataFile, Path indexFile, ObjectMapper mapper, int bufferBytes, long blockBytes, boolean compress) throws IOException {
+		this.dataFile = dataFile;
+		this.data = FileChannel.open(dataFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+		try {
+			this.index = FileChannel.open(indexFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+		}
+		catch(IOException exp) {
+			data.close();
+			throw exp;
+		}
+		this.output = new ChannelOutput(data, bufferBytes);
+		this.factory = mapper.getFactory();
+		this.compress = compress;
+		this.blockBytes = blockBytes;
+		this.createdMillis = System.currentTimeMillis();
+	}
+	
+	void append(JsonNode document) throws IOException {
+		if(generator == null) {
+			startBlock();
+		}
+		generator.writeTree(document);
+		generator.writeRaw('\n');
+		long ts = document.path("_ts").asLong();
+		long lsn = document.path("_lsn").asLong();
+		minTimestamp = Math.min(minTimestamp, ts);
+		maxTimestamp = Math.max(maxTimestamp, ts);
+		minLsn = Math.min(minLsn, lsn);
+		maxLsn = Math.max(maxLsn, lsn);
+		count++;
+		if(written + generator.getOutputBuffered() - blockStart >= blockBytes) {
+			endBlock();
+		}
+	}
+	
+	/*
+	 * Closes the open block, writes out the buffer and index entries and
+	 * forces both files to disk
+	 */
+	void sync() throws IOException {
+		endBlock();
+		output.drain();
+		data.force(false);
+		if(pendingIndex.position() > 0) {
+			pendingIndex.flip();
+			while(pendingIndex.hasRemaining()) {
+				index.write(pendingIndex);
+			}
+			pendingIndex.clear();
+			index.force(false);
+		}
+	}
+	
+	void close() throws IOException {
+		try {
+			sync();
+		}
+		finally {
+			data.close();
+			index.close();
+		}
+	}
+	
+	long size() {
+		return output.position();
+	}
+	
+	long getCreatedMillis() {
+		return createdMillis;
+	}
+	
+	Path getDataFile() {
+		return dataFile;
+	}
+	
+	private void startBlock() throws IOException {
+		blockOffset = output.position();
+		// ChannelOutput ignores close, so closing the gzip member only ends the deflater
+		blockStream = compress ? new GZIPOutputStream(output, 64 * 1024) : output;
+		generator = factory.createGenerator(new CountingOutput(blockStream));
+		generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+		blockStart = written;
+		minTimestamp = Long.MAX_VALUE;
+		maxTimestamp = Long.MIN_VALUE;
+		minLsn = Long.MAX_VALUE;
+		maxLsn = Long.MIN_VALUE;
+		count = 0;
+	}
+	
+	private void endBlock() throws IOException {
+		if(generator == null) {
+			return;
+		}
+		generator.close();
+		generator = null;
+		if(compress) {
+			blockStream.close();
+		}
+		blockStream = null;
+		if(pendingIndex.remaining() < SegmentIndex.ENTRY_BYTES) {
+			pendingIndex.flip();
+			while(pendingIndex.hasRemaining()) {
+				index.write(pendingIndex);
+			}
+			pendingIndex.clear();
+		}
+		new SegmentIndex.Entry(blockOffset, minTimestamp, maxTimestamp, minLsn, maxLsn, count).writeTo(pendingIndex);
+	}
+	
+	/*
+	 * Uncompressed bytes of the block, drives the block size
+	 */
+	private class CountingOutput extends OutputStream {
+		private final OutputStream target;
+		
+		CountingOutput(OutputStream target) {
+			this.target = target;
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			written++;
+			target.write(b);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			written += len;
+			target.write(b, off, len);
+		}
+	}
+	
+	/*
+	 * Large direct buffer in front of the file channel, never closes it
+	 */
+	private static class ChannelOutput extends OutputStream {
+		private final FileChannel channel;
+		private final ByteBuffer buffer;
+		private long flushed;
+		
+		ChannelOutput(FileChannel channel, int bufferBytes) {
+			this.channel = channel;
+			this.buffer = ByteBuffer.allocateDirect(bufferBytes);
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			if(!buffer.hasRemaining()) {
+				drain();
+			}
+			buffer.put((byte) b);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while(len > 0) {
+				if(!buffer.hasRemaining()) {
+					drain();
+				}
+				int chunk = Math.min(len, buffer.remaining());
+				buffer.put(b, off, chunk);
+				off += chunk;
+				len -= chunk;
+			}
+		}
+		
+		void drain() throws IOException {
+			buffer.flip();
+			while(buffer.hasRemaining()) {
+				flushed += channel.write(buffer);
+			}
+			buffer.clear();
+		}
+		
+		long position() {
+			return flushed + buffer.position();
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package com.microsoft.sample.api.dal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+class ItemCacheTest {
+
+	private static ObjectNode document(String id, String pk, String etag, long ts) {
+		ObjectNode node = JsonNodeFactory.instance.objectNode();
+		node.put("id", id);
+		node.put("pk", pk);
+		node.put("_etag", etag);
+		node.put("_ts", ts);
+		return node;
+	}
+
+	@Test
+	void changeFeedRefreshesCachedKeysOnly() {
+		ItemCache cache = new ItemCache(100, 60000);
+		cache.setPartitionKeyPath("/pk");
+		cache.put("p1", "a", document("a", "p1", "e1", 10));
+		
+		cache.onChanges(Collections.singletonList(document("a", "p1", "e2", 11)));
+		cache.onChanges(Collections.singletonList(document("b", "p1", "e1", 11)));
+		
+		assertEquals("e2", cache.get("p1", "a").path("_etag").asText());
+		assertNull(cache.get("p1", "b"));
+		assertEquals(1, cache.getRefreshes());
+	}
+
+	@Test
+	void olderFeedVersionIsIgnored() {
+		ItemCache cache = new ItemCache(100, 60000);
+		cache.setPartitionKeyPath("/pk");
+		cache.put("p1", "a", document("a", "p1", "e2", 20));
+		cache.onChanges(Collections.singletonList(document("a", "p1", "e1", 10)));
+		assertEquals("e2", cache.get("p1", "a").path("_etag").asText());
+	}
+
+	@Test
+	void batchWritesThroughAndInvalidatesDeletes() {
+		ItemCache cache = new ItemCache(100, 60000);
+		cache.setPartitionKeyPath("/pk");
+		cache.put("p1", "a", document("a", "p1", "e1", 10));
+		cache.put("p1", "b", document("b", "p1", "e1", 10));
+		
+		TransactionalBatch batch = new TransactionalBatch("p1").upsert(document("a", "p1", null, 0), null).delete("b", null);
+		cache.putBatch(batch, new BatchResponse(200, null, 0, 0, Arrays.asList(
+				new BatchResponse.Result(200, document("a", "p1", "e2", 11), "e2", 0),
+				new BatchResponse.Result(204, null, null, 0)), null));
+		
+		assertEquals("e2", cache.get("p1", "a").path("_etag").asText());
+		assertNull(cache.get("p1", "b"));
+	}
+
+	@Test
+	void boundedAndExpiring() throws InterruptedException {
+		ItemCache cache = new ItemCache(10, 60000);
+		for(int i = 0; i < 100; i++) {
+			cache.put("p", "id" + i, document("id" + i, "p", "e", i));
+			cache.invalidate("p", "id" + (i - 1));
+		}
+		assertTrue(cache.size() <= 10);
+		assertNotNull(cache.get("p", "id99"));
+		
+		ItemCache expiring = new ItemCache(10, 1);
+		expiring.put("p", "a", document("a", "p", "e", 1));
+		Thread.sleep(5);
+		assertNull(expiring.get("p", "a"));
+	}
+}
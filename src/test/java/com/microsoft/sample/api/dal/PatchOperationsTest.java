@@ -0,0 +1,45 @@
+package com.microsoft.sample.api.dal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+class PatchOperationsTest {
+	
+	@Test
+	void appliesInOrder() {
+		ObjectNode document = JsonNodeFactory.instance.objectNode().put("id", "1").put("count", 1);
+		document.putArray("tags").add("a");
+		document.putObject("address").put("city", "x");
+		
+		PatchOperations.create()
+					   .increment("/count", 2)
+					   .increment("/total", 1.5)
+					   .add("/tags/-", "c")
+					   .add("/tags/1", "b")
+					   .set("/address/zip", "123")
+					   .replace("/address/city", "y")
+					   .remove("/tags/0")
+					   .applyTo(document);
+		
+		assertEquals(3, document.path("count").asLong());
+		assertEquals(1.5, document.path("total").asDouble());
+		assertEquals("[\"b\",\"c\"]", document.path("tags").toString());
+		assertEquals("{\"city\":\"y\",\"zip\":\"123\"}", document.path("address").toString());
+	}
+	
+	@Test
+	void rejectsInvalidTargets() {
+		ObjectNode document = JsonNodeFactory.instance.objectNode().put("id", "1").put("name", "n");
+		document.putArray("tags");
+		assertEquals(400, assertThrows(ContainerException.class, () -> PatchOperations.create().replace("/missing", 1).applyTo(document)).getStatusCode());
+		assertEquals(400, assertThrows(ContainerException.class, () -> PatchOperations.create().set("/a/b", 1).applyTo(document)).getStatusCode());
+		assertEquals(400, assertThrows(ContainerException.class, () -> PatchOperations.create().increment("/name", 1).applyTo(document)).getStatusCode());
+		assertEquals(400, assertThrows(ContainerException.class, () -> PatchOperations.create().add("/tags/2", 1).applyTo(document)).getStatusCode());
+		assertThrows(IllegalArgumentException.class, () -> PatchOperations.create().set("", 1));
+	}
+}
@@ -0,0 +1,93 @@
+package com.microsoft.sample.api.dal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import com.microsoft.sample.api.dal.RequestScheduler.RequestClass;
+
+import reactor.core.publisher.Mono;
+
+class RequestSchedulerTest {
+	
+	private static RequestScheduler unlimited(Duration maxWait, int maxRetries) {
+		return new RequestScheduler(new double[] { 0, 0, 0 }, Duration.ofSeconds(1), 5, maxWait, maxRetries);
+	}
+	
+	@Test
+	void bucketDelaysByDeficit() {
+		RequestScheduler.TokenBucket bucket = new RequestScheduler.TokenBucket(10, Duration.ofMillis(100), 1);
+		long now = System.nanoTime();
+		assertEquals(0, bucket.reserve(now, 1));
+		long waitNanos = bucket.reserve(now, 1);
+		assertEquals(TimeUnit.MILLISECONDS.toNanos(100), waitNanos, TimeUnit.MILLISECONDS.toNanos(1));
+		// the actual charge was half the estimate
+		bucket.settle(0.5, 1, true);
+		assertEquals(TimeUnit.MILLISECONDS.toNanos(50), bucket.reserve(now, 0), TimeUnit.MILLISECONDS.toNanos(1));
+		assertEquals(0.95, bucket.getEstimate(), 1e-9);
+	}
+	
+	@Test
+	void throttledRequestIsRetriedAfterSharedPause() {
+		RequestScheduler scheduler = unlimited(Duration.ofSeconds(5), 3);
+		AtomicInteger attempts = new AtomicInteger();
+		long start = System.nanoTime();
+		String result = scheduler.schedule(RequestClass.READ, () -> attempts.incrementAndGet() == 1
+								 ? Mono.<String>error(new ContainerException(429, "throttled", Duration.ofMillis(100), 1))
+								 : Mono.just("ok"), r -> 1).block();
+		assertEquals("ok", result);
+		assertEquals(2, attempts.get());
+		assertEquals(1, scheduler.getThrottledCount());
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(90));
+	}
+	
+	@Test
+	void pauseAppliesToOtherClasses() {
+		RequestScheduler scheduler = unlimited(Duration.ofSeconds(5), 0);
+		assertThrows(ContainerException.class, () -> scheduler.schedule(RequestClass.WRITE,
+						() -> Mono.<String>error(new ContainerException(429, "throttled", Duration.ofMillis(150), 1)), r -> 1).block());
+		long start = System.nanoTime();
+		scheduler.schedule(RequestClass.QUERY, () -> Mono.just("ok"), r -> 1).block();
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+		assertEquals(1, scheduler.getDelayedCount());
+	}
+	
+	@Test
+	void recordedRequestsDrainBucketsAndPause() {
+		RequestScheduler scheduler = new RequestScheduler(new double[] { 0, 10, 0 }, Duration.ofMillis(100), 1, Duration.ofSeconds(5), 0);
+		// a bulk item charged 2 RU leaves the write bucket 100ms short
+		scheduler.record(RequestClass.WRITE, 2, 201, null);
+		long start = System.nanoTime();
+		scheduler.schedule(RequestClass.WRITE, () -> Mono.just("ok"), r -> 0).block();
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(90));
+		
+		// a throttled one pauses the other classes
+		scheduler.record(RequestClass.WRITE, 0, 429, Duration.ofMillis(100));
+		assertEquals(1, scheduler.getThrottledCount());
+		start = System.nanoTime();
+		scheduler.schedule(RequestClass.READ, () -> Mono.just("ok"), r -> 1).block();
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(90));
+	}
+	
+	@Test
+	void rejectsWaitsOverMaximum() {
+		RequestScheduler scheduler = unlimited(Duration.ofMillis(10), 5);
+		scheduler.pause(TimeUnit.SECONDS.toNanos(1));
+		AtomicInteger attempts = new AtomicInteger();
+		ContainerException rejected = assertThrows(ContainerException.class,
+				() -> scheduler.schedule(RequestClass.READ, () -> Mono.just(attempts.incrementAndGet()), r -> 1).block());
+		assertEquals(429, rejected.getStatusCode());
+		assertEquals(0, attempts.get());
+		// block() adds a suppressed exception to what it rethrows, the shared rejection must not keep it
+		assertThrows(ContainerException.class,
+				() -> scheduler.schedule(RequestClass.READ, () -> Mono.just(attempts.incrementAndGet()), r -> 1).block());
+		assertEquals(0, rejected.getSuppressed().length);
+		assertEquals(2, scheduler.getRejectedCount());
+	}
+}
@@ -0,0 +1,202 @@
+package com.microsoft.sample.api.dal.memory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.microsoft.sample.api.dal.BatchResponse;
+import com.microsoft.sample.api.dal.ContainerException;
+import com.microsoft.sample.api.dal.DocumentResponse;
+import com.microsoft.sample.api.dal.FeedPage;
+import com.microsoft.sample.api.dal.PatchOperations;
+import com.microsoft.sample.api.dal.QueryOptions;
+import com.microsoft.sample.api.dal.TransactionalBatch;
+
+class InMemoryContainerTest {
+	
+	private static InMemoryContainer container(int partitions, double ruPerSecond) {
+		return new InMemoryContainer("test", "/pk", partitions, 0, 0, 0, ruPerSecond, Duration.ofMillis(100), 1, 5);
+	}
+	
+	private static ObjectNode document(String id, String pk, int value) {
+		return JsonNodeFactory.instance.objectNode().put("id", id).put("pk", pk).put("value", value);
+	}
+	
+	@Test
+	void writesAreStampedAndPreconditionsChecked() {
+		InMemoryContainer container = container(2, 0);
+		DocumentResponse created = container.create(document("1", "a", 1)).block();
+		JsonNode item = created.getItem();
+		assertEquals(201, created.getStatusCode());
+		assertEquals(1, item.path("_lsn").asLong());
+		assertTrue(item.path("_ts").asLong() > 0);
+		assertTrue(item.path("_etag").isTextual());
+		
+		ContainerException conflict = assertThrows(ContainerException.class, () -> container.create(document("1", "a", 2)).block());
+		assertEquals(409, conflict.getStatusCode());
+		ContainerException stale = assertThrows(ContainerException.class, () -> container.upsert(document("1", "a", 2), "\"other\"").block());
+		assertEquals(412, stale.getStatusCode());
+		
+		JsonNode updated = container.upsert(document("1", "a", 2), item.path("_etag").asText()).block().getItem();
+		assertNotEquals(item.path("_etag"), updated.path("_etag"));
+		assertEquals(2, container.read("1", "a").block().getItem().path("value").asInt());
+		
+		container.delete("1", "a").block();
+		assertEquals(404, assertThrows(ContainerException.class, () -> container.read("1", "a").block()).getStatusCode());
+	}
+	
+	@Test
+	void returnedDocumentsAreCopies() {
+		InMemoryContainer container = container(1, 0);
+		((ObjectNode) container.create(document("1", "a", 1)).block().getItem()).put("_lsn", 99);
+		((ObjectNode) container.read("1", "a").block().getItem()).put("value", 2);
+		((ObjectNode) container.readChangeFeed("0", null, null, 10, null).block().getResults().get(0)).put("_lsn", 99);
+		
+		// the stored version keeps its lsn, so scans still find it
+		JsonNode stored = container.query(null, new QueryOptions()).blockFirst().getResults().get(0);
+		assertEquals(1, stored.path("_lsn").asLong());
+		assertEquals(1, stored.path("value").asInt());
+	}
+	
+	@Test
+	void patchAppliesAllOrNothing() {
+		InMemoryContainer container = container(2, 0);
+		String etag = container.create(document("1", "a", 1).put("status", "open")).block().getItem().path("_etag").asText();
+		
+		JsonNode patched = container.patch("1", "a", PatchOperations.create().increment("/value", 2).set("/status", "done"),
+										   "{\"status\":\"open\"}", etag).block().getItem();
+		assertEquals(3, patched.path("value").asInt());
+		assertEquals("done", patched.path("status").asText());
+		assertEquals(2, patched.path("_lsn").asLong());
+		
+		assertEquals(412, assertThrows(ContainerException.class, () -> container.patch("1", "a",
+					 PatchOperations.create().increment("/value", 1), "{\"status\":\"open\"}", null).block()).getStatusCode());
+		assertEquals(400, assertThrows(ContainerException.class, () -> container.patch("1", "a",
+					 PatchOperations.create().increment("/value", 1).remove("/missing"), null, null).block()).getStatusCode());
+		assertEquals(3, container.read("1", "a").block().getItem().path("value").asInt());
+	}
+	
+	@Test
+	void batchCommitsAllOrNothing() {
+		InMemoryContainer container = container(2, 0);
+		container.create(document("1", "a", 1)).block();
+		
+		BatchResponse failed = container.executeBatch(new TransactionalBatch("a").upsert(document("2", "a", 2), null)
+																				  .create(document("1", "a", 1))).block();
+		assertEquals(409, failed.getStatusCode());
+		assertEquals(424, failed.getResults().get(0).getStatusCode());
+		assertEquals(404, assertThrows(ContainerException.class, () -> container.read("2", "a").block()).getStatusCode());
+		
+		BatchResponse committed = container.executeBatch(new TransactionalBatch("a").create(document("2", "a", 2))
+																					 .patch("2", PatchOperations.create().increment("/value", 1), null)
+																					 .delete("1", null)
+																					 .read("2")).block();
+		assertTrue(committed.isSuccess());
+		assertEquals(3, committed.getResults().get(3).getItem().path("value").asInt());
+		assertEquals(3, container.read("2", "a").block().getItem().path("value").asInt());
+		assertEquals(1, container.getDocumentCount());
+	}
+	
+	@Test
+	void changeFeedDeliversLatestVersionsPerRange() {
+		InMemoryContainer container = container(4, 0);
+		for(int i = 0; i < 100; i++) {
+			container.create(document("d" + i, "pk" + (i % 10), i)).block();
+		}
+		container.upsert(document("d0", "pk0", 1000), null).block();
+		container.delete("d1", "pk1").block();
+		
+		List<JsonNode> changes = new ArrayList<JsonNode>();
+		for(String range : container.getFeedRanges().block()) {
+			String continuation = null;
+			long lastLsn = 0;
+			while(true) {
+				FeedPage page = container.readChangeFeed(range, continuation, null, 7, null).block();
+				if(page.getResults().isEmpty()) {
+					break;
+				}
+				for(JsonNode document : page.getResults()) {
+					assertTrue(document.path("_lsn").asLong() > lastLsn);
+					lastLsn = document.path("_lsn").asLong();
+				}
+				changes.addAll(page.getResults());
+				continuation = page.getContinuationToken();
+			}
+		}
+		// d0 once with its last version, d1 deleted
+		assertEquals(99, changes.size());
+		assertEquals(1000, changes.stream().filter(d -> d.path("id").asText().equals("d0")).findFirst().get().path("value").asInt());
+		
+		// a start time after every write reads nothing
+		Instant later = Instant.now().plusSeconds(5);
+		assertTrue(container.readChangeFeed("0", null, later, 100, null).block().getResults().isEmpty());
+	}
+	
+	@Test
+	void changeLogDropsSupersededEntries() {
+		InMemoryContainer container = container(1, 0);
+		container.create(document("first", "pk", 0)).block();
+		String continuation = container.readChangeFeed("0", null, null, 1, null).block().getContinuationToken();
+		for(int i = 0; i < 50000; i++) {
+			container.upsert(document("d" + (i % 10), "pk", i), null).block();
+		}
+		assertTrue(container.getChangeLogSize() < 2 * InMemoryPartition.MIN_COMPACT_SIZE);
+		
+		// a continuation taken before the rewrites still resumes after them
+		FeedPage page = container.readChangeFeed("0", continuation, null, 100, null).block();
+		assertEquals(10, page.getResults().size());
+		assertEquals(49999, page.getResults().get(9).path("value").asInt());
+		assertTrue(container.readChangeFeed("0", page.getContinuationToken(), null, 100, null).block().getResults().isEmpty());
+		assertEquals(11, container.readChangeFeed("0", null, null, 100, null).block().getResults().size());
+	}
+	
+	@Test
+	void queryFiltersAndResumesFromContinuation() {
+		InMemoryContainer container = container(3, 0);
+		for(int i = 0; i < 50; i++) {
+			container.create(document("d" + i, "pk" + i, i)).block();
+		}
+		List<FeedPage> pages = container.query("{\"value\":{\"$gte\":10,\"$lt\":30}}", new QueryOptions().setMaxItemCount(4))
+										.collectList().block();
+		List<Integer> values = pages.stream().flatMap(p -> p.getResults().stream()).map(d -> d.path("value").asInt())
+									.sorted().collect(Collectors.toList());
+		assertEquals(20, values.size());
+		assertEquals(10, (int) values.get(0));
+		assertNull(pages.get(pages.size() - 1).getContinuationToken());
+		
+		String resume = pages.get(0).getContinuationToken();
+		long remaining = container.query("{\"value\":{\"$gte\":10,\"$lt\":30}}", new QueryOptions().setMaxItemCount(4).setContinuationToken(resume))
+								  .flatMapIterable(FeedPage::getResults).count().block();
+		assertEquals(20 - pages.get(0).getResults().size(), remaining);
+		assertEquals(1, container.query("{\"id\":{\"$in\":[\"d3\",\"missing\"]}}", new QueryOptions())
+								  .flatMapIterable(FeedPage::getResults).count().block());
+	}
+	
+	@Test
+	void spentBudgetThrottlesWithRetryAfter() {
+		InMemoryContainer container = container(1, 10);
+		container.create(document("1", "a", 1)).block();
+		container.read("1", "a").block();
+		ContainerException throttled = assertThrows(ContainerException.class, () -> {
+			for(int i = 0; i < 10; i++) {
+				container.read("1", "a").block();
+			}
+		});
+		assertEquals(429, throttled.getStatusCode());
+		assertTrue(throttled.getRetryAfter().toMillis() <= 1000);
+		assertEquals(1, container.getThrottledCount());
+	}
+}
@@ -0,0 +1,58 @@
+package com.microsoft.sample.api.helpers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+import com.azure.cosmos.models.SqlQuerySpec;
+
+class QueryBuilderTest {
+
+	@Test
+	void sameShapeProducesSameText() {
+		QueryBuilder builder = new QueryBuilder(16);
+		SqlQuerySpec first = builder.build("{\"b\":1,\"a\":\"x\"}");
+		SqlQuerySpec second = builder.build("{\"a\":\"y\",\"b\":2}");
+		assertEquals("SELECT * FROM c WHERE c[\"a\"] = @p0 AND c[\"b\"] = @p1", first.getQueryText());
+		assertEquals(first.getQueryText(), second.getQueryText());
+		assertEquals("y", second.getParameters().get(0).getValue(Object.class));
+		assertEquals(1, builder.getCachedShapes());
+	}
+
+	@Test
+	void typedOperators() {
+		QueryBuilder builder = new QueryBuilder(16);
+		SqlQuerySpec spec = builder.build("{\"amount\":{\"$lt\":20,\"$gte\":10},\"tag\":{\"$in\":[\"a\",\"b\"]},\"name.first\":{\"$startsWith\":\"Jo\"}}");
+		assertEquals("SELECT * FROM c WHERE c[\"amount\"] >= @p0 AND c[\"amount\"] < @p1"
+					 + " AND STARTSWITH(c[\"name\"][\"first\"], @p2) AND c[\"tag\"] IN (@p3, @p4)", spec.getQueryText());
+		assertEquals(5, spec.getParameters().size());
+	}
+
+	@Test
+	void predicateInlinesValues() {
+		QueryBuilder builder = new QueryBuilder(16);
+		assertEquals("FROM c WHERE c[\"count\"] < 10 AND c[\"status\"] = \"open\"",
+					 builder.buildPredicate("{\"status\":\"open\",\"count\":{\"$lt\":10}}"));
+		// field names that look like parameters are paths, not placeholders
+		assertEquals("FROM c WHERE c[\"@p0\"] = 5", builder.buildPredicate("{\"@p0\":5}"));
+		assertEquals("FROM c WHERE c[\"tag\"] IN (\"a\", \"b\")", builder.buildPredicate("{\"tag\":{\"$in\":[\"a\",\"b\"]}}"));
+	}
+
+	@Test
+	void emptyAndInvalidFilters() {
+		QueryBuilder builder = new QueryBuilder(16);
+		assertEquals(QueryBuilder.SELECT_ALL, builder.build("{}").getQueryText());
+		assertThrows(IllegalArgumentException.class, () -> builder.build("{\"a\":{\"$regex\":1}}"));
+		assertThrows(IllegalArgumentException.class, () -> builder.build("not json"));
+	}
+
+	@Test
+	void cacheIsBounded() {
+		QueryBuilder builder = new QueryBuilder(2);
+		builder.build("{\"a\":1}");
+		builder.build("{\"b\":1}");
+		builder.build("{\"c\":1}");
+		assertEquals(2, builder.getCachedShapes());
+	}
+}
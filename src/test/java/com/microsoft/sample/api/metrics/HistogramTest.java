@@ -0,0 +1,42 @@
+package com.microsoft.sample.api.metrics;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class HistogramTest {
+
+	@Test
+	void bucketsAreContiguous() {
+		Histogram histogram = new Histogram(1L << 40, 7);
+		for(long value = 0; value < 1_000_000; value += 7) {
+			int index = histogram.indexOf(value);
+			assertTrue(histogram.lowestValueAt(index) <= value);
+			assertTrue(histogram.highestValueAt(index) >= value);
+		}
+	}
+
+	@Test
+	void percentilesWithinPrecision() {
+		Histogram histogram = new Histogram(10_000_000, 7);
+		for(long value = 1; value <= 100_000; value++) {
+			histogram.record(value);
+		}
+		Histogram.Snapshot snapshot = histogram.snapshot();
+		assertEquals(100_000, snapshot.getCount());
+		assertEquals(100_000, snapshot.getMax());
+		assertEquals(50_000, snapshot.getValueAtPercentile(50), 50_000 / 64.0);
+		assertEquals(99_000, snapshot.getValueAtPercentile(99), 99_000 / 64.0);
+	}
+
+	@Test
+	void snapshotAndResetClearsCounts() {
+		Histogram histogram = new Histogram(1000, 4);
+		histogram.record(5000);
+		Histogram.Snapshot snapshot = histogram.snapshotAndReset();
+		assertEquals(1, snapshot.getCount());
+		assertEquals(1000, snapshot.getMax());
+		assertEquals(0, histogram.snapshot().getCount());
+	}
+}
@@ -0,0 +1,52 @@
+package com.microsoft.sample.api.metrics;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class HotKeyTrackerTest {
+	
+	@Test
+	void findsHotKeysAmongManyColdOnes() {
+		HotKeyTracker tracker = new HotKeyTracker(60000, 6, 32, 1024, 4, 10);
+		long now = TimeUnit.SECONDS.toNanos(1000);
+		for(int i = 0; i < 100000; i++) {
+			tracker.record("cold-" + i, 1, false, now);
+			if(i % 10 == 0) {
+				tracker.record("hot", 1, i % 20 == 0, now);
+			}
+			if(i % 1000 == 0) {
+				tracker.record("expensive", 500, false, now);
+			}
+		}
+		
+		List<HotKeyTracker.HotKey> byRequests = tracker.top(3, false, now);
+		assertEquals("hot", byRequests.get(0).getKey());
+		// count-min only overcounts
+		assertTrue(byRequests.get(0).getRequests() >= 10000);
+		assertTrue(byRequests.get(0).getThrottled() >= 5000);
+		
+		List<HotKeyTracker.HotKey> byCharge = tracker.top(3, true, now);
+		assertEquals("expensive", byCharge.get(0).getKey());
+		assertTrue(byCharge.get(0).getRequestCharge() >= 50000);
+		assertEquals("hot", byCharge.get(1).getKey());
+	}
+	
+	@Test
+	void keysAgeOutOfTheWindow() {
+		HotKeyTracker tracker = new HotKeyTracker(60000, 6, 8, 256, 4, 10);
+		long start = TimeUnit.SECONDS.toNanos(1000);
+		tracker.record("early", 1, false, start);
+		tracker.record("late", 1, false, start + TimeUnit.SECONDS.toNanos(30));
+		
+		assertEquals(2, tracker.top(10, false, start + TimeUnit.SECONDS.toNanos(50)).size());
+		List<HotKeyTracker.HotKey> later = tracker.top(10, false, start + TimeUnit.SECONDS.toNanos(70));
+		assertEquals(1, later.size());
+		assertEquals("late", later.get(0).getKey());
+		assertTrue(tracker.top(10, false, start + TimeUnit.SECONDS.toNanos(100)).isEmpty());
+	}
+}
@@ -0,0 +1,56 @@
+package com.microsoft.sample.cfp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.time.Duration;
+
+import org.junit.jupiter.api.Test;
+
+class AdaptiveFeedControllerTest {
+
+	@Test
+	void idleBacksOffAndBurstsGrowPages() {
+		AdaptiveFeedController controller = new AdaptiveFeedController(100, 1000, 10, 800, 100, 500);
+		assertEquals(Duration.ofMillis(200), controller.onPage(0, 0, -1));
+		controller.onPage(0, 0, -1);
+		controller.onPage(0, 0, -1);
+		assertEquals(Duration.ofMillis(1000), controller.onPage(0, 0, -1));
+
+		// a full page resets the delay and reads again at once with a bigger page
+		assertEquals(Duration.ZERO, controller.onPage(100, 10, -1));
+		assertEquals(200, controller.getMaxItemCount());
+		controller.onPage(200, 10, -1);
+		controller.onPage(400, 10, -1);
+		controller.onPage(800, 10, -1);
+		assertEquals(800, controller.getMaxItemCount());
+
+		// caught up
+		assertEquals(Duration.ofMillis(100), controller.onPage(5, 10, -1));
+	}
+
+	@Test
+	void estimatedLagDecidesOverPageFill() {
+		AdaptiveFeedController controller = new AdaptiveFeedController(100, 1000, 10, 800, 100, 500);
+		// a short page with lag left is read again at once, the page grows while more than a page is left
+		assertEquals(Duration.ZERO, controller.onPage(30, 10, 500));
+		assertEquals(200, controller.getMaxItemCount());
+		assertEquals(Duration.ZERO, controller.onPage(200, 10, 150));
+		assertEquals(200, controller.getMaxItemCount());
+		// a full page without lag waits
+		assertEquals(Duration.ofMillis(100), controller.onPage(200, 10, 0));
+		assertEquals(200, controller.getMaxItemCount());
+	}
+
+	@Test
+	void slowHandlerAndThrottlingShrinkPages() {
+		AdaptiveFeedController controller = new AdaptiveFeedController(100, 1000, 10, 800, 100, 500);
+		controller.onPage(100, 2000, -1);
+		assertEquals(50, controller.getMaxItemCount());
+		controller.onThrottle();
+		controller.onThrottle();
+		controller.onThrottle();
+		assertEquals(10, controller.getMaxItemCount());
+		assertEquals(800, controller.getPollDelayMillis());
+		assertEquals(3, controller.getThrottleCount());
+	}
+}
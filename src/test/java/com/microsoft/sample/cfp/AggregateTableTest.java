@@ -0,0 +1,39 @@
+package com.microsoft.sample.cfp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+class AggregateTableTest {
+
+	@Test
+	void aggregatesAndDrainsOnlyDirtyGroups() {
+		AggregateTable table = new AggregateTable(4);
+		for(int i = 0; i < 1000; i++) {
+			table.add("g" + (i % 100), i);
+		}
+		table.add("g0", Double.NaN);
+		assertEquals(100, table.size());
+
+		Map<String, double[]> drained = new HashMap<String, double[]>();
+		assertEquals(100, table.drainDirty((key, count, sum, min, max) -> drained.put(key, new double[] { count, sum, min, max })));
+		assertEquals(11, drained.get("g0")[0]);
+		assertEquals(4500, drained.get("g0")[1]);
+		assertEquals(0, drained.get("g0")[2]);
+		assertEquals(900, drained.get("g0")[3]);
+
+		assertEquals(0, table.drainDirty((key, count, sum, min, max) -> { }));
+		table.add("g7", 1);
+		table.add("g7", 2);
+		table.add("g7", 1, 5, -1, 3);
+		assertEquals(1, table.drainDirty((key, count, sum, min, max) -> {
+			assertEquals(3, count);
+			assertEquals(8, sum);
+			assertEquals(-1, min);
+			assertEquals(3, max);
+		}));
+	}
+}
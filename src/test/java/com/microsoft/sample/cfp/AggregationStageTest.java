@@ -0,0 +1,80 @@
+package com.microsoft.sample.cfp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.microsoft.sample.api.dal.CosmosAsyncDAL;
+import com.microsoft.sample.api.dal.memory.InMemoryContainer;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+class AggregationStageTest {
+
+	private static List<JsonNode> batch(String tenant, int from, int to) {
+		List<JsonNode> docs = new ArrayList<JsonNode>();
+		for(int i = from; i < to; i++) {
+			ObjectNode document = JsonNodeFactory.instance.objectNode();
+			document.put("tenant", tenant);
+			document.put("amount", i);
+			docs.add(document);
+		}
+		return docs;
+	}
+
+	@Test
+	void consumersAddToEachOthersTotals() {
+		InMemoryContainer target = new InMemoryContainer("aggregates", "/pk", 2, 0, 0, 0, 0, Duration.ofMillis(10), 1, 5);
+		CosmosAsyncDAL dal = CosmosAsyncDAL.forDocumentContainer(target);
+		AggregationStage first = new AggregationStage(dal, "/tenant", "/amount", Duration.ofMillis(20));
+		AggregationStage second = new AggregationStage(dal, "/tenant", "/amount", Duration.ofMillis(20));
+		first.start();
+		second.start();
+		ChangeFeedBatchHandler firstHandler = first.wrap(docs -> { });
+		ChangeFeedBatchHandler secondHandler = second.wrap(docs -> { });
+
+		Flux.range(0, 10)
+			.flatMap(i -> Mono.fromRunnable(() -> {
+				try {
+					(i % 2 == 0 ? firstHandler : secondHandler).handle(batch("t1", i * 10, i * 10 + 10));
+				}
+				catch(Exception exp) {
+					throw new IllegalStateException(exp);
+				}
+			}).subscribeOn(Schedulers.boundedElastic()))
+			.blockLast();
+		first.apply(batch("t2", 5, 6));
+		first.stop().block();
+		second.stop().block();
+
+		JsonNode t1 = target.read("t1", "t1").block().getItem();
+		assertEquals(100, t1.path("count").asLong());
+		assertEquals(4950, t1.path("sum").asDouble());
+		assertEquals(0, t1.path("min").asDouble());
+		assertEquals(99, t1.path("max").asDouble());
+		assertEquals(1, target.read("t2", "t2").block().getItem().path("count").asLong());
+	}
+
+	@Test
+	void flushWritesEachChangedGroupOnce() {
+		InMemoryContainer target = new InMemoryContainer("aggregates", "/pk", 2, 0, 0, 0, 0, Duration.ofMillis(10), 1, 5);
+		AggregationStage stage = new AggregationStage(CosmosAsyncDAL.forDocumentContainer(target), "/tenant", "/amount",
+													  Duration.ofHours(1));
+		for(int i = 0; i < 50; i++) {
+			stage.apply(batch(i % 2 == 0 ? "a" : "b", i, i + 1));
+		}
+		stage.flush().block();
+		assertEquals(2, stage.getMergedGroups());
+		assertEquals(0, stage.getDirtyCount());
+		assertEquals(25, target.read("a", "a").block().getItem().path("count").asLong());
+	}
+}
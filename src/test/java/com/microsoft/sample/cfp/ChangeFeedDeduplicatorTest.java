@@ -0,0 +1,82 @@
+package com.microsoft.sample.cfp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+class ChangeFeedDeduplicatorTest {
+
+	private static ObjectNode document(String id, long lsn) {
+		ObjectNode node = JsonNodeFactory.instance.objectNode();
+		node.put("id", id);
+		node.put("_lsn", lsn);
+		node.put("_etag", "\"" + id + lsn + "\"");
+		return node;
+	}
+
+	@Test
+	void redeliveredBatchIsDropped() throws Exception {
+		ChangeFeedDeduplicator dedupe = new ChangeFeedDeduplicator(1024 * 1024, 60000);
+		List<JsonNode> handled = new ArrayList<JsonNode>();
+		ChangeFeedBatchHandler handler = dedupe.wrap(handled::addAll);
+
+		List<JsonNode> batch = Arrays.asList(document("a", 1), document("b", 2), document("a", 1));
+		handler.handle(batch);
+		handler.handle(batch);
+		handler.handle(Arrays.asList(document("a", 3)));
+
+		assertEquals(3, handled.size());
+		assertEquals(4, dedupe.getDuplicateCount());
+	}
+
+	@Test
+	void failedBatchIsNotRecorded() throws Exception {
+		ChangeFeedDeduplicator dedupe = new ChangeFeedDeduplicator(1024 * 1024, 60000);
+		List<JsonNode> batch = Arrays.asList(document("a", 1));
+		try {
+			dedupe.wrap(docs -> { throw new IllegalStateException(); }).handle(batch);
+		}
+		catch(IllegalStateException expected) {
+		}
+		List<JsonNode> handled = new ArrayList<JsonNode>();
+		dedupe.wrap(handled::addAll).handle(batch);
+		assertEquals(1, handled.size());
+	}
+
+	@Test
+	void evictsByCapacityAndAge() throws Exception {
+		AtomicLong now = new AtomicLong();
+		// 16 slots
+		ChangeFeedDeduplicator dedupe = new ChangeFeedDeduplicator(0, 1000, now::get);
+		List<JsonNode> handled = new ArrayList<JsonNode>();
+		ChangeFeedBatchHandler handler = dedupe.wrap(handled::addAll);
+		for(int i = 0; i < 20; i++) {
+			handler.handle(Arrays.asList(document("d" + i, i)));
+		}
+		assertEquals(16, dedupe.size());
+
+		// the four oldest were evicted, the rest are still suppressed
+		List<JsonNode> replay = new ArrayList<JsonNode>();
+		for(int i = 4; i < 20; i++) {
+			replay.add(document("d" + i, i));
+		}
+		handler.handle(replay);
+		assertEquals(20, handled.size());
+		handler.handle(Arrays.asList(document("d0", 0)));
+		assertEquals(21, handled.size());
+
+		now.set(1000);
+		handler.handle(Arrays.asList(document("d19", 19)));
+		assertEquals(22, handled.size());
+		assertEquals(1, dedupe.size());
+	}
+}
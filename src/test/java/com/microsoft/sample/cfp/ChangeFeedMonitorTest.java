@@ -0,0 +1,84 @@
+package com.microsoft.sample.cfp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.DoubleSupplier;
+
+import org.junit.jupiter.api.Test;
+
+import com.azure.cosmos.models.ChangeFeedProcessorState;
+import com.microsoft.sample.api.metrics.MetricsRegistry;
+
+import reactor.core.publisher.Mono;
+
+class ChangeFeedMonitorTest {
+
+	private static class MapRegistry implements MetricsRegistry {
+		private final Map<String, DoubleSupplier> gauges = new ConcurrentHashMap<String, DoubleSupplier>();
+
+		@Override
+		public void registerGauge(String name, DoubleSupplier gauge) {
+			gauges.put(name, gauge);
+		}
+
+		@Override
+		public void unregisterGauges(String prefix) {
+			gauges.keySet().removeIf(name -> name.startsWith(prefix));
+		}
+	}
+
+	private static ChangeFeedProcessorState state(String lease, String host, int lag, String continuation) {
+		return new ChangeFeedProcessorState().setLeaseToken(lease).setHostName(host)
+											 .setEstimatedLag(lag).setContinuationToken(continuation);
+	}
+
+	@Test
+	void tracksLagOwnershipAndProgressPerLease() {
+		MapRegistry registry = new MapRegistry();
+		ChangeFeedMonitor monitor = new ChangeFeedMonitor(Duration.ofMinutes(1), registry);
+
+		monitor.setStateSource(() -> Mono.just(Arrays.asList(state("0", "host1", 500, "\"100\""), state("1", "host1", 0, null))));
+		monitor.sample().block();
+		monitor.setStateSource(() -> Mono.just(Arrays.asList(state("0", "host2", 200, "\"400\""), state("1", "host1", 0, null))));
+		monitor.sample().block();
+
+		LeaseStats lease = monitor.getLease("0");
+		assertEquals("host2", lease.getOwner());
+		assertEquals(1, lease.getOwnershipChanges());
+		assertEquals(0, monitor.getLease("1").getOwnershipChanges());
+		assertEquals(200, monitor.getTotalEstimatedLag());
+		assertTrue(lease.getDocumentsPerSecond() > 0);
+		assertEquals(200, registry.gauges.get("cfp.lease.0.estimated_lag").getAsDouble());
+
+		monitor.stop();
+		assertTrue(registry.gauges.isEmpty());
+		monitor.start();
+		assertEquals(200, registry.gauges.get("cfp.lease.0.estimated_lag").getAsDouble());
+		monitor.stop();
+		
+		// a lease of unknown lag makes the total unknown rather than 0
+		monitor.setStateSource(() -> Mono.just(Arrays.asList(state("0", "host2", 200, "\"400\""), state("1", "host1", -1, null))));
+		monitor.sample().block();
+		assertEquals(-1, monitor.getTotalEstimatedLag());
+	}
+
+	@Test
+	void pullBatchesAreAttributedToTheirRange() {
+		ChangeFeedMonitor monitor = new ChangeFeedMonitor(Duration.ofMinutes(1), new MapRegistry());
+		monitor.recordBatch("3", 100, 2000, System.currentTimeMillis() / 1000 - 30);
+		monitor.recordBatch("3", 50, 4000, System.currentTimeMillis() / 1000 - 20);
+		monitor.sample().block();
+
+		LeaseStats lease = monitor.getLease("3");
+		assertTrue(lease.getBatchesPerSecond() > 0);
+		assertTrue(lease.getLagSeconds() >= 20);
+		assertEquals(150, lease.toJson().path("documents").asLong());
+		monitor.recordCaughtUp("3");
+		assertEquals(0, lease.getLagSeconds());
+	}
+}
@@ -0,0 +1,47 @@
+package com.microsoft.sample.cfp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+
+class ChangeFeedPipelineDrainTest {
+	
+	private static final List<JsonNode> BATCH = Collections.<JsonNode>singletonList(JsonNodeFactory.instance.objectNode().put("id", "1"));
+	
+	@Test
+	void drainWaitsForInFlightBatchesAndRejectsNewOnes() throws Exception {
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger handled = new AtomicInteger();
+		ChangeFeedPipeline pipeline = new ChangeFeedPipeline(docs -> {
+			started.countDown();
+			release.await();
+			handled.addAndGet(docs.size());
+		}, 1, 2, 4, false);
+		
+		pipeline.accept(BATCH);
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		assertFalse(pipeline.drain(Duration.ofMillis(50)));
+		assertTrue(pipeline.isDraining());
+		assertThrows(IllegalStateException.class, () -> pipeline.accept(BATCH));
+		
+		release.countDown();
+		assertTrue(pipeline.drain(Duration.ofSeconds(5)));
+		assertEquals(1, handled.get());
+		assertEquals(4, pipeline.getAvailableCapacity());
+		pipeline.shutdown(Duration.ofSeconds(5));
+	}
+}
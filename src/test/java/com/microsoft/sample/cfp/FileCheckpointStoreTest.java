@@ -0,0 +1,54 @@
+package com.microsoft.sample.cfp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FileCheckpointStoreTest {
+
+	@Test
+	void latestCheckpointPerRangeSurvivesRestart(@TempDir Path dir) throws Exception {
+		Path log = dir.resolve("checkpoints.log");
+		FileCheckpointStore store = new FileCheckpointStore(log, 1024 * 1024);
+		assertTrue(store.load().isEmpty());
+		store.save("r1", "c1");
+		store.save("r2", "c1");
+		store.flush();
+		store.save("r1", "c2");
+		store.close();
+
+		// torn trailing write from a crash is ignored
+		Files.write(log, "{\"range\":\"r2\",\"contin".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+		FileCheckpointStore reopened = new FileCheckpointStore(log, 1024 * 1024);
+		Map<String, String> checkpoints = reopened.load();
+		assertEquals(2, checkpoints.size());
+		assertEquals("c2", checkpoints.get("r1"));
+		assertEquals("c1", checkpoints.get("r2"));
+		reopened.close();
+	}
+
+	@Test
+	void compactionKeepsOneLinePerRange(@TempDir Path dir) throws Exception {
+		Path log = dir.resolve("checkpoints.log");
+		FileCheckpointStore store = new FileCheckpointStore(log, 256);
+		store.load();
+		for(int i = 0; i < 50; i++) {
+			store.save("r1", "c" + i);
+			store.flush();
+		}
+		store.close();
+		assertTrue(Files.size(log) < 512);
+
+		Map<String, String> checkpoints = new FileCheckpointStore(log, 256).load();
+		assertEquals("c49", checkpoints.get("r1"));
+	}
+}
@@ -0,0 +1,51 @@
+package com.microsoft.sample.cfp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+import com.azure.cosmos.models.PartitionKey;
+import com.fasterxml.jackson.core.JsonPointer;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+class LazyDocumentTest {
+
+	private static final String JSON = "{\"id\":\"a1\",\"items\":[{\"_ts\":1},{\"x\":{\"y\":2}}],"
+									 + "\"meta\":{\"tenant\":\"t9\",\"nested\":{\"deep\":true}},"
+									 + "\"_lsn\":77,\"_ts\":1645729200}";
+
+	@Test
+	void projectsFieldsWithoutBuildingTheTree() {
+		LazyDocument document = LazyDocument.of(JSON.getBytes(StandardCharsets.UTF_8));
+		assertEquals(1645729200, document.getTimestamp());
+		assertEquals("a1", document.getId());
+		assertEquals(77, document.getLsn());
+		assertEquals(new PartitionKey("t9").toString(), document.getPartitionKey("/meta/tenant").toString());
+		assertFalse(document.isMaterialized());
+
+		JsonNode[] values = document.project(JsonPointer.compile("/meta"), JsonPointer.compile("/meta/nested/deep"),
+											 JsonPointer.compile("/missing"), JsonPointer.compile("/items/x"));
+		assertEquals("t9", values[0].path("tenant").asText());
+		assertTrue(values[1].asBoolean());
+		assertTrue(values[2].isMissingNode());
+		assertTrue(values[3].isMissingNode());
+		assertFalse(document.isMaterialized());
+
+		assertEquals(2, document.getTree().path("items").size());
+		assertTrue(document.isMaterialized());
+	}
+
+	@Test
+	void treeBackedDocumentsAnswerTheSame() throws Exception {
+		JsonNode tree = new ObjectMapper().readTree(JSON);
+		LazyDocument document = LazyDocument.of(tree);
+		assertEquals(1645729200, document.getTimestamp());
+		assertEquals("a1", document.getId());
+		assertEquals(tree, new ObjectMapper().readTree(document.getBytes()));
+	}
+}
@@ -0,0 +1,57 @@
+package com.microsoft.sample.cfp;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+class PartitionKeyDispatcherTest {
+
+	private static ObjectNode document(String tenant, int seq) {
+		ObjectNode node = JsonNodeFactory.instance.objectNode();
+		node.putObject("meta").put("tenant", tenant);
+		node.put("seq", seq);
+		return node;
+	}
+
+	@Test
+	void keepsOrderPerKeyAcrossBatches() throws Exception {
+		Map<String, List<Integer>> seen = new ConcurrentHashMap<String, List<Integer>>();
+		PartitionKeyDispatcher dispatcher = new PartitionKeyDispatcher(docs -> {
+			for(JsonNode document : docs) {
+				seen.computeIfAbsent(document.at("/meta/tenant").asText(), k -> new ArrayList<Integer>())
+					.add(document.path("seq").asInt());
+			}
+		}, "/meta/tenant", 4);
+
+		for(int batch = 0; batch < 10; batch++) {
+			List<JsonNode> docs = new ArrayList<JsonNode>();
+			for(int i = 0; i < 100; i++) {
+				docs.add(document("t" + (i % 7), batch * 100 + i));
+			}
+			// not joined, ordering across batches comes from the stripes
+			dispatcher.dispatch(docs);
+		}
+		dispatcher.shutdown(Duration.ofSeconds(10));
+
+		assertEquals(7, seen.size());
+		assertEquals(1000, seen.values().stream().mapToInt(List::size).sum());
+		for(List<Integer> sequence : seen.values()) {
+			for(int i = 1; i < sequence.size(); i++) {
+				assertTrue(sequence.get(i - 1) < sequence.get(i));
+			}
+		}
+		assertArrayEquals(new int[4], dispatcher.getQueueDepths());
+	}
+}
@@ -0,0 +1,158 @@
+package com.microsoft.sample.cfp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.microsoft.sample.api.dal.memory.InMemoryContainer;
+
+import reactor.core.publisher.Mono;
+
+class PullChangeFeedProcessorTest {
+	
+	@Test
+	void consumesEveryRangeAndResumesFromCheckpoints() throws Exception {
+		InMemoryContainer container = new InMemoryContainer("feed", "/pk", 4, 0, 0, 0, 0, Duration.ofMillis(10), 1, 5);
+		for(int i = 0; i < 500; i++) {
+			container.create(JsonNodeFactory.instance.objectNode().put("id", "d" + i).put("pk", "p" + (i % 37))).block();
+		}
+		Set<String> seen = ConcurrentHashMap.newKeySet();
+		ChangeFeedPipeline pipeline = new ChangeFeedPipeline(docs -> docs.forEach(d -> seen.add(d.path("id").asText())), 1, 2, 4, true);
+		InMemoryCheckpointStore store = new InMemoryCheckpointStore();
+		PullChangeFeedProcessor processor = new PullChangeFeedProcessor("host", container, store, pipeline, null,
+																		() -> new AdaptiveFeedController(10, 50, 10, 200, 50, 1000),
+																		1, Duration.ofMillis(50), null);
+		processor.start().block();
+		long deadline = System.currentTimeMillis() + 10000;
+		while(seen.size() < 500 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+		processor.stop(Duration.ofSeconds(5)).block();
+		assertEquals(500, seen.size());
+		assertEquals(4, store.load().size());
+		
+		// writes after the stop are the only ones read on restart
+		container.create(JsonNodeFactory.instance.objectNode().put("id", "late").put("pk", "p1")).block();
+		Set<String> resumed = ConcurrentHashMap.newKeySet();
+		PullChangeFeedProcessor restarted = new PullChangeFeedProcessor("host", container, store,
+																		new ChangeFeedPipeline(docs -> docs.forEach(d -> resumed.add(d.path("id").asText())), 1, 1, 1, true),
+																		null, () -> new AdaptiveFeedController(10, 50, 10, 200, 50, 1000),
+																		1, Duration.ofMillis(50), null);
+		restarted.start().block();
+		deadline = System.currentTimeMillis() + 5000;
+		while(resumed.isEmpty() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+		restarted.stop(Duration.ofSeconds(5)).block();
+		assertTrue(resumed.contains("late"));
+		assertEquals(1, resumed.size());
+	}
+	
+	@Test
+	void checkpointsOnlyHandledBatchesWhenNotAwaiting() throws Exception {
+		InMemoryContainer container = new InMemoryContainer("feed", "/pk", 1, 0, 0, 0, 0, Duration.ofMillis(10), 1, 5);
+		for(int i = 0; i < 10; i++) {
+			container.create(JsonNodeFactory.instance.objectNode().put("id", "d" + i).put("pk", "p")).block();
+		}
+		CountDownLatch entered = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		ChangeFeedPipeline pipeline = new ChangeFeedPipeline(docs -> {
+			entered.countDown();
+			release.await();
+		}, 1, 1, 4, false);
+		InMemoryCheckpointStore store = new InMemoryCheckpointStore();
+		PullChangeFeedProcessor processor = new PullChangeFeedProcessor("host", container, store, pipeline, null,
+																		() -> new AdaptiveFeedController(10, 50, 10, 200, 50, 1000),
+																		1, Duration.ofMillis(50), null);
+		processor.start().block();
+		assertTrue(entered.await(5, TimeUnit.SECONDS));
+		processor.stop().block();
+		assertTrue(store.load().isEmpty());
+		release.countDown();
+		pipeline.shutdown(Duration.ofSeconds(5));
+	}
+	
+	@Test
+	void lagIsTheSessionLsnLessTheLastHandledLsn() throws Exception {
+		InMemoryContainer container = new InMemoryContainer("feed", "/pk", 1, 0, 0, 0, 0, Duration.ofMillis(10), 1, 5);
+		for(int i = 0; i < 50; i++) {
+			container.create(JsonNodeFactory.instance.objectNode().put("id", "d" + i).put("pk", "p")).block();
+		}
+		CountDownLatch release = new CountDownLatch(1);
+		ChangeFeedPipeline pipeline = new ChangeFeedPipeline(docs -> release.await(), 1, 1, 1, false);
+		PullChangeFeedProcessor processor = new PullChangeFeedProcessor("host", container, new InMemoryCheckpointStore(), pipeline, null,
+																		() -> new AdaptiveFeedController(10, 50, 10, 10, 10, 1000),
+																		1, Duration.ofMillis(50), null);
+		processor.start().block();
+		long deadline = System.currentTimeMillis() + 5000;
+		int lag = -1;
+		while(lag < 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+			lag = processor.getCurrentState().block().get(0).getEstimatedLag();
+		}
+		// the first page of 10 is in the handler, the next one waits for it
+		assertEquals(40, lag);
+		release.countDown();
+		processor.stop(Duration.ofSeconds(5)).block();
+		pipeline.shutdown(Duration.ofSeconds(5));
+	}
+	
+	@Test
+	void splitRangesResumeFromTheParentContinuation() throws Exception {
+		AtomicBoolean split = new AtomicBoolean();
+		InMemoryContainer container = new InMemoryContainer("feed", "/pk", 1, 0, 0, 0, 0, Duration.ofMillis(10), 1, 5) {
+			@Override
+			public Mono<List<String>> getFeedRanges() {
+				return split.get() ? Mono.just(Arrays.asList("0/a", "0/b")) : super.getFeedRanges();
+			}
+			
+			@Override
+			public boolean isWithin(String feedRange, String parentFeedRange) {
+				return feedRange.equals(parentFeedRange) || feedRange.startsWith(parentFeedRange + "/");
+			}
+		};
+		for(int i = 0; i < 20; i++) {
+			container.create(JsonNodeFactory.instance.objectNode().put("id", "d" + i).put("pk", "p")).block();
+		}
+		Set<String> seen = ConcurrentHashMap.newKeySet();
+		InMemoryCheckpointStore store = new InMemoryCheckpointStore();
+		PullChangeFeedProcessor processor = new PullChangeFeedProcessor("host", container, store,
+																		new ChangeFeedPipeline(docs -> docs.forEach(d -> seen.add(d.path("id").asText())), 1, 1, 1, true),
+																		null, () -> new AdaptiveFeedController(10, 50, 10, 200, 50, 1000),
+																		1, Duration.ofMillis(50), null);
+		processor.start().block();
+		long deadline = System.currentTimeMillis() + 5000;
+		while(seen.size() < 20 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+		processor.stop(Duration.ofSeconds(5)).block();
+		
+		split.set(true);
+		container.create(JsonNodeFactory.instance.objectNode().put("id", "late").put("pk", "p")).block();
+		Set<String> resumed = ConcurrentHashMap.newKeySet();
+		PullChangeFeedProcessor restarted = new PullChangeFeedProcessor("host", container, store,
+																		new ChangeFeedPipeline(docs -> docs.forEach(d -> resumed.add(d.path("id").asText())), 1, 1, 1, true),
+																		null, () -> new AdaptiveFeedController(10, 50, 10, 200, 50, 1000),
+																		1, Duration.ofMillis(50), null);
+		restarted.start().block();
+		deadline = System.currentTimeMillis() + 5000;
+		while(resumed.isEmpty() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+		restarted.stop(Duration.ofSeconds(5)).block();
+		assertEquals(1, resumed.size());
+		assertTrue(resumed.contains("late"));
+		assertEquals(1, store.load().size());
+	}
+}
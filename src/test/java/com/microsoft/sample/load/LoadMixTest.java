@@ -0,0 +1,34 @@
+package com.microsoft.sample.load;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+import com.microsoft.sample.load.LoadMix.Operation;
+
+class LoadMixTest {
+
+	@Test
+	void picksByCumulativeWeight() {
+		LoadMix mix = LoadMix.parse("create=20, upsert=20,read=50,query=10");
+		assertEquals(Operation.CREATE, mix.pick(0.0));
+		assertEquals(Operation.CREATE, mix.pick(0.19));
+		assertEquals(Operation.UPSERT, mix.pick(0.2));
+		assertEquals(Operation.READ, mix.pick(0.85));
+		assertEquals(Operation.QUERY, mix.pick(0.95));
+	}
+	
+	@Test
+	void missingOperationsAreNeverPicked() {
+		LoadMix mix = LoadMix.parse("read=1");
+		assertEquals(Operation.READ, mix.pick(0.0));
+		assertEquals(Operation.READ, mix.pick(0.999));
+	}
+	
+	@Test
+	void rejectsEmptyMix() {
+		assertThrows(IllegalArgumentException.class, () -> LoadMix.parse("create=0"));
+		assertThrows(IllegalArgumentException.class, () -> LoadMix.parse("create"));
+	}
+}
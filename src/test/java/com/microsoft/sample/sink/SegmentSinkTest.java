@@ -0,0 +1,126 @@
+package com.microsoft.sample.sink;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+class SegmentSinkTest {
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	private static List<JsonNode> batch(int from, int count) {
+		List<JsonNode> docs = new ArrayList<JsonNode>();
+		for(int i = from; i < from + count; i++) {
+			ObjectNode document = MAPPER.createObjectNode();
+			document.put("id", "doc" + i);
+			document.put("payload", "some payload text that compresses well " + i);
+			document.put("_ts", 1000 + i);
+			document.put("_lsn", i);
+			docs.add(document);
+		}
+		return docs;
+	}
+
+	private static List<Path> files(Path dir, String suffix) throws Exception {
+		try(Stream<Path> files = Files.list(dir)) {
+			return files.filter(p -> p.toString().endsWith(suffix)).sorted().collect(Collectors.toList());
+		}
+	}
+
+	@Test
+	void compressedSegmentsCanBeReadFromAnIndexedBlock(@TempDir Path dir) throws Exception {
+		SegmentSink sink = new SegmentSink(dir, 64 * 1024, 4 * 1024, true, Long.MAX_VALUE, Long.MAX_VALUE, false);
+		for(int i = 0; i < 10; i++) {
+			sink.write(batch(i * 100, 100));
+		}
+		sink.close();
+
+		Path segment = files(dir, ".jsonl.gz").get(0);
+		SegmentIndex index = SegmentIndex.read(files(dir, ".idx").get(0));
+		assertTrue(index.getEntries().size() > 1);
+		assertEquals(1000, index.getEntries().stream().mapToInt(SegmentIndex.Entry::getCount).sum());
+		assertEquals(1000, index.getMinTimestamp());
+		assertEquals(1999, index.getMaxTimestamp());
+
+		long offset = index.seek(1500);
+		try(FileChannel channel = FileChannel.open(segment)) {
+			channel.position(offset);
+			InputStream in = new GZIPInputStream(Channels.newInputStream(channel));
+			BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+			long first = MAPPER.readTree(reader.readLine()).path("_ts").asLong();
+			assertTrue(first <= 1500);
+			long lines = 1 + reader.lines().count();
+			assertEquals(1999 - first + 1, lines);
+		}
+	}
+
+	@Test
+	void rollsOverBySizeAndOnRestart(@TempDir Path dir) throws Exception {
+		SegmentSink sink = new SegmentSink(dir, 8 * 1024, 1024, false, 16 * 1024, Long.MAX_VALUE, true);
+		for(int i = 0; i < 20; i++) {
+			sink.write(batch(i * 50, 50));
+		}
+		sink.close();
+		int segments = files(dir, ".jsonl").size();
+		assertTrue(segments > 1);
+
+		long lines = 0;
+		for(Path segment : files(dir, ".jsonl")) {
+			lines += Files.readAllLines(segment).size();
+		}
+		assertEquals(1000, lines);
+
+		SegmentSink reopened = new SegmentSink(dir, 8 * 1024, 1024, false, 16 * 1024, Long.MAX_VALUE, true);
+		reopened.write(batch(0, 1));
+		reopened.close();
+		assertEquals(segments + 1, files(dir, ".jsonl").size());
+		
+		// data file of a segment whose index was never created
+		Path last = files(dir, ".jsonl").get(segments);
+		Files.delete(Paths.get(last.toString().replace(".jsonl", ".idx")));
+		SegmentSink afterCrash = new SegmentSink(dir, 8 * 1024, 1024, false, 16 * 1024, Long.MAX_VALUE, true);
+		afterCrash.write(batch(0, 1));
+		afterCrash.close();
+		assertEquals(segments + 2, files(dir, ".jsonl").size());
+	}
+
+	@Test
+	void readerHandsOutRawDocumentsFromAnOffset(@TempDir Path dir) throws Exception {
+		SegmentSink sink = new SegmentSink(dir, 64 * 1024, 2 * 1024, false, Long.MAX_VALUE, Long.MAX_VALUE, false);
+		sink.write(batch(0, 500));
+		sink.close();
+
+		SegmentIndex index = SegmentIndex.read(files(dir, ".idx").get(0));
+		List<Long> timestamps = new ArrayList<Long>();
+		try(SegmentReader reader = new SegmentReader(files(dir, ".jsonl").get(0), index.seek(1400))) {
+			reader.replay(docs -> docs.forEach(d -> {
+				assertTrue(!d.isMaterialized());
+				timestamps.add(d.getTimestamp());
+			}), 64);
+		}
+		assertTrue(timestamps.get(0) <= 1400);
+		assertEquals(1499, (long) timestamps.get(timestamps.size() - 1));
+		assertEquals(1499 - timestamps.get(0) + 1, timestamps.size());
+	}
+}